@@ -0,0 +1,314 @@
+package core;
+
+import java.util.List;
+import layer.Layer;
+import org.apache.log4j.Logger;
+import tensor.DoubleTensor;
+
+/**
+ * Gradient checkpointing (activation recomputation): only the outputs of some
+ * layers (checkpoints) are kept during forward propagation, the outputs of the
+ * layers in between are recomputed during backward propagation.
+ *
+ * The layers are split in segments, each one ending at a checkpoint (the last
+ * layer is always a checkpoint since the loss needs its output). The outputs
+ * of the other layers of a segment are stored in slot buffers shared by all
+ * segments: the output of the jth layer of any segment is stored in slot j.
+ * Thus forward propagation of a segment overwrites the outputs of the
+ * previous one, and before backpropagating a segment its outputs are
+ * recomputed from the checkpoint that precedes it (see Layer.refProp, dropout
+ * replays its mask). Every layer that is not a checkpoint is run forward
+ * twice, for nets dominated by convolutions that is about 30% more compute.
+ *
+ * Activation memory is the sum of the checkpoint outputs plus the slots,
+ * instead of the sum of all outputs. With n layers of similar size and about
+ * sqrt(n) segments it drops from n to about 2 sqrt(n) outputs. Internal
+ * buffers of layers (e.g., recurrent gates) and gradients (see MemoryPlanner)
+ * are not affected.
+ * @author diego_paez
+ */
+public class CheckpointPlan {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(CheckpointPlan.class);
+
+    /**
+     * Layers of the net.
+     */
+    private final List<Layer> layers;
+
+    /**
+     * Whether the output of each layer is kept.
+     */
+    private final boolean[] checkpoint;
+
+    /**
+     * First layer of the segment of each layer.
+     */
+    private final int[] segStart;
+
+    /**
+     * Output size of each layer without examples, 0 if the layer runs in
+     * place inside a segment.
+     */
+    private final long[] outSize;
+
+    /**
+     * Size of each slot without examples.
+     */
+    private final long[] slotSize;
+
+    /**
+     * Slot buffers, allocated when the plan is applied.
+     */
+    private double[][] slots;
+
+    /**
+     * Create plan keeping the outputs of given layers (the last layer is
+     * always kept). Dims of inputs must be set.
+     * @param layers Layers of the net.
+     * @param checkpoints Indexes of layers whose outputs are kept.
+     */
+    public CheckpointPlan(List<Layer> layers, int... checkpoints) {
+        this(layers, toMask(layers.size(), checkpoints));
+    }
+
+    /**
+     * Create plan from a mask of checkpoints.
+     * @param layers Layers of the net.
+     * @param checkpoint Whether the output of each layer is kept.
+     */
+    private CheckpointPlan(List<Layer> layers, boolean[] checkpoint) {
+        int n = layers.size();
+        this.layers = layers;
+        this.checkpoint = checkpoint;
+        this.checkpoint[n - 1] = true;
+        segStart = new int[n];
+        outSize = new long[n];
+        slotSize = new long[n];
+
+        int start = 0;
+        Layer l;
+        for(int i = 0; i < n; i++){
+            l = layers.get(i);
+            segStart[i] = start;
+            // in place layers get their own output at the limits of segments
+            if(!l.isInPlace() || checkpoint[i] || i == start)
+                outSize[i] = product(l.getDimsOfOutputsWOE());
+            if(!checkpoint[i])
+                slotSize[i - start] = Math.max(slotSize[i - start], outSize[i]);
+            else
+                start = i + 1;
+        }
+    }
+
+    /**
+     * Place checkpoints automatically so that activations fit in the given
+     * budget, keeping as many outputs as possible (less recomputation). The
+     * layers are split in k segments of similar activation memory for every
+     * k, and the feasible plan that recomputes the least is chosen. If no
+     * plan fits, the one using least memory is returned.
+     * @param layers Layers of the net.
+     * @param batchSize Number of examples run at once.
+     * @param budgetBytes Memory available for activations in bytes.
+     * @return Checkpoint plan.
+     */
+    public static CheckpointPlan forBudget(List<Layer> layers, int batchSize,
+            long budgetBytes){
+        int n = layers.size();
+        long total = 0;
+        for(Layer l: layers){
+            total += product(l.getDimsOfOutputsWOE());
+        }
+
+        CheckpointPlan best = null, smallest = null, plan;
+        boolean[] mask;
+        long acc;
+        for(int k = 1; k <= n; k++){
+            mask = new boolean[n];
+            acc = 0;
+            for(int i = 0; i < n; i++){
+                acc += product(layers.get(i).getDimsOfOutputsWOE());
+                if(acc * k >= total){
+                    mask[i] = true;
+                    acc = 0;
+                }
+            }
+            plan = new CheckpointPlan(layers, mask);
+
+            if(smallest == null || plan.getActivationBytes(batchSize)
+                    < smallest.getActivationBytes(batchSize))
+                smallest = plan;
+            if(plan.getActivationBytes(batchSize) <= budgetBytes
+                    && (best == null || plan.getRecomputed() < best.getRecomputed()))
+                best = plan;
+        }
+
+        if(best == null){
+            LOG.error("Activations do not fit in " + budgetBytes + " bytes, the smallest plan needs "
+                    + smallest.getActivationBytes(batchSize));
+            best = smallest;
+        }
+        return best;
+    }
+
+    /**
+     * Make the layers use the plan: outputs of layers that are not
+     * checkpoints are views of the slots. Layers at the limits of segments do
+     * not run in place, otherwise they would overwrite a checkpoint or write
+     * a checkpoint in a slot.
+     * @param batchSize Number of examples run at once, larger batches work
+     * but their outputs get their own memory.
+     */
+    public void apply(int batchSize){
+        slots = new double[layers.size()][];
+        Layer l;
+        for(int i = 0; i < layers.size(); i++){
+            l = layers.get(i);
+            if(checkpoint[i] || i == segStart[i])
+                l.setInPlace(false);
+
+            if(checkpoint[i]){
+                l.setSharedOutput(null);
+            } else{
+                int s = i - segStart[i];
+                if(slots[s] == null)
+                    slots[s] = new double[(int) (slotSize[s] * batchSize)];
+                l.setSharedOutput(slots[s]);
+            }
+        }
+    }
+
+    /**
+     * Undo the plan, every layer owns its output again.
+     */
+    public void release(){
+        for(Layer l: layers){
+            l.setSharedOutput(null);
+        }
+        slots = null;
+    }
+
+    /**
+     * Recompute the outputs of the segment of given layer that backward
+     * propagation of that layer needs: outputs of the layers before it in
+     * the segment, and its own output if it is not a checkpoint.
+     * @param X Input of the net.
+     * @param layer Index of layer about to be backpropagated.
+     */
+    public void recompute(DoubleTensor X, int layer){
+        int start = segStart[layer];
+        int end = checkpoint[layer] ? layer : layer + 1;
+        DoubleTensor Z = start == 0 ? X : layers.get(start - 1).getOutput();
+        for(int i = start; i < end; i++){
+            Z = layers.get(i).refProp(Z);
+        }
+    }
+
+    /**
+     * Whether the output of given layer is kept.
+     * @param layer Index of layer.
+     * @return Whether layer is a checkpoint.
+     */
+    public boolean isCheckpoint(int layer){
+        return checkpoint[layer];
+    }
+
+    /**
+     * First layer of the segment of given layer.
+     * @param layer Index of layer.
+     * @return Index of first layer of segment.
+     */
+    public int getSegmentStart(int layer){
+        return segStart[layer];
+    }
+
+    /**
+     * Memory of activations (checkpoints + slots).
+     * @param batchSize Number of examples.
+     * @return Size in bytes.
+     */
+    public long getActivationBytes(int batchSize){
+        long sz = 0;
+        for(int i = 0; i < layers.size(); i++){
+            if(checkpoint[i])
+                sz += outSize[i];
+            sz += slotSize[i];
+        }
+        return 8 * sz * batchSize;
+    }
+
+    /**
+     * Memory of activations when every output is kept.
+     * @param batchSize Number of examples.
+     * @return Size in bytes.
+     */
+    public long getNaiveActivationBytes(int batchSize){
+        long sz = 0;
+        for(int i = 0; i < layers.size(); i++){
+            sz += outSize[i];
+        }
+        return 8 * sz * batchSize;
+    }
+
+    /**
+     * Outputs recomputed per backward propagation, used as proxy of the
+     * extra compute.
+     * @return Number of outputs recomputed without examples.
+     */
+    public long getRecomputed(){
+        long sz = 0;
+        for(int i = 0; i < layers.size(); i++){
+            if(!checkpoint[i])
+                sz += product(layers.get(i).getDimsOfOutputsWOE());
+        }
+        return sz;
+    }
+
+    /**
+     * Describe checkpoints and memory.
+     * @return Report.
+     */
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder("Checkpoints:");
+        int kept = 0;
+        for(int i = 0; i < layers.size(); i++){
+            if(checkpoint[i]){
+                sb.append(' ').append(i);
+                kept++;
+            }
+        }
+        sb.append(" (").append(kept).append(" of ").append(layers.size())
+                .append(" outputs kept, ").append(getRecomputed())
+                .append(" outputs per example recomputed)");
+        return sb.toString();
+    }
+
+    /**
+     * Mask from indexes of checkpoints.
+     */
+    private static boolean[] toMask(int n, int[] checkpoints){
+        boolean[] mask = new boolean[n];
+        for(int c: checkpoints){
+            if(c < 0 || c >= n)
+                LOG.error("There is no layer " + c + " to checkpoint");
+            else
+                mask[c] = true;
+        }
+        return mask;
+    }
+
+    /**
+     * Product of dims.
+     */
+    private static long product(int[] dims){
+        long p = 1;
+        for(int i = 0; i < dims.length; i++){
+            p *= dims[i];
+        }
+        return p;
+    }
+}
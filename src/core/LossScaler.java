@@ -0,0 +1,125 @@
+package core;
+
+import optim.ActiveRanges;
+import org.apache.log4j.Logger;
+
+/**
+ * Dynamic loss scaling for mixed precision training (see
+ * NeuralNetModel.useMixedPrecision). The gradient of the loss is multiplied
+ * by a scale before backpropagating, so that small gradients do not underflow
+ * when products run in single precision, and the gradient of the weights is
+ * divided by the scale before the update. If the gradient overflowed (some
+ * entry is infinite or NaN) the step is skipped and the scale is reduced, after
+ * a number of steps without overflow the scale is increased again, keeping it
+ * as large as the gradients allow. See "Mixed Precision Training" by
+ * Micikevicius et al.
+ * @author diego_paez
+ */
+public class LossScaler {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(LossScaler.class);
+
+    private double scale;
+    private final double factor;
+    private final int growthInterval;
+
+    /**
+     * Steps since last overflow or growth of the scale.
+     */
+    private int goodSteps;
+
+    /**
+     * Number of steps skipped due to overflow.
+     */
+    private long skipped;
+
+    /**
+     * Create scaler with initial scale 2^16, factor 2 and growth interval of
+     * 2000 steps.
+     */
+    public LossScaler() {
+        this(65536.0, 2.0, 2000);
+    }
+
+    /**
+     * Create scaler.
+     * @param initScale Initial scale.
+     * @param factor Factor by which the scale is reduced on overflow and
+     * increased after growthInterval steps without overflow.
+     * @param growthInterval Number of steps without overflow after which the
+     * scale is increased.
+     */
+    public LossScaler(double initScale, double factor, int growthInterval) {
+        this.scale = initScale;
+        this.factor = factor;
+        this.growthInterval = growthInterval;
+    }
+
+    /**
+     * Current scale of the loss.
+     * @return Scale.
+     */
+    public double getScale(){
+        return scale;
+    }
+
+    /**
+     * Number of steps skipped because the gradient overflowed.
+     * @return Skipped steps.
+     */
+    public long getSkipped(){
+        return skipped;
+    }
+
+    /**
+     * Divide a gradient calculated with the loss scaled by the current scale
+     * and update the scale.
+     * @param g Gradient.
+     * @param active Ranges of the gradient that were written, null for all.
+     * @return False if the gradient overflowed, the step must be skipped.
+     */
+    public boolean unscale(double[] g, ActiveRanges active){
+        boolean finite;
+        if(active == null){
+            finite = unscale(g, 0, g.length);
+        } else{
+            finite = true;
+            for(int r = 0; r < active.size(); r++){
+                finite &= unscale(g, active.from(r), active.to(r));
+            }
+        }
+
+        if(!finite){
+            skipped++;
+            goodSteps = 0;
+            scale /= factor;
+            LOG.info("Gradient overflow, step skipped, loss scale reduced to " + scale);
+            return false;
+        }
+        if(++goodSteps >= growthInterval){
+            goodSteps = 0;
+            scale *= factor;
+        }
+        return true;
+    }
+
+    /**
+     * Divide g[from] ... g[to - 1] by the scale.
+     * @return Whether all entries are finite.
+     */
+    private boolean unscale(double[] g, int from, int to){
+        final double inv = 1.0 / scale;
+        boolean finite = true;
+        double v;
+        for(int i = from; i < to; i++){
+            v = g[i] * inv;
+            if(Double.isNaN(v) || Double.isInfinite(v))
+                finite = false;
+            g[i] = v;
+        }
+        return finite;
+    }
+}
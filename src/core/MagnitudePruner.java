@@ -0,0 +1,210 @@
+package core;
+
+import core.inference.Predictor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import layer.Layer;
+import layer.weight.InnerProductLayer;
+import layer.weight.WeightLayer;
+import optim.sgd.Pruner;
+import org.apache.log4j.Logger;
+import tensor.DoubleTensor;
+import tensor.TensorFunctions;
+
+/**
+ * Iterative magnitude pruning of the weights of the inner product layers of a
+ * model (biases are not pruned). Sparsity grows from 0 to the final sparsity
+ * between a start and an end epoch following the schedule of "To prune, or
+ * not to prune" by Zhu and Gupta: s(t) = s_f (1 - (1 - (t - t0) / (t1 - t0))^3),
+ * pruning fast at first while there are many redundant weights. Each time,
+ * the weights of smallest magnitude of every layer are pruned until the layer
+ * has the sparsity of the schedule, and the mask is applied after every
+ * update of the optimizer so that pruned weights stay at zero.
+ *
+ * Set as SGDInputs.pruner. After training, compile the model with
+ * NeuralNetModel.compileForInference(maxBatch, minSparsity) to run pruned
+ * layers with sparse weights, see report.
+ * @author diego_paez
+ */
+public class MagnitudePruner implements Pruner {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(MagnitudePruner.class);
+
+    /**
+     * Position in theta and number of weights of each pruned layer.
+     */
+    private final int[] offsets, lengths;
+
+    /**
+     * Positions in theta of the pruned weights of each layer.
+     */
+    private final int[][] pruned;
+
+    private final double finalSparsity;
+    private final int startEpoch, endEpoch;
+
+    /**
+     * Create pruner for the inner product layers of a model, whose weights
+     * must be initialized or loaded.
+     * @param model Model.
+     * @param finalSparsity Proportion of weights pruned at the end.
+     * @param startEpoch First epoch after which weights are pruned.
+     * @param endEpoch Epoch after which the final sparsity is reached.
+     */
+    public MagnitudePruner(NeuralNetModel model, double finalSparsity, int startEpoch,
+            int endEpoch) {
+        List<WeightLayer> dense = new ArrayList<>();
+        for(Layer l: model.layers){
+            if(l instanceof InnerProductLayer)
+                dense.add((WeightLayer) l);
+        }
+        offsets = new int[dense.size()];
+        lengths = new int[dense.size()];
+        pruned = new int[dense.size()][0];
+        for(int i = 0; i < dense.size(); i++){
+            DoubleTensor w = dense.get(i).weights;
+            if(w.data.getData() != model.theta)
+                LOG.error("Weights of layer are not part of theta, initialize weights first");
+            offsets[i] = w.data.getOffset();
+            lengths[i] = w.data.size();
+        }
+        this.finalSparsity = finalSparsity;
+        this.startEpoch = startEpoch;
+        this.endEpoch = Math.max(startEpoch, endEpoch);
+    }
+
+    /**
+     * Sparsity of the schedule after given epoch.
+     * @param epoch Epoch (0 based).
+     * @return Target sparsity.
+     */
+    public double sparsityAt(int epoch){
+        if(epoch < startEpoch)
+            return 0.0;
+        if(epoch >= endEpoch)
+            return finalSparsity;
+        double r = 1.0 - (epoch - startEpoch + 1) / (double) (endEpoch - startEpoch + 1);
+        return finalSparsity * (1.0 - r * r * r);
+    }
+
+    @Override
+    public void applyMask(double[] x) {
+        for(int[] p: pruned){
+            for(int i: p){
+                x[i] = 0.0;
+            }
+        }
+    }
+
+    @Override
+    public void epochEnd(int epoch, double[] x) {
+        if(epoch < startEpoch)
+            return;
+        double s = sparsityAt(epoch);
+        prune(x, s);
+        LOG.info(String.format("Epoch %d: pruned %.1f%% of weights (target %.1f%%)",
+                epoch, 100 * getSparsity(), 100 * s));
+    }
+
+    /**
+     * Prune the weights of smallest magnitude of every layer until it has
+     * given sparsity. Weights already pruned are zero, thus they remain
+     * pruned.
+     * @param x Parameters.
+     * @param sparsity Proportion of weights of each layer pruned.
+     */
+    public void prune(double[] x, double sparsity){
+        for(int l = 0; l < offsets.length; l++){
+            int len = lengths[l], off = offsets[l];
+            int k = (int) Math.round(sparsity * len);
+            if(k <= pruned[l].length)
+                continue;
+            double[] mags = new double[len];
+            for(int i = 0; i < len; i++){
+                mags[i] = Math.abs(x[off + i]);
+            }
+            Arrays.sort(mags);
+            double threshold = mags[k - 1];
+
+            // all below the threshold and as many equal to it as needed
+            int below = 0;
+            for(int i = 0; i < len; i++){
+                if(Math.abs(x[off + i]) < threshold)
+                    below++;
+            }
+            int equal = k - below;
+            int[] p = new int[k];
+            int n = 0;
+            for(int i = 0; i < len && n < k; i++){
+                double m = Math.abs(x[off + i]);
+                if(m < threshold || (m == threshold && equal-- > 0)){
+                    p[n++] = off + i;
+                    x[off + i] = 0.0;
+                }
+            }
+            pruned[l] = n == k ? p : Arrays.copyOf(p, n);
+        }
+    }
+
+    /**
+     * Proportion of weights of the pruned layers that are pruned.
+     * @return Sparsity.
+     */
+    public double getSparsity(){
+        long total = 0, p = 0;
+        for(int l = 0; l < offsets.length; l++){
+            total += lengths[l];
+            p += pruned[l].length;
+        }
+        return total == 0 ? 0.0 : p / (double) total;
+    }
+
+    /**
+     * Log the sparsity of every weight layer and the time of the model
+     * compiled with dense weights vs with sparse weights where sparsity is at
+     * least minSparsity, over given inputs.
+     * @param model Model (dims of inputs set, weights pruned).
+     * @param X Inputs.
+     * @param minSparsity Minimum sparsity to run a layer with sparse weights.
+     * @param reps Number of timed repetitions (after a warm up).
+     * @return Speedup = time dense / time sparse.
+     */
+    public static double report(NeuralNetModel model, DoubleTensor X, double minSparsity,
+            int reps){
+        for(int i = 0; i < model.layers.size(); i++){
+            Layer l = model.layers.get(i);
+            if(l instanceof WeightLayer)
+                LOG.info(String.format("Layer %d (%s): %.1f%% of weights are zero", i,
+                        l.getClass().getSimpleName(),
+                        100 * TensorFunctions.sparsity(((WeightLayer) l).weights)));
+        }
+
+        int batch = X.lastDim();
+        Predictor dense = model.compileForInference(batch);
+        Predictor sparse = model.compileForInference(batch, minSparsity);
+        DoubleTensor outD = dense.predict(X), outS = sparse.predict(X);
+        double diff = 0.0;
+        for(int i = 0; i < outD.size(); i++){
+            diff = Math.max(diff, Math.abs(outD.getQuick(i) - outS.getQuick(i)));
+        }
+
+        long tDense = Long.MAX_VALUE, tSparse = Long.MAX_VALUE, t;
+        for(int r = 0; r < reps; r++){
+            t = System.nanoTime();
+            dense.predict(X, outD);
+            tDense = Math.min(tDense, System.nanoTime() - t);
+            t = System.nanoTime();
+            sparse.predict(X, outS);
+            tSparse = Math.min(tSparse, System.nanoTime() - t);
+        }
+        double speedup = tDense / (double) tSparse;
+        LOG.info(String.format("Dense %.3f ms, sparse %.3f ms per %d examples: %.2fx speedup "
+                + "(max output difference %.2e)", tDense / 1e6, tSparse / 1e6, batch,
+                speedup, diff));
+        return speedup;
+    }
+}
@@ -0,0 +1,255 @@
+package core;
+
+import java.util.List;
+import layer.Layer;
+import layer.regularization.DropoutLayer;
+
+/**
+ * Static plan of the memory used by the outputs and gradients of the layers of
+ * a net for a given batch size.
+ *
+ * By default every layer owns an output and a gradient tensor, thus the peak
+ * memory is the sum of all of them. Looking at the lifetimes of these tensors
+ * during training:
+ * - The output of a layer is written in forward propagation and may be read
+ * until the backward propagation of that layer (by itself or as input of next
+ * layer), thus all outputs are live at once. The only saving is to run
+ * elementwise layers (activations whose derivative depends on the output,
+ * dropout) in place, which is safe when the overwritten tensor is not read
+ * during backward propagation (previous layer is not an activation, softmax
+ * or weight layer with fused activation) and is not the input of the net.
+ * - The gradient of layer i is written in its backward propagation and read
+ * only by the backward propagation of layer i - 1. Thus two buffers are
+ * enough for all gradients (ping pong), and elementwise layers write their
+ * gradient over the incoming one (same buffer).
+ *
+ * During inference only two activation buffers are live at any time, that is
+ * what Predictor does (see NeuralNetModel.compileForInference), the numbers are
+ * reported for comparison.
+ *
+ * Sizes are counted in doubles and reported in bytes.
+ * @author diego_paez
+ */
+public class MemoryPlanner {
+
+    /**
+     * Layers of the planned net.
+     */
+    private final List<Layer> layers;
+
+    /**
+     * Batch size used to size buffers.
+     */
+    private final int batchSize;
+
+    /**
+     * Whether each layer runs in place.
+     */
+    private final boolean[] inPlace;
+
+    /**
+     * Index of the shared buffer where the gradient of each layer is stored.
+     */
+    private final int[] gradBuffer;
+
+    /**
+     * Size of each of the two gradient buffers.
+     */
+    private final long[] bufferSize = new long[2];
+
+    /**
+     * Sizes of training outputs + gradients, default and planned.
+     */
+    private long naiveTraining, plannedTraining;
+
+    /**
+     * Sizes of inference activations, one buffer per layer vs Predictor.
+     */
+    private long naiveInference, plannedInference;
+
+    /**
+     * Shared gradient buffers, allocated when the plan is applied.
+     */
+    private double[][] buffers;
+
+    /**
+     * Plan memory of given layers, dims of inputs must be set.
+     * @param layers Layers of the net.
+     * @param batchSize Number of examples run at once.
+     */
+    public MemoryPlanner(List<Layer> layers, int batchSize) {
+        this.layers = layers;
+        this.batchSize = batchSize;
+        int n = layers.size();
+        inPlace = new boolean[n];
+        gradBuffer = new int[n];
+        plan();
+    }
+
+    /**
+     * Analyze lifetimes and assign buffers.
+     */
+    private void plan(){
+        int n = layers.size();
+        long[] outSize = new long[n];
+        long[] gradSize = new long[n];
+        // src[i] = layer owning the memory returned by layer i when test data
+        // is running (in place layers and dropout pass it through), -1 = input
+        int[] src = new int[n];
+        Layer l, prev;
+
+        for(int i = 0; i < n; i++){
+            l = layers.get(i);
+            prev = i > 0 ? layers.get(i - 1) : null;
+            outSize[i] = product(l.getDimsOfOutputsWOE()) * batchSize;
+            gradSize[i] = product(l.nI) * batchSize;
+
+            inPlace[i] = l.supportsInPlace() && prev != null && src[i - 1] >= 0
+                    && !prev.needsOutputForBackward();
+            if(inPlace[i] || l instanceof DropoutLayer)
+                src[i] = i > 0 ? src[i - 1] : -1;
+            else
+                src[i] = i;
+
+            naiveTraining += outSize[i] + gradSize[i];
+            naiveInference += outSize[i];
+            if(!inPlace[i])
+                plannedTraining += outSize[i];
+        }
+
+        // gradient of last layer is calculated from a tensor of the loss
+        for(int i = n - 1; i >= 0; i--){
+            if(i == n - 1)
+                gradBuffer[i] = 0;
+            else if(layers.get(i).supportsInPlace())
+                gradBuffer[i] = gradBuffer[i + 1];
+            else
+                gradBuffer[i] = 1 - gradBuffer[i + 1];
+            bufferSize[gradBuffer[i]] = Math.max(bufferSize[gradBuffer[i]], gradSize[i]);
+        }
+        plannedTraining += bufferSize[0] + bufferSize[1];
+
+        // predictor: two buffers for intermediate results + final output
+        long maxInter = 0;
+        for(int i = 0; i < n - 1; i++){
+            maxInter = Math.max(maxInter, outSize[i]);
+        }
+        plannedInference = 2 * maxInter + outSize[n - 1];
+    }
+
+    /**
+     * Make the layers use the plan: elementwise layers run in place and
+     * gradients are views of the shared buffers. Takes effect on next forward
+     * propagation.
+     */
+    public void apply(){
+        buffers = new double[2][];
+        for(int b = 0; b < 2; b++){
+            buffers[b] = new double[(int) bufferSize[b]];
+        }
+        for(int i = 0; i < layers.size(); i++){
+            layers.get(i).setInPlace(inPlace[i]);
+            layers.get(i).setSharedGrad(buffers[gradBuffer[i]]);
+        }
+    }
+
+    /**
+     * Undo the plan, each layer owns its output and gradient again.
+     */
+    public void release(){
+        for(Layer l: layers){
+            l.setInPlace(false);
+            l.setSharedGrad(null);
+        }
+        buffers = null;
+    }
+
+    /**
+     * Whether given layer runs in place.
+     * @param layer Index of layer.
+     * @return Whether the output overwrites the input.
+     */
+    public boolean isInPlace(int layer){
+        return inPlace[layer];
+    }
+
+    /**
+     * Index of the shared buffer (0 or 1) with the gradient of given layer.
+     * @param layer Index of layer.
+     * @return Index of gradient buffer.
+     */
+    public int getGradBuffer(int layer){
+        return gradBuffer[layer];
+    }
+
+    /**
+     * Peak memory of training outputs and gradients without the plan.
+     * @return Size in bytes.
+     */
+    public long getNaivePeakBytes(){
+        return 8 * naiveTraining;
+    }
+
+    /**
+     * Peak memory of training outputs and gradients with the plan.
+     * @return Size in bytes.
+     */
+    public long getPlannedPeakBytes(){
+        return 8 * plannedTraining;
+    }
+
+    /**
+     * Memory of inference activations with one buffer per layer.
+     * @return Size in bytes.
+     */
+    public long getNaiveInferenceBytes(){
+        return 8 * naiveInference;
+    }
+
+    /**
+     * Memory of inference activations with two ping pong buffers.
+     * @return Size in bytes.
+     */
+    public long getPlannedInferenceBytes(){
+        return 8 * plannedInference;
+    }
+
+    /**
+     * Describe the plan: placement of each layer and peak memory.
+     * @return Report.
+     */
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder();
+        sb.append("Memory plan for batch size ").append(batchSize).append('\n');
+        for(int i = 0; i < layers.size(); i++){
+            sb.append("  ").append(i).append(' ')
+                    .append(layers.get(i).getClass().getSimpleName())
+                    .append(inPlace[i] ? ": output in place" : ": own output")
+                    .append(", grad in buffer ").append(gradBuffer[i]).append('\n');
+        }
+        sb.append("Training peak: naive ").append(mb(naiveTraining))
+                .append(" MB, planned ").append(mb(plannedTraining)).append(" MB\n");
+        sb.append("Inference peak: naive ").append(mb(naiveInference))
+                .append(" MB, planned ").append(mb(plannedInference)).append(" MB");
+        return sb.toString();
+    }
+
+    /**
+     * Number of doubles as megabytes.
+     */
+    private static String mb(long doubles){
+        return String.format("%.2f", doubles * 8.0 / (1 << 20));
+    }
+
+    /**
+     * Product of dims.
+     */
+    private static long product(int[] dims){
+        long p = 1;
+        for(int i = 0; i < dims.length; i++){
+            p *= dims[i];
+        }
+        return p;
+    }
+}
@@ -0,0 +1,15 @@
+package core;
+
+/**
+ * Creates neural net models with the same layers, used to build replicas of a
+ * model (see ParallelNeuralNet). Weights do not need to be initialized.
+ * @author diego_paez
+ */
+public interface ModelFactory {
+
+    /**
+     * Create a new model.
+     * @return Model with its layers and loss function.
+     */
+    public NeuralNetModel create();
+}
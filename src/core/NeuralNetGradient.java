@@ -1,6 +1,7 @@
 package core;
 
-import optim.BatchGradient;
+import optim.ActiveRanges;
+import optim.SparseBatchGradient;
 import tensor.DoubleTensor;
 
 /**
@@ -8,7 +9,7 @@ import tensor.DoubleTensor;
  * weights of a feed forward neural net.
  * @author diego_paez
  */
-public class NeuralNetGradient implements BatchGradient{
+public class NeuralNetGradient implements SparseBatchGradient{
     
     /**
      * Contains all info related to the neural net.
@@ -54,4 +55,15 @@ public class NeuralNetGradient implements BatchGradient{
         return model.thetaGrad;
     }
 
-}
+    /**
+     * Ranges of the gradient written in last call to value. Only differs
+     * from the whole gradient when the model has layers with sparse gradient
+     * (e.g., EmbeddingLayer).
+     * @return Active ranges or null if the whole gradient was written.
+     */
+    @Override
+    public ActiveRanges getActiveRanges() {
+        return model.activeRanges;
+    }
+
+}
\ No newline at end of file
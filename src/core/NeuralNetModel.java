@@ -1,18 +1,26 @@
 package core;
 
-import java.io.DataInputStream;
-import java.io.EOFException;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.List;
+import core.inference.InferenceOp;
+import core.inference.Predictor;
+import io.ModelCheckpoint;
 import tensor.DoubleTensor;
 import wregul.WeightRegularization;
 import layer.Layer;
-import layer.activation.SoftMaxLayer;
+import layer.activation.ActivationFunction;
+import layer.activation.ActivationLayer;
+import layer.activation.Identity;
+import layer.regularization.DropoutLayer;
 import layer.weight.WeightLayer;
-import loss.CrossEntropy;
+import loss.FusedLoss;
 import loss.LossFunction;
-import loss.WeightedCrossEntropy;
+import optim.ActiveRanges;
+import optim.sgd.update.SGDUpdate;
 import org.apache.log4j.Logger;
 import tensor.TensorFunctions;
 
@@ -58,6 +66,36 @@ public class NeuralNetModel {
      */
     public double[] thetaGrad;
 
+    /**
+     * Ranges of thetaGrad written in last backpropagation, null if every layer
+     * writes its whole gradient (see WeightLayer.hasSparseGrad).
+     */
+    public ActiveRanges activeRanges;
+
+    /**
+     * Checkpoints of activations, null if every output is kept.
+     */
+    public CheckpointPlan checkpoints;
+
+    /**
+     * Scales the loss when training in mixed precision, null if not used.
+     */
+    public LossScaler lossScaler;
+
+    /**
+     * Input of last forward propagation, needed to recompute the first
+     * segment when checkpointing.
+     */
+    private DoubleTensor lastX;
+
+    /**
+     * Gradient of the loss calculated together with the loss by a fused loss
+     * (see evalLoss), for targets lossGradY and weights lossGradW. Valid until
+     * next forward propagation or until used by lossGrad.
+     */
+    private DoubleTensor lossGradBuf, lossGradY, lossGradW;
+    private boolean lossGradReady;
+
     /**
      * Training set for neural net, containing independent variables.
      */
@@ -96,6 +134,363 @@ public class NeuralNetModel {
         return this;
     }
 
+    /**
+     * Rewrite the list of layers so that forward and backward propagation do
+     * less passes over the activations, without changing the function the net
+     * computes. Every layer removed saves a full read and write of a tensor
+     * of activations (and of its gradient when training):
+     * - Identity activation layers are removed.
+     * - Dropout layers are removed when the net is only used for inference
+     * (they return their input when testing) or if their probability is 0.
+     * Consecutive dropout layers are folded into one.
+     * - An activation layer that follows a weight layer supporting it (inner
+     * product, convolutions) is fused into it: the weight layer adds the bias
+     * and applies the activation in the same pass that writes its outputs
+     * (except convolutions using FFT, whose outputs are only complete after
+     * adding all patches), and multiplies the chainGrad by the derivative
+     * before using it. Only
+     * activations whose derivative depends on the output alone are fused.
+     * When training, the last activation layer is not fused if the loss
+     * absorbs it (see loss.FusedLoss).
+     *
+     * Parameters are not changed, thus it can be called before or after
+     * initWeights. It must be called before running the net, not in between
+     * forward and backward propagation.
+     * @param inference Whether the net will only be used for inference
+     * (testRunning = true).
+     * @param report Whether to log every change.
+     * @return Description of every change made.
+     */
+    public List<String> optimizeGraph(boolean inference, boolean report){
+        List<String> changes = new ArrayList<>();
+        ArrayList<Layer> optimized = new ArrayList<>();
+        Layer l, prev;
+
+        for(int i = 0; i < layers.size(); i++){
+            l = layers.get(i);
+            prev = optimized.isEmpty() ? null : optimized.get(optimized.size() - 1);
+
+            if(l instanceof ActivationLayer
+                    && ((ActivationLayer) l).activationFun instanceof Identity){
+                changes.add("Removed identity activation layer " + i);
+            } else if(l instanceof DropoutLayer
+                    && (inference || ((DropoutLayer) l).getDropProbability() == 0.0)){
+                changes.add("Removed dropout layer " + i + (inference ? " (inference)" : " (p = 0)"));
+            } else if(l instanceof DropoutLayer && prev instanceof DropoutLayer){
+                optimized.set(optimized.size() - 1, ((DropoutLayer) prev).merge((DropoutLayer) l));
+                changes.add("Folded dropout layer " + i + " into previous dropout layer");
+            } else if(l instanceof ActivationLayer && prev instanceof WeightLayer
+                    && (inference || i < layers.size() - 1 || !(loss instanceof FusedLoss)
+                        || !((FusedLoss) loss).absorbs(l))
+                    && ((WeightLayer) prev).supportsFusedActivation()
+                    && ((WeightLayer) prev).getFusedActivation() == null
+                    && WeightLayer.isFusable(((ActivationLayer) l).activationFun)){
+                ((WeightLayer) prev).fuseActivation(((ActivationLayer) l).activationFun);
+                changes.add("Fused " + ((ActivationLayer) l).activationFun.getClass().getSimpleName()
+                        + " activation layer " + i + " and bias add into "
+                        + prev.getClass().getSimpleName());
+            } else{
+                optimized.add(l);
+            }
+        }
+
+        // a net needs at least one layer
+        if(optimized.isEmpty()){
+            optimized.add(layers.get(layers.size() - 1));
+            changes.remove(changes.size() - 1);
+        }
+
+        layers = optimized;
+        if(report){
+            for(String c: changes){
+                LOG.info(c);
+            }
+            LOG.info("Graph optimization: " + changes.size() + " changes, "
+                    + layers.size() + " layers");
+        }
+        return changes;
+    }
+
+    /**
+     * Compile the net into a predictor that only forward propagates test
+     * data. Each layer is turned into an operation (see Layer.toInferenceOp):
+     * dropout and identity activations disappear, and any activation layer
+     * following an inner product or convolution is fused into it (at inference
+     * the derivative is not needed, thus any activation can be fused). The
+     * predictor allocates no gradients and its buffers are sized once for
+     * maxBatch examples. The model is not changed.
+     *
+     * Dims of inputs must be known (see setTrainInputs) and weights
+     * initialized or loaded.
+     * @param maxBatch Maximum number of examples run at once.
+     * @return Predictor, null if dims of inputs are not known.
+     */
+    public Predictor compileForInference(int maxBatch){
+        return compile(maxBatch, null, 2.0);
+    }
+
+    /**
+     * Compile the net into a predictor as compileForInference, where weight
+     * layers whose proportion of zero weights is at least minSparsity (e.g.,
+     * after pruning, see core.MagnitudePruner) run with their weights
+     * in a sparse format (see WeightLayer.toSparseOp).
+     * @param maxBatch Maximum number of examples run at once.
+     * @param minSparsity Minimum proportion of zero weights to use a sparse
+     * operation.
+     * @return Predictor, null if dims of inputs are not known.
+     */
+    public Predictor compileForInference(int maxBatch, double minSparsity){
+        return compile(maxBatch, null, minSparsity);
+    }
+
+    /**
+     * Compile the net into a predictor as compileForInference, where inner
+     * product and convolutional layers run with int8 weights and inputs
+     * (post training quantization, see WeightLayer.toQuantizedOp). Weights
+     * get a scale per output channel, the scale of the inputs of each layer
+     * is calibrated as the maximum absolute input seen while forward
+     * propagating the calibration data. Outputs of every operation are
+     * dequantized, layers without a quantized operation run as usual.
+     *
+     * Dims of inputs must be known and weights initialized or loaded. The
+     * weights of the model are not changed (quantized weights are copies).
+     * @param maxBatch Maximum number of examples run at once.
+     * @param calibX Calibration data, a sample of the inputs.
+     * @return Predictor, null if dims of inputs are not known.
+     */
+    public Predictor compileQuantized(int maxBatch, DoubleTensor calibX){
+        if(layers.isEmpty() || layers.get(0).nI == null){
+            LOG.error("Dims of inputs must be set before compiling for inference");
+            return null;
+        }
+
+        double[] maxAbs = new double[layers.size()];
+        DoubleTensor Z;
+        int E = calibX.lastDim();
+        for(int from = 0; from < E; from += maxBatch){
+            int to = Math.min(E, from + maxBatch);
+            initSpace(to - from);
+            Z = calibX.sliceLastDim(from, to);
+            for(int i = 0; i < layers.size(); i++){
+                Layer l = layers.get(i);
+                if(l instanceof WeightLayer){
+                    for(int k = 0, n = Z.length(); k < n; k++){
+                        maxAbs[i] = Math.max(maxAbs[i], Math.abs(Z.getQuick(k)));
+                    }
+                }
+                Z = l.fProp(Z, true);
+            }
+        }
+
+        double[] scales = new double[layers.size()];
+        for(int i = 0; i < scales.length; i++){
+            scales[i] = maxAbs[i] > 0 ? maxAbs[i] / 127.0 : 1.0;
+        }
+        return compile(maxBatch, scales, 2.0);
+    }
+
+    /**
+     * Turn layers into operations, fusing activations.
+     * @param maxBatch Maximum number of examples run at once.
+     * @param inScales Scale of inputs of each layer to run quantized weight
+     * layers, null to run all of them with doubles.
+     * @param minSparsity Minimum proportion of zero weights to run a weight
+     * layer with sparse weights, more than 1 to never do it.
+     * @return Predictor, null if dims of inputs are not known.
+     */
+    private Predictor compile(int maxBatch, double[] inScales, double minSparsity){
+        if(layers.isEmpty() || layers.get(0).nI == null){
+            LOG.error("Dims of inputs must be set before compiling for inference");
+            return null;
+        }
+
+        ArrayList<InferenceOp> ops = new ArrayList<>();
+        Layer l, next;
+        WeightLayer wl;
+        InferenceOp op;
+        ActivationFunction act;
+        long doubleBytes = 0, int8Bytes = 0;
+
+        for(int i = 0; i < layers.size(); i++){
+            l = layers.get(i);
+            next = i + 1 < layers.size() ? layers.get(i + 1) : null;
+            op = null;
+
+            if(l instanceof WeightLayer){
+                wl = (WeightLayer) l;
+                act = wl.getFusedActivation();
+                boolean fuse = act == null && next instanceof ActivationLayer
+                        && wl.supportsFusedActivation();
+                if(fuse)
+                    act = ((ActivationLayer) next).activationFun;
+                if(inScales != null){
+                    op = wl.toQuantizedOp(act, inScales[i]);
+                    if(op != null){
+                        doubleBytes += 8L * wl.getNumberOfParams();
+                        int8Bytes += wl.weights.size() + 16L * wl.bias.size();
+                    }
+                }
+                if(op == null && minSparsity <= 1.0){
+                    double sparsity = TensorFunctions.sparsity(wl.weights);
+                    if(sparsity >= minSparsity){
+                        op = wl.toSparseOp(act);
+                        if(op != null)
+                            LOG.info(String.format("Layer %d: %.1f%% of weights are zero, using sparse weights",
+                                    i, 100 * sparsity));
+                    }
+                }
+                if(op == null)
+                    op = fuse ? wl.toInferenceOp(act) : l.toInferenceOp();
+                if(fuse)
+                    i++;
+            } else{
+                op = l.toInferenceOp();
+            }
+
+            if(op != null)
+                ops.add(op);
+        }
+
+        if(inScales != null)
+            LOG.info(String.format("Quantized weight layers: %d bytes instead of %d (%.1fx smaller)",
+                    int8Bytes, doubleBytes, int8Bytes == 0 ? 0.0 : doubleBytes / (double) int8Bytes));
+
+        return new Predictor(ops.toArray(new InferenceOp[ops.size()]),
+                layers.get(0).nI, maxBatch);
+    }
+
+    /**
+     * Plan the memory of outputs and gradients for given batch size and make
+     * the layers use it (see MemoryPlanner): elementwise layers run in place
+     * where safe and all gradients share two buffers. Larger batches still
+     * work, gradients that do not fit the shared buffers get their own memory.
+     *
+     * Dims of inputs must be known (see setTrainInputs). If the layers change
+     * (e.g., optimizeGraph) the plan must be made again.
+     * @param batchSize Number of examples run at once.
+     * @param report Whether to log the plan and the planned vs naive peak
+     * memory.
+     * @return Applied plan, null if dims of inputs are not known.
+     */
+    public MemoryPlanner planMemory(int batchSize, boolean report){
+        if(layers.isEmpty() || layers.get(0).nI == null){
+            LOG.error("Dims of inputs must be set before planning memory");
+            return null;
+        }
+        MemoryPlanner plan = new MemoryPlanner(layers, batchSize);
+        plan.apply();
+        if(report)
+            LOG.info(plan);
+        return plan;
+    }
+
+    /**
+     * Keep only the outputs of given layers during forward propagation, the
+     * rest are recomputed during backward propagation (see CheckpointPlan).
+     * Dims of inputs must be known. Call planMemory before this method if
+     * both are used. If the layers change the checkpoints must be set again.
+     * @param batchSize Number of examples run at once.
+     * @param layerIdx Indexes of layers whose outputs are kept, the last
+     * layer is always kept.
+     * @return Applied plan, null if dims of inputs are not known.
+     */
+    public CheckpointPlan useCheckpoints(int batchSize, int... layerIdx){
+        if(layers.isEmpty() || layers.get(0).nI == null){
+            LOG.error("Dims of inputs must be set before checkpointing");
+            return null;
+        }
+        return useCheckpoints(new CheckpointPlan(layers, layerIdx), batchSize);
+    }
+
+    /**
+     * Place checkpoints automatically so that activations of given batch size
+     * fit in the given memory budget (see CheckpointPlan.forBudget).
+     * @param batchSize Number of examples run at once.
+     * @param budgetBytes Memory available for activations in bytes.
+     * @return Applied plan, null if dims of inputs are not known.
+     */
+    public CheckpointPlan useCheckpointBudget(int batchSize, long budgetBytes){
+        if(layers.isEmpty() || layers.get(0).nI == null){
+            LOG.error("Dims of inputs must be set before checkpointing");
+            return null;
+        }
+        return useCheckpoints(CheckpointPlan.forBudget(layers, batchSize, budgetBytes), batchSize);
+    }
+
+    /**
+     * Replace current checkpoint plan.
+     * @param plan New plan, null to keep every output.
+     * @param batchSize Number of examples run at once.
+     * @return New plan.
+     */
+    private CheckpointPlan useCheckpoints(CheckpointPlan plan, int batchSize){
+        if(checkpoints != null)
+            checkpoints.release();
+        checkpoints = plan;
+        if(plan != null){
+            plan.apply(batchSize);
+            LOG.info(plan + ", activations " + plan.getActivationBytes(batchSize)
+                    + " bytes instead of " + plan.getNaiveActivationBytes(batchSize));
+        }
+        return plan;
+    }
+
+    /**
+     * Keep every output again.
+     */
+    public void clearCheckpoints(){
+        useCheckpoints(null, 0);
+    }
+
+    /**
+     * Train in mixed precision: layers that support it (inner product
+     * layers) compute their products in single precision, while the
+     * parameters (master weights), their gradient and the state of the
+     * optimizer stay in double precision. Every product rounds its operands
+     * to single precision and its result is stored back in the double
+     * tensors between layers. The loss is scaled by the scaler before
+     * backpropagating so that small gradients do not underflow in single
+     * precision, and the gradient is unscaled in bProp. When the gradient
+     * overflows no range is active (see activeRanges) and the optimizer
+     * skips the step.
+     * @param scaler Loss scaler, null to go back to double precision.
+     * @return Number of layers computing in single precision.
+     */
+    public int useMixedPrecision(LossScaler scaler){
+        int n = 0;
+        for(Layer l: layers){
+            if(l instanceof WeightLayer){
+                ((WeightLayer) l).setMixedPrecision(scaler != null);
+                if(((WeightLayer) l).isMixedPrecision())
+                    n++;
+            }
+        }
+        lossScaler = scaler;
+        LOG.info(n + " layers compute in " + (scaler != null ? "single" : "double")
+                + " precision");
+        return n;
+    }
+
+    /**
+     * Make this model a replica of master: its layers view the weights of
+     * master (theta is shared) while the gradient is its own. Both models
+     * must have the same layers and the dims of inputs set.
+     * @param master Model whose weights are shared.
+     */
+    public void shareWeights(NeuralNetModel master){
+        if(theta == null)
+            initWeights();
+        if(theta.length != master.theta.length){
+            LOG.error("Can't share weights, models have " + theta.length + " and "
+                    + master.theta.length + " params");
+            return;
+        }
+        // layers copy their current values when bound, make them equal first
+        System.arraycopy(master.theta, 0, theta, 0, theta.length);
+        theta = master.theta;
+        bindParams();
+    }
+
     /**
      * Set train inputs of the neural net.
      * @param X Independent variables, which is a tensor with any number of
@@ -121,6 +516,18 @@ public class NeuralNetModel {
         setInputs(X.dims);
     }
 
+    /**
+     * Set dims of inputs without examples, when there is no training data
+     * (e.g. to load weights and compile for inference).
+     * @param dims Dims of one example.
+     */
+    public void setDimsOfInputsWOE(int... dims){
+        int[] Xdims = new int[dims.length + 1];
+        System.arraycopy(dims, 0, Xdims, 0, dims.length);
+        Xdims[dims.length] = 1;
+        setInputs(Xdims);
+    }
+
     /**
      * Auxiliary method which sets the dimensions of the layers, using the size
      * of X, without taking into account examples. The dimension of the layers
@@ -151,17 +558,16 @@ public class NeuralNetModel {
      * method of each layer. Some layers might not have any parameters to
      * initialize (but that is up to each layer).
      * 
-     * Once all parameters have been initialized a copy of the parameters
-     * is made in a local array that contains all parameters of all layers.
+     * Once all parameters have been initialized they are moved into a single
+     * array that contains all parameters of all layers (theta), and the
+     * parameters of each layer become views of their part of the array. The
+     * same is done for gradients (thetaGrad).
      * 
      * The need for an array with all parameters is that the optimization method
-     * requires a single array of parameters. An array of pointers to the
-     * array within each layer could also be saved, the trouble is the optimization
-     * method would have to admit this kind of input. Admitting this kind of
-     * input could be complicated especially for methods like AdamUpdate which
-     * stores 2 cached arrays. If memory or processing were a heavy burden on
-     * the net, an array of pointers could be stored, but that is not the case
-     * from profiling run.
+     * requires a single array of parameters. Since layers view that array,
+     * the optimizer updates the layers in place and gradients are written by
+     * each layer where the optimizer reads them, i.e., nothing is copied
+     * between the optimizer and the layers on each step.
      */
     public void initWeights(){
         int totalParams = 0;
@@ -179,35 +585,60 @@ public class NeuralNetModel {
         theta = new double[totalParams];
         thetaGrad = new double[totalParams];
 
-        // copy current init
-        copyTheta();
+        // move current init into theta
+        bindParams();
     }
 
     /**
-     * Loads a set of weights into the neural net.
-     * @param file File where weights are stored.
+     * Load weights from a file: either a checkpoint (see io.ModelCheckpoint,
+     * the file is mapped, its checksum verified and its layers must match
+     * the layers of this model) or a plain file of doubles as written by
+     * SGDOptim.storeWeights, read in bulk. Dims of inputs must be set if
+     * weights were not initialized.
+     * @param file File with weights.
      */
     public void loadWeights(String file){
-        ArrayList<Double> weights = new ArrayList<>();
-        try {
-            DataInputStream is;
-            is = new DataInputStream(new FileInputStream(file));
-            while(true){
-                weights.add(is.readDouble());
+        if(theta == null)
+            initWeights();
+
+        if(ModelCheckpoint.isCheckpoint(file)){
+            try {
+                ModelCheckpoint ck = ModelCheckpoint.open(file, true);
+                if(ck != null && ck.restoreParams(layers, theta))
+                    LOG.info("Finished reading checkpoint " + file);
+            } catch(IOException e){
+                LOG.error("Problem while trying to load weights",e);
             }
-        } catch(EOFException e){
+            return;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel ch = raf.getChannel()) {
+            if(ch.size() != 8L * theta.length){
+                LOG.error("File " + file + " has " + ch.size() / 8 + " weights, model has " + theta.length);
+                return;
+            }
+            // written by DataOutputStream, big endian
+            ModelCheckpoint.readDoubles(ch, 0, theta, ByteOrder.BIG_ENDIAN);
             LOG.info("Finished reading weights from file " + file);
         } catch(IOException e){
             LOG.error("Problem while trying to load weights",e);
         }
-        Double[] result = new Double[weights.size()];
-        double[] presult = new double[weights.size()];
-        result = weights.toArray(result);
-        for(int i = 0; i < result.length; i++){
-            presult[i] = result[i];
-        }
+    }
 
-        setWeights(presult);
+    /**
+     * Save layers, weights and optimizer state to a checkpoint (see
+     * io.ModelCheckpoint), training can be resumed by loading the weights
+     * and restoring the optimizer from the checkpoint.
+     * @param file File to write.
+     * @param updater Optimizer whose state is saved, can be null.
+     */
+    public void saveCheckpoint(String file, SGDUpdate updater){
+        try {
+            ModelCheckpoint.save(file, layers, theta, updater);
+        } catch(IOException e){
+            LOG.error("Problem while trying to save checkpoint",e);
+        }
     }
 
     /**
@@ -223,13 +654,16 @@ public class NeuralNetModel {
     }
 
     /**
-     * Loads a vector x of weights into each layer's array of weights, as well
-     * as into the local array
+     * Loads a vector x of weights into the local array of weights, which
+     * each layer views. If x is the local array itself (theta) nothing is
+     * done, that is the case when called by the optimizer.
      * @param x Weights to pass on to each layer.
      */
     public void setWeights(double[] x){
+        if(x == theta)
+            return;
+
         WeightLayer wl;
-        int k = 0, bSize, wSize;
         int totalParams = 0;
         for(Layer l: layers){
             if(l instanceof WeightLayer){
@@ -237,34 +671,24 @@ public class NeuralNetModel {
 
                 if(wl.weights == null){
                     wl.initParams();
-
                 }
                 totalParams += wl.getNumberOfParams();
-
-                // copy bias
-                bSize = wl.bias.size();
-                for(int i = 0; i < bSize;i++){
-                    wl.bias.data.setQuick(i, x[k]);
-                    k++;
-                }
-
-                // copy non bias weights
-                wSize = wl.weights.size();
-                for(int i = 0; i < wSize;i++){
-                    wl.weights.data.setQuick(i, x[k]);
-                    k++;
-                }
             }
         }
 
+        if(x.length != totalParams){
+            LOG.error("Expected " + totalParams + " weights, got " + x.length);
+            return;
+        }
+
         // initialize the array with all parameters
-        if(theta == null){
+        if(theta == null || theta.length != totalParams){
             theta = new double[totalParams];
             thetaGrad = new double[totalParams];
         }
+        bindParams();
 
-        // copy current init
-        copyTheta();
+        System.arraycopy(x, 0, theta, 0, totalParams);
     }
 
     /**
@@ -294,6 +718,8 @@ public class NeuralNetModel {
         // update num. of examples to X num. of examples
         // (if X is a batch it might have different sizes)
         initSpace(X.lastDim());
+        lastX = X;
+        lossGradReady = false;
         
         // forward propagate by calling each layer's forward propagation algorithm
         DoubleTensor Z = X;
@@ -320,7 +746,7 @@ public class NeuralNetModel {
     public double cost(DoubleTensor X, DoubleTensor y, DoubleTensor yWeights,
              double lambdaAdjus){
         DoubleTensor output = fProp(X);
-        double netCost = loss.eval(output, y, yWeights);
+        double netCost = evalLoss(output, y, yWeights);
         double regulCost = 0.0;
         if(wregul != null)
             regulCost = wregul.eval(this,lambdaAdjus);
@@ -343,24 +769,17 @@ public class NeuralNetModel {
         // the output of prev. layer (input of current layer)
         DoubleTensor chainGrad;
 
-        /* When the loss function is CrossEntropy or WeightedCrossEntropy
-        and the output layer is SoftMax the chainGrad is calculated at once.
-        The only reason to do this is a speed up of about 3 to 7 times faster
-        than calculating separately SoftMax chaingrad + Cross Entropy chaingrad.
-        */
-        if(loss instanceof CrossEntropy && layers.get(layers.size() - 1) instanceof SoftMaxLayer){
-            chainGrad = gradCE_Softmax(nnOutput, y);
-            startLayer = layers.size() - 2;
-        } else if(loss instanceof WeightedCrossEntropy && layers.get(layers.size() - 1) instanceof SoftMaxLayer){
-            chainGrad = gradWCE_Softmax(nnOutput, y, yWeights);
-            startLayer = layers.size() - 2;
-        } else{
-            chainGrad = loss.bProp(nnOutput, y, yWeights);
-            startLayer = layers.size() - 1;
-        }
+        chainGrad = lossGrad(nnOutput, y, yWeights);
+        if(lossScaler != null)
+            chainGrad.muli(lossScaler.getScale());
+        startLayer = lossIncludesOutputLayer() ? layers.size() - 2 : layers.size() - 1;
         
         // For the rest of the layers update weights and backpropagate
         for(int i = startLayer; i >= 0; i-- ){
+            // entering a segment whose outputs were discarded
+            if(checkpoints != null && (i == startLayer
+                    || checkpoints.getSegmentStart(i + 1) != checkpoints.getSegmentStart(i)))
+                checkpoints.recompute(lastX, i);
             
             if(layers.get(i) instanceof WeightLayer){
                 wl = (WeightLayer) layers.get(i);
@@ -373,6 +792,64 @@ public class NeuralNetModel {
         }
     }
 
+    /**
+     * Whether the gradient of the loss is taken with respect to the inputs of
+     * the last layer, which the loss absorbs (e.g., a SoftMax followed by
+     * CrossEntropy, see loss.FusedLoss).
+     * @return True if the last layer is not backpropagated.
+     */
+    boolean lossIncludesOutputLayer(){
+        return loss instanceof FusedLoss
+                && ((FusedLoss) loss).absorbs(layers.get(layers.size() - 1));
+    }
+
+    /**
+     * Evaluate the loss over the outputs of the net. A fused loss calculates
+     * its gradient in the same pass, kept for the following call to lossGrad.
+     * @param nnOutput Output of the neural net from forward propagation.
+     * @param y Actual training values of the target variable.
+     * @param yWeights Weight to apply to each training example.
+     * @return Loss.
+     */
+    double evalLoss(DoubleTensor nnOutput, DoubleTensor y, DoubleTensor yWeights){
+        if(!(loss instanceof FusedLoss))
+            return loss.eval(nnOutput, y, yWeights);
+
+        if(lossGradBuf == null || lossGradBuf.data.capacity() < nnOutput.size()){
+            lossGradBuf = new DoubleTensor(nnOutput.copyDims());
+        } else{
+            lossGradBuf.resize(nnOutput.dims);
+        }
+        lossGradBuf.setPos(nnOutput.size());
+        double l = ((FusedLoss) loss).evalWithGrad(nnOutput, y, yWeights,
+                lossIncludesOutputLayer(), lossGradBuf);
+        lossGradY = y;
+        lossGradW = yWeights;
+        lossGradReady = true;
+        return l;
+    }
+
+    /**
+     * Gradient of the loss with respect to the outputs of the net, or to the
+     * inputs of the last layer if lossIncludesOutputLayer. A fused loss reuses
+     * the gradient calculated with the loss when the outputs were evaluated
+     * with the same targets.
+     * @param nnOutput Output of the neural net from forward propagation.
+     * @param y Actual training values of the target variable.
+     * @param yWeights Weight to apply to each training example.
+     * @return Chain gradient.
+     */
+    DoubleTensor lossGrad(DoubleTensor nnOutput, DoubleTensor y, DoubleTensor yWeights){
+        if(!(loss instanceof FusedLoss))
+            return loss.bProp(nnOutput, y, yWeights);
+
+        if(!lossGradReady || lossGradY != y || lossGradW != yWeights)
+            evalLoss(nnOutput, y, yWeights);
+        // the caller may modify it (e.g., loss scaling)
+        lossGradReady = false;
+        return lossGradBuf;
+    }
+
     /**
      * Backpropagate including regularization. Uses bPropWOR method plus wregul
      * update method to backpropagate.
@@ -383,130 +860,99 @@ public class NeuralNetModel {
     public void bProp(DoubleTensor y, DoubleTensor yWeights,
             double lambdaAdjus){
         bPropWOR(layers.get(layers.size() - 1).getOutput(), y, yWeights);
+        // gradients are already in thetaGrad, only track which parts were written
+        updateActiveRanges();
+        if(!unscaleGradient())
+            return;
         if(wregul != null)
             wregul.updateWeights(this,lambdaAdjus);
-        // copy gradient obtained by each layer into a single array; used by optimizer
-        copyThetaGrad();
     }
 
     /**
-     * Special case where it is best to calculate the gradient of Cross Entropy
-     * at once when output unit is a Softmax unit. 
-     *
-     * calculates directly dJ(.) / dz_lm which equals (for the lth input, mth example)
-     *
-     * - [(Indicator(y_(m),l) - softmax(l,Z)) / (1 + smallConst /  softmax(y_(m),Z))]
-     *
-     * Where
-     * indicator(y_(m),l) = 1 if y_(m) = l else = 0
-     * softmax(l,Z) = exp(Z_lm) / sum(Z_jm,j=1...K) = U_lm
-     *
-     * Normally softmax(y_(m),Z) > smallConst and thus smallConst / softmax(y_(m),Z) = 0
-     *
-     * But it can occur that softmax(y_(m),Z) is really small and thus
-     * smallConst /softmax(y_(m),Z) gets bigger.
-     *
-     * @param nnOut Output of neural net.
-     * @param y Values of target variable.
-     * @return Derivative of the loss function J, with repect to inputs of Softmax
-     * function
+     * Divide the gradient (its active ranges) by the scale of the loss
+     * scaler, if any. When the gradient overflowed nothing is left active so
+     * that the optimizer skips the step.
+     * @return False if the gradient overflowed.
      */
-    public static DoubleTensor gradCE_Softmax(DoubleTensor nnOut, DoubleTensor y){
-        DoubleTensor indicator, temp, indSC, temp2;
-
-        // get indicator matrix for vector y
-        indicator = y.index(nnOut.dims[0]);
-
-        // temp = indicator.sub(ui);
-        // temp = temp.mul(-1.0); // outer minus
-        temp = indicator.rsubi(nnOut);
-
-        // this part deals with the extra work required by adding the small constant.
-        // Usually temp2 should equal a matrix of ones, but with really small
-        // values of ui, it gives different results.
-        indSC = nnOut.getLowerDim(0, y);
-        temp2 = indSC.rdivi(TensorFunctions.smallConst).addi(1.0);
-
-        return temp.diviLowerDimTensor(0,temp2);
+    boolean unscaleGradient(){
+        if(lossScaler == null || lossScaler.unscale(thetaGrad, activeRanges))
+            return true;
+        if(activeRanges == null)
+            activeRanges = new ActiveRanges();
+        else
+            activeRanges.clear();
+        return false;
     }
 
     /**
-     * Special case where it is best to calculate the gradient of Cross Entropy
-     * at once when output unit is a Softmax unit. If calculated appart softmax
-     * gradient creates m = no. of examples matrices of n x n
-     *
-     * calculates directly dJ(.) / dzj_K
-     * @param nnOut Output of neural net.
-     * @param y Values of target variable.
-     * @param weights Weights of the target var.
-     * @return Derivative of the loss function J, with repect to inputs of Softmax
-     * function
+     * Compute in the precision of master (see useMixedPrecision) and scale
+     * the loss with its scaler, for replicas of master. Replicas only scale,
+     * the master unscales once the gradients of all replicas are added.
+     * @param master Model with the same layers.
      */
-    public static DoubleTensor gradWCE_Softmax(DoubleTensor nnOut, DoubleTensor y,
-            DoubleTensor weights){
-        DoubleTensor indicator, temp, indSC, temp2;
-
-        // get indicator matrix for vector y
-        indicator = y.index(nnOut.dims[0]);
-        temp = indicator.rsubi(nnOut);
-        temp.muliLowerDimTensor(0, weights);
-
-        // this part deals with the extra work required by adding the small constant.
-        // Usually temp2 should equal a matrix of ones, but with really small
-        // values of ui, it gives different results.
-        indSC = nnOut.getLowerDim(0, y);
-        temp2 = indSC.rdivi(TensorFunctions.smallConst).addi(1.0);
-
-        return temp.diviLowerDimTensor(0,temp2);
+    void followPrecision(NeuralNetModel master){
+        for(int i = 0; i < layers.size(); i++){
+            if(layers.get(i) instanceof WeightLayer)
+                ((WeightLayer) layers.get(i)).setMixedPrecision(
+                        ((WeightLayer) master.layers.get(i)).isMixedPrecision());
+        }
+        lossScaler = master.lossScaler;
     }
 
     /**
-     * Copies each of the weights of each layer into a single array.
+     * Make the parameters and gradients of each layer views of theta and
+     * thetaGrad (copying current values).
      */
-    private void copyTheta(){
-        WeightLayer wl;
+    private void bindParams(){
         int k = 0;
         for(Layer l: layers){
             if(l instanceof WeightLayer){
-                wl = (WeightLayer) l;
-
-                // copy bias
-                for(int i = 0; i < wl.bias.size();i++){
-                    theta[k] = wl.bias.data.getQuick(i);
-                    k++;
-                }
-
-                // copy non bias weights
-                for(int i = 0; i < wl.weights.size();i++){
-                    theta[k] = wl.weights.data.getQuick(i);
-                    k++;
-                }
+                k = ((WeightLayer) l).bindParams(theta, thetaGrad, k);
             }
         }
     }
 
     /**
-     * Copy each of the gradients of each layer into a single array.
+     * Gradients are written by each layer directly into thetaGrad. When a
+     * layer has a sparse gradient, activeRanges is filled with the ranges of
+     * thetaGrad written in last backpropagation, otherwise it is set to null.
      */
-    private void copyThetaGrad(){
+    void updateActiveRanges(){
         WeightLayer wl;
-        int k = 0;
+        int k = 0, bSize;
+        boolean sparse = false;
+
+        for(Layer l: layers){
+            if(l instanceof WeightLayer && ((WeightLayer) l).hasSparseGrad()){
+                sparse = true;
+                break;
+            }
+        }
+
+        if(!sparse){
+            activeRanges = null;
+            return;
+        } else if(activeRanges == null){
+            activeRanges = new ActiveRanges();
+        } else{
+            activeRanges.clear();
+        }
+
         for(Layer l: layers){
             if(l instanceof WeightLayer){
                 wl = (WeightLayer) l;
 
-                // copy bias
-                for(int i = 0; i < wl.biasGrad.size();i++){
-                    thetaGrad[k] = wl.biasGrad.data.getQuick(i);
-                    k++;
-                }
+                bSize = wl.biasGrad.size();
+                activeRanges.add(k, k + bSize);
+                k += bSize;
 
-                // copy non bias weights
-                for(int i = 0; i < wl.weightsGrad.size();i++){
-                    thetaGrad[k] = wl.weightsGrad.data.getQuick(i);
-                    k++;
+                if(wl.hasSparseGrad()){
+                    wl.addActiveGradRanges(activeRanges, k);
+                } else{
+                    activeRanges.add(k, k + wl.weightsGrad.size());
                 }
+                k += wl.weightsGrad.size();
             }
         }
     }
-}
\ No newline at end of file
+}
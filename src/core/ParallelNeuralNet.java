@@ -0,0 +1,327 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import optim.ActiveRanges;
+import org.apache.log4j.Logger;
+import tensor.DoubleTensor;
+
+/**
+ * Synchronous data parallel training over K replicas of a model, one thread
+ * per replica. Every batch is split in K parts along the examples (slices,
+ * nothing is copied) and each replica forward and backward propagates its part
+ * concurrently. All replicas view the weights of the master model while each
+ * one writes its own gradient. The gradients are then summed into the gradient
+ * of the master with a tree reduction: at level s replica r adds the gradient
+ * of replica r + s, for r multiple of 2s, in chunks processed in parallel.
+ * The order of the sums does not depend on the scheduling of threads, thus
+ * results are deterministic and equal single replica training up to the order
+ * of floating point sums. Regularization is applied once, on the master.
+ *
+ * Losses that are averaged over examples (see LossFunction.isAveraged) are
+ * weighted by the proportion of examples of each part. Layers using random
+ * numbers (dropout) draw different numbers in each replica.
+ *
+ * With mixed precision (see NeuralNetModel.useMixedPrecision on the master)
+ * every replica computes in single precision and scales its loss by the
+ * scale of the master. The reduced gradient is unscaled once, if it
+ * overflowed in any replica no range is active and the step is skipped.
+ *
+ * Use with ParallelNeuralNetFunction and ParallelNeuralNetGradient, so that
+ * SGDOptim and any SGDUpdate work as with a single model.
+ * @author diego_paez
+ */
+public class ParallelNeuralNet {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(ParallelNeuralNet.class);
+
+    /**
+     * Size of the chunks of the gradient added by a single task.
+     */
+    private static final int REDUCE_CHUNK = 1 << 15;
+
+    /**
+     * Model whose weights and gradient are optimized, replica 0.
+     */
+    private final NeuralNetModel master;
+
+    /**
+     * Replicas, the first one is the master.
+     */
+    private final NeuralNetModel[] replicas;
+
+    /**
+     * Threads running the replicas.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Parts of the last batch.
+     */
+    private final DoubleTensor[] Xs, ys, ws;
+
+    /**
+     * Outputs of the replicas for the last batch.
+     */
+    private final DoubleTensor[] outs;
+
+    /**
+     * Loss of each part of the last batch.
+     */
+    private final double[] costs;
+
+    /**
+     * Proportion of examples of each part, weight of averaged losses.
+     */
+    private final double[] props;
+
+    /**
+     * Number of replicas with examples in the last batch.
+     */
+    private int active;
+
+    /**
+     * Create replicas of a model. Dims of inputs of master must be set (see
+     * setTrainInputs) and weights initialized or loaded.
+     * @param master Model to train.
+     * @param factory Creates models with the same layers as master.
+     * @param numReplicas Number of replicas (and threads), including master.
+     */
+    public ParallelNeuralNet(NeuralNetModel master, ModelFactory factory,
+            int numReplicas) {
+        if(numReplicas < 1){
+            LOG.error("At least one replica is needed, using 1");
+            numReplicas = 1;
+        }
+        this.master = master;
+        replicas = new NeuralNetModel[numReplicas];
+        replicas[0] = master;
+        for(int r = 1; r < numReplicas; r++){
+            replicas[r] = factory.create();
+            replicas[r].setTrainInputs(master.Xtrain, master.ytrain, master.yWeights);
+            replicas[r].shareWeights(master);
+        }
+
+        Xs = new DoubleTensor[numReplicas];
+        ys = new DoubleTensor[numReplicas];
+        ws = new DoubleTensor[numReplicas];
+        outs = new DoubleTensor[numReplicas];
+        costs = new double[numReplicas];
+        props = new double[numReplicas];
+
+        pool = Executors.newFixedThreadPool(numReplicas, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "replica-" + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Cost of the batch: the parts are forward propagated concurrently and
+     * their losses added in order, plus regularization.
+     * @param x Weights, copied into the master unless they are its theta.
+     * @param X Batch of inputs.
+     * @param y Batch of targets.
+     * @param yWeights Batch of weights of examples, can be null.
+     * @param lambdaAdjus Lambda adjustment of regularization.
+     * @return Total cost.
+     * @throws IllegalStateException If a replica failed.
+     */
+    public double cost(double[] x, DoubleTensor X, DoubleTensor y,
+            DoubleTensor yWeights, final double lambdaAdjus){
+        master.setWeights(x);
+        split(X, y, yWeights);
+        for(int r = 1; r < active; r++){
+            replicas[r].followPrecision(master);
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for(int r = 0; r < active; r++){
+            final int rep = r;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    NeuralNetModel m = replicas[rep];
+                    m.testRunning = master.testRunning;
+                    outs[rep] = m.fProp(Xs[rep]);
+                    costs[rep] = m.evalLoss(outs[rep], ys[rep], ws[rep]);
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+
+        boolean averaged = master.loss.isAveraged();
+        double cost = 0.0;
+        for(int r = 0; r < active; r++){
+            cost += averaged ? props[r] * costs[r] : costs[r];
+        }
+        if(master.wregul != null)
+            cost += master.wregul.eval(master, lambdaAdjus);
+        return cost;
+    }
+
+    /**
+     * Gradient of the batch of last call to cost: the parts are
+     * backpropagated concurrently, then the gradients are reduced into the
+     * gradient of the master, unscaled with mixed precision, and
+     * regularization is added.
+     * @param lambdaAdjus Lambda adjustment of regularization.
+     * @return Gradient of the master, zero outside its active ranges (no
+     * range is active if the gradient overflowed).
+     * @throws IllegalStateException If a replica failed, the gradient of the
+     * master is then not valid.
+     */
+    public double[] gradient(double lambdaAdjus){
+        final boolean averaged = master.loss.isAveraged();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for(int r = 0; r < active; r++){
+            final int rep = r;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    NeuralNetModel m = replicas[rep];
+                    m.bPropWOR(outs[rep], ys[rep], ws[rep]);
+                    m.updateActiveRanges();
+                    if(m.activeRanges != null)
+                        m.activeRanges.clearOutside(m.thetaGrad);
+                    if(averaged && props[rep] != 1.0){
+                        double[] g = m.thetaGrad;
+                        for(int i = 0; i < g.length; i++){
+                            g[i] *= props[rep];
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+
+        reduce();
+        mergeActiveRanges();
+        if(!master.unscaleGradient())
+            return master.thetaGrad;
+
+        if(master.wregul != null)
+            master.wregul.updateWeights(master, lambdaAdjus);
+        return master.thetaGrad;
+    }
+
+    /**
+     * The reduced gradient is written in the union of the active ranges of
+     * the replicas (if the model has layers with sparse gradient), those are
+     * the active ranges of the master.
+     */
+    private void mergeActiveRanges(){
+        if(master.activeRanges == null)
+            return;
+        ActiveRanges[] lists = new ActiveRanges[active];
+        for(int r = 0; r < active; r++){
+            lists[r] = replicas[r].activeRanges;
+        }
+        master.activeRanges.setUnion(lists);
+    }
+
+    /**
+     * Tree reduction of the gradients of the active replicas into the master.
+     */
+    private void reduce(){
+        final int len = master.thetaGrad.length;
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for(int s = 1; s < active; s <<= 1){
+            tasks.clear();
+            for(int r = 0; r + s < active; r += 2 * s){
+                final double[] dst = replicas[r].thetaGrad;
+                final double[] src = replicas[r + s].thetaGrad;
+                for(int c = 0; c < len; c += REDUCE_CHUNK){
+                    final int from = c, to = Math.min(len, c + REDUCE_CHUNK);
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            for(int i = from; i < to; i++){
+                                dst[i] += src[i];
+                            }
+                            return null;
+                        }
+                    });
+                }
+            }
+            run(tasks);
+        }
+    }
+
+    /**
+     * Split batch in parts of (almost) equal number of examples, a replica
+     * gets no part if there are less examples than replicas.
+     */
+    private void split(DoubleTensor X, DoubleTensor y, DoubleTensor yWeights){
+        int E = X.lastDim();
+        active = Math.min(replicas.length, E);
+        int from, to;
+        for(int r = 0; r < active; r++){
+            from = (int) ((long) r * E / active);
+            to = (int) ((long) (r + 1) * E / active);
+            Xs[r] = X.sliceLastDim(from, to);
+            ys[r] = y.sliceLastDim(from, to);
+            ws[r] = yWeights == null ? null : yWeights.sliceLastDim(from, to);
+            props[r] = (to - from) / (double) E;
+        }
+    }
+
+    /**
+     * Run tasks on the pool and wait for all of them. A failed task leaves
+     * stale outputs or gradients in its replica, so the failure is thrown
+     * instead of letting the batch be used.
+     * @throws IllegalStateException If a task failed or the wait was
+     * interrupted.
+     */
+    private void run(List<Callable<Void>> tasks){
+        try {
+            for(Future<Void> f: pool.invokeAll(tasks)){
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running replicas", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Replica failed", e.getCause());
+        }
+    }
+
+    /**
+     * Ranges of the gradient of the master written in last call to gradient.
+     * @return Active ranges, null if the whole gradient was written.
+     */
+    public ActiveRanges getActiveRanges(){
+        return master.activeRanges;
+    }
+
+    /**
+     * Get the replicas, the first one is the master.
+     * @return Replicas.
+     */
+    public NeuralNetModel[] getReplicas(){
+        return replicas;
+    }
+
+    /**
+     * Stop the threads, the replicas can not be run afterwards.
+     */
+    public void shutdown(){
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,478 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import layer.Layer;
+import layer.weight.WeightLayer;
+import optim.ActiveRanges;
+import org.apache.log4j.Logger;
+import tensor.DoubleTensor;
+
+/**
+ * Pipeline parallel training: the layers are split in S stages of contiguous
+ * layers, each one run by its own thread, and every batch is split in M
+ * micro batches (slices, nothing is copied) that flow through the stages.
+ * While stage s runs micro batch m, stage s - 1 runs micro batch m + 1, thus
+ * nets made of many small layers use several cores.
+ *
+ * Stages follow the one forward one backward (1F1B) schedule of PipeDream:
+ * stage s runs S - s - 1 forwards, then alternates one forward and one
+ * backward and finally runs the backwards left. The backward of a micro batch
+ * starts as soon as its forward ends in the last stage, so at most S micro
+ * batches are in flight. Since layers keep the state of their last forward
+ * (inputs, outputs, masks), micro batches in flight run on S replicas of the
+ * model that view the weights of the master (micro batch m runs on replica
+ * m mod S); replica m mod S is free again once the backward of micro batch m
+ * ends in stage 0. Each stage accumulates the gradients of its layers over
+ * the micro batches into the gradient of the master, gradients of different
+ * stages do not overlap so no locks are needed. Results equal training
+ * without pipeline up to the order of floating point sums.
+ *
+ * With mixed precision (see NeuralNetModel.useMixedPrecision on the master)
+ * the replicas compute in single precision and the last stage scales the loss
+ * by the scale of the master. The accumulated gradient is unscaled once, if
+ * it overflowed in any micro batch no range is active and the step is
+ * skipped.
+ *
+ * Forward and backward are interleaved, thus cost runs both and gradient
+ * returns the gradient of the batch of last call to cost. Use with
+ * PipelineNeuralNetFunction and PipelineNeuralNetGradient.
+ * @author diego_paez
+ */
+public class PipelineNeuralNet {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(PipelineNeuralNet.class);
+
+    /**
+     * Model whose weights and gradient are optimized.
+     */
+    private final NeuralNetModel master;
+
+    /**
+     * Replicas running the micro batches in flight.
+     */
+    private final NeuralNetModel[] replicas;
+
+    /**
+     * First layer of each stage, plus the number of layers.
+     */
+    private final int[] stageStart;
+
+    /**
+     * Range of thetaGrad written by the layers of each stage.
+     */
+    private final int[] gradFrom, gradTo;
+
+    private final int numStages, numMicro;
+
+    /**
+     * Ranges of thetaGrad written by each stage over the micro batches of
+     * last batch, null if the model has no layer with sparse gradient.
+     */
+    private final ActiveRanges[] stageRanges;
+
+    /**
+     * Threads running the stages.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Activations received by each stage from the previous one and
+     * gradients received from the next one, in order of micro batch.
+     */
+    private final List<LinkedBlockingQueue<DoubleTensor>> fwdIn, bwdIn;
+
+    /**
+     * Micro batches of the last batch.
+     */
+    private DoubleTensor[] Xs, ys, ws;
+    private double[] props;
+    private double[] costs;
+    private int active;
+
+    /**
+     * Create pipeline with stages of about the same cost (see estimateCost).
+     * Dims of inputs of master must be set and weights initialized or loaded.
+     * @param master Model to train.
+     * @param factory Creates models with the same layers as master.
+     * @param numStages Number of stages (and threads).
+     * @param numMicroBatches Number of micro batches per batch.
+     */
+    public PipelineNeuralNet(NeuralNetModel master, ModelFactory factory, int numStages,
+            int numMicroBatches) {
+        this(master, factory, balance(master.layers, numStages), numMicroBatches);
+    }
+
+    /**
+     * Create pipeline with given stages.
+     * @param master Model to train.
+     * @param factory Creates models with the same layers as master.
+     * @param stageStarts First layer of each stage, the first one must be 0.
+     * @param numMicroBatches Number of micro batches per batch.
+     */
+    public PipelineNeuralNet(NeuralNetModel master, ModelFactory factory, int[] stageStarts,
+            int numMicroBatches) {
+        this.master = master;
+        this.numStages = stageStarts.length;
+        this.numMicro = Math.max(1, numMicroBatches);
+        this.stageStart = new int[numStages + 1];
+        System.arraycopy(stageStarts, 0, stageStart, 0, numStages);
+        stageStart[numStages] = master.layers.size();
+
+        gradFrom = new int[numStages];
+        gradTo = new int[numStages];
+        for(int s = 0; s < numStages; s++){
+            gradFrom[s] = Integer.MAX_VALUE;
+            gradTo[s] = 0;
+            for(int i = stageStart[s]; i < stageStart[s + 1]; i++){
+                Layer l = master.layers.get(i);
+                if(l instanceof WeightLayer){
+                    WeightLayer wl = (WeightLayer) l;
+                    int[] r = {wl.biasGrad.data.getOffset(), wl.weightsGrad.data.getOffset()};
+                    int[] n = {wl.biasGrad.data.size(), wl.weightsGrad.data.size()};
+                    for(int k = 0; k < 2; k++){
+                        gradFrom[s] = Math.min(gradFrom[s], r[k]);
+                        gradTo[s] = Math.max(gradTo[s], r[k] + n[k]);
+                    }
+                }
+            }
+            if(gradFrom[s] > gradTo[s])
+                gradFrom[s] = gradTo[s];
+        }
+
+        boolean sparse = false;
+        for(Layer l: master.layers){
+            sparse |= l instanceof WeightLayer && ((WeightLayer) l).hasSparseGrad();
+        }
+        stageRanges = sparse ? new ActiveRanges[numStages] : null;
+        for(int s = 0; sparse && s < numStages; s++){
+            stageRanges[s] = new ActiveRanges();
+        }
+
+        replicas = new NeuralNetModel[Math.min(numStages, numMicro)];
+        for(int r = 0; r < replicas.length; r++){
+            replicas[r] = factory.create();
+            replicas[r].setTrainInputs(master.Xtrain, master.ytrain, master.yWeights);
+            replicas[r].shareWeights(master);
+        }
+
+        fwdIn = new ArrayList<>();
+        bwdIn = new ArrayList<>();
+        for(int s = 0; s < numStages; s++){
+            fwdIn.add(new LinkedBlockingQueue<DoubleTensor>());
+            bwdIn.add(new LinkedBlockingQueue<DoubleTensor>());
+        }
+
+        pool = Executors.newFixedThreadPool(numStages, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "stage-" + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        StringBuilder sb = new StringBuilder("Pipeline stages (first layer):");
+        for(int s = 0; s < numStages; s++){
+            sb.append(' ').append(stageStart[s]);
+        }
+        LOG.info(sb.append(", micro batches: ").append(numMicro));
+    }
+
+    /**
+     * Split layers in contiguous stages of about the same estimated cost.
+     * @param layers Layers (dims of inputs set).
+     * @param numStages Number of stages.
+     * @return First layer of each stage.
+     */
+    public static int[] balance(List<Layer> layers, int numStages){
+        numStages = Math.max(1, Math.min(numStages, layers.size()));
+        double[] cum = new double[layers.size() + 1];
+        for(int i = 0; i < layers.size(); i++){
+            cum[i + 1] = cum[i] + estimateCost(layers.get(i));
+        }
+        int[] starts = new int[numStages];
+        int i = 0;
+        for(int s = 1; s < numStages; s++){
+            double target = cum[layers.size()] * s / numStages;
+            // at least one layer per stage
+            i = Math.max(i + 1, starts[s - 1] + 1);
+            while(i < layers.size() - (numStages - s) && cum[i] < target){
+                i++;
+            }
+            starts[s] = i;
+        }
+        return starts;
+    }
+
+    /**
+     * Rough cost of a layer per example: parameters (one multiply add each)
+     * plus outputs.
+     * @param l Layer.
+     * @return Estimated cost.
+     */
+    private static double estimateCost(Layer l){
+        double c = 0;
+        for(int d: l.getDimsOfOutputsWOE()){
+            c = c == 0 ? d : c * d;
+        }
+        if(l instanceof WeightLayer)
+            c += ((WeightLayer) l).getNumberOfParams();
+        return c;
+    }
+
+    /**
+     * Run forward and backward of the batch through the pipeline.
+     * @param x Weights, copied into the master unless they are its theta.
+     * @param X Batch of inputs.
+     * @param y Batch of targets.
+     * @param yWeights Batch of weights of examples, can be null.
+     * @param lambdaAdjus Lambda adjustment of regularization.
+     * @return Total cost.
+     * @throws IllegalStateException If a stage failed, the gradient of the
+     * master is then not valid.
+     */
+    public double cost(double[] x, DoubleTensor X, DoubleTensor y,
+            DoubleTensor yWeights, double lambdaAdjus){
+        master.setWeights(x);
+        split(X, y, yWeights);
+        for(NeuralNetModel rep: replicas){
+            rep.followPrecision(master);
+        }
+        for(int s = 0; s < numStages; s++){
+            fwdIn.get(s).clear();
+            bwdIn.get(s).clear();
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for(int s = 0; s < numStages; s++){
+            final int stage = s;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    runStage(stage);
+                    return null;
+                }
+            });
+        }
+        // wait in order of completion, a failed stage is seen while the
+        // stages waiting for it are still blocked
+        CompletionService<Void> cs = new ExecutorCompletionService<>(pool);
+        List<Future<Void>> fs = new ArrayList<>();
+        for(Callable<Void> t: tasks){
+            fs.add(cs.submit(t));
+        }
+        try {
+            for(int i = 0; i < fs.size(); i++){
+                cs.take().get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(fs);
+            throw new IllegalStateException("Interrupted while running pipeline", e);
+        } catch (ExecutionException e) {
+            // stages waiting for the failed one would wait forever
+            cancel(fs);
+            throw new IllegalStateException("Pipeline stage failed", e.getCause());
+        }
+
+        boolean averaged = master.loss.isAveraged();
+        double cost = 0.0;
+        for(int m = 0; m < active; m++){
+            cost += averaged ? props[m] * costs[m] : costs[m];
+        }
+        if(master.wregul != null)
+            cost += master.wregul.eval(master, lambdaAdjus);
+        return cost;
+    }
+
+    /**
+     * Cancel the stages still running.
+     */
+    private static void cancel(List<Future<Void>> fs){
+        for(Future<Void> f: fs){
+            f.cancel(true);
+        }
+    }
+
+    /**
+     * Gradient of the batch of last call to cost, unscaled with mixed
+     * precision, plus regularization.
+     * @param lambdaAdjus Lambda adjustment of regularization.
+     * @return Gradient of the master (no range is active if it overflowed).
+     */
+    public double[] gradient(double lambdaAdjus){
+        if(stageRanges == null){
+            master.activeRanges = null;
+        } else{
+            if(master.activeRanges == null)
+                master.activeRanges = new ActiveRanges();
+            master.activeRanges.setUnion(stageRanges);
+        }
+        if(!master.unscaleGradient())
+            return master.thetaGrad;
+        if(master.wregul != null)
+            master.wregul.updateWeights(master, lambdaAdjus);
+        return master.thetaGrad;
+    }
+
+    /**
+     * Ranges of the gradient of the master written in last call to gradient.
+     * @return Active ranges, null if the whole gradient was written.
+     */
+    public ActiveRanges getActiveRanges(){
+        return master.activeRanges;
+    }
+
+    /**
+     * Run the 1F1B schedule of a stage.
+     */
+    private void runStage(int s) throws InterruptedException {
+        double[] acc = master.thetaGrad;
+        for(int i = gradFrom[s]; i < gradTo[s]; i++){
+            acc[i] = 0.0;
+        }
+        if(stageRanges != null)
+            stageRanges[s].clear();
+        int warmup = Math.min(numStages - s - 1, active);
+        int nextF = 0, nextB = 0;
+        for(; nextF < warmup; nextF++){
+            forward(s, nextF);
+        }
+        while(nextB < active){
+            if(nextF < active)
+                forward(s, nextF++);
+            backward(s, nextB++);
+        }
+    }
+
+    /**
+     * Forward micro batch m through the layers of stage s.
+     */
+    private void forward(int s, int m) throws InterruptedException {
+        NeuralNetModel rep = replicas[m % replicas.length];
+        DoubleTensor Z = s == 0 ? Xs[m] : fwdIn.get(s).take();
+        int n = Xs[m].lastDim();
+        for(int i = stageStart[s]; i < stageStart[s + 1]; i++){
+            Layer l = rep.layers.get(i);
+            l.initSpaceInMemory(n);
+            Z = l.fProp(Z, false);
+        }
+        if(s + 1 < numStages)
+            fwdIn.get(s + 1).add(Z);
+        else
+            costs[m] = rep.evalLoss(Z, ys[m], ws[m]);
+    }
+
+    /**
+     * Backward micro batch m through the layers of stage s and accumulate
+     * their gradients.
+     */
+    private void backward(int s, int m) throws InterruptedException {
+        NeuralNetModel rep = replicas[m % replicas.length];
+        DoubleTensor chainGrad;
+        int last = stageStart[s + 1] - 1;
+        if(s + 1 < numStages){
+            chainGrad = bwdIn.get(s).take();
+        } else{
+            chainGrad = rep.lossGrad(rep.layers.get(last).getOutput(), ys[m], ws[m]);
+            if(rep.lossScaler != null)
+                chainGrad.muli(rep.lossScaler.getScale());
+            if(rep.lossIncludesOutputLayer())
+                last--;
+        }
+        for(int i = last; i >= stageStart[s]; i--){
+            Layer l = rep.layers.get(i);
+            if(l instanceof WeightLayer)
+                ((WeightLayer) l).updateLayerWGrad(chainGrad);
+            if(i > 0)
+                chainGrad = l.bProp(chainGrad);
+        }
+        if(s > 0)
+            bwdIn.get(s - 1).add(chainGrad);
+        if(stageRanges != null)
+            addActiveRanges(rep, s);
+
+        double[] acc = master.thetaGrad, g = rep.thetaGrad;
+        double p = master.loss.isAveraged() ? props[m] : 1.0;
+        for(int i = gradFrom[s]; i < gradTo[s]; i++){
+            acc[i] += p * g[i];
+            g[i] = 0.0;
+        }
+    }
+
+    /**
+     * Add to the ranges of stage s the parts of the gradient written by its
+     * layers in the replica, which has the layout of the master.
+     */
+    private void addActiveRanges(NeuralNetModel rep, int s){
+        ActiveRanges r = stageRanges[s];
+        WeightLayer wl;
+        int b, w;
+        for(int i = stageStart[s]; i < stageStart[s + 1]; i++){
+            if(!(rep.layers.get(i) instanceof WeightLayer))
+                continue;
+            wl = (WeightLayer) rep.layers.get(i);
+            b = wl.biasGrad.data.getOffset();
+            r.add(b, b + wl.biasGrad.size());
+            w = wl.weightsGrad.data.getOffset();
+            if(wl.hasSparseGrad())
+                wl.addActiveGradRanges(r, w);
+            else
+                r.add(w, w + wl.weightsGrad.size());
+        }
+    }
+
+    /**
+     * Split batch in micro batches of (almost) equal number of examples.
+     */
+    private void split(DoubleTensor X, DoubleTensor y, DoubleTensor yWeights){
+        int E = X.lastDim();
+        active = Math.min(numMicro, E);
+        Xs = new DoubleTensor[active];
+        ys = new DoubleTensor[active];
+        ws = new DoubleTensor[active];
+        props = new double[active];
+        costs = new double[active];
+        int from, to;
+        for(int m = 0; m < active; m++){
+            from = (int) ((long) m * E / active);
+            to = (int) ((long) (m + 1) * E / active);
+            Xs[m] = X.sliceLastDim(from, to);
+            ys[m] = y.sliceLastDim(from, to);
+            ws[m] = yWeights == null ? null : yWeights.sliceLastDim(from, to);
+            props[m] = (to - from) / (double) E;
+        }
+    }
+
+    /**
+     * Get first layer of each stage.
+     * @return Stage starts.
+     */
+    public int[] getStageStarts(){
+        int[] r = new int[numStages];
+        System.arraycopy(stageStart, 0, r, 0, numStages);
+        return r;
+    }
+
+    /**
+     * Stop the threads, the pipeline can not be run afterwards.
+     */
+    public void shutdown(){
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,43 @@
+package core;
+
+import optim.BatchFunction;
+import tensor.DoubleTensor;
+
+/**
+ * Function of a feed forward neural net evaluated by a pipeline of stages
+ * (see PipelineNeuralNet), the gradient is calculated at the same time.
+ * @author diego_paez
+ */
+public class PipelineNeuralNetFunction implements BatchFunction{
+
+    /**
+     * Pipeline of the neural net.
+     */
+    public PipelineNeuralNet net;
+
+    /**
+     * Create function evaluated by given pipeline.
+     * @param net Pipeline of the neural net.
+     */
+    public PipelineNeuralNetFunction(PipelineNeuralNet net) {
+        this.net = net;
+    }
+
+    /**
+     * For a given point (value), evaluate using the data suplied, micro
+     * batches flow through the stages forward and backward.
+     * @param value Point which will be valued.
+     * @param XBatch Current batch of training data
+     * @param yBatch Current batch of target data
+     * @param yWeightsBatch Current batch of weights to be assigned to each
+     * example
+     * @param lambdaAdjus Lambda adjustment due to the use of regularization.
+     * @return Total cost for the neural net function.
+     */
+    @Override
+    public double value(double[] value, DoubleTensor XBatch, DoubleTensor yBatch,
+            DoubleTensor yWeightsBatch, double lambdaAdjus) {
+        return net.cost(value, XBatch, yBatch, yWeightsBatch, lambdaAdjus);
+    }
+
+}
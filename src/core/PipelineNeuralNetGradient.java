@@ -0,0 +1,54 @@
+package core;
+
+import optim.ActiveRanges;
+import optim.SparseBatchGradient;
+import tensor.DoubleTensor;
+
+/**
+ * Gradient of a feed forward neural net calculated by a pipeline of stages
+ * (see PipelineNeuralNet). As with NeuralNetGradient, the function must be
+ * evaluated first with the same batch.
+ * @author diego_paez
+ */
+public class PipelineNeuralNetGradient implements SparseBatchGradient{
+
+    /**
+     * Pipeline of the neural net.
+     */
+    public PipelineNeuralNet net;
+
+    /**
+     * Create gradient calculated by given pipeline.
+     * @param net Pipeline of the neural net.
+     */
+    public PipelineNeuralNetGradient(PipelineNeuralNet net) {
+        this.net = net;
+    }
+
+    /**
+     * Gradient of the batch of last function evaluation, accumulated by the
+     * stages into the gradient of the master model.
+     * @param value Point, not used (already set when evaluating function).
+     * @param XBatch Current batch of training data
+     * @param yBatch Current batch of target data
+     * @param yWeightsBatch Current batch of weights to be assigned to each
+     * example
+     * @param lambdaAdjus Lambda adjustment due to the use of regularization.
+     * @return Gradient of the weights.
+     */
+    @Override
+    public double[] value(double[] value, DoubleTensor XBatch, DoubleTensor yBatch,
+            DoubleTensor yWeightsBatch, double lambdaAdjus) {
+        return net.gradient(lambdaAdjus);
+    }
+
+    /**
+     * Ranges of the gradient written in last call to value, see
+     * NeuralNetGradient.getActiveRanges.
+     * @return Active ranges or null if the whole gradient was written.
+     */
+    @Override
+    public ActiveRanges getActiveRanges() {
+        return net.getActiveRanges();
+    }
+}
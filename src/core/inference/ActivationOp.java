@@ -0,0 +1,61 @@
+package core.inference;
+
+import layer.activation.ActivationFunction;
+import tensor.DoubleTensor;
+
+/**
+ * Apply an activation function to every input.
+ * @author diego_paez
+ */
+public class ActivationOp implements InferenceOp {
+
+    /**
+     * Activation function.
+     */
+    private final ActivationFunction activationFun;
+
+    /**
+     * Dimensions of inputs = outputs, not counting examples.
+     */
+    private final int[] dims;
+
+    public ActivationOp(ActivationFunction activationFun, int[] dims) {
+        this.activationFun = activationFun;
+        this.dims = dims;
+    }
+
+    @Override
+    public int[] getDimsOfOutputsWOE() {
+        return dims;
+    }
+
+    @Override
+    public Object createWorkspace(int maxBatch) {
+        return null;
+    }
+
+    @Override
+    public void forward(DoubleTensor in, DoubleTensor out, Object workspace) {
+        final int sz = out.size();
+        double[] a = in.data.getData(), o = out.data.getData();
+        final int ao = in.data.getOffset(), oo = out.data.getOffset();
+        for(int i = 0; i < sz; i++){
+            o[oo + i] = activationFun.forward(a[ao + i], true);
+        }
+    }
+
+    /**
+     * Apply activation in place to len entries of x from off.
+     * @param f Activation function, nothing is done if null.
+     * @param x Array.
+     * @param off First entry.
+     * @param len Number of entries.
+     */
+    public static void applyInPlace(ActivationFunction f, double[] x, int off, int len){
+        if(f == null)
+            return;
+        for(int i = off; i < off + len; i++){
+            x[i] = f.forward(x[i], true);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package core.inference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import tensor.DoubleTensor;
+
+/**
+ * Serves single example requests with a predictor, grouping them in batches
+ * (micro batching): a request is queued and its future returned; a worker
+ * thread takes the oldest request, waits for more until the batch has the
+ * target size or the oldest request waited the target time, runs a single
+ * forward pass over the batch and completes every future with the column of
+ * its example.
+ *
+ * Target size and wait adapt to the load in order to keep the latency of a
+ * request (queue + batch + forward pass) under a given target. The rate of
+ * arrivals and the time of the forward pass per example are tracked with
+ * moving averages. The target size is the largest batch b such that waiting
+ * for b - 1 more arrivals and running b examples fits in half the latency
+ * target, the wait is the expected time for those arrivals (never more than
+ * the maximum wait). With low traffic requests run alone without waiting,
+ * under heavy traffic the queue already holds full batches and throughput is
+ * the one of the biggest batches (requests already queued are always taken,
+ * up to the maximum size). Each worker has its own execution context,
+ * several workers overlap forward passes on multicore machines.
+ * @author diego_paez
+ */
+public class BatchingPredictor {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(BatchingPredictor.class);
+
+    /**
+     * Number of latencies kept to compute percentiles.
+     */
+    private static final int LATENCY_WINDOW = 1 << 12;
+
+    /**
+     * Weight of new observations in moving averages.
+     */
+    private static final double ALPHA = 0.05;
+
+    /**
+     * Queued request.
+     */
+    private static class Request {
+        final double[] x;
+        final CompletableFuture<double[]> future;
+        final long enqueued;
+
+        Request(double[] x, CompletableFuture<double[]> future, long enqueued) {
+            this.x = x;
+            this.future = future;
+            this.enqueued = enqueued;
+        }
+    }
+
+    private final Predictor predictor;
+    private final int maxBatch;
+    private final long maxWaitNanos;
+    private final long targetLatencyNanos;
+    private final int inSize, outSize;
+    private final int[] inDims;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread[] workers;
+    private volatile boolean running = true;
+
+    /**
+     * Adaptive state, guarded by this.
+     */
+    private double interArrivalNanos = -1, nanosPerExample = -1;
+    private long lastArrival;
+    private int batchTarget;
+    private long waitNanos;
+
+    /**
+     * Statistics, guarded by this.
+     */
+    private final long start = System.nanoTime();
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private long completed, failed, batches, latencyCount;
+
+    /**
+     * Create batcher and start its workers.
+     * @param predictor Compiled predictor.
+     * @param maxBatch Maximum number of examples of a batch (at most the max
+     * batch of the predictor).
+     * @param maxWaitMicros Maximum time a request waits for others.
+     * @param targetLatencyMicros Latency target (p99) used to adapt batch size
+     * and wait.
+     * @param numWorkers Number of threads running batches.
+     */
+    public BatchingPredictor(Predictor predictor, int maxBatch, long maxWaitMicros,
+            long targetLatencyMicros, int numWorkers) {
+        this.predictor = predictor;
+        if(maxBatch > predictor.getMaxBatch()){
+            LOG.error("Max batch " + maxBatch + " exceeds the one of the predictor, using "
+                    + predictor.getMaxBatch());
+            maxBatch = predictor.getMaxBatch();
+        }
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxWaitNanos = maxWaitMicros * 1000;
+        this.targetLatencyNanos = targetLatencyMicros * 1000;
+        this.inDims = predictor.getDimsOfInputsWOE();
+        this.inSize = product(inDims);
+        this.outSize = product(predictor.getDimsOfOutputsWOE());
+        this.batchTarget = this.maxBatch;
+        this.waitNanos = maxWaitNanos;
+
+        workers = new Thread[Math.max(1, numWorkers)];
+        for(int w = 0; w < workers.length; w++){
+            workers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, "batcher-" + w);
+            workers[w].setDaemon(true);
+            workers[w].start();
+        }
+    }
+
+    /**
+     * Queue an example.
+     * @param x Inputs of one example (size of inputs of the predictor).
+     * @return Future completed with the outputs of the example.
+     */
+    public Future<double[]> submit(double[] x){
+        CompletableFuture<double[]> f = new CompletableFuture<>();
+        if(x.length != inSize){
+            f.completeExceptionally(new IllegalArgumentException("Expected " + inSize
+                    + " inputs, got " + x.length));
+            return f;
+        }
+        if(!running){
+            f.completeExceptionally(new IllegalStateException("Batching predictor is shut down"));
+            return f;
+        }
+        long now = System.nanoTime();
+        synchronized(this){
+            if(lastArrival != 0){
+                double gap = now - lastArrival;
+                interArrivalNanos = interArrivalNanos < 0 ? gap
+                        : (1 - ALPHA) * interArrivalNanos + ALPHA * gap;
+            }
+            lastArrival = now;
+        }
+        queue.add(new Request(x, f, now));
+        return f;
+    }
+
+    private void loop(){
+        ExecutionContext ctx = predictor.newContext();
+        double[] in = new double[inSize * maxBatch];
+        DoubleTensor store = new DoubleTensor(outSize * maxBatch);
+        List<Request> batch = new ArrayList<>(maxBatch);
+        try {
+            while(running){
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null)
+                    continue;
+                batch.clear();
+                batch.add(first);
+                int target;
+                long wait;
+                synchronized(this){
+                    target = batchTarget;
+                    wait = waitNanos;
+                }
+                long deadline = first.enqueued + wait;
+                // requests already queued are taken up to maxBatch, waiting
+                // for more only until the target size
+                while(batch.size() < maxBatch){
+                    Request r = queue.poll();
+                    if(r == null){
+                        if(batch.size() >= target)
+                            break;
+                        long left = deadline - System.nanoTime();
+                        if(left <= 0)
+                            break;
+                        r = queue.poll(left, TimeUnit.NANOSECONDS);
+                        if(r == null)
+                            break;
+                    }
+                    batch.add(r);
+                }
+                run(batch, in, store, ctx);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run a batch and complete its futures.
+     */
+    private void run(List<Request> batch, double[] in, DoubleTensor store,
+            ExecutionContext ctx){
+        int n = batch.size();
+        for(int e = 0; e < n; e++){
+            System.arraycopy(batch.get(e).x, 0, in, e * inSize, inSize);
+        }
+        int[] dims = Arrays.copyOf(inDims, inDims.length + 1);
+        dims[inDims.length] = n;
+
+        long t0 = System.nanoTime();
+        DoubleTensor out = null;
+        RuntimeException error = null;
+        try {
+            out = predictor.predict(DoubleTensor.view(in, 0, dims), store, ctx);
+        } catch (RuntimeException e) {
+            error = e;
+        }
+        long t1 = System.nanoTime();
+
+        for(int e = 0; e < n; e++){
+            Request r = batch.get(e);
+            if(out == null){
+                r.future.completeExceptionally(error != null ? error
+                        : new IllegalStateException("Prediction failed"));
+                continue;
+            }
+            double[] y = new double[outSize];
+            for(int i = 0; i < outSize; i++){
+                y[i] = out.getQuick(e * outSize + i);
+            }
+            r.future.complete(y);
+        }
+        record(batch, t1 - t0, t1, out != null);
+    }
+
+    /**
+     * Update statistics and adapt target batch size and wait.
+     */
+    private synchronized void record(List<Request> batch, long runNanos, long end,
+            boolean ok){
+        int n = batch.size();
+        batches++;
+        if(!ok){
+            failed += n;
+            return;
+        }
+        completed += n;
+        for(Request r: batch){
+            latencies[(int) (latencyCount++ % LATENCY_WINDOW)] = end - r.enqueued;
+        }
+        double perEx = runNanos / (double) n;
+        nanosPerExample = nanosPerExample < 0 ? perEx
+                : (1 - ALPHA) * nanosPerExample + ALPHA * perEx;
+
+        if(interArrivalNanos > 0){
+            // b * (gap + perEx) - gap <= budget
+            double budget = targetLatencyNanos / 2.0;
+            int b = (int) ((budget + interArrivalNanos) / (interArrivalNanos + nanosPerExample));
+            batchTarget = Math.max(1, Math.min(maxBatch, b));
+            waitNanos = Math.min(maxWaitNanos, (long) ((batchTarget - 1) * interArrivalNanos));
+        }
+    }
+
+    /**
+     * Stop the workers, queued requests fail.
+     */
+    public void shutdown(){
+        running = false;
+        for(Thread t: workers){
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Request r;
+        while((r = queue.poll()) != null){
+            r.future.completeExceptionally(new IllegalStateException("Batching predictor is shut down"));
+        }
+    }
+
+    /**
+     * Percentile of the latency of the last requests (queue, batch and
+     * forward pass).
+     * @param p Percentile in [0, 100].
+     * @return Latency in microseconds, 0 if no request completed.
+     */
+    public synchronized double getLatencyPercentile(double p){
+        int n = (int) Math.min(latencyCount, LATENCY_WINDOW);
+        if(n == 0)
+            return 0.0;
+        long[] sorted = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        int idx = (int) Math.ceil(p / 100.0 * n) - 1;
+        return sorted[Math.max(0, Math.min(n - 1, idx))] / 1e3;
+    }
+
+    /**
+     * Requests completed per second since creation.
+     * @return Throughput.
+     */
+    public synchronized double getThroughput(){
+        return completed / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Mean number of examples per batch.
+     * @return Mean batch size.
+     */
+    public synchronized double getMeanBatchSize(){
+        return batches == 0 ? 0.0 : (completed + failed) / (double) batches;
+    }
+
+    public synchronized long getCompleted(){
+        return completed;
+    }
+
+    public synchronized long getFailed(){
+        return failed;
+    }
+
+    /**
+     * Current target batch size.
+     * @return Target batch size.
+     */
+    public synchronized int getBatchTarget(){
+        return batchTarget;
+    }
+
+    /**
+     * Current maximum wait of a request for others.
+     * @return Wait in microseconds.
+     */
+    public synchronized double getWaitMicros(){
+        return waitNanos / 1e3;
+    }
+
+    /**
+     * Number of requests waiting.
+     * @return Queue length.
+     */
+    public int getQueueLength(){
+        return queue.size();
+    }
+
+    /**
+     * Size of the inputs of an example.
+     * @return Input size.
+     */
+    public int getInputSize(){
+        return inSize;
+    }
+
+    /**
+     * Size of the outputs of an example.
+     * @return Output size.
+     */
+    public int getOutputSize(){
+        return outSize;
+    }
+
+    private static int product(int[] d){
+        int p = 1;
+        for(int v: d){
+            p *= v;
+        }
+        return p;
+    }
+}
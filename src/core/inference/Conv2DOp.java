@@ -0,0 +1,44 @@
+package core.inference;
+
+import layer.activation.ActivationFunction;
+import layer.weight.ConvFFT;
+import layer.weight.Convolution2DLayer;
+import tensor.DoubleTensor;
+
+/**
+ * 2D convolution followed by an activation, the FFT state lives in the
+ * workspace so that the layer is only read.
+ * @author diego_paez
+ */
+public class Conv2DOp implements InferenceOp {
+
+    /**
+     * Convolutional layer (only its parameters and dims are used).
+     */
+    private final Convolution2DLayer layer;
+
+    /**
+     * Activation applied to the outputs, null if none.
+     */
+    private final ActivationFunction activation;
+
+    public Conv2DOp(Convolution2DLayer layer, ActivationFunction activation) {
+        this.layer = layer;
+        this.activation = activation;
+    }
+
+    @Override
+    public int[] getDimsOfOutputsWOE() {
+        return layer.getDimsOfOutputsWOE();
+    }
+
+    @Override
+    public Object createWorkspace(int maxBatch) {
+        return new ConvFFT();
+    }
+
+    @Override
+    public void forward(DoubleTensor in, DoubleTensor out, Object workspace) {
+        layer.convolve(in, out, (ConvFFT) workspace, activation, true);
+    }
+}
@@ -0,0 +1,77 @@
+package core.inference;
+
+import layer.activation.ActivationFunction;
+import org.jblas.NativeBlas;
+import tensor.DoubleTensor;
+
+/**
+ * Inner product (fully connected) operation: out = act(W^T * in + bias), the
+ * bias and the activation are applied in a single pass after the matrix
+ * multiplication.
+ * @author diego_paez
+ */
+public class DenseOp implements InferenceOp {
+
+    /**
+     * Weights nIn x nOut.
+     */
+    private final DoubleTensor weights;
+
+    /**
+     * Bias nOut.
+     */
+    private final DoubleTensor bias;
+
+    /**
+     * Number of inputs (all dims except examples).
+     */
+    private final int nIn;
+
+    /**
+     * Number of outputs.
+     */
+    private final int nOut;
+
+    /**
+     * Activation applied to the outputs, null if none.
+     */
+    private final ActivationFunction activation;
+
+    public DenseOp(DoubleTensor weights, DoubleTensor bias, int nIn, int nOut,
+            ActivationFunction activation) {
+        this.weights = weights;
+        this.bias = bias;
+        this.nIn = nIn;
+        this.nOut = nOut;
+        this.activation = activation;
+    }
+
+    @Override
+    public int[] getDimsOfOutputsWOE() {
+        return new int[]{nOut};
+    }
+
+    @Override
+    public Object createWorkspace(int maxBatch) {
+        return null;
+    }
+
+    @Override
+    public void forward(DoubleTensor in, DoubleTensor out, Object workspace) {
+        final int n = in.lastDim();
+        double[] o = out.data.getData();
+        final int oo = out.data.getOffset();
+
+        NativeBlas.dgemm('T', 'N', nOut, n, nIn, 1.0, weights.data.getData(),
+                weights.data.getOffset(), nIn, in.data.getData(), in.data.getOffset(),
+                nIn, 0.0, o, oo, nOut);
+
+        double v;
+        for(int e = 0, k = oo; e < n; e++){
+            for(int j = 0; j < nOut; j++, k++){
+                v = o[k] + bias.getQuick(j);
+                o[k] = activation == null ? v : activation.forward(v, true);
+            }
+        }
+    }
+}
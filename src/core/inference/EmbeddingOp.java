@@ -0,0 +1,35 @@
+package core.inference;
+
+import layer.weight.EmbeddingLayer;
+import tensor.DoubleTensor;
+
+/**
+ * Embedding lookup, the layer is only read.
+ * @author diego_paez
+ */
+public class EmbeddingOp implements InferenceOp {
+
+    /**
+     * Embedding layer (only its parameters and dims are used).
+     */
+    private final EmbeddingLayer layer;
+
+    public EmbeddingOp(EmbeddingLayer layer) {
+        this.layer = layer;
+    }
+
+    @Override
+    public int[] getDimsOfOutputsWOE() {
+        return layer.getDimsOfOutputsWOE();
+    }
+
+    @Override
+    public Object createWorkspace(int maxBatch) {
+        return null;
+    }
+
+    @Override
+    public void forward(DoubleTensor in, DoubleTensor out, Object workspace) {
+        layer.embed(in, out);
+    }
+}
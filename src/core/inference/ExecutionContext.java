@@ -0,0 +1,38 @@
+package core.inference;
+
+import tensor.DoubleTensor;
+
+/**
+ * Everything a predictor writes while running: the buffers where intermediate
+ * results alternate and the workspace of every operation. A context is used
+ * by one thread at a time, predictors keep a pool of them so that several
+ * threads can predict at once sharing the parameters.
+ * @author diego_paez
+ */
+public class ExecutionContext {
+
+    /**
+     * Buffers where intermediate results alternate.
+     */
+    final DoubleTensor[] buffers;
+
+    /**
+     * Workspace of every operation.
+     */
+    final Object[] workspaces;
+
+    /**
+     * Create context for given operations.
+     * @param ops Operations of the predictor.
+     * @param bufferSize Size of each buffer.
+     * @param maxBatch Maximum number of examples run at once.
+     */
+    ExecutionContext(InferenceOp[] ops, int bufferSize, int maxBatch) {
+        buffers = new DoubleTensor[]{new DoubleTensor(bufferSize),
+            new DoubleTensor(bufferSize)};
+        workspaces = new Object[ops.length];
+        for(int i = 0; i < ops.length; i++){
+            workspaces[i] = ops[i].createWorkspace(maxBatch);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package core.inference;
+
+import tensor.DoubleTensor;
+
+/**
+ * Operation of a net compiled for inference (see
+ * NeuralNetModel.compileForInference). Contrary to a layer an operation has no
+ * mutable state: parameters are only read and everything needed while running
+ * (scratch arrays, fft plans...) lives in a workspace created by the operation
+ * itself, thus a single operation can be run by several workspaces.
+ * @author diego_paez
+ */
+public interface InferenceOp {
+
+    /**
+     * Dimensions of outputs not counting examples.
+     * @return Dims of outputs.
+     */
+    public int[] getDimsOfOutputsWOE();
+
+    /**
+     * Create the state needed to run this operation on up to maxBatch
+     * examples.
+     * @param maxBatch Maximum number of examples per call to forward.
+     * @return Workspace to pass to forward, null if none is needed.
+     */
+    public Object createWorkspace(int maxBatch);
+
+    /**
+     * Forward propagate a batch of examples.
+     * @param in Inputs, last dim = examples.
+     * @param out Where to store outputs, already sized (dims and position).
+     * @param workspace Workspace created by this operation.
+     */
+    public void forward(DoubleTensor in, DoubleTensor out, Object workspace);
+}
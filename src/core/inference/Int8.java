@@ -0,0 +1,59 @@
+package core.inference;
+
+/**
+ * Symmetric int8 quantization shared by quantized operations: a real value v
+ * is stored as round(v / scale) clamped to [-127, 127].
+ * @author diego_paez
+ */
+final class Int8 {
+
+    private Int8() {
+    }
+
+    /**
+     * Scale so that [-maxAbs, maxAbs] maps to [-127, 127].
+     * @param maxAbs Maximum absolute value.
+     * @return Scale, 1 if maxAbs is 0.
+     */
+    static double scale(double maxAbs){
+        return maxAbs > 0 ? maxAbs / 127.0 : 1.0;
+    }
+
+    /**
+     * Quantize channels of consecutive values, each with its own scale.
+     * @param w Values.
+     * @param off Position of first value.
+     * @param chLen Values per channel.
+     * @param nCh Number of channels.
+     * @param q Where to store the quantized values (chLen * nCh).
+     * @return Scale of each channel.
+     */
+    static double[] quantizeChannels(double[] w, int off, int chLen, int nCh, byte[] q){
+        double[] scales = new double[nCh];
+        for(int c = 0; c < nCh; c++){
+            double max = 0.0;
+            for(int i = off + c * chLen, end = i + chLen; i < end; i++){
+                max = Math.max(max, Math.abs(w[i]));
+            }
+            scales[c] = scale(max);
+            quantize(w, off + c * chLen, chLen, 1.0 / scales[c], q, c * chLen);
+        }
+        return scales;
+    }
+
+    /**
+     * Quantize values with a single scale.
+     * @param x Values.
+     * @param off Position of first value.
+     * @param len Number of values.
+     * @param invScale 1 / scale.
+     * @param q Where to store the quantized values.
+     * @param qOff Position in q of first value.
+     */
+    static void quantize(double[] x, int off, int len, double invScale, byte[] q, int qOff){
+        for(int i = 0; i < len; i++){
+            long v = Math.round(x[off + i] * invScale);
+            q[qOff + i] = (byte) (v > 127 ? 127 : (v < -127 ? -127 : v));
+        }
+    }
+}
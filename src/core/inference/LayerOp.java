@@ -0,0 +1,46 @@
+package core.inference;
+
+import layer.Layer;
+import tensor.DoubleTensor;
+
+/**
+ * Fallback operation for layers without a dedicated inference kernel: runs the
+ * forward propagation of the layer as test data and copies its output. Since
+ * the layer keeps state, calls are serialized on the layer.
+ * @author diego_paez
+ */
+public class LayerOp implements InferenceOp {
+
+    /**
+     * Layer to run.
+     */
+    private final Layer layer;
+
+    public LayerOp(Layer layer) {
+        this.layer = layer;
+    }
+
+    @Override
+    public int[] getDimsOfOutputsWOE() {
+        return layer.getDimsOfOutputsWOE();
+    }
+
+    @Override
+    public Object createWorkspace(int maxBatch) {
+        return null;
+    }
+
+    @Override
+    public void forward(DoubleTensor in, DoubleTensor out, Object workspace) {
+        synchronized(layer){
+            layer.initSpaceInMemory(in.lastDim());
+            DoubleTensor res = layer.fProp(in, true);
+            final int sz = out.size();
+            double[] o = out.data.getData();
+            int oo = out.data.getOffset();
+            for(int i = 0; i < sz; i++){
+                o[oo + i] = res.getQuick(i);
+            }
+        }
+    }
+}
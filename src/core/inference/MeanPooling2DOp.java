@@ -0,0 +1,35 @@
+package core.inference;
+
+import layer.subsampling.MeanPooling2DLayer;
+import tensor.DoubleTensor;
+
+/**
+ * Mean pooling in 2D, the layer is only read.
+ * @author diego_paez
+ */
+public class MeanPooling2DOp implements InferenceOp {
+
+    /**
+     * Pooling layer (only its dims are used).
+     */
+    private final MeanPooling2DLayer layer;
+
+    public MeanPooling2DOp(MeanPooling2DLayer layer) {
+        this.layer = layer;
+    }
+
+    @Override
+    public int[] getDimsOfOutputsWOE() {
+        return layer.getDimsOfOutputsWOE();
+    }
+
+    @Override
+    public Object createWorkspace(int maxBatch) {
+        return null;
+    }
+
+    @Override
+    public void forward(DoubleTensor in, DoubleTensor out, Object workspace) {
+        layer.pool(in, out);
+    }
+}
@@ -0,0 +1,226 @@
+package core.inference;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.apache.log4j.Logger;
+import tensor.DoubleTensor;
+
+/**
+ * Net compiled for inference (see NeuralNetModel.compileForInference). The
+ * plan (operations, dims of every intermediate result and buffers for the
+ * maximum batch size) is fixed when compiling: no gradients are stored,
+ * nothing is allocated per call except the views of the inputs, and
+ * intermediate results alternate between two buffers.
+ *
+ * Parameters are not copied, operations read them from the model, thus
+ * further training of the model is seen by the predictor.
+ *
+ * Predict is reentrant: operations only read the parameters and everything
+ * written during a call (buffers, workspaces of operations) lives in an
+ * ExecutionContext taken from a pool and given back at the end of the call.
+ * Thus N threads can predict at once with a single copy of the parameters
+ * and at most N contexts are ever created. Layers without a dedicated
+ * operation (see LayerOp) are the exception, calls to them are serialized.
+ * @author diego_paez
+ */
+public class Predictor {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(Predictor.class);
+
+    /**
+     * Operations to run in order.
+     */
+    private final InferenceOp[] ops;
+
+    /**
+     * Dims of inputs (index 0) and of the outputs of every operation, without
+     * examples.
+     */
+    private final int[][] dims;
+
+    /**
+     * Size of inputs (index 0) and of the outputs of every operation, per
+     * example.
+     */
+    private final int[] sizes;
+
+    /**
+     * Maximum number of examples run at once, bigger inputs are run in
+     * batches of this size.
+     */
+    private final int maxBatch;
+
+    /**
+     * Size of each of the buffers where intermediate results alternate.
+     */
+    private final int bufferSize;
+
+    /**
+     * Contexts not in use.
+     */
+    private final ConcurrentLinkedQueue<ExecutionContext> pool;
+
+    /**
+     * Compile operations.
+     * @param ops Operations to run in order.
+     * @param inputDims Dims of inputs without examples.
+     * @param maxBatch Maximum number of examples run at once.
+     */
+    public Predictor(InferenceOp[] ops, int[] inputDims, int maxBatch) {
+        this.ops = ops;
+        this.maxBatch = maxBatch;
+        this.dims = new int[ops.length + 1][];
+        this.sizes = new int[ops.length + 1];
+
+        dims[0] = inputDims.clone();
+        for(int i = 0; i < ops.length; i++){
+            dims[i + 1] = ops[i].getDimsOfOutputsWOE().clone();
+        }
+        int maxInter = 0;
+        for(int i = 0; i <= ops.length; i++){
+            sizes[i] = 1;
+            for(int d: dims[i]){
+                sizes[i] *= d;
+            }
+            // last output goes directly to the result
+            if(i > 0 && i < ops.length)
+                maxInter = Math.max(maxInter, sizes[i]);
+        }
+
+        bufferSize = maxInter * maxBatch;
+        pool = new ConcurrentLinkedQueue<>();
+        pool.add(newContext());
+    }
+
+    /**
+     * Create a new execution context for this predictor. Contexts are created
+     * and pooled by predict, this is only needed to manage them explicitly.
+     * @return Execution context.
+     */
+    public final ExecutionContext newContext(){
+        return new ExecutionContext(ops, bufferSize, maxBatch);
+    }
+
+    /**
+     * Forward propagate X.
+     * @param X Inputs, last dim = examples.
+     * @return New tensor with outputs, last dim = examples.
+     */
+    public DoubleTensor predict(DoubleTensor X){
+        DoubleTensor store = new DoubleTensor(withExamples(dims[ops.length], X.lastDim()));
+        store.setPosToLast();
+        return predict(X, store);
+    }
+
+    /**
+     * Forward propagate X storing the outputs in given tensor.
+     * @param X Inputs, last dim = examples.
+     * @param store Where to store outputs, must have room for all examples.
+     * @return store.
+     */
+    public DoubleTensor predict(DoubleTensor X, DoubleTensor store){
+        ExecutionContext ctx = pool.poll();
+        if(ctx == null)
+            ctx = newContext();
+        try{
+            return predict(X, store, ctx);
+        } finally{
+            pool.offer(ctx);
+        }
+    }
+
+    /**
+     * Forward propagate X storing the outputs in given tensor, using given
+     * context (which must not be used by another thread at the same time).
+     * @param X Inputs, last dim = examples.
+     * @param store Where to store outputs, must have room for all examples.
+     * @param ctx Execution context created by newContext.
+     * @return store.
+     */
+    public DoubleTensor predict(DoubleTensor X, DoubleTensor store, ExecutionContext ctx){
+        final int N = X.lastDim();
+        if(X.size() != sizes[0] * N){
+            LOG.error("Expected " + sizes[0] + " inputs per example, got " + X.size() / N);
+            return null;
+        }
+        store.resize(withExamples(dims[ops.length], N));
+        store.setPos(sizes[ops.length] * N);
+
+        for(int from = 0; from < N; from += maxBatch){
+            int n = Math.min(maxBatch, N - from);
+            DoubleTensor in = X.sliceLastDim(from, from + n);
+            in.dims = withExamples(dims[0], n);
+            DoubleTensor res = store.sliceLastDim(from, from + n);
+            run(in, res, n, ctx);
+        }
+        return store;
+    }
+
+    /**
+     * Run all operations over a batch of at most maxBatch examples.
+     * @param in Inputs.
+     * @param res Where to store outputs.
+     * @param n Number of examples.
+     * @param ctx Execution context.
+     */
+    private void run(DoubleTensor in, DoubleTensor res, int n, ExecutionContext ctx){
+        if(ops.length == 0){
+            for(int i = 0; i < res.size(); i++){
+                res.setQuick(i, in.getQuick(i));
+            }
+            return;
+        }
+
+        DoubleTensor cur = in, out;
+        for(int i = 0; i < ops.length; i++){
+            if(i == ops.length - 1){
+                out = res;
+            } else{
+                out = ctx.buffers[i & 1];
+                out.resize(withExamples(dims[i + 1], n));
+                out.setPos(sizes[i + 1] * n);
+            }
+            ops[i].forward(cur, out, ctx.workspaces[i]);
+            cur = out;
+        }
+    }
+
+    /**
+     * Append number of examples to dims.
+     * @param d Dims without examples.
+     * @param n Number of examples.
+     * @return Dims with examples.
+     */
+    private static int[] withExamples(int[] d, int n){
+        int[] r = new int[d.length + 1];
+        System.arraycopy(d, 0, r, 0, d.length);
+        r[d.length] = n;
+        return r;
+    }
+
+    /**
+     * Get dims of inputs without examples.
+     * @return Dims of inputs.
+     */
+    public int[] getDimsOfInputsWOE(){
+        return dims[0].clone();
+    }
+
+    /**
+     * Get dims of outputs without examples.
+     * @return Dims of outputs.
+     */
+    public int[] getDimsOfOutputsWOE(){
+        return dims[ops.length].clone();
+    }
+
+    /**
+     * Get maximum number of examples run at once.
+     * @return Maximum batch size.
+     */
+    public int getMaxBatch(){
+        return maxBatch;
+    }
+}
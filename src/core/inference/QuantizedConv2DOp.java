@@ -0,0 +1,122 @@
+package core.inference;
+
+import layer.activation.ActivationFunction;
+import tensor.DoubleTensor;
+
+/**
+ * 2D cross correlation (as Convolution2DLayer, no padding) with int8 kernels
+ * and inputs: each kernel is quantized with its own scale and inputs with a
+ * single scale found when calibrating (see NeuralNetModel.compileQuantized).
+ * An example is quantized once into the workspace, every output accumulates
+ * its products in int32 and is dequantized adding bias and applying the
+ * activation.
+ *
+ * Kernels are copied when quantizing, later changes to the layer are not seen.
+ * @author diego_paez
+ */
+public class QuantizedConv2DOp implements InferenceOp {
+
+    /**
+     * Quantized kernels kW, kH, nC, nK (kernel f is contiguous).
+     */
+    private final byte[] kernels;
+
+    /**
+     * Scale of each kernel times scale of inputs.
+     */
+    private final double[] scales;
+
+    /**
+     * Bias nK.
+     */
+    private final DoubleTensor bias;
+
+    private final int nC, iW, iH, kW, kH, sW, sH, nK, oW, oH;
+
+    /**
+     * 1 / scale of inputs.
+     */
+    private final double invInScale;
+
+    /**
+     * Activation applied to the outputs, null if none.
+     */
+    private final ActivationFunction activation;
+
+    /**
+     * Quantize kernels.
+     * @param weights Kernels kW, kH, nC, nK.
+     * @param bias Bias nK.
+     * @param dims nC, iW, iH, kW, kH, sW, sH, nK, oW, oH.
+     * @param activation Activation applied to outputs, null if none.
+     * @param inScale Scale of inputs.
+     */
+    public QuantizedConv2DOp(DoubleTensor weights, DoubleTensor bias, int[] dims,
+            ActivationFunction activation, double inScale) {
+        nC = dims[0]; iW = dims[1]; iH = dims[2];
+        kW = dims[3]; kH = dims[4]; sW = dims[5]; sH = dims[6];
+        nK = dims[7]; oW = dims[8]; oH = dims[9];
+        this.bias = bias;
+        this.activation = activation;
+        this.invInScale = 1.0 / inScale;
+        int kLen = kW * kH * nC;
+        this.kernels = new byte[kLen * nK];
+        this.scales = Int8.quantizeChannels(weights.data.getData(), weights.data.getOffset(),
+                kLen, nK, kernels);
+        for(int f = 0; f < nK; f++){
+            scales[f] *= inScale;
+        }
+    }
+
+    @Override
+    public int[] getDimsOfOutputsWOE() {
+        return new int[]{oW, oH, nK};
+    }
+
+    @Override
+    public Object createWorkspace(int maxBatch) {
+        return new byte[iW * iH * nC];
+    }
+
+    @Override
+    public void forward(DoubleTensor in, DoubleTensor out, Object workspace) {
+        final int n = in.lastDim();
+        final int inLen = iW * iH * nC;
+        final byte[] xq = (byte[]) workspace;
+        final double[] x = in.data.getData();
+        final int xo = in.data.getOffset();
+        final double[] o = out.data.getData();
+        int io = out.data.getOffset();
+
+        for(int e = 0; e < n; e++){
+            Int8.quantize(x, xo + e * inLen, inLen, invInScale, xq, 0);
+            for(int f = 0; f < nK; f++){
+                final int kf = f * kW * kH * nC;
+                for(int i = 0; i < oH; i++){
+                    for(int j = 0; j < oW; j++, io++){
+                        int acc = 0;
+                        for(int c = 0; c < nC; c++){
+                            for(int k = 0; k < kH; k++){
+                                int xi = j * sW + iW * (i * sH + k + iH * c);
+                                int ki = kf + kW * (k + kH * c);
+                                for(int l = 0; l < kW; l++){
+                                    acc += kernels[ki + l] * xq[xi + l];
+                                }
+                            }
+                        }
+                        double v = acc * scales[f] + bias.getQuick(f);
+                        o[io] = activation == null ? v : activation.forward(v, true);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Bytes used by the quantized kernels.
+     * @return Size of kernels.
+     */
+    public long getWeightBytes(){
+        return kernels.length;
+    }
+}
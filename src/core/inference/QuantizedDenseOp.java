@@ -0,0 +1,109 @@
+package core.inference;
+
+import layer.activation.ActivationFunction;
+import tensor.DoubleTensor;
+
+/**
+ * Inner product with int8 weights and inputs: weights are quantized once with
+ * a scale per output (column of weights), inputs with a single scale found
+ * when calibrating (see NeuralNetModel.compileQuantized). Products are
+ * accumulated in int32 and dequantized at the end, adding bias and applying
+ * the activation, thus the outputs are doubles as for any other operation.
+ *
+ * Weights are copied when quantizing, later changes to the layer are not seen.
+ * @author diego_paez
+ */
+public class QuantizedDenseOp implements InferenceOp {
+
+    /**
+     * Quantized weights, column j (inputs of output j) is contiguous.
+     */
+    private final byte[] weights;
+
+    /**
+     * Scale of weights of each output times scale of inputs.
+     */
+    private final double[] scales;
+
+    /**
+     * Bias nOut.
+     */
+    private final DoubleTensor bias;
+
+    private final int nIn;
+    private final int nOut;
+
+    /**
+     * 1 / scale of inputs.
+     */
+    private final double invInScale;
+
+    /**
+     * Activation applied to the outputs, null if none.
+     */
+    private final ActivationFunction activation;
+
+    /**
+     * Quantize weights.
+     * @param weights Weights nIn x nOut.
+     * @param bias Bias nOut.
+     * @param nIn Number of inputs.
+     * @param nOut Number of outputs.
+     * @param activation Activation applied to outputs, null if none.
+     * @param inScale Scale of inputs.
+     */
+    public QuantizedDenseOp(DoubleTensor weights, DoubleTensor bias, int nIn, int nOut,
+            ActivationFunction activation, double inScale) {
+        this.nIn = nIn;
+        this.nOut = nOut;
+        this.bias = bias;
+        this.activation = activation;
+        this.invInScale = 1.0 / inScale;
+        this.weights = new byte[nIn * nOut];
+        this.scales = Int8.quantizeChannels(weights.data.getData(), weights.data.getOffset(),
+                nIn, nOut, this.weights);
+        for(int j = 0; j < nOut; j++){
+            scales[j] *= inScale;
+        }
+    }
+
+    @Override
+    public int[] getDimsOfOutputsWOE() {
+        return new int[]{nOut};
+    }
+
+    @Override
+    public Object createWorkspace(int maxBatch) {
+        return new byte[nIn];
+    }
+
+    @Override
+    public void forward(DoubleTensor in, DoubleTensor out, Object workspace) {
+        final int n = in.lastDim();
+        final byte[] xq = (byte[]) workspace;
+        final double[] x = in.data.getData();
+        final int xo = in.data.getOffset();
+        final double[] o = out.data.getData();
+        final int oo = out.data.getOffset();
+
+        for(int e = 0; e < n; e++){
+            Int8.quantize(x, xo + e * nIn, nIn, invInScale, xq, 0);
+            for(int j = 0, w = 0; j < nOut; j++, w += nIn){
+                int acc = 0;
+                for(int i = 0; i < nIn; i++){
+                    acc += weights[w + i] * xq[i];
+                }
+                double v = acc * scales[j] + bias.getQuick(j);
+                o[oo + e * nOut + j] = activation == null ? v : activation.forward(v, true);
+            }
+        }
+    }
+
+    /**
+     * Bytes used by the quantized weights.
+     * @return Size of weights.
+     */
+    public long getWeightBytes(){
+        return weights.length;
+    }
+}
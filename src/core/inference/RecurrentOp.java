@@ -0,0 +1,37 @@
+package core.inference;
+
+import layer.recurrent.RecurrentLayer;
+import tensor.DoubleTensor;
+
+/**
+ * Recurrent layer (LSTM, GRU) for inference: only the current hidden state is
+ * kept, the scratch arrays live in the workspace so that the layer is only
+ * read.
+ * @author diego_paez
+ */
+public class RecurrentOp implements InferenceOp {
+
+    /**
+     * Recurrent layer (only its parameters and dims are used).
+     */
+    private final RecurrentLayer layer;
+
+    public RecurrentOp(RecurrentLayer layer) {
+        this.layer = layer;
+    }
+
+    @Override
+    public int[] getDimsOfOutputsWOE() {
+        return layer.getDimsOfOutputsWOE();
+    }
+
+    @Override
+    public Object createWorkspace(int maxBatch) {
+        return layer.createInferenceWorkspace(maxBatch);
+    }
+
+    @Override
+    public void forward(DoubleTensor in, DoubleTensor out, Object workspace) {
+        layer.infer(in, out, (double[][]) workspace);
+    }
+}
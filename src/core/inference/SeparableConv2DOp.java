@@ -0,0 +1,44 @@
+package core.inference;
+
+import layer.activation.ActivationFunction;
+import layer.weight.SeparableConvolution2DLayer;
+import tensor.DoubleTensor;
+
+/**
+ * Depthwise separable 2D convolution followed by an activation, the scratch
+ * arrays live in the workspace so that the layer is only read.
+ * @author diego_paez
+ */
+public class SeparableConv2DOp implements InferenceOp {
+
+    /**
+     * Separable convolutional layer (only its parameters and dims are used).
+     */
+    private final SeparableConvolution2DLayer layer;
+
+    /**
+     * Activation applied to the outputs, null if none.
+     */
+    private final ActivationFunction activation;
+
+    public SeparableConv2DOp(SeparableConvolution2DLayer layer, ActivationFunction activation) {
+        this.layer = layer;
+        this.activation = activation;
+    }
+
+    @Override
+    public int[] getDimsOfOutputsWOE() {
+        return layer.getDimsOfOutputsWOE();
+    }
+
+    @Override
+    public Object createWorkspace(int maxBatch) {
+        return layer.createForwardWorkspace(maxBatch);
+    }
+
+    @Override
+    public void forward(DoubleTensor in, DoubleTensor out, Object workspace) {
+        double[][] ws = (double[][]) workspace;
+        layer.separable(in, out, ws[0], ws[1], ws[2], activation, true);
+    }
+}
@@ -0,0 +1,65 @@
+package core.inference;
+
+import tensor.DoubleTensor;
+
+/**
+ * Softmax over all dims except examples, max of each example is subtracted
+ * before exponentiating (see SoftMaxLayer). Runs in place when in and out are
+ * the same tensor.
+ * @author diego_paez
+ */
+public class SoftMaxOp implements InferenceOp {
+
+    /**
+     * Dimensions of inputs = outputs, not counting examples.
+     */
+    private final int[] dims;
+
+    /**
+     * Number of inputs per example.
+     */
+    private final int nI1D;
+
+    public SoftMaxOp(int[] dims) {
+        this.dims = dims;
+        int len = 1;
+        for(int d: dims){
+            len *= d;
+        }
+        this.nI1D = len;
+    }
+
+    @Override
+    public int[] getDimsOfOutputsWOE() {
+        return dims;
+    }
+
+    @Override
+    public Object createWorkspace(int maxBatch) {
+        return null;
+    }
+
+    @Override
+    public void forward(DoubleTensor in, DoubleTensor out, Object workspace) {
+        final int n = in.lastDim();
+        double[] a = in.data.getData(), o = out.data.getData();
+        final int ao = in.data.getOffset(), oo = out.data.getOffset();
+        double max, sum;
+
+        for(int e = 0; e < n; e++){
+            int ab = ao + e * nI1D, ob = oo + e * nI1D;
+            max = -Double.MAX_VALUE;
+            for(int i = 0; i < nI1D; i++){
+                max = Math.max(max, a[ab + i]);
+            }
+            sum = 0.0;
+            for(int i = 0; i < nI1D; i++){
+                o[ob + i] = Math.exp(a[ab + i] - max);
+                sum += o[ob + i];
+            }
+            for(int i = 0; i < nI1D; i++){
+                o[ob + i] /= sum;
+            }
+        }
+    }
+}
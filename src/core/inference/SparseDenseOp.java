@@ -0,0 +1,119 @@
+package core.inference;
+
+import layer.activation.ActivationFunction;
+import tensor.DoubleTensor;
+
+/**
+ * Inner product with pruned (mostly zero) weights stored in compressed sparse
+ * row format: row j holds the non zero weights of output j and the index of
+ * their inputs, thus the cost is proportional to the number of non zero
+ * weights instead of nIn * nOut. Bias and activation are applied as each
+ * output is computed.
+ *
+ * Weights are copied when converting, later changes to the layer are not
+ * seen.
+ * @author diego_paez
+ */
+public class SparseDenseOp implements InferenceOp {
+
+    /**
+     * Start of each row in cols and vals (nOut + 1 entries).
+     */
+    private final int[] rowPtr;
+
+    /**
+     * Input index of each non zero weight.
+     */
+    private final int[] cols;
+
+    /**
+     * Non zero weights.
+     */
+    private final double[] vals;
+
+    /**
+     * Bias nOut.
+     */
+    private final DoubleTensor bias;
+
+    private final int nIn;
+    private final int nOut;
+
+    /**
+     * Activation applied to the outputs, null if none.
+     */
+    private final ActivationFunction activation;
+
+    /**
+     * Convert weights.
+     * @param weights Weights nIn x nOut.
+     * @param bias Bias nOut.
+     * @param nIn Number of inputs.
+     * @param nOut Number of outputs.
+     * @param activation Activation applied to outputs, null if none.
+     */
+    public SparseDenseOp(DoubleTensor weights, DoubleTensor bias, int nIn, int nOut,
+            ActivationFunction activation) {
+        this.nIn = nIn;
+        this.nOut = nOut;
+        this.bias = bias;
+        this.activation = activation;
+
+        double[] w = weights.data.getData();
+        int off = weights.data.getOffset();
+        int nnz = 0;
+        for(int i = 0; i < nIn * nOut; i++){
+            if(w[off + i] != 0.0)
+                nnz++;
+        }
+        rowPtr = new int[nOut + 1];
+        cols = new int[nnz];
+        vals = new double[nnz];
+        for(int j = 0, k = 0; j < nOut; j++){
+            rowPtr[j] = k;
+            for(int i = 0, p = off + j * nIn; i < nIn; i++, p++){
+                if(w[p] != 0.0){
+                    cols[k] = i;
+                    vals[k++] = w[p];
+                }
+            }
+        }
+        rowPtr[nOut] = nnz;
+    }
+
+    @Override
+    public int[] getDimsOfOutputsWOE() {
+        return new int[]{nOut};
+    }
+
+    @Override
+    public Object createWorkspace(int maxBatch) {
+        return null;
+    }
+
+    @Override
+    public void forward(DoubleTensor in, DoubleTensor out, Object workspace) {
+        final int n = in.lastDim();
+        final double[] x = in.data.getData();
+        final double[] o = out.data.getData();
+        int io = out.data.getOffset();
+
+        for(int e = 0, xo = in.data.getOffset(); e < n; e++, xo += nIn){
+            for(int j = 0; j < nOut; j++, io++){
+                double v = bias.getQuick(j);
+                for(int k = rowPtr[j], end = rowPtr[j + 1]; k < end; k++){
+                    v += vals[k] * x[xo + cols[k]];
+                }
+                o[io] = activation == null ? v : activation.forward(v, true);
+            }
+        }
+    }
+
+    /**
+     * Proportion of weights that are zero.
+     * @return Sparsity.
+     */
+    public double getSparsity(){
+        return 1.0 - vals.length / ((double) nIn * nOut);
+    }
+}
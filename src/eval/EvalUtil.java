@@ -1,6 +1,7 @@
 package eval;
 
 import core.NeuralNetModel;
+import core.inference.Predictor;
 import java.util.Arrays;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.log4j.Logger;
@@ -160,6 +161,54 @@ public class EvalUtil {
         return numMissClas;
     }
 
+    /**
+     * Evaluates the number of missclassified examples of a compiled predictor
+     * (see NeuralNetModel.compileForInference and compileQuantized), in
+     * batches of given size.
+     *
+     * @param predictor Compiled predictor.
+     * @param X Set of independent variables.
+     * @param y Target variable.
+     * @param batchSize Size of each batch to evaluate
+     * @return Amount of examples which were missclassified.
+     */
+    public static int batchEvalMissClassified(Predictor predictor, DoubleTensor X,
+            DoubleTensor y, int batchSize){
+        int numMissClas = 0;
+        int E = X.lastDim();
+        for(int from = 0; from < E; from += batchSize){
+            int to = Math.min(E, from + batchSize);
+            double[] classified = EvalUtil.classify(predictor.predict(X.sliceLastDim(from, to)));
+            double[] actual = new double[to - from];
+            for(int e = from; e < to; e++){
+                actual[e - from] = y.getQuick(e);
+            }
+            numMissClas += EvalUtil.missClassified(classified, actual);
+        }
+        return numMissClas;
+    }
+
+    /**
+     * Compare the accuracy of two predictors over a held out set (e.g., a
+     * quantized predictor against the one with doubles) and log both.
+     *
+     * @param reference Reference predictor.
+     * @param other Predictor to compare.
+     * @param X Set of independent variables.
+     * @param y Target variable.
+     * @param batchSize Size of each batch to evaluate
+     * @return Accuracy of other minus accuracy of reference.
+     */
+    public static double accuracyDelta(Predictor reference, Predictor other,
+            DoubleTensor X, DoubleTensor y, int batchSize){
+        double E = X.lastDim();
+        double accRef = 1.0 - batchEvalMissClassified(reference, X, y, batchSize) / E;
+        double accOther = 1.0 - batchEvalMissClassified(other, X, y, batchSize) / E;
+        LOG.info(String.format("Accuracy %.4f vs reference %.4f (delta %+.4f)",
+                accOther, accRef, accOther - accRef));
+        return accOther - accRef;
+    }
+
     /**
      * Calculates the area under ROC curve for the predictions of a neural net
      * in which there are only 2 possible classes. The method takes in the
@@ -0,0 +1,321 @@
+package io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import layer.Layer;
+import optim.sgd.update.SGDUpdate;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes checkpoints on a background thread so that training does not wait
+ * for the disk. submit copies the parameters (and the state of the optimizer)
+ * into one of two snapshot buffers and returns, the writer thread stores the
+ * snapshot while training goes on filling the other buffer. submit only blocks
+ * when both buffers are still pending, that is when checkpoints are requested
+ * faster than the disk can write them.
+ *
+ * A snapshot is written to file + ".tmp", forced to disk and then atomically
+ * renamed to file, so file always holds a complete checkpoint. With retention
+ * N > 1 the previous checkpoints are kept as file.1 (the newest) to
+ * file.(N-1), older ones are deleted.
+ *
+ * Snapshots are stored as checkpoints (see ModelCheckpoint) when the state of
+ * the optimizer is included, otherwise as plain big endian doubles (the format
+ * of SGDOptim.storeWeights). Both are read by NeuralNetModel.loadWeights.
+ * @author diego_paez
+ */
+public class AsyncCheckpointWriter {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(AsyncCheckpointWriter.class);
+
+    /**
+     * Size of the buffer used to write plain weights.
+     */
+    private static final int WRITE_CHUNK = 1 << 20;
+
+    /**
+     * Snapshot of parameters and optimizer state.
+     */
+    private static class Snapshot {
+        double[] theta;
+        double[][] state;
+        String optimizer;
+        double stepSize;
+        long iteration;
+        boolean withState;
+        boolean last;
+    }
+
+    private final String file;
+    private final int keep;
+    private final List<Layer> layers;
+
+    /**
+     * Snapshot buffers ready to be filled and snapshots waiting to be written.
+     */
+    private final BlockingQueue<Snapshot> free, pending;
+
+    private final Thread thread;
+
+    /**
+     * Number of snapshots submitted and written (or failed).
+     */
+    private long submitted, written;
+
+    /**
+     * Total time spent writing, in nanoseconds.
+     */
+    private long writeNanos;
+
+    private IOException lastError;
+
+    private boolean closed;
+
+    /**
+     * Create writer and start its thread.
+     * @param file File of the latest checkpoint.
+     * @param keep Number of checkpoints kept (at least 1).
+     * @param layers Layers stored in checkpoints, can be null.
+     */
+    public AsyncCheckpointWriter(String file, int keep, List<Layer> layers) {
+        this.file = file;
+        this.keep = Math.max(1, keep);
+        this.layers = layers;
+        free = new ArrayBlockingQueue<>(2);
+        pending = new ArrayBlockingQueue<>(3);
+        free.add(new Snapshot());
+        free.add(new Snapshot());
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "checkpoint-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Create writer of plain parameters.
+     * @param file File of the latest checkpoint.
+     * @param keep Number of checkpoints kept (at least 1).
+     */
+    public AsyncCheckpointWriter(String file, int keep) {
+        this(file, keep, null);
+    }
+
+    /**
+     * Take a snapshot and queue it to be written. The arrays are copied, they
+     * can be modified as soon as this method returns. If the writer thread
+     * died the snapshot is dropped instead of waiting for a buffer.
+     * @param theta Parameters.
+     * @param updater Optimizer whose state is stored, null to store only the
+     * parameters.
+     */
+    public void submit(double[] theta, SGDUpdate updater){
+        if(closed){
+            LOG.error("Checkpoint writer is closed, snapshot not written");
+            return;
+        }
+        Snapshot s = null;
+        try {
+            while(s == null){
+                s = free.poll(1, TimeUnit.SECONDS);
+                if(s == null && !thread.isAlive()){
+                    LOG.error("Checkpoint writer thread died, snapshot not written");
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted while waiting for a snapshot buffer");
+            return;
+        }
+        s.theta = copy(theta, s.theta);
+        s.withState = updater != null;
+        if(updater != null){
+            double[][] state = updater.getState();
+            if(s.state == null || s.state.length != state.length)
+                s.state = new double[state.length][];
+            for(int i = 0; i < state.length; i++){
+                s.state[i] = copy(state[i], s.state[i]);
+            }
+            s.optimizer = updater.getClass().getName();
+            s.stepSize = updater.stepSize;
+            s.iteration = updater.getIteration();
+        }
+        synchronized(this){
+            submitted++;
+        }
+        pending.add(s);
+    }
+
+    /**
+     * Wait until all submitted snapshots are written.
+     * @throws IOException Error of the last failed write, if any.
+     */
+    public synchronized void flush() throws IOException {
+        try {
+            while(written < submitted){
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for checkpoints");
+        }
+        if(lastError != null){
+            IOException e = lastError;
+            lastError = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Write pending snapshots and stop the thread.
+     */
+    public void close(){
+        if(closed)
+            return;
+        closed = true;
+        Snapshot end = new Snapshot();
+        end.last = true;
+        pending.add(end);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(lastError != null)
+            LOG.error("Checkpoint could not be written: " + lastError.getMessage());
+    }
+
+    private void loop(){
+        try {
+            while(true){
+                Snapshot s = pending.take();
+                if(s.last)
+                    break;
+                long start = System.nanoTime();
+                IOException error = null;
+                try {
+                    write(s);
+                } catch (IOException e) {
+                    error = e;
+                    LOG.error("Can't write checkpoint " + file + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    // the thread must survive, otherwise submit waits forever for the buffer
+                    error = new IOException("Can't write checkpoint " + file, e);
+                    LOG.error("Can't write checkpoint " + file, e);
+                }
+                synchronized(this){
+                    writeNanos += System.nanoTime() - start;
+                    if(error != null)
+                        lastError = error;
+                    written++;
+                    notifyAll();
+                }
+                free.add(s);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write snapshot to the temp file, rotate old checkpoints and rename.
+     */
+    private void write(Snapshot s) throws IOException {
+        Path target = Paths.get(file);
+        Path tmp = Paths.get(file + ".tmp");
+        if(s.withState)
+            ModelCheckpoint.save(tmp.toString(), layers, s.theta, s.optimizer,
+                    s.stepSize, s.iteration, s.state);
+        else
+            writePlain(tmp, s.theta);
+
+        if(keep > 1 && Files.exists(target)){
+            Files.deleteIfExists(Paths.get(file + "." + (keep - 1)));
+            for(int i = keep - 2; i >= 1; i--){
+                Path p = Paths.get(file + "." + i);
+                if(Files.exists(p))
+                    move(p, Paths.get(file + "." + (i + 1)));
+            }
+            // target keeps a complete checkpoint until replaced by the rename
+            Path prev = Paths.get(file + ".1");
+            try {
+                Files.createLink(prev, target);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(target, prev, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        move(tmp, target);
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Write parameters as big endian doubles through a direct buffer.
+     */
+    private static void writePlain(Path path, double[] theta) throws IOException {
+        ByteBuffer out = ByteBuffer.allocateDirect(WRITE_CHUNK).order(ByteOrder.BIG_ENDIAN);
+        int chunk = WRITE_CHUNK / 8;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for(int from = 0; from < theta.length; from += chunk){
+                int len = Math.min(chunk, theta.length - from);
+                out.clear();
+                out.asDoubleBuffer().put(theta, from, len);
+                out.limit(len * 8);
+                while(out.hasRemaining()){
+                    ch.write(out);
+                }
+            }
+            ch.force(true);
+        }
+    }
+
+    private static double[] copy(double[] src, double[] dst){
+        if(dst == null || dst.length != src.length)
+            dst = new double[src.length];
+        System.arraycopy(src, 0, dst, 0, src.length);
+        return dst;
+    }
+
+    /**
+     * Number of snapshots written so far.
+     * @return Checkpoints written.
+     */
+    public synchronized long getWritten(){
+        return written;
+    }
+
+    /**
+     * Mean time spent writing a checkpoint (on the writer thread).
+     * @return Seconds per checkpoint.
+     */
+    public synchronized double getMeanWriteSeconds(){
+        return written == 0 ? 0.0 : writeNanos / 1e9 / written;
+    }
+}
@@ -0,0 +1,520 @@
+package io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import layer.Layer;
+import layer.weight.WeightLayer;
+import optim.sgd.update.SGDUpdate;
+import org.apache.log4j.Logger;
+
+/**
+ * Binary checkpoint of a model: architecture, parameters and state of the
+ * optimizer. All numbers are little endian:
+ *
+ * magic (int "NNCK") | version (int) | dtype (int, 8 = float64) | header length (int)
+ * header:
+ *   number of layers (int), for each layer: class name, weight flag (int) and
+ *   if it is a weight layer dims of bias and of weights (int count + ints)
+ *   number of params (long)
+ *   optimizer class name ("" if none), step size (double), iteration (long),
+ *   number of state arrays (int), length of each one (long)
+ * padding to a multiple of 8 bytes
+ * params (doubles), state arrays (doubles)
+ * CRC32 of all previous bytes (long)
+ *
+ * Strings are an int length followed by UTF-8 bytes. Since the blocks of
+ * doubles are aligned and in native order (x86), loading maps the file and
+ * moves each block with bulk DoubleBuffer transfers, several processes can map
+ * the same file at once (read only mapping). A mapping is indexed by int, so
+ * files over 2 GB are mapped in several chunks of at most MAP_CHUNK bytes.
+ * @author diego_paez
+ */
+public class ModelCheckpoint {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(ModelCheckpoint.class);
+
+    /**
+     * "NNCK" in little endian.
+     */
+    public static final int MAGIC = 0x4B434E4E;
+
+    /**
+     * Version of the format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Bytes per parameter (float64).
+     */
+    private static final int DTYPE = 8;
+
+    /**
+     * Bytes before the header.
+     */
+    private static final int PREFIX = 16;
+
+    /**
+     * Max. bytes of a single mapping, a multiple of 8 so that no double
+     * crosses two mappings (blocks of doubles are aligned).
+     */
+    static final int MAP_CHUNK = Integer.MAX_VALUE & ~(DTYPE - 1);
+
+    /**
+     * Mapped file, chunk i starts at byte i * MAP_CHUNK.
+     */
+    private final MappedByteBuffer[] chunks;
+
+    /**
+     * Class names of layers.
+     */
+    private final List<String> layerNames = new ArrayList<>();
+
+    /**
+     * Dims of bias and weights of each layer, null if not a weight layer.
+     */
+    private final List<int[][]> shapes = new ArrayList<>();
+
+    private long numParams;
+    private String optimizer;
+    private double stepSize;
+    private long iteration;
+    private long[] stateLengths;
+
+    /**
+     * Position of params in the file.
+     */
+    private int dataOffset;
+
+    private ModelCheckpoint(MappedByteBuffer[] chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * Size of the buffer used to write blocks of doubles.
+     */
+    private static final int WRITE_CHUNK = 1 << 20;
+
+    /**
+     * Save a checkpoint.
+     * @param file File to write.
+     * @param layers Layers of the model, null to store only parameters.
+     * @param theta Parameters.
+     * @param updater Optimizer whose state is stored, can be null.
+     * @throws IOException If the file can not be written.
+     */
+    public static void save(String file, List<Layer> layers, double[] theta,
+            SGDUpdate updater) throws IOException {
+        if(updater == null)
+            save(file, layers, theta, "", 0.0, 0, new double[0][]);
+        else
+            save(file, layers, theta, updater.getClass().getName(), updater.stepSize,
+                    updater.getIteration(), updater.getState());
+    }
+
+    /**
+     * Save a checkpoint from the given values, for instance from a snapshot
+     * of the parameters and the state of an optimizer (see
+     * AsyncCheckpointWriter). The file is written sequentially through a
+     * direct buffer and forced to disk before returning.
+     * @param file File to write.
+     * @param layers Layers of the model, null to store only parameters.
+     * @param theta Parameters.
+     * @param optimizer Class name of the optimizer, "" if none.
+     * @param stepSize Step size of the optimizer.
+     * @param iteration Iteration of the optimizer.
+     * @param state State arrays of the optimizer.
+     * @throws IOException If the file can not be written.
+     */
+    public static void save(String file, List<Layer> layers, double[] theta,
+            String optimizer, double stepSize, long iteration, double[][] state)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(1 << 12).order(ByteOrder.LITTLE_ENDIAN);
+        int n = layers == null ? 0 : layers.size();
+        header = ensure(header, 4);
+        header.putInt(n);
+        for(int i = 0; i < n; i++){
+            Layer l = layers.get(i);
+            header = putString(header, l.getClass().getName());
+            if(l instanceof WeightLayer){
+                header = ensure(header, 4);
+                header.putInt(1);
+                header = putDims(header, ((WeightLayer) l).bias.dims);
+                header = putDims(header, ((WeightLayer) l).weights.dims);
+            } else{
+                header = ensure(header, 4);
+                header.putInt(0);
+            }
+        }
+        header = ensure(header, 8);
+        header.putLong(theta.length);
+        header = putString(header, optimizer);
+        header = ensure(header, 20 + 8 * state.length);
+        header.putDouble(stepSize);
+        header.putLong(iteration);
+        header.putInt(state.length);
+        for(double[] s: state){
+            header.putLong(s.length);
+        }
+        while((PREFIX + header.position()) % DTYPE != 0){
+            header = ensure(header, 1);
+            header.put((byte) 0);
+        }
+        header.flip();
+
+        CRC32 crc = new CRC32();
+        ByteBuffer out = ByteBuffer.allocateDirect(Math.max(WRITE_CHUNK,
+                PREFIX + header.limit())).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.putInt(MAGIC).putInt(VERSION).putInt(DTYPE).putInt(header.limit());
+            out.put(header);
+            flush(ch, out, crc);
+            put(ch, out, crc, theta);
+            for(double[] s: state){
+                put(ch, out, crc, s);
+            }
+            out.putLong(crc.getValue());
+            flush(ch, out, null);
+            ch.force(true);
+        }
+    }
+
+    /**
+     * Write an array of doubles through the buffer, a chunk at a time.
+     */
+    private static void put(FileChannel ch, ByteBuffer out, CRC32 crc, double[] a)
+            throws IOException {
+        int chunk = out.capacity() / DTYPE;
+        for(int from = 0; from < a.length; from += chunk){
+            int len = Math.min(chunk, a.length - from);
+            out.asDoubleBuffer().put(a, from, len);
+            out.position(len * DTYPE);
+            flush(ch, out, crc);
+        }
+    }
+
+    /**
+     * Write the content of the buffer, updating the checksum, and clear it.
+     */
+    private static void flush(FileChannel ch, ByteBuffer out, CRC32 crc) throws IOException {
+        out.flip();
+        if(crc != null)
+            crc.update(out.duplicate());
+        while(out.hasRemaining()){
+            ch.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Open a checkpoint: the file is mapped and its header read. Blocks of
+     * doubles are only read when restored.
+     * @param file Checkpoint file.
+     * @param verify Whether to verify the checksum (a pass over the file).
+     * @return Checkpoint, null if the file is not a valid checkpoint.
+     * @throws IOException If the file can not be read.
+     */
+    public static ModelCheckpoint open(String file, boolean verify) throws IOException {
+        MappedByteBuffer[] chunks;
+        long length, stored;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel ch = raf.getChannel()) {
+            length = ch.size();
+            if(length < PREFIX + 8){
+                LOG.error(file + " is not a model checkpoint");
+                return null;
+            }
+            chunks = map(ch, 0, length);
+            ByteBuffer last = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            while(last.hasRemaining()){
+                ch.read(last, length - 8 + last.position());
+            }
+            stored = last.getLong(0);
+        }
+        ByteBuffer in = chunks[0];
+        if(in.getInt(0) != MAGIC){
+            LOG.error(file + " is not a model checkpoint");
+            return null;
+        }
+        if(in.getInt(4) != VERSION || in.getInt(8) != DTYPE){
+            LOG.error("Unsupported checkpoint version " + in.getInt(4) + " or dtype " + in.getInt(8));
+            return null;
+        }
+        if(verify){
+            CRC32 crc = new CRC32();
+            for(int c = 0; c < chunks.length; c++){
+                ByteBuffer part = chunks[c].duplicate();
+                part.limit((int) Math.min(part.limit(), length - 8 - (long) c * MAP_CHUNK));
+                crc.update(part);
+            }
+            if(crc.getValue() != stored){
+                LOG.error("Checksum of checkpoint " + file + " does not match");
+                return null;
+            }
+        }
+
+        ModelCheckpoint ck = new ModelCheckpoint(chunks);
+        ck.readHeader();
+        long expected = ck.dataOffset + ck.numParams * DTYPE + 8;
+        for(long len: ck.stateLengths){
+            expected += len * DTYPE;
+        }
+        if(expected != length){
+            LOG.error("Checkpoint " + file + " has " + length + " bytes, header describes " + expected);
+            return null;
+        }
+        return ck;
+    }
+
+    /**
+     * Map a region of a file read only, in chunks of at most MAP_CHUNK bytes.
+     * Byte order of the buffers is little endian.
+     * @param ch Channel of the file.
+     * @param pos Start of the region.
+     * @param len Bytes of the region.
+     * @return Mapped chunks, chunk i starts at pos + i * MAP_CHUNK.
+     * @throws IOException If the file can not be mapped.
+     */
+    private static MappedByteBuffer[] map(FileChannel ch, long pos, long len) throws IOException {
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((len + MAP_CHUNK - 1) / MAP_CHUNK)];
+        for(int c = 0; c < chunks.length; c++){
+            long from = (long) c * MAP_CHUNK;
+            chunks[c] = ch.map(FileChannel.MapMode.READ_ONLY, pos + from, Math.min(MAP_CHUNK, len - from));
+            chunks[c].order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return chunks;
+    }
+
+    /**
+     * Read doubles stored in a file, mapping it in chunks of at most
+     * MAP_CHUNK bytes so that files over 2 GB can be read.
+     * @param ch Channel of the file.
+     * @param pos Position of the first double, the region must be aligned
+     * to 8 bytes relative to pos.
+     * @param dst Array to fill.
+     * @param order Byte order of the doubles in the file.
+     * @throws IOException If the file can not be mapped.
+     */
+    public static void readDoubles(FileChannel ch, long pos, double[] dst, ByteOrder order)
+            throws IOException {
+        read(map(ch, pos, (long) dst.length * DTYPE), 0, dst, order);
+    }
+
+    /**
+     * Copy doubles from mapped chunks, one bulk transfer per chunk.
+     */
+    private static void read(MappedByteBuffer[] chunks, long pos, double[] dst, ByteOrder order){
+        for(int from = 0; from < dst.length; ){
+            ByteBuffer b = chunks[(int) (pos / MAP_CHUNK)].duplicate();
+            b.position((int) (pos % MAP_CHUNK));
+            int len = Math.min(dst.length - from, b.remaining() / DTYPE);
+            b.slice().order(order).asDoubleBuffer().get(dst, from, len);
+            from += len;
+            pos += (long) len * DTYPE;
+        }
+    }
+
+    /**
+     * Whether a file starts as a checkpoint.
+     * @param file File.
+     * @return Whether the magic number matches.
+     */
+    public static boolean isCheckpoint(String file){
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return raf.length() >= PREFIX && Integer.reverseBytes(raf.readInt()) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void readHeader(){
+        ByteBuffer h = chunks[0].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        h.position(12);
+        int headerLen = h.getInt();
+        int n = h.getInt();
+        for(int i = 0; i < n; i++){
+            layerNames.add(getString(h));
+            if(h.getInt() == 1)
+                shapes.add(new int[][]{getDims(h), getDims(h)});
+            else
+                shapes.add(null);
+        }
+        numParams = h.getLong();
+        optimizer = getString(h);
+        stepSize = h.getDouble();
+        iteration = h.getLong();
+        stateLengths = new long[h.getInt()];
+        for(int i = 0; i < stateLengths.length; i++){
+            stateLengths[i] = h.getLong();
+        }
+        dataOffset = PREFIX + headerLen;
+    }
+
+    /**
+     * Parameters as a view of the mapped file (no copy). Only possible if
+     * they lie in the first mapped chunk (files under 2 GB), restoreParams
+     * copies them in any case.
+     * @return Read only buffer of parameters, null if they span several chunks.
+     */
+    public DoubleBuffer getParams(){
+        if(dataOffset + numParams * DTYPE > chunks[0].limit())
+            return null;
+        ByteBuffer b = chunks[0].duplicate();
+        b.position(dataOffset).limit((int) (dataOffset + numParams * DTYPE));
+        return b.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    }
+
+    /**
+     * Copy the parameters into a model. If the checkpoint describes layers
+     * they must match the layers of the model (class and shapes), otherwise
+     * only the number of parameters is checked. Weights of the model are
+     * initialized first if needed (dims of inputs must be set).
+     * @param layers Layers of the model.
+     * @param theta Parameters of the model, the layers view them.
+     * @return Whether the parameters were restored.
+     */
+    public boolean restoreParams(List<Layer> layers, double[] theta){
+        if(!layerNames.isEmpty() && !matches(layers))
+            return false;
+        if(theta.length != numParams){
+            LOG.error("Checkpoint has " + numParams + " params, model has " + theta.length);
+            return false;
+        }
+        read(chunks, dataOffset, theta, ByteOrder.LITTLE_ENDIAN);
+        return true;
+    }
+
+    /**
+     * Restore the state of an optimizer, which must be of the same class
+     * and sizes as the one saved.
+     * @param updater Optimizer.
+     * @return Whether the state was restored.
+     */
+    public boolean restoreOptimizer(SGDUpdate updater){
+        if(!updater.getClass().getName().equals(optimizer)){
+            LOG.error("Checkpoint has optimizer state of " + (optimizer.isEmpty() ? "none" : optimizer));
+            return false;
+        }
+        double[][] state = updater.getState();
+        if(state.length != stateLengths.length){
+            LOG.error("Optimizer state does not match checkpoint");
+            return false;
+        }
+        for(int i = 0; i < state.length; i++){
+            if(state[i].length != stateLengths[i]){
+                LOG.error("Optimizer state does not match checkpoint");
+                return false;
+            }
+        }
+        long pos = dataOffset + numParams * DTYPE;
+        for(int i = 0; i < state.length; i++){
+            read(chunks, pos, state[i], ByteOrder.LITTLE_ENDIAN);
+            pos += stateLengths[i] * DTYPE;
+        }
+        updater.stepSize = stepSize;
+        updater.setIteration(iteration);
+        return true;
+    }
+
+    /**
+     * Describe the checkpoint.
+     * @return Layers, shapes and optimizer.
+     */
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder("Checkpoint v" + VERSION + ", " + numParams + " params");
+        for(int i = 0; i < layerNames.size(); i++){
+            sb.append("\n  ").append(layerNames.get(i));
+            if(shapes.get(i) != null)
+                sb.append(" bias ").append(Arrays.toString(shapes.get(i)[0]))
+                        .append(" weights ").append(Arrays.toString(shapes.get(i)[1]));
+        }
+        if(!optimizer.isEmpty())
+            sb.append("\n  optimizer ").append(optimizer).append(", step size ").append(stepSize)
+                    .append(", iteration ").append(iteration);
+        return sb.toString();
+    }
+
+    public long getNumParams(){
+        return numParams;
+    }
+
+    public List<String> getLayerNames(){
+        return layerNames;
+    }
+
+    private boolean matches(List<Layer> layers){
+        if(layers.size() != layerNames.size()){
+            LOG.error("Checkpoint has " + layerNames.size() + " layers, model has " + layers.size());
+            return false;
+        }
+        for(int i = 0; i < layers.size(); i++){
+            Layer l = layers.get(i);
+            int[][] shape = shapes.get(i);
+            boolean ok = l.getClass().getName().equals(layerNames.get(i))
+                    && (shape == null) == !(l instanceof WeightLayer)
+                    && (shape == null || (Arrays.equals(shape[0], ((WeightLayer) l).bias.dims)
+                        && Arrays.equals(shape[1], ((WeightLayer) l).weights.dims)));
+            if(!ok){
+                LOG.error("Layer " + i + " does not match checkpoint: " + layerNames.get(i));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer ensure(ByteBuffer b, int bytes){
+        if(b.remaining() >= bytes)
+            return b;
+        ByteBuffer nb = ByteBuffer.allocate(Math.max(b.capacity() * 2, b.position() + bytes))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        b.flip();
+        nb.put(b);
+        return nb;
+    }
+
+    private static ByteBuffer putString(ByteBuffer b, String s){
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        b = ensure(b, 4 + bytes.length);
+        b.putInt(bytes.length).put(bytes);
+        return b;
+    }
+
+    private static ByteBuffer putDims(ByteBuffer b, int[] dims){
+        b = ensure(b, 4 + 4 * dims.length);
+        b.putInt(dims.length);
+        for(int d: dims){
+            b.putInt(d);
+        }
+        return b;
+    }
+
+    private static String getString(ByteBuffer b){
+        byte[] bytes = new byte[b.getInt()];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int[] getDims(ByteBuffer b){
+        int[] dims = new int[b.getInt()];
+        for(int i = 0; i < dims.length; i++){
+            dims[i] = b.getInt();
+        }
+        return dims;
+    }
+}
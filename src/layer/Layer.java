@@ -1,5 +1,7 @@
 package layer;
 
+import core.inference.InferenceOp;
+import core.inference.LayerOp;
 import tensor.DoubleTensor;
 
 /**
@@ -30,6 +32,24 @@ public abstract class Layer {
      */
     protected DoubleTensor grad;
 
+    /**
+     * Whether the output is written over the input instead of a tensor of its
+     * own, see core.MemoryPlanner.
+     */
+    protected boolean inPlace;
+
+    /**
+     * Buffer shared with other layers where the gradient is stored, null if
+     * grad owns its memory, see core.MemoryPlanner.
+     */
+    protected double[] sharedGrad;
+
+    /**
+     * Buffer shared with other layers where the output is stored, null if
+     * output owns its memory, see core.CheckpointPlan.
+     */
+    protected double[] sharedOutput;
+
     /**
      * Set dims of inputs not counting examples.
      * @param inputs Dims of inputs.
@@ -57,27 +77,39 @@ public abstract class Layer {
      */
     public void initSpaceInMemory(int numExamples) {
         int[] dimsOut = new int[nI.length + 1];
-        int len = 1;
-        for(int i = 0; i < nI.length;i++){
-            dimsOut[i] = nI[i];
-            len *= nI[i];
-        }
+        System.arraycopy(nI, 0, dimsOut, 0, nI.length);
         dimsOut[nI.length] = numExamples;
-        len *= numExamples;
-
-        if(output == null){
-            output = new DoubleTensor(dimsOut);
-            output.setPosToLast();
-            grad = new DoubleTensor(dimsOut);
-            grad.setPosToLast();
-        } else{
-            output.resize(dimsOut);
-            output.setPos(len);
-            grad.resize(dimsOut);
-            grad.setPos(len);
+
+        if(!inPlace)
+            output = prepare(output, sharedOutput, dimsOut);
+        grad = prepare(grad, sharedGrad, dimsOut);
+    }
+
+    /**
+     * Give tensor t the given dims reusing its memory when possible (the
+     * tensor only grows). If a shared buffer is given and it is large enough,
+     * the tensor becomes a view of it, otherwise the tensor owns its memory.
+     * @param t Tensor to prepare, may be null.
+     * @param shared Shared buffer or null.
+     * @param dims Dims of the tensor including examples.
+     * @return Tensor with given dims and position set to its length.
+     */
+    protected static DoubleTensor prepare(DoubleTensor t, double[] shared, int... dims){
+        int len = 1;
+        for(int i = 0; i < dims.length; i++)
+            len *= dims[i];
+
+        if(shared != null && shared.length >= len){
+            if(t == null || t.data.getData() != shared || t.data.capacity() < len)
+                t = DoubleTensor.view(shared, 0, dims);
+        } else if(t == null || t.data.isView()){
+            t = new DoubleTensor(dims);
         }
+        t.resize(dims);
+        t.setPos(len);
+        return t;
     }
-    
+
     /**
      * Return the output tensor of this layer.
      * @return Output Tensor.
@@ -86,6 +118,86 @@ public abstract class Layer {
         return output;
     }
 
+    /**
+     * Whether the layer can write its output over its input and its gradient
+     * over the incoming chain gradient, i.e., it works elementwise and its
+     * backward propagation does not need the input. False by default.
+     * @return Whether the layer can run in place.
+     */
+    public boolean supportsInPlace(){
+        return false;
+    }
+
+    /**
+     * Whether backward propagation reads the output of this layer, if so next
+     * layer must not overwrite it. False by default.
+     * @return Whether output is needed by bProp.
+     */
+    public boolean needsOutputForBackward(){
+        return false;
+    }
+
+    /**
+     * Make the layer write its output over its input, ignored if the layer
+     * does not support it.
+     * @param inPlace Whether to run in place.
+     */
+    public void setInPlace(boolean inPlace){
+        this.inPlace = inPlace && supportsInPlace();
+        if(this.inPlace)
+            output = null;
+    }
+
+    /**
+     * Whether the output is written over the input.
+     * @return Whether the layer runs in place.
+     */
+    public boolean isInPlace(){
+        return inPlace;
+    }
+
+    /**
+     * Store the gradient in a buffer shared with other layers, null to let
+     * the gradient own its memory. Takes effect on next call to
+     * initSpaceInMemory.
+     * @param buffer Shared buffer.
+     */
+    public void setSharedGrad(double[] buffer){
+        sharedGrad = buffer;
+    }
+
+    /**
+     * Store the output in a buffer shared with other layers, null to let the
+     * output own its memory. Takes effect on next call to initSpaceInMemory.
+     * @param buffer Shared buffer.
+     */
+    public void setSharedOutput(double[] buffer){
+        sharedOutput = buffer;
+    }
+
+    /**
+     * Forward propagate training data again, producing the same output as the
+     * last call to fProp with the same input. Used to recompute outputs that
+     * were discarded (see core.CheckpointPlan). By default fProp is called,
+     * layers using random numbers must replay them.
+     * @param input The input tensor of last forward propagation.
+     * @return Output tensor.
+     */
+    public DoubleTensor refProp(DoubleTensor input){
+        return fProp(input, false);
+    }
+
+    /**
+     * Operation that computes the forward propagation of this layer for test
+     * data, used when compiling a net for inference. By default the layer
+     * itself is run.
+     * @return Inference operation, null if the layer does nothing when test
+     * data is running.
+     */
+    public InferenceOp toInferenceOp(){
+        return new LayerOp(this);
+    }
+
     /**
      * Abstract method that describes the forward propagation method of a neural
      * net to be implemented by any layer. The layer should take the input
@@ -1,6 +1,9 @@
 package layer.activation;
 
+import core.inference.ActivationOp;
+import core.inference.InferenceOp;
 import layer.Layer;
+import layer.weight.WeightLayer;
 import tensor.DoubleTensor;
 
 /**
@@ -26,7 +29,8 @@ public class ActivationLayer extends Layer{
     }
 
     /**
-     * Forward propagates inputs by applying the activation function.
+     * Forward propagates inputs by applying the activation function. When
+     * running in place the outputs overwrite the inputs.
      * @param input The inputs to this layer.
      * @param isTest Whether the data given is test data (true) or training data
      * (false)
@@ -36,6 +40,8 @@ public class ActivationLayer extends Layer{
     public DoubleTensor fProp(DoubleTensor input, boolean isTest) {
         final int sz = input.size();
         this.input = input;
+        if(inPlace)
+            output = input;
         double ii;
 
         for(int i = 0; i < sz;i++){
@@ -67,4 +73,34 @@ public class ActivationLayer extends Layer{
         }
         return grad;
     }
+
+    /**
+     * Activations whose derivative depends on the output alone can overwrite
+     * their inputs, the gradient is always computed elementwise.
+     * @return Whether the activation function allows running in place.
+     */
+    @Override
+    public boolean supportsInPlace() {
+        return WeightLayer.isFusable(activationFun);
+    }
+
+    /**
+     * The derivative is evaluated at the outputs.
+     * @return true.
+     */
+    @Override
+    public boolean needsOutputForBackward() {
+        return true;
+    }
+
+    /**
+     * Identity does nothing, otherwise apply activation function.
+     * @return Inference operation, null for identity.
+     */
+    @Override
+    public InferenceOp toInferenceOp() {
+        if(activationFun instanceof Identity)
+            return null;
+        return new ActivationOp(activationFun, nI);
+    }
 }
@@ -0,0 +1,99 @@
+package layer.activation;
+
+import layer.Layer;
+import tensor.DoubleTensor;
+
+/**
+ * Apply the logarithm of the softmax function, i.e., log probabilities. For
+ * each example (column) with inputs [a1;a2;...;an]:
+ *
+ * logsoftmax(ai) = ai - aM - log(sum(exp(aj - aM), j = 1...n))
+ *
+ * where aM = max(aj, j = 1...n). Unlike log(softmax(a)) it never takes the
+ * logarithm of 0, so that it is used with loss.NegativeLogLikelihood (which
+ * absorbs this layer when backpropagating).
+ * @author diego_paez
+ */
+public class LogSoftMaxLayer extends Layer{
+
+    /**
+     * Number of inputs in one dimension, without examples (all dimensions
+     * except examples are multiplied).
+     */
+    protected int nI1D;
+
+    /**
+     * Set the dimension of inputs, also calculate nI1D.
+     * @param inputs
+     */
+    @Override
+    public void setDimsOfInputsWOE(int... inputs) {
+        nI = inputs;
+        nI1D = 1;
+
+        for(int i = 0; i < nI.length; i++){
+            nI1D *= inputs[i];
+        }
+    }
+
+    /**
+     * Log softmax of each example.
+     * @param input Tensor of any number of dimensions, every dimension except
+     * the last one (examples) is compressed into a single one.
+     * @param isTest Whether it is test or training data (not used).
+     * @return Log probabilities.
+     */
+    @Override
+    public DoubleTensor fProp(DoubleTensor input, boolean isTest) {
+        this.input = input;
+        final int n = input.lastDim();
+        double max, sum, logSum;
+        for(int e = 0, o = 0; e < n; e++, o += nI1D){
+            max = Double.NEGATIVE_INFINITY;
+            for(int k = 0; k < nI1D; k++){
+                max = Math.max(max, input.getQuick(o + k));
+            }
+            sum = 0.0;
+            for(int k = 0; k < nI1D; k++){
+                sum += Math.exp(input.getQuick(o + k) - max);
+            }
+            logSum = max + Math.log(sum);
+            for(int k = 0; k < nI1D; k++){
+                output.setQuick(o + k, input.getQuick(o + k) - logSum);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * For each example grad_i = chainGrad_i - softmax_i * sum(chainGrad_j),
+     * where softmax_i = exp(output_i).
+     * @param chainGrad Derivative of the loss w.r. to the outputs.
+     * @return Derivative of the loss w.r. to the inputs.
+     */
+    @Override
+    public DoubleTensor bProp(DoubleTensor chainGrad) {
+        final int n = chainGrad.lastDim();
+        double sum;
+        for(int e = 0, o = 0; e < n; e++, o += nI1D){
+            sum = 0.0;
+            for(int k = 0; k < nI1D; k++){
+                sum += chainGrad.getQuick(o + k);
+            }
+            for(int k = 0; k < nI1D; k++){
+                grad.setQuick(o + k, chainGrad.getQuick(o + k)
+                        - Math.exp(output.getQuick(o + k)) * sum);
+            }
+        }
+        return grad;
+    }
+
+    /**
+     * The derivative is calculated from the outputs.
+     * @return true.
+     */
+    @Override
+    public boolean needsOutputForBackward() {
+        return true;
+    }
+}
@@ -1,5 +1,7 @@
 package layer.activation;
 
+import core.inference.InferenceOp;
+import core.inference.SoftMaxOp;
 import layer.Layer;
 import org.jblas.NativeBlas;
 import tensor.DoubleTensor;
@@ -117,7 +119,7 @@ public class SoftMaxLayer extends Layer{
      * column of a 2D tensor /matrix).
      *
      * A shortcut can be taken when using crossentropy with softmax
-     * (See gradCE_Softmax method of NeuralNetModel)
+     * (See loss.CrossEntropy.evalWithGrad)
      *
      * For the jth example the softmax derivative w.r. to its inputs is (s = softmax func.):
      * 
@@ -148,8 +150,8 @@ public class SoftMaxLayer extends Layer{
             
             // s * ith col of chainGrad, store in ith col of grad
             NativeBlas.dgemm('N', 'N', nI1D, 1, nI1D, 1.0, s.data.getData(),
-                    0, nI1D, chainGrad.data.getData(), offset,
-                    nI1D, 0.0, grad.data.getData(), offset, nI1D);
+                    0, nI1D, chainGrad.data.getData(), chainGrad.data.getOffset() + offset,
+                    nI1D, 0.0, grad.data.getData(), grad.data.getOffset() + offset, nI1D);
         }
         return grad;
     }
@@ -174,4 +176,18 @@ public class SoftMaxLayer extends Layer{
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * The jacobian is calculated from the outputs.
+     * @return true.
+     */
+    @Override
+    public boolean needsOutputForBackward() {
+        return true;
+    }
+
+    @Override
+    public InferenceOp toInferenceOp() {
+        return new SoftMaxOp(nI);
+    }
+}
@@ -0,0 +1,164 @@
+package layer.recurrent;
+
+import init.Initialization;
+import org.jblas.NativeBlas;
+import tensor.DoubleTensor;
+
+/**
+ * Gated Recurrent Unit layer, see "Learning Phrase Representations using RNN
+ * Encoder-Decoder for Statistical Machine Translation" by Cho et al. The reset
+ * gate is applied after the recurrent matrix multiplication (as in cuDNN),
+ * which allows computing the recurrent part of all gates with a single matrix
+ * multiplication:
+ *
+ * r = sigmoid(Wxr^T x + Whr^T h_(t-1) + br)  reset gate
+ * z = sigmoid(Wxz^T x + Whz^T h_(t-1) + bz)  update gate
+ * n = tanh(Wxn^T x + bn + r .* (Whn^T h_(t-1)))  candidate
+ * h_t = (1 - z) .* n + z .* h_(t-1)
+ *
+ * Gates are stored in order r, z, n.
+ * @author diego_paez
+ */
+public class GRULayer extends RecurrentLayer {
+
+    /**
+     * Recurrent part of the pre-activations (Wh^T * h_(t-1)): GH x E x T.
+     */
+    protected double[] hh;
+
+    /**
+     * Auxiliary buffer for derivative w.r. to hidden state: H x E.
+     */
+    protected double[] dhTmp;
+
+    /**
+     * Create GRU layer that outputs only the hidden state of the last time
+     * step.
+     * @param init Initialization of weights.
+     * @param hidden Number of hidden units.
+     */
+    public GRULayer(Initialization init, int hidden) {
+        this(init, hidden, false);
+    }
+
+    /**
+     * Create GRU layer.
+     * @param init Initialization of weights.
+     * @param hidden Number of hidden units.
+     * @param returnSequences Whether to output the hidden state of every
+     * time step.
+     */
+    public GRULayer(Initialization init, int hidden, boolean returnSequences) {
+        super(hidden, returnSequences);
+        this.init = init;
+    }
+
+    @Override
+    protected int gates() {
+        return 3;
+    }
+
+    @Override
+    protected void allocateBuffers(int numExamples) {
+        int cols = numExamples * nT;
+        hh = new double[GH * cols];
+        dRec = new double[GH * cols];
+        dhTmp = new double[H * numExamples];
+    }
+
+    @Override
+    protected void forwardStep(int t) {
+        final int HE = H * E;
+        double r, z, n, hPrev;
+        int gb, hb;
+
+        // recurrent part of all gates with a single matrix multiplication
+        NativeBlas.dgemm('T', 'N', GH, E, H, 1.0, weights.data.getData(),
+                weights.data.getOffset() + nIn, nIn + H, hs, t * HE, H, 0.0, hh, t * GH * E, GH);
+
+        for(int e = 0; e < E; e++){
+            gb = (t * E + e) * GH;
+            hb = (t * E + e) * H;
+            for(int j = 0; j < H; j++){
+                r = sigmoid(gates[gb + j] + hh[gb + j]);
+                z = sigmoid(gates[gb + H + j] + hh[gb + H + j]);
+                n = Math.tanh(gates[gb + 2 * H + j] + r * hh[gb + 2 * H + j]);
+                gates[gb + j] = r;
+                gates[gb + H + j] = z;
+                gates[gb + 2 * H + j] = n;
+
+                hPrev = hs[hb + j];
+                hs[hb + HE + j] = (1.0 - z) * n + z * hPrev;
+            }
+        }
+    }
+
+    @Override
+    protected int inferAuxSize(int numExamples) {
+        return GH * numExamples;
+    }
+
+    @Override
+    protected void inferStep(int t, double[] gates, double[] h, double[] aux, int E) {
+        double r, z, n;
+        int gb, ab, k;
+
+        // aux = recurrent part of the pre-activations of this time step
+        NativeBlas.dgemm('T', 'N', GH, E, H, 1.0, weights.data.getData(),
+                weights.data.getOffset() + nIn, nIn + H, h, 0, H, 0.0, aux, 0, GH);
+
+        for(int e = 0; e < E; e++){
+            gb = (t * E + e) * GH;
+            ab = e * GH;
+            for(int j = 0; j < H; j++){
+                k = e * H + j;
+                r = sigmoid(gates[gb + j] + aux[ab + j]);
+                z = sigmoid(gates[gb + H + j] + aux[ab + H + j]);
+                n = Math.tanh(gates[gb + 2 * H + j] + r * aux[ab + 2 * H + j]);
+                h[k] = (1.0 - z) * n + z * h[k];
+            }
+        }
+    }
+
+    @Override
+    protected void resetBackwardState() {
+    }
+
+    @Override
+    protected void backwardStep(int t, DoubleTensor chainGrad) {
+        double r, z, n, dh, dn, dz, dan;
+        int gb, hb, k;
+
+        for(int e = 0; e < E; e++){
+            gb = (t * E + e) * GH;
+            hb = (t * E + e) * H;
+            for(int j = 0; j < H; j++){
+                k = e * H + j;
+                dh = dhNext[k] + chainGradAt(chainGrad, t, e, j);
+                r = gates[gb + j];
+                z = gates[gb + H + j];
+                n = gates[gb + 2 * H + j];
+
+                dn = dh * (1.0 - z);
+                dz = dh * (hs[hb + j] - n);
+                dan = dn * (1.0 - n * n);
+
+                dA[gb + j] = dan * hh[gb + 2 * H + j] * r * (1.0 - r);
+                dA[gb + H + j] = dz * z * (1.0 - z);
+                dA[gb + 2 * H + j] = dan;
+
+                dRec[gb + j] = dA[gb + j];
+                dRec[gb + H + j] = dA[gb + H + j];
+                dRec[gb + 2 * H + j] = dan * r;
+
+                dhTmp[k] = dh * z;
+            }
+        }
+
+        addRecurrentGrad(t, dhTmp);
+
+        double[] aux = dhNext;
+        dhNext = dhTmp;
+        dhTmp = aux;
+    }
+}
@@ -0,0 +1,188 @@
+package layer.recurrent;
+
+import init.Initialization;
+import org.jblas.NativeBlas;
+import tensor.DoubleTensor;
+
+/**
+ * Long Short-Term Memory layer, see "Long Short-Term Memory" by Hochreiter and
+ * Schmidhuber, and "LSTM: A Search Space Odyssey" by Greff et al. for the
+ * version implemented (without peepholes):
+ *
+ * i = sigmoid(Wxi^T x + Whi^T h_(t-1) + bi)  input gate
+ * f = sigmoid(Wxf^T x + Whf^T h_(t-1) + bf)  forget gate
+ * o = sigmoid(Wxo^T x + Who^T h_(t-1) + bo)  output gate
+ * g = tanh(Wxg^T x + Whg^T h_(t-1) + bg)     candidate cell
+ * c_t = f .* c_(t-1) + i .* g
+ * h_t = o .* tanh(c_t)
+ *
+ * Gates are stored in order i, f, o, g. The bias of the forget gate is
+ * initialized to 1, as recommended in "An Empirical Exploration of Recurrent
+ * Network Architectures" by Jozefowicz et al.
+ * @author diego_paez
+ */
+public class LSTMLayer extends RecurrentLayer {
+
+    /**
+     * Cell states: H x E x (T + 1), slot 0 is the initial state (zeros).
+     */
+    protected double[] cs;
+
+    /**
+     * tanh of cell states: H x E x T.
+     */
+    protected double[] tc;
+
+    /**
+     * Derivative of loss w.r. to cell state coming from next time step: H x E.
+     */
+    protected double[] dcNext;
+
+    /**
+     * Create LSTM layer that outputs only the hidden state of the last time
+     * step.
+     * @param init Initialization of weights.
+     * @param hidden Number of hidden units.
+     */
+    public LSTMLayer(Initialization init, int hidden) {
+        this(init, hidden, false);
+    }
+
+    /**
+     * Create LSTM layer.
+     * @param init Initialization of weights.
+     * @param hidden Number of hidden units.
+     * @param returnSequences Whether to output the hidden state of every
+     * time step.
+     */
+    public LSTMLayer(Initialization init, int hidden, boolean returnSequences) {
+        super(hidden, returnSequences);
+        this.init = init;
+    }
+
+    @Override
+    protected int gates() {
+        return 4;
+    }
+
+    @Override
+    public void initParams() {
+        super.initParams();
+        for(int j = H; j < 2 * H; j++){
+            bias.setQuick(j, 1.0);
+        }
+    }
+
+    @Override
+    protected void allocateBuffers(int numExamples) {
+        int cols = numExamples * nT;
+        cs = new double[H * (cols + numExamples)];
+        tc = new double[H * cols];
+        dcNext = new double[H * numExamples];
+        // pre-activations of gates are the same for input and recurrent part
+        dRec = dA;
+    }
+
+    @Override
+    protected void forwardStep(int t) {
+        final int HE = H * E;
+        double i, f, o, g, c;
+        int gb, hb;
+
+        // add recurrent part of all gates with a single matrix multiplication
+        NativeBlas.dgemm('T', 'N', GH, E, H, 1.0, weights.data.getData(),
+                weights.data.getOffset() + nIn, nIn + H, hs, t * HE, H, 1.0, gates, t * GH * E, GH);
+
+        if(t == 0){
+            for(int k = 0; k < HE; k++){
+                cs[k] = 0.0;
+            }
+        }
+
+        for(int e = 0; e < E; e++){
+            gb = (t * E + e) * GH;
+            hb = (t * E + e) * H;
+            for(int j = 0; j < H; j++){
+                i = sigmoid(gates[gb + j]);
+                f = sigmoid(gates[gb + H + j]);
+                o = sigmoid(gates[gb + 2 * H + j]);
+                g = Math.tanh(gates[gb + 3 * H + j]);
+                gates[gb + j] = i;
+                gates[gb + H + j] = f;
+                gates[gb + 2 * H + j] = o;
+                gates[gb + 3 * H + j] = g;
+
+                c = f * cs[hb + j] + i * g;
+                cs[hb + HE + j] = c;
+                tc[hb + j] = Math.tanh(c);
+                hs[hb + HE + j] = o * tc[hb + j];
+            }
+        }
+    }
+
+    @Override
+    protected int inferAuxSize(int numExamples) {
+        return H * numExamples;
+    }
+
+    @Override
+    protected void inferStep(int t, double[] gates, double[] h, double[] aux, int E) {
+        double i, f, o, g, c;
+        int gb, k;
+
+        NativeBlas.dgemm('T', 'N', GH, E, H, 1.0, weights.data.getData(),
+                weights.data.getOffset() + nIn, nIn + H, h, 0, H, 1.0, gates, t * GH * E, GH);
+
+        // aux = cell state
+        for(int e = 0; e < E; e++){
+            gb = (t * E + e) * GH;
+            for(int j = 0; j < H; j++){
+                k = e * H + j;
+                i = sigmoid(gates[gb + j]);
+                f = sigmoid(gates[gb + H + j]);
+                o = sigmoid(gates[gb + 2 * H + j]);
+                g = Math.tanh(gates[gb + 3 * H + j]);
+                c = f * aux[k] + i * g;
+                aux[k] = c;
+                h[k] = o * Math.tanh(c);
+            }
+        }
+    }
+
+    @Override
+    protected void resetBackwardState() {
+        for(int k = 0; k < H * E; k++){
+            dcNext[k] = 0.0;
+        }
+    }
+
+    @Override
+    protected void backwardStep(int t, DoubleTensor chainGrad) {
+        double i, f, o, g, dh, dc, tcv;
+        int gb, hb, k;
+
+        for(int e = 0; e < E; e++){
+            gb = (t * E + e) * GH;
+            hb = (t * E + e) * H;
+            for(int j = 0; j < H; j++){
+                k = e * H + j;
+                dh = dhNext[k] + chainGradAt(chainGrad, t, e, j);
+                i = gates[gb + j];
+                f = gates[gb + H + j];
+                o = gates[gb + 2 * H + j];
+                g = gates[gb + 3 * H + j];
+                tcv = tc[hb + j];
+
+                dc = dcNext[k] + dh * o * (1.0 - tcv * tcv);
+                dA[gb + j] = dc * g * i * (1.0 - i);
+                dA[gb + H + j] = dc * cs[hb + j] * f * (1.0 - f);
+                dA[gb + 2 * H + j] = dh * tcv * o * (1.0 - o);
+                dA[gb + 3 * H + j] = dc * i * (1.0 - g * g);
+                dcNext[k] = dc * f;
+                dhNext[k] = 0.0;
+            }
+        }
+
+        addRecurrentGrad(t, dhNext);
+    }
+}
@@ -0,0 +1,434 @@
+package layer.recurrent;
+
+import core.inference.InferenceOp;
+import core.inference.RecurrentOp;
+import java.util.Arrays;
+import layer.activation.ActivationFunction;
+import layer.weight.WeightLayer;
+import org.apache.log4j.Logger;
+import org.jblas.NativeBlas;
+import tensor.DoubleTensor;
+
+/**
+ * Base of recurrent layers (LSTM, GRU). Inputs have dimensions nIn x T x
+ * examples (T = number of time steps), outputs have dimensions H x T x
+ * examples if returnSequences, else H x examples (hidden state of last time
+ * step).
+ *
+ * Weights are stored as a single (nIn + H) x (G * H) matrix, where G is the
+ * number of gates. First nIn rows (Wx) multiply the input and last H rows (Wh)
+ * multiply the previous hidden state, thus the pre-activations of all gates of
+ * a time step are obtained with a single matrix multiplication. Internally the
+ * input is copied in time major order (nIn x examples x T) so that the input
+ * projections of all time steps are calculated with one matrix multiplication
+ * before iterating over time, and so that every time step is a contiguous block.
+ *
+ * Backpropagation through time is done in updateLayerWGrad (which the model
+ * calls before bProp) since the derivatives w.r. to the weights need the
+ * derivatives w.r. to the gate pre-activations of every time step. These
+ * derivatives are kept (dA) so that bProp is a single matrix multiplication.
+ * All buffers are allocated in initSpaceInMemory and only grow when the number
+ * of examples grows.
+ * @author diego_paez
+ */
+public abstract class RecurrentLayer extends WeightLayer {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(RecurrentLayer.class);
+
+    /**
+     * Number of inputs per time step.
+     */
+    protected int nIn;
+
+    /**
+     * Number of time steps.
+     */
+    protected int nT;
+
+    /**
+     * Number of hidden units.
+     */
+    protected int H;
+
+    /**
+     * Number of gates times hidden units.
+     */
+    protected int GH;
+
+    /**
+     * Number of examples of last forward propagation.
+     */
+    protected int E;
+
+    /**
+     * Whether the output is the hidden state of every time step or only of
+     * the last one.
+     */
+    protected boolean returnSequences;
+
+    /**
+     * Input in time major order: nIn x E x T.
+     */
+    protected double[] xT;
+
+    /**
+     * Gates of every time step: GH x E x T. Holds input projections before
+     * forwardStep and gate activations after it.
+     */
+    protected double[] gates;
+
+    /**
+     * Hidden states: H x E x (T + 1), slot 0 is the initial state (zeros).
+     */
+    protected double[] hs;
+
+    /**
+     * Derivative of loss w.r. to gate pre-activations (input side): GH x E x T.
+     */
+    protected double[] dA;
+
+    /**
+     * Derivative of loss w.r. to the recurrent pre-activations (Wh^T * h):
+     * GH x E x T. Same array as dA when both are equal (LSTM).
+     */
+    protected double[] dRec;
+
+    /**
+     * Derivative of loss w.r. to hidden state coming from next time step: H x E.
+     */
+    protected double[] dhNext;
+
+    /**
+     * Derivative of loss w.r. to input in time major order: nIn x E x T.
+     */
+    protected double[] dxT;
+
+    /**
+     * Create recurrent layer.
+     * @param hidden Number of hidden units.
+     * @param returnSequences Whether to output the hidden state of every
+     * time step (true) or only of last one (false).
+     */
+    protected RecurrentLayer(int hidden, boolean returnSequences) {
+        this.H = hidden;
+        this.GH = gates() * hidden;
+        this.returnSequences = returnSequences;
+    }
+
+    /**
+     * Number of gates of the recurrent unit.
+     * @return Number of gates.
+     */
+    protected abstract int gates();
+
+    /**
+     * Compute gates and hidden state of time step t. On entry gates of time
+     * step t contain the input projections plus bias.
+     * @param t Time step.
+     */
+    protected abstract void forwardStep(int t);
+
+    /**
+     * Called before backpropagating through time to reset state carried
+     * between time steps (besides dhNext).
+     */
+    protected abstract void resetBackwardState();
+
+    /**
+     * Compute dA and dRec of time step t and update dhNext to the derivative
+     * w.r. to hidden state of time step t - 1.
+     * @param t Time step.
+     * @param chainGrad Derivative of loss w.r. to outputs of this layer.
+     */
+    protected abstract void backwardStep(int t, DoubleTensor chainGrad);
+
+    @Override
+    public void setDimsOfInputsWOE(int... inputs) {
+        if(inputs.length != 2){
+            LOG.error("Expected 2 inputs: inputs per time step, time steps");
+            return;
+        }
+        nI = inputs;
+        nIn = inputs[0];
+        nT = inputs[1];
+    }
+
+    @Override
+    public int[] getDimsOfOutputsWOE() {
+        if(returnSequences)
+            return new int[]{H, nT};
+        else
+            return new int[]{H};
+    }
+
+    @Override
+    public void initParams() {
+        bias = new DoubleTensor(init.initBias(GH), GH);
+        biasGrad = new DoubleTensor(bias.dims);
+        biasGrad.setPosToLast();
+
+        weights = new DoubleTensor(init.initWeights(nIn + H, H, new int[]{nIn + H, GH}),
+                new int[]{nIn + H, GH});
+        weightsGrad = new DoubleTensor(weights.dims);
+        weightsGrad.setPosToLast();
+    }
+
+    @Override
+    public int getNumberOfParams() {
+        return (nIn + H + 1) * GH;
+    }
+
+    @Override
+    public void initSpaceInMemory(int numExamples){
+        if(returnSequences)
+            output = prepare(output, sharedOutput, H, nT, numExamples);
+        else
+            output = prepare(output, sharedOutput, H, numExamples);
+        grad = prepare(grad, sharedGrad, nIn, nT, numExamples);
+
+        int cols = numExamples * nT;
+        if(xT == null || xT.length < nIn * cols){
+            xT = new double[nIn * cols];
+            dxT = new double[nIn * cols];
+            gates = new double[GH * cols];
+            dA = new double[GH * cols];
+            hs = new double[H * (cols + numExamples)];
+            dhNext = new double[H * numExamples];
+            allocateBuffers(numExamples);
+        }
+        E = numExamples;
+    }
+
+    /**
+     * Allocate buffers particular to the recurrent unit, sized for given
+     * number of examples (called only when buffers must grow).
+     * @param numExamples Number of examples.
+     */
+    protected abstract void allocateBuffers(int numExamples);
+
+    @Override
+    public DoubleTensor fProp(DoubleTensor input, boolean isTest) {
+        this.input = input;
+        E = input.lastDim();
+        projectInputs(input, xT, gates, E);
+
+        Arrays.fill(hs, 0, H * E, 0.0);
+        for(int t = 0; t < nT; t++){
+            forwardStep(t);
+        }
+
+        // H x E x T -> H x T x E
+        if(returnSequences){
+            for(int e = 0; e < E; e++){
+                for(int t = 0; t < nT; t++){
+                    int src = H * (e + E * (t + 1));
+                    int dst = H * (t + nT * e);
+                    for(int j = 0; j < H; j++){
+                        output.setQuick(dst + j, hs[src + j]);
+                    }
+                }
+            }
+        } else{
+            int src = H * E * nT;
+            for(int k = 0; k < H * E; k++){
+                output.setQuick(k, hs[src + k]);
+            }
+        }
+
+        return output;
+    }
+
+    /**
+     * Copy input in time major order and calculate the input projections of
+     * all time steps at once: gates = bias + Wx^T * x.
+     * @param input Input: nIn x T x examples.
+     * @param x Where to store input in time major order: nIn x examples x T.
+     * @param g Where to store projections: GH x examples x T.
+     * @param E Number of examples.
+     */
+    protected void projectInputs(DoubleTensor input, double[] x, double[] g, int E){
+        final int cols = E * nT;
+
+        // nIn x T x E -> nIn x E x T
+        for(int e = 0; e < E; e++){
+            for(int t = 0; t < nT; t++){
+                int src = nIn * (t + nT * e);
+                int dst = nIn * (e + E * t);
+                for(int i = 0; i < nIn; i++){
+                    x[dst + i] = input.getQuick(src + i);
+                }
+            }
+        }
+
+        for(int c = 0; c < cols; c++){
+            for(int j = 0; j < GH; j++){
+                g[c * GH + j] = bias.getQuick(j);
+            }
+        }
+        NativeBlas.dgemm('T', 'N', GH, cols, nIn, 1.0, weights.data.getData(),
+                weights.data.getOffset(), nIn + H, x, 0, nIn, 1.0, g, 0, GH);
+    }
+
+    /**
+     * Scratch arrays needed by infer for up to maxBatch examples.
+     * @param maxBatch Maximum number of examples.
+     * @return Arrays: input in time major order, gates, hidden state and
+     * auxiliary state of the unit.
+     */
+    public double[][] createInferenceWorkspace(int maxBatch){
+        return new double[][]{new double[nIn * nT * maxBatch], new double[GH * nT * maxBatch],
+            new double[H * maxBatch], new double[inferAuxSize(maxBatch)]};
+    }
+
+    /**
+     * Forward propagate test data keeping only the current hidden state (and
+     * the state of the unit) instead of the states of every time step. The
+     * layer is only read, so it can be used by several threads at once with
+     * different workspaces.
+     * @param in Input: nIn x T x examples.
+     * @param out Where to store outputs (see getDimsOfOutputsWOE).
+     * @param ws Workspace created by createInferenceWorkspace.
+     * @return Output tensor (out).
+     */
+    public DoubleTensor infer(DoubleTensor in, DoubleTensor out, double[][] ws){
+        final int E = in.lastDim();
+        double[] h = ws[2], aux = ws[3];
+        projectInputs(in, ws[0], ws[1], E);
+
+        Arrays.fill(h, 0, H * E, 0.0);
+        Arrays.fill(aux, 0, inferAuxSize(E), 0.0);
+        for(int t = 0; t < nT; t++){
+            inferStep(t, ws[1], h, aux, E);
+            if(returnSequences){
+                for(int e = 0; e < E; e++){
+                    int dst = H * (t + nT * e);
+                    for(int j = 0; j < H; j++){
+                        out.setQuick(dst + j, h[e * H + j]);
+                    }
+                }
+            }
+        }
+        if(!returnSequences){
+            for(int k = 0; k < H * E; k++){
+                out.setQuick(k, h[k]);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Size of the auxiliary state used by inferStep (e.g., cell state).
+     * @param numExamples Number of examples.
+     * @return Size.
+     */
+    protected abstract int inferAuxSize(int numExamples);
+
+    /**
+     * Compute hidden state of time step t in place, for inference.
+     * @param t Time step.
+     * @param gates Input projections plus bias of every time step.
+     * @param h Hidden state of time step t - 1 on entry, of t on exit: H x E.
+     * @param aux Auxiliary state of the unit (zeros at t = 0).
+     * @param E Number of examples.
+     */
+    protected abstract void inferStep(int t, double[] gates, double[] h, double[] aux, int E);
+
+    @Override
+    public InferenceOp toInferenceOp(ActivationFunction activation) {
+        return new RecurrentOp(this);
+    }
+
+    /**
+     * Backpropagate through time and calculate derivatives w.r. to weights
+     * and bias. Derivatives w.r. to Wx and Wh are each a single matrix
+     * multiplication over all time steps.
+     * @param chainGrad Derivative of loss w.r. to outputs of this layer.
+     */
+    @Override
+    public void updateLayerWGrad(DoubleTensor chainGrad) {
+        final int cols = E * nT;
+        double[] wg = weightsGrad.data.getData();
+        final int wgo = weightsGrad.data.getOffset();
+
+        Arrays.fill(dhNext, 0, H * E, 0.0);
+        resetBackwardState();
+        for(int t = nT - 1; t >= 0; t--){
+            backwardStep(t, chainGrad);
+        }
+
+        // dWx = xT * dA^T
+        NativeBlas.dgemm('N', 'T', nIn, GH, cols, 1.0, xT, 0, nIn,
+                dA, 0, GH, 0.0, wg, wgo, nIn + H);
+        // dWh = [h_0 ... h_(T-1)] * dRec^T
+        NativeBlas.dgemm('N', 'T', H, GH, cols, 1.0, hs, 0, H,
+                dRec, 0, GH, 0.0, wg, wgo + nIn, nIn + H);
+
+        // bias is on the input side
+        for(int j = 0; j < GH; j++){
+            biasGrad.setQuick(j, 0.0);
+        }
+        for(int c = 0; c < cols; c++){
+            for(int j = 0; j < GH; j++){
+                biasGrad.data.addQuick(j, dA[c * GH + j]);
+            }
+        }
+    }
+
+    /**
+     * Derivative w.r. to inputs = Wx * dA (dA calculated in updateLayerWGrad).
+     * @param chainGrad Derivative of loss w.r. to outputs (already used).
+     * @return Derivative of loss w.r. to inputs.
+     */
+    @Override
+    public DoubleTensor bProp(DoubleTensor chainGrad) {
+        final int cols = E * nT;
+        NativeBlas.dgemm('N', 'N', nIn, cols, GH, 1.0, weights.data.getData(),
+                weights.data.getOffset(), nIn + H, dA, 0, GH, 0.0, dxT, 0, nIn);
+
+        // nIn x E x T -> nIn x T x E
+        for(int e = 0; e < E; e++){
+            for(int t = 0; t < nT; t++){
+                int src = nIn * (e + E * t);
+                int dst = nIn * (t + nT * e);
+                for(int i = 0; i < nIn; i++){
+                    grad.setQuick(dst + i, dxT[src + i]);
+                }
+            }
+        }
+        return grad;
+    }
+
+    /**
+     * Multiply Wh * dRec of time step t and add to dh (H x E).
+     * @param t Time step.
+     * @param dh Where to add the result.
+     */
+    protected void addRecurrentGrad(int t, double[] dh){
+        NativeBlas.dgemm('N', 'N', H, E, GH, 1.0, weights.data.getData(),
+                weights.data.getOffset() + nIn, nIn + H, dRec, t * GH * E, GH, 1.0, dh, 0, H);
+    }
+
+    /**
+     * Derivative of loss w.r. to output j of example e at time step t.
+     * @param chainGrad Derivative of loss w.r. to outputs of this layer.
+     * @param t Time step.
+     * @param e Example.
+     * @param j Hidden unit.
+     * @return Derivative.
+     */
+    protected double chainGradAt(DoubleTensor chainGrad, int t, int e, int j){
+        if(returnSequences)
+            return chainGrad.getQuick(j + H * (t + nT * e));
+        else if(t == nT - 1)
+            return chainGrad.getQuick(j + H * e);
+        else
+            return 0.0;
+    }
+
+    protected static double sigmoid(double x){
+        return 1.0 / (1.0 + Math.exp(-x));
+    }
+}
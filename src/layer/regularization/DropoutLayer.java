@@ -0,0 +1,244 @@
+package layer.regularization;
+
+import core.inference.InferenceOp;
+import layer.Layer;
+import org.apache.log4j.Logger;
+import tensor.DoubleTensor;
+
+/**
+ * Dropout layer, during training every input is set to zero with probability
+ * p, see "Dropout: A Simple Way to Prevent Neural Networks from Overfitting"
+ * by Srivastava, Hinton et al.
+ *
+ * Inverted dropout is used: kept inputs are multiplied by 1 / (1 - p) while
+ * training, so that the expected value of each output equals its input and
+ * nothing has to be done when running test data (the layer just returns its
+ * input).
+ *
+ * The mask of kept inputs is stored as bits packed in longs (64 inputs per
+ * long) instead of a tensor of doubles, i.e., 64 times less memory than the
+ * outputs themselves.
+ *
+ * Random numbers are obtained with a SplitMix64 generator which is counter
+ * based: the random number for a given position only depends on the seed, the
+ * current pass and the position. Thus there is no shared state (contrary to
+ * java.util.Random which uses an AtomicLong) and any range of the mask could
+ * be generated independently by a different thread. Every 64 bit random number
+ * is split into 4 lanes of 16 bits, each one deciding whether one input is
+ * kept, i.e., the keep probability is rounded to a multiple of 1 / 65536.
+ * @author diego_paez
+ */
+public class DropoutLayer extends Layer{
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(DropoutLayer.class);
+
+    /**
+     * Golden ratio increment of SplitMix64.
+     */
+    private static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Probability of dropping (setting to zero) an input.
+     */
+    protected double p;
+
+    /**
+     * Factor by which kept inputs are multiplied = 1 / (1 - p).
+     */
+    protected double scale;
+
+    /**
+     * An input is kept if its 16 bit random lane is smaller than this value.
+     */
+    protected int threshold;
+
+    /**
+     * Mask of kept inputs for last forward propagation, bit j of mask[i]
+     * corresponds to input 64 * i + j.
+     */
+    protected long[] mask;
+
+    /**
+     * Seed of the random generator.
+     */
+    protected long seed;
+
+    /**
+     * Counter of the random generator, advanced on every training pass so
+     * that each pass gets a different mask.
+     */
+    protected long counter;
+
+    /**
+     * Create dropout layer with given probability of dropping an input.
+     * @param p Probability of dropping an input, typically 0.5 for hidden
+     * layers and 0.2 for inputs.
+     */
+    public DropoutLayer(double p) {
+        this(p, System.nanoTime());
+    }
+
+    /**
+     * Create dropout layer with given probability of dropping an input and
+     * given seed for the random generator.
+     * @param p Probability of dropping an input.
+     * @param seed Seed for random generator.
+     */
+    public DropoutLayer(double p, long seed) {
+        if(p < 0.0 || p >= 1.0){
+            LOG.error("Dropout probability must be in [0, 1), using 0.5");
+            p = 0.5;
+        }
+        this.p = p;
+        this.scale = 1.0 / (1.0 - p);
+        this.threshold = (int) Math.round((1.0 - p) * 65536.0);
+        this.seed = mix(seed);
+        this.counter = 0;
+    }
+
+    /**
+     * Besides output and grad tensors, make room for the bit mask (grad has
+     * the size of the outputs even when running in place).
+     * @param numExamples Number of examples.
+     */
+    @Override
+    public void initSpaceInMemory(int numExamples) {
+        super.initSpaceInMemory(numExamples);
+
+        int words = (grad.length() + 63) >>> 6;
+        if(mask == null || mask.length < words){
+            mask = new long[words];
+        }
+    }
+
+    /**
+     * Forward propagate, if test data the input is returned as is. Otherwise
+     * generate the mask and apply it in a single pass, over the inputs
+     * themselves when running in place.
+     * @param input Input tensor.
+     * @param isTest Whether test data or training data.
+     * @return Input with dropped entries set to zero and kept entries scaled.
+     */
+    @Override
+    public DoubleTensor fProp(DoubleTensor input, boolean isTest) {
+        this.input = input;
+        if(isTest){
+            return input;
+        }
+        if(inPlace)
+            output = input;
+
+        final int sz = input.size();
+        long base = seed + (counter++) * GAMMA * sz;
+        long bits, rnd = 0;
+        int i = 0, keep;
+
+        for(int w = 0; i < sz; w++){
+            bits = 0L;
+            for(int j = 0; j < 64 && i < sz; j++, i++){
+                // one 64 bit random number every 4 inputs
+                if((j & 3) == 0){
+                    rnd = mix(base + i * GAMMA);
+                }
+                keep = (int) (rnd & 0xFFFF) < threshold ? 1 : 0;
+                rnd >>>= 16;
+                bits |= ((long) keep) << j;
+                output.setQuick(i, input.getQuick(i) * (scale * keep));
+            }
+            mask[w] = bits;
+        }
+
+        return output;
+    }
+
+    /**
+     * Replay last training pass: the generator is counter based, thus moving
+     * the counter back one pass generates the same mask.
+     * @param input Input tensor of last forward propagation.
+     * @return Output with the same mask as last forward propagation.
+     */
+    @Override
+    public DoubleTensor refProp(DoubleTensor input) {
+        counter--;
+        return fProp(input, false);
+    }
+
+    /**
+     * Backpropagate, derivative of output w.r. to input is 1 / (1 - p) for
+     * kept inputs and 0 for dropped ones. Uses the mask of the last forward
+     * propagation.
+     * @param chainGrad Derivative of loss function w.r. to outputs.
+     * @return Derivative of loss function w.r. to inputs.
+     */
+    @Override
+    public DoubleTensor bProp(DoubleTensor chainGrad) {
+        final int sz = chainGrad.size();
+        long bits;
+        int i = 0;
+
+        for(int w = 0; i < sz; w++){
+            bits = mask[w];
+            for(int j = 0; j < 64 && i < sz; j++, i++){
+                grad.setQuick(i, chainGrad.getQuick(i) * (scale * (int)((bits >>> j) & 1L)));
+            }
+        }
+
+        return grad;
+    }
+
+    /**
+     * The mask alone is needed to backpropagate, thus dropout can overwrite
+     * its inputs.
+     * @return true.
+     */
+    @Override
+    public boolean supportsInPlace() {
+        return true;
+    }
+
+    /**
+     * Dropout returns its input when test data is running.
+     * @return null, nothing to do for inference.
+     */
+    @Override
+    public InferenceOp toInferenceOp() {
+        return null;
+    }
+
+    /**
+     * Get probability of dropping an input.
+     * @return Probability of dropping an input.
+     */
+    public double getDropProbability(){
+        return p;
+    }
+
+    /**
+     * Create a single dropout layer equivalent to applying this layer and then
+     * next one: an input is kept with probability (1 - p1) * (1 - p2) and
+     * kept inputs are scaled by the product of both scales.
+     * @param next Dropout layer applied after this one.
+     * @return Merged dropout layer.
+     */
+    public DropoutLayer merge(DropoutLayer next){
+        DropoutLayer merged = new DropoutLayer(1.0 - (1.0 - p) * (1.0 - next.p), seed ^ next.seed);
+        if(nI != null)
+            merged.setDimsOfInputsWOE(nI);
+        return merged;
+    }
+
+    /**
+     * SplitMix64 finalizer, see "Fast Splittable Pseudorandom Number
+     * Generators" by Steele, Lea and Flood.
+     * @param z Value to mix.
+     * @return Mixed value.
+     */
+    private static long mix(long z){
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -1,5 +1,7 @@
 package layer.subsampling;
 
+import core.inference.InferenceOp;
+import core.inference.MeanPooling2DOp;
 import layer.Layer;
 import org.apache.log4j.Logger;
 import tensor.DoubleTensor;
@@ -145,17 +147,8 @@ public class MeanPooling2DLayer extends Layer{
      */
     @Override
     public void initSpaceInMemory(int numExamples){
-        if(output == null){
-            output = new DoubleTensor(oW, oH, nC, numExamples);
-            output.setPosToLast();
-            grad = new DoubleTensor(iW, iH, nC, numExamples);
-            grad.setPosToLast();
-        } else{ // if tensors already exists just resize.
-            output.resize(oW, oH, nC, numExamples);
-            output.setPos(oW * oH * nC * numExamples);
-            grad.resize(iW, iH, nC, numExamples);
-            grad.setPos(iW * iH * nC * numExamples);
-        }
+        output = prepare(output, sharedOutput, oW, oH, nC, numExamples);
+        grad = prepare(grad, sharedGrad, iW, iH, nC, numExamples);
     }
 
     /**
@@ -169,22 +162,37 @@ public class MeanPooling2DLayer extends Layer{
     @Override
     public DoubleTensor fProp(DoubleTensor input, boolean isTest) {
         this.input = input;
+        return pool(input, output);
+    }
 
-        if(input.dims.length == 3){
+    /**
+     * Pool given inputs into out, the layer is only read so it can be used
+     * by several threads at once.
+     * @param in Input Tensor: iW, iH, nC (optional if 1), examples.
+     * @param out Where to store the result: oW, oH, nC, examples.
+     * @return Output tensor (out).
+     */
+    public DoubleTensor pool(DoubleTensor in, DoubleTensor out){
+        if(in.dims.length == 3){
             int[] ndims = new int[4];
-            ndims[0] = input.dims[0];
-            ndims[1] = input.dims[1];
+            ndims[0] = in.dims[0];
+            ndims[1] = in.dims[1];
             ndims[2] = 1;
-            ndims[3] = input.dims[2];
+            ndims[3] = in.dims[2];
 
-            input.dims = ndims;
+            in.dims = ndims;
         }
 
         // pool2D
         return pool2D(
-            input, sW, sH,
-            output, nC, oW, oH,
-            pW, pH, input.lastDim());
+            in, sW, sH,
+            out, nC, oW, oH,
+            pW, pH, in.lastDim());
+    }
+
+    @Override
+    public InferenceOp toInferenceOp() {
+        return new MeanPooling2DOp(this);
     }
 
     /**
@@ -1,5 +1,6 @@
 package layer.weight;
 
+import layer.activation.ActivationFunction;
 import tensor.DoubleTensor;
 
 /**
@@ -48,6 +49,40 @@ public class ConvBruteForce {
             DoubleTensor out, int nK, int oW, int oH,
             DoubleTensor bias,
             int eN){
+        return fwdFilter(in, iW, iH, sW, sH, kernel, nC, kW, kH, out, nK, oW, oH,
+                bias, eN, null, false);
+    }
+
+    /**
+     * Cross correlation as fwdFilter, also applying an activation to every
+     * output element as soon as it is complete (i.e., the activation is
+     * fused, there is no second pass over the outputs).
+     *
+     * @param in Input tensor.
+     * @param iW Input Width.
+     * @param iH Input Height.
+     * @param sW Stride Width.
+     * @param sH Stride Height.
+     * @param kernel Kernels (weights of convolutional layer).
+     * @param nC Number of channels.
+     * @param kW Kernel Width.
+     * @param kH Kernel Height.
+     * @param out Output Tensor.
+     * @param nK Number of Kernels
+     * @param oW Output width.
+     * @param oH Output height.
+     * @param bias Bias that will be added to cross correlated result.
+     * @param eN Number of examples.
+     * @param activation Activation applied to outputs, null if none.
+     * @param isTest Whether test data is running.
+     * @return Output tensor.
+     */
+    public static DoubleTensor fwdFilter(
+            DoubleTensor in, int iW, int iH, int sW, int sH,
+            DoubleTensor kernel, int nC, int kW, int kH,
+            DoubleTensor out, int nK, int oW, int oH,
+            DoubleTensor bias,
+            int eN, ActivationFunction activation, boolean isTest){
         int[] indInput, indFilter;
         int iIn, iF, iO = 0;
         // Input Dims: iW,iH,nC,e
@@ -88,6 +123,8 @@ public class ConvBruteForce {
                                 }
                             }
                         }
+                        if(activation != null)
+                            out.setQuick(iO, activation.forward(out.getQuick(iO), isTest));
                         iO++;
                     }
                 }
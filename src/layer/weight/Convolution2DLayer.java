@@ -1,6 +1,10 @@
 package layer.weight;
 
+import core.inference.Conv2DOp;
+import core.inference.InferenceOp;
+import core.inference.QuantizedConv2DOp;
 import init.Initialization;
+import layer.activation.ActivationFunction;
 import tensor.DoubleTensor;
 import org.apache.log4j.Logger;
 
@@ -154,17 +158,8 @@ public class Convolution2DLayer extends WeightLayer {
 
     @Override
     public void initSpaceInMemory(int numExamples){
-        if(output == null){
-            output = new DoubleTensor(oW, oH, nK, numExamples);
-            output.setPosToLast();
-            grad = new DoubleTensor(iW, iH, nC, numExamples);
-            grad.setPosToLast();
-        } else{
-            output.resize(oW, oH, nK, numExamples);
-            output.setPos(oW * oH * nK * numExamples);
-            grad.resize(iW, iH, nC, numExamples);
-            grad.setPos(iW * iH * nC * numExamples);
-        }
+        output = prepare(output, sharedOutput, oW, oH, nK, numExamples);
+        grad = prepare(grad, sharedGrad, iW, iH, nC, numExamples);
     }
 
     @Override
@@ -172,39 +167,74 @@ public class Convolution2DLayer extends WeightLayer {
         return (kW * kH * nC + 1) * nK;
     }
 
+    @Override
+    public boolean supportsFusedActivation(){
+        return true;
+    }
+
     @Override
     public DoubleTensor fProp(DoubleTensor input, boolean isTest) {
         this.input = input;
+        if(cfft == null && method != ConvolveMethod.CONV2D)
+            cfft = new ConvFFT();
+        return convolve(input, output, cfft, fusedActivation, isTest);
+    }
 
-        if(input.dims.length == 3){
+    /**
+     * Cross correlate inputs with the kernels, add bias and apply activation.
+     * With CONV2D the activation is applied to each output as soon as it is
+     * calculated, with FFT it takes another pass over the outputs.
+     * Only reads the parameters of the layer, any state is in fft, thus it
+     * can be used by several threads with different fft objects.
+     * @param in Inputs: iW, iH, nC (optional if 1), examples.
+     * @param out Where to store outputs: oW, oH, nK, examples.
+     * @param fft State for FFT method (not used by CONV2D).
+     * @param activation Activation to apply to the outputs, null if none.
+     * @param isTest Whether test data is running.
+     * @return Output tensor (out).
+     */
+    public DoubleTensor convolve(DoubleTensor in, DoubleTensor out, ConvFFT fft,
+            ActivationFunction activation, boolean isTest){
+        if(in.dims.length == 3){
             int[] ndims = new int[4];
-            ndims[0] = input.dims[0];
-            ndims[1] = input.dims[1];
+            ndims[0] = in.dims[0];
+            ndims[1] = in.dims[1];
             ndims[2] = 1;
-            ndims[3] = input.dims[2];
+            ndims[3] = in.dims[2];
 
-            input.dims = ndims;
+            in.dims = ndims;
         }
         if(method == ConvolveMethod.CONV2D){
             // input size = nC, iH, iW, examples
-            DoubleTensor res = ConvBruteForce.fwdFilter(
-                input, iW, iH, sW, sH,
+            ConvBruteForce.fwdFilter(
+                in, iW, iH, sW, sH,
                 weights, nC, kW, kH,
-                output, nK, oW, oH,
+                out, nK, oW, oH,
                 bias,
-                input.lastDim());
-            return res;
+                in.lastDim(), activation, isTest);
         } else { // FFT
-            if(cfft == null)
-                cfft = new ConvFFT();
-            cfft.fwdFilter(input, iW, iH, sW, sH, weights, nC, kW, kH,
-                    output, nK, oW, oH, bias, input.lastDim());
-            return output;
+            fft.fwdFilter(in, iW, iH, sW, sH, weights, nC, kW, kH,
+                    out, nK, oW, oH, bias, in.lastDim());
+            // outputs are only complete after adding all overlapping patches
+            activate(activation, out, isTest);
         }
+        return out;
+    }
+
+    @Override
+    public InferenceOp toInferenceOp(ActivationFunction activation) {
+        return new Conv2DOp(this, activation);
+    }
+
+    @Override
+    public InferenceOp toQuantizedOp(ActivationFunction activation, double inScale) {
+        return new QuantizedConv2DOp(weights, bias,
+                new int[]{nC, iW, iH, kW, kH, sW, sH, nK, oW, oH}, activation, inScale);
     }
 
     @Override
     public DoubleTensor bProp(DoubleTensor chainGrad) {
+        chainGrad = fusedChainGrad(chainGrad);
         if(method == ConvolveMethod.CONV2D){
             // chainGrad size = nK, oH, oW, examples
             grad = ConvBruteForce.bwdFilter(
@@ -222,6 +252,7 @@ public class Convolution2DLayer extends WeightLayer {
 
     @Override
     public void updateLayerWGrad(DoubleTensor chainGrad) {
+        chainGrad = backpropFusedActivation(chainGrad);
         if(method == ConvolveMethod.CONV2D){
             // input size = nC, iH, iW, examples
 
@@ -0,0 +1,284 @@
+package layer.weight;
+
+import core.inference.EmbeddingOp;
+import core.inference.InferenceOp;
+import init.Initialization;
+import java.util.Arrays;
+import layer.activation.ActivationFunction;
+import optim.ActiveRanges;
+import org.apache.log4j.Logger;
+import tensor.DoubleTensor;
+
+/**
+ * Embedding layer: takes integer category ids (stored as doubles) and looks up
+ * a dense vector of size eD for each one. It is an alternative to the
+ * Indicator or Binary transformations of categorical variables when there
+ * are many categories (thousands of levels), since the input is a single
+ * number per categorical variable and similar categories end up with similar
+ * vectors.
+ *
+ * Weights have dimensions eD x nCat, so the vector (row of the embedding
+ * table) of each category is stored contiguously. There is no bias (bias has
+ * size zero).
+ *
+ * The gradient is sparse: only rows of categories that appear in the batch
+ * are written. The rows written in the previous batch are zeroed before
+ * accumulating, so rows not in the batch are always zero. Those rows are
+ * reported through addActiveGradRanges so updaters only update touched rows,
+ * i.e., compute scales with batch size and not with the number of categories.
+ * Weight regularization (L1, L2) is thus only applied to the rows seen in the
+ * batch (see WeightRegularization.regularizedRanges), which keeps the rest of
+ * the gradient zero.
+ *
+ * Input dimensions (without examples) are the number of categorical variables
+ * nF, output dimensions are eD x nF.
+ * @author diego_paez
+ */
+public class EmbeddingLayer extends WeightLayer {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(EmbeddingLayer.class);
+
+    /**
+     * Number of categories (size of the embedding table).
+     */
+    protected int nCat;
+
+    /**
+     * Size of the vector of each category.
+     */
+    protected int eD;
+
+    /**
+     * Number of ids per example (number of categorical variables).
+     */
+    protected int nF;
+
+    /**
+     * Rows written during last call to updateLayerWGrad (sorted).
+     */
+    protected int[] touched;
+
+    /**
+     * Number of valid entries of touched.
+     */
+    protected int numTouched;
+
+    /**
+     * Last update in which each row was touched, avoids clearing a
+     * boolean array of size nCat in every update.
+     */
+    protected int[] lastTouched;
+
+    /**
+     * Counter of calls to updateLayerWGrad.
+     */
+    protected int updateCount;
+
+    /**
+     * Create embedding layer.
+     * @param init Initialization of the embedding table.
+     * @param numCategories Number of categories (ids go from 0 to
+     * numCategories - 1).
+     * @param embeddingDim Size of the vector of each category.
+     */
+    public EmbeddingLayer(Initialization init, int numCategories, int embeddingDim) {
+        this.init = init;
+        this.nCat = numCategories;
+        this.eD = embeddingDim;
+    }
+
+    @Override
+    public void setDimsOfInputsWOE(int... inputs) {
+        nI = inputs;
+        nF = 1;
+        for(int i = 0; i < nI.length; i++){
+            nF *= inputs[i];
+        }
+    }
+
+    @Override
+    public int[] getDimsOfOutputsWOE() {
+        return new int[]{eD, nF};
+    }
+
+    @Override
+    public void initParams() {
+        bias = new DoubleTensor(0);
+        biasGrad = new DoubleTensor(0);
+
+        // each lookup has a single input
+        weights = new DoubleTensor(init.initWeights(1, eD, new int[]{eD, nCat}),
+                new int[]{eD, nCat});
+        weightsGrad = new DoubleTensor(weights.dims);
+        weightsGrad.setPosToLast();
+
+        lastTouched = new int[nCat];
+        Arrays.fill(lastTouched, -1);
+        numTouched = 0;
+        updateCount = 0;
+    }
+
+    @Override
+    public void initSpaceInMemory(int numExamples){
+        int[] ins = new int[nI.length + 1];
+        System.arraycopy(nI, 0, ins, 0, nI.length);
+        ins[nI.length] = numExamples;
+
+        output = prepare(output, sharedOutput, eD, nF, numExamples);
+        grad = prepare(grad, sharedGrad, ins);
+
+        if(touched == null || touched.length < nF * numExamples){
+            touched = new int[nF * numExamples];
+        }
+    }
+
+    @Override
+    public int getNumberOfParams() {
+        return eD * nCat;
+    }
+
+    /**
+     * Copy the row of each id into the output.
+     * @param input Ids of categories, dims nF x examples.
+     * @param isTest Whether test or training data (not used).
+     * @return Embedded ids, dims eD x nF x examples.
+     */
+    @Override
+    public DoubleTensor fProp(DoubleTensor input, boolean isTest) {
+        this.input = input;
+        return embed(input, output);
+    }
+
+    /**
+     * Copy the row of each id into out. The layer is only read, so it can be
+     * used by several threads at once.
+     * @param input Ids of categories, dims nF x examples.
+     * @param output Where to store embedded ids, dims eD x nF x examples.
+     * @return Output tensor (output).
+     */
+    public DoubleTensor embed(DoubleTensor input, DoubleTensor output) {
+        final int sz = input.size();
+        int id, o = 0, w;
+
+        for(int i = 0; i < sz; i++){
+            id = categoryId(input, i);
+            if(id < 0){
+                for(int j = 0; j < eD; j++, o++){
+                    output.setQuick(o, 0.0);
+                }
+                continue;
+            }
+            w = id * eD;
+            for(int j = 0; j < eD; j++, o++){
+                output.setQuick(o, weights.getQuick(w + j));
+            }
+        }
+
+        return output;
+    }
+
+    /**
+     * Ids are not differentiable, the gradient w.r. to inputs is zero.
+     * Usually this is the first layer and this method is not called.
+     * @param chainGrad Derivative of loss function w.r. to outputs.
+     * @return Zeros.
+     */
+    @Override
+    public DoubleTensor bProp(DoubleTensor chainGrad) {
+        for(int i = 0; i < grad.size(); i++){
+            grad.setQuick(i, 0.0);
+        }
+        return grad;
+    }
+
+    /**
+     * Zero rows written in previous update, then accumulate chainGrad into
+     * the row of each id in the batch.
+     * @param chainGrad Derivative of loss function w.r. to outputs.
+     */
+    @Override
+    public void updateLayerWGrad(DoubleTensor chainGrad) {
+        int w, id, c = 0;
+
+        // clear rows of previous update
+        for(int t = 0; t < numTouched; t++){
+            w = touched[t] * eD;
+            for(int j = 0; j < eD; j++){
+                weightsGrad.setQuick(w + j, 0.0);
+            }
+        }
+
+        updateCount++;
+        numTouched = 0;
+        final int sz = input.size();
+        for(int i = 0; i < sz; i++){
+            id = categoryId(input, i);
+            if(id < 0){
+                c += eD;
+                continue;
+            }
+            if(lastTouched[id] != updateCount){
+                lastTouched[id] = updateCount;
+                touched[numTouched++] = id;
+            }
+            w = id * eD;
+            for(int j = 0; j < eD; j++, c++){
+                weightsGrad.data.addQuick(w + j, chainGrad.getQuick(c));
+            }
+        }
+
+        // sorted rows give the updater contiguous, ordered ranges
+        Arrays.sort(touched, 0, numTouched);
+    }
+
+    @Override
+    public InferenceOp toInferenceOp(ActivationFunction activation) {
+        return new EmbeddingOp(this);
+    }
+
+    @Override
+    public boolean hasSparseGrad() {
+        return true;
+    }
+
+    /**
+     * Add one range per row touched in last update.
+     * @param ranges Where to add the ranges.
+     * @param weightsAddr Position of the first weight of this layer.
+     */
+    @Override
+    public void addActiveGradRanges(ActiveRanges ranges, int weightsAddr) {
+        int w;
+        for(int t = 0; t < numTouched; t++){
+            w = weightsAddr + touched[t] * eD;
+            ranges.add(w, w + eD);
+        }
+    }
+
+    /**
+     * Number of rows touched in last update.
+     * @return Number of rows.
+     */
+    public int getNumTouched(){
+        return numTouched;
+    }
+
+    /**
+     * Read the ith id of input tensor.
+     * @param input Input tensor.
+     * @param i Position.
+     * @return Id or -1 if the id is not a valid category.
+     */
+    private int categoryId(DoubleTensor input, int i){
+        int id = (int) input.getQuick(i);
+        if(id < 0 || id >= nCat){
+            LOG.error("Category id " + input.getQuick(i) + " out of range [0, "
+                    + nCat + "), embedded as zeros");
+            return -1;
+        }
+        return id;
+    }
+}
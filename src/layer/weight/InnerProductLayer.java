@@ -1,7 +1,14 @@
 package layer.weight;
 
+import core.inference.DenseOp;
+import core.inference.InferenceOp;
+import core.inference.QuantizedDenseOp;
+import core.inference.SparseDenseOp;
 import init.Initialization;
+import layer.activation.ActivationFunction;
+import org.jblas.NativeBlas;
 import tensor.DoubleTensor;
+import tensor.TensorFunctions;
 
 /**
  *
@@ -20,6 +27,13 @@ public class InnerProductLayer extends WeightLayer {
      */
     protected int nI1D;
 
+    /**
+     * Single precision copies used when mixedPrecision: weights and inputs
+     * of last fProp, chainGrad of last updateLayerWGrad (kept for bProp) and
+     * result of last product.
+     */
+    private float[] weightsF, inputF, chainGradF, productF;
+
     public InnerProductLayer(Initialization init, int numNeurons){
         super();
         this.init = init;
@@ -60,18 +74,8 @@ public class InnerProductLayer extends WeightLayer {
         System.arraycopy(nI, 0, ins, 0, nI.length);
         ins[nI.length] = numExamples;
 
-        if(output == null){
-            output = new DoubleTensor(nN,numExamples);
-            output.setPosToLast();
-
-            grad = new DoubleTensor(ins);
-            grad.setPosToLast();
-        } else{
-            output.resize(nN,numExamples);
-            output.setPos(nN * numExamples);
-            grad.resize(ins);
-            grad.setPos(nI1D * numExamples);
-        }
+        output = prepare(output, sharedOutput, nN, numExamples);
+        grad = prepare(grad, sharedGrad, ins);
     }
 
     @Override
@@ -79,6 +83,31 @@ public class InnerProductLayer extends WeightLayer {
         return (nI1D + 1) * nN;
     }
 
+    @Override
+    public boolean supportsMixedPrecision(){
+        return true;
+    }
+
+    @Override
+    public boolean supportsFusedActivation(){
+        return true;
+    }
+
+    @Override
+    public InferenceOp toInferenceOp(ActivationFunction activation) {
+        return new DenseOp(weights, bias, nI1D, nN, activation);
+    }
+
+    @Override
+    public InferenceOp toQuantizedOp(ActivationFunction activation, double inScale) {
+        return new QuantizedDenseOp(weights, bias, nI1D, nN, activation, inScale);
+    }
+
+    @Override
+    public InferenceOp toSparseOp(ActivationFunction activation) {
+        return new SparseDenseOp(weights, bias, nI1D, nN, activation);
+    }
+
     /**
      * Receives a DoubleTensor and reshapes it to be in 2D assuming first dim
      * are examples, then matrix multiplies by weights.
@@ -93,10 +122,17 @@ public class InnerProductLayer extends WeightLayer {
         int[] dims2d = DoubleTensor.shapeDims2d(input.dims);
         input.reshape(dims2d);
         
-        output = weights.mmuli(true, false, input,output);
+        if(mixedPrecision){
+            weightsF = TensorFunctions.toFloat(weights, weightsF);
+            inputF = TensorFunctions.toFloat(input, inputF);
+            output = mmulFloat('T', 'N', nN, dims2d[1], nI1D, weightsF, nI1D, inputF,
+                    nI1D, output);
+        } else{
+            output = weights.mmuli(true, false, input,output);
+        }
 
-        // add bias
-        output.addiLowerDimTensor(1, bias);
+        // add bias and apply fused activation in one pass
+        addBiasAndActivate(output, 1, nN, isTest);
         
         // reshape input to original dims
         input.reshape(dims);
@@ -107,11 +143,22 @@ public class InnerProductLayer extends WeightLayer {
     @Override
     public DoubleTensor bProp(DoubleTensor chainGrad) {
         // middle dim = number of outputs
-        return weights.mmuli(false,false,chainGrad,grad);
+        if(mixedPrecision)
+            return mmulFloat('N', 'N', nI1D, chainGrad.lastDim(), nN, weightsF, nI1D,
+                    chainGradF, nN, grad);
+        return weights.mmuli(false,false,fusedChainGrad(chainGrad),grad);
     }
 
     @Override
     public void updateLayerWGrad(DoubleTensor chainGrad) {
+        chainGrad = backpropFusedActivation(chainGrad);
+        if(mixedPrecision){
+            chainGradF = TensorFunctions.toFloat(chainGrad, chainGradF);
+            mmulFloat('N', 'T', nI1D, nN, chainGrad.lastDim(), inputF, nI1D, chainGradF, nN,
+                    weightsGrad);
+            chainGrad.byDimSumi(chainGrad.dims.length - 1, biasGrad);
+            return;
+        }
         int[] dims = input.dims;
         int[] dims2d = DoubleTensor.shapeDims2d(input.dims);
         input.reshape(dims2d);
@@ -125,5 +172,17 @@ public class InnerProductLayer extends WeightLayer {
         input.reshape(dims);
     }
 
-    
+    /**
+     * Single precision matrix multiplication C = op(A) * op(B) of column
+     * major matrices, C (m x n) is copied into store.
+     * @return store.
+     */
+    private DoubleTensor mmulFloat(char transA, char transB, int m, int n, int k, float[] a,
+            int lda, float[] b, int ldb, DoubleTensor store){
+        if(productF == null || productF.length < m * n)
+            productF = new float[m * n];
+        NativeBlas.sgemm(transA, transB, m, n, k, 1.0f, a, 0, lda, b, 0, ldb, 0.0f,
+                productF, 0, m);
+        return TensorFunctions.fromFloat(productF, m * n, store);
+    }
 }
@@ -0,0 +1,390 @@
+package layer.weight;
+
+import core.inference.InferenceOp;
+import core.inference.SeparableConv2DOp;
+import init.Initialization;
+import layer.activation.ActivationFunction;
+import org.apache.log4j.Logger;
+import org.jblas.NativeBlas;
+import tensor.DoubleTensor;
+
+/**
+ * Depthwise separable 2D convolution, see "MobileNets: Efficient Convolutional
+ * Neural Networks for Mobile Vision Applications" by Howard et al. A kW x kH
+ * kernel is cross correlated with each channel separately (depthwise), then a
+ * 1 x 1 convolution mixes channels (pointwise). Compared to Convolution2DLayer
+ * parameters and operations go from kW * kH * nC * nK to
+ * kW * kH * nC + nC * nK.
+ *
+ * The depthwise part is a direct kernel that works on a whole plane per
+ * channel and example, iterating over the kernel taps in the outer loops so
+ * that the inner loop runs over contiguous rows. Its result is stored channel
+ * interleaved (nC x oW * oH * examples) so that the pointwise part is a single
+ * matrix multiplication over the whole batch. The bias is only added after the
+ * pointwise part (a depthwise bias followed by a linear pointwise part is
+ * equivalent to a pointwise bias).
+ *
+ * Weights are a 1 dimensional tensor, first the depthwise kernels (kW, kH, nC)
+ * then the pointwise weights (nC, nK). Input and output dimensions are as in
+ * Convolution2DLayer: width, height, channels, examples.
+ * @author diego_paez
+ */
+public class SeparableConvolution2DLayer extends WeightLayer {
+
+    private static final Logger log = Logger.getLogger(SeparableConvolution2DLayer.class);
+
+    // number of channels
+    protected int nC;
+
+    // number of kernels (output channels)
+    protected int nK;
+
+    // input width
+    protected int iW;
+
+    // input height
+    protected int iH;
+
+    // kernel width
+    protected int kW;
+
+    // kernel height
+    protected int kH;
+
+    // output width
+    protected int oW;
+
+    // output height
+    protected int oH;
+
+    // stride
+    protected int sW;
+    protected int sH;
+
+    // number of depthwise weights = kW * kH * nC
+    protected int nDW;
+
+    // number of examples of last forward propagation
+    protected int eN;
+
+    // depthwise result, channel interleaved: nC x oW * oH x examples
+    private double[] dt;
+
+    // pointwise result before reordering: nK x oW * oH x examples
+    private double[] y;
+
+    // chainGrad reordered channel interleaved: nK x oW * oH x examples
+    private double[] gt;
+
+    // derivative w.r. to depthwise result: nC x oW * oH x examples
+    private double[] dDt;
+
+    // one output plane: oW x oH
+    private double[] plane;
+
+    public SeparableConvolution2DLayer(Initialization init, int numFilters, int kW, int kH) {
+        this(init, numFilters, kW, kH, 1, 1);
+    }
+
+    public SeparableConvolution2DLayer(Initialization init, int numFilters, int kW, int kH,
+            int sW, int sH) {
+        this.init = init;
+        this.nK = numFilters;
+        this.kW = kW;
+        this.kH = kH;
+        this.sW = sW;
+        this.sH = sH;
+    }
+
+    @Override
+    public void setDimsOfInputsWOE(int... inputs) {
+        if(inputs.length != 3 && inputs.length != 2){
+            log.error("Expected 3 or 2 inputs: channel(o), input width, input height");
+            return;
+        }
+
+        iW = inputs[0];
+        iH = inputs[1];
+
+        if((iW - Math.max(kW, sW)) % sW != 0){
+            log.error("The specified stride does not allow to cross correlate the width correctly");
+            return;
+        }
+        if((iH - Math.max(kH, sH)) % sH != 0){
+            log.error("The specified stride does not allow to cross correlate the height correctly");
+            return;
+        }
+
+        oW = (iW - Math.max(kW,sW)) / sW + 1;
+        oH = (iH - Math.max(kH,sH)) / sH + 1;
+
+        if(inputs.length == 2){
+            nI = new int[]{iW,iH,1};
+            nC = 1;
+        } else{
+            nI = inputs;
+            nC = inputs[2];
+        }
+        nDW = kW * kH * nC;
+    }
+
+    @Override
+    public int[] getDimsOfOutputsWOE() {
+        return new int[]{oW, oH, nK};
+    }
+
+    @Override
+    public void initParams() {
+        bias = new DoubleTensor(init.initBias(nK), nK);
+        biasGrad = new DoubleTensor(bias.dims);
+        biasGrad.setPosToLast();
+
+        double[] depthwise = init.initWeights(kW * kH, 1, new int[]{kW, kH, nC});
+        double[] pointwise = init.initWeights(nC, nK, new int[]{nC, nK});
+        double[] all = new double[nDW + nC * nK];
+        System.arraycopy(depthwise, 0, all, 0, nDW);
+        System.arraycopy(pointwise, 0, all, nDW, nC * nK);
+
+        weights = new DoubleTensor(all, all.length);
+        weightsGrad = new DoubleTensor(weights.dims);
+        weightsGrad.setPosToLast();
+    }
+
+    @Override
+    public void initSpaceInMemory(int numExamples){
+        output = prepare(output, sharedOutput, oW, oH, nK, numExamples);
+        grad = prepare(grad, sharedGrad, iW, iH, nC, numExamples);
+
+        int P = oW * oH;
+        if(dt == null || dt.length < nC * P * numExamples){
+            dt = new double[nC * P * numExamples];
+            dDt = new double[nC * P * numExamples];
+            y = new double[nK * P * numExamples];
+            gt = new double[nK * P * numExamples];
+            plane = new double[P];
+        }
+    }
+
+    @Override
+    public int getNumberOfParams() {
+        return nDW + (nC + 1) * nK;
+    }
+
+    @Override
+    public boolean supportsFusedActivation(){
+        return true;
+    }
+
+    @Override
+    public DoubleTensor fProp(DoubleTensor input, boolean isTest) {
+        this.input = input;
+        eN = input.lastDim();
+        return separable(input, output, dt, y, plane, fusedActivation, isTest);
+    }
+
+    /**
+     * Scratch arrays needed by separable for up to maxBatch examples.
+     * @param maxBatch Maximum number of examples.
+     * @return Arrays dt, y and plane.
+     */
+    public double[][] createForwardWorkspace(int maxBatch){
+        int P = oW * oH;
+        return new double[][]{new double[nC * P * maxBatch], new double[nK * P * maxBatch],
+            new double[P]};
+    }
+
+    /**
+     * Forward propagate given inputs using given scratch arrays, the layer is
+     * only read so it can be used by several threads at once.
+     * @param input Inputs: iW, iH, nC (optional if 1), examples.
+     * @param output Where to store outputs: oW, oH, nK, examples.
+     * @param dt Depthwise result (nC x oW * oH x examples).
+     * @param y Pointwise result (nK x oW * oH x examples).
+     * @param plane One output plane.
+     * @param activation Activation to apply to the outputs, null if none.
+     * @param isTest Whether test data is running.
+     * @return Output tensor (output).
+     */
+    public DoubleTensor separable(DoubleTensor input, DoubleTensor output, double[] dt,
+            double[] y, double[] plane, ActivationFunction activation, boolean isTest) {
+        if(input.dims.length == 3){
+            input.dims = new int[]{input.dims[0], input.dims[1], 1, input.dims[2]};
+        }
+        final int eN = input.lastDim();
+
+        final int P = oW * oH;
+        final int iP = iW * iH;
+        double[] in = input.data.getData();
+        double[] w = weights.data.getData();
+        final int inOff = input.data.getOffset(), wo = weights.data.getOffset();
+        double wv;
+        int inBase, inRow, outRow;
+
+        // depthwise: cross correlate each plane with the kernel of its channel
+        for(int e = 0; e < eN; e++){
+            for(int c = 0; c < nC; c++){
+                inBase = inOff + iP * (c + nC * e);
+                for(int p = 0; p < P; p++){
+                    plane[p] = 0.0;
+                }
+                for(int ky = 0; ky < kH; ky++){
+                    for(int kx = 0; kx < kW; kx++){
+                        wv = w[wo + kx + kW * (ky + kH * c)];
+                        for(int oy = 0; oy < oH; oy++){
+                            inRow = inBase + (oy * sH + ky) * iW + kx;
+                            outRow = oy * oW;
+                            for(int ox = 0; ox < oW; ox++){
+                                plane[outRow + ox] += wv * in[inRow + ox * sW];
+                            }
+                        }
+                    }
+                }
+                // store channel interleaved
+                for(int p = 0, d = c + nC * P * e; p < P; p++, d += nC){
+                    dt[d] = plane[p];
+                }
+            }
+        }
+
+        // pointwise: single matrix multiplication for the whole batch
+        NativeBlas.dgemm('T', 'N', nK, P * eN, nC, 1.0, w, wo + nDW, nC,
+                dt, 0, nC, 0.0, y, 0, nK);
+
+        // reorder to oW, oH, nK, examples, add bias and apply fused activation
+        for(int e = 0; e < eN; e++){
+            for(int k = 0; k < nK; k++){
+                double b = bias.getQuick(k);
+                int o = P * (k + nK * e);
+                if(activation == null){
+                    for(int p = 0, s = k + nK * P * e; p < P; p++, s += nK){
+                        output.setQuick(o + p, y[s] + b);
+                    }
+                } else{
+                    for(int p = 0, s = k + nK * P * e; p < P; p++, s += nK){
+                        output.setQuick(o + p, activation.forward(y[s] + b, isTest));
+                    }
+                }
+            }
+        }
+
+        return output;
+    }
+
+    @Override
+    public InferenceOp toInferenceOp(ActivationFunction activation) {
+        return new SeparableConv2DOp(this, activation);
+    }
+
+    /**
+     * Calculates derivatives w.r. to pointwise weights, bias and depthwise
+     * kernels. Derivative w.r. to the depthwise result is kept for bProp.
+     * @param chainGrad Derivative of loss w.r. to outputs: oW, oH, nK, examples.
+     */
+    @Override
+    public void updateLayerWGrad(DoubleTensor chainGrad) {
+        chainGrad = backpropFusedActivation(chainGrad);
+        final int P = oW * oH;
+        final int iP = iW * iH;
+        double[] in = input.data.getData();
+        double[] w = weights.data.getData();
+        final int inOff = input.data.getOffset(), wo = weights.data.getOffset();
+        double[] wg = weightsGrad.data.getData();
+        final int wgo = weightsGrad.data.getOffset();
+        double acc, b;
+        int inBase, inRow, outRow;
+
+        // reorder chainGrad channel interleaved and sum bias
+        for(int k = 0; k < nK; k++){
+            biasGrad.setQuick(k, 0.0);
+        }
+        for(int e = 0; e < eN; e++){
+            for(int k = 0; k < nK; k++){
+                b = 0.0;
+                int s = P * (k + nK * e);
+                for(int p = 0, d = k + nK * P * e; p < P; p++, d += nK){
+                    gt[d] = chainGrad.getQuick(s + p);
+                    b += gt[d];
+                }
+                biasGrad.data.addQuick(k, b);
+            }
+        }
+
+        // pointwise weights: dt * gt^T
+        NativeBlas.dgemm('N', 'T', nC, nK, P * eN, 1.0, dt, 0, nC,
+                gt, 0, nK, 0.0, wg, wgo + nDW, nC);
+
+        // derivative w.r. to depthwise result: pw * gt
+        NativeBlas.dgemm('N', 'N', nC, P * eN, nK, 1.0, w, wo + nDW, nC,
+                gt, 0, nK, 0.0, dDt, 0, nC);
+
+        // depthwise kernels
+        for(int i = 0; i < nDW; i++){
+            wg[wgo + i] = 0.0;
+        }
+        for(int e = 0; e < eN; e++){
+            for(int c = 0; c < nC; c++){
+                inBase = inOff + iP * (c + nC * e);
+                for(int p = 0, d = c + nC * P * e; p < P; p++, d += nC){
+                    plane[p] = dDt[d];
+                }
+                for(int ky = 0; ky < kH; ky++){
+                    for(int kx = 0; kx < kW; kx++){
+                        acc = 0.0;
+                        for(int oy = 0; oy < oH; oy++){
+                            inRow = inBase + (oy * sH + ky) * iW + kx;
+                            outRow = oy * oW;
+                            for(int ox = 0; ox < oW; ox++){
+                                acc += plane[outRow + ox] * in[inRow + ox * sW];
+                            }
+                        }
+                        wg[wgo + kx + kW * (ky + kH * c)] += acc;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Derivative w.r. to inputs, uses derivative w.r. to depthwise result
+     * calculated in updateLayerWGrad.
+     * @param chainGrad Derivative of loss w.r. to outputs (already used).
+     * @return Derivative of loss w.r. to inputs.
+     */
+    @Override
+    public DoubleTensor bProp(DoubleTensor chainGrad) {
+        final int P = oW * oH;
+        final int iP = iW * iH;
+        double[] w = weights.data.getData();
+        double[] g = grad.data.getData();
+        final int wo = weights.data.getOffset();
+        final int go = grad.data.getOffset();
+        double wv;
+        int inBase, inRow, outRow;
+
+        for(int i = 0; i < iP * nC * eN; i++){
+            g[go + i] = 0.0;
+        }
+
+        for(int e = 0; e < eN; e++){
+            for(int c = 0; c < nC; c++){
+                inBase = go + iP * (c + nC * e);
+                for(int p = 0, d = c + nC * P * e; p < P; p++, d += nC){
+                    plane[p] = dDt[d];
+                }
+                for(int ky = 0; ky < kH; ky++){
+                    for(int kx = 0; kx < kW; kx++){
+                        wv = w[wo + kx + kW * (ky + kH * c)];
+                        for(int oy = 0; oy < oH; oy++){
+                            inRow = inBase + (oy * sH + ky) * iW + kx;
+                            outRow = oy * oW;
+                            for(int ox = 0; ox < oW; ox++){
+                                g[inRow + ox * sW] += wv * plane[outRow + ox];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return grad;
+    }
+}
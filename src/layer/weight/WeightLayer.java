@@ -1,7 +1,16 @@
 package layer.weight;
 
+import core.inference.InferenceOp;
+import core.inference.LayerOp;
 import init.Initialization;
 import layer.Layer;
+import layer.activation.ActivationFunction;
+import layer.activation.Identity;
+import layer.activation.LeakyReLU;
+import layer.activation.ReLU;
+import layer.activation.Sigmoid;
+import layer.activation.Tanh;
+import optim.ActiveRanges;
 import tensor.DoubleTensor;
 
 /**
@@ -15,14 +24,282 @@ public abstract class WeightLayer extends Layer{
     public DoubleTensor biasGrad;
     public DoubleTensor weightsGrad;
 
-    // Address for weights when packed as a whole
+    // Address for weights (bias first) when packed as a whole, see bindParams
     protected int initAddr;
     
     // Initialization scheme
     protected Initialization init;
 
+    // Activation fused into this layer (see NeuralNetModel.optimizeGraph), null if none
+    protected ActivationFunction fusedActivation;
+
+    // Derivative of loss w.r. to outputs before the fused activation
+    protected DoubleTensor fusedGrad;
+
+    // Whether products run in single precision, see NeuralNetModel.useMixedPrecision
+    protected boolean mixedPrecision;
+
     public abstract void initParams();
     public abstract int getNumberOfParams();
     public abstract void updateLayerWGrad(DoubleTensor chainGrad);
 
+    /**
+     * Make bias, weights and their gradients views of the arrays holding all
+     * parameters (and gradients) of the net, so that the optimizer updates
+     * the layer in place and gradients are written directly where the
+     * optimizer reads them. Bias goes first, then weights. Current values are
+     * copied into the arrays.
+     * @param theta Array with all parameters of the net.
+     * @param thetaGrad Array with all gradients of the net.
+     * @param addr Position of the first parameter of this layer.
+     * @return Position after the last parameter of this layer.
+     */
+    public int bindParams(double[] theta, double[] thetaGrad, int addr){
+        initAddr = addr;
+        bias = bind(bias, theta, addr);
+        biasGrad = bind(biasGrad, thetaGrad, addr);
+        addr += bias.size();
+        weights = bind(weights, theta, addr);
+        weightsGrad = bind(weightsGrad, thetaGrad, addr);
+        return addr + weights.size();
+    }
+
+    /**
+     * Copy a tensor into buffer from addr and return a view of it.
+     * @param t Tensor to bind.
+     * @param buffer Array where the tensor is going to live.
+     * @param addr Position of the first entry.
+     * @return View of buffer with the dimensions of t.
+     */
+    private static DoubleTensor bind(DoubleTensor t, double[] buffer, int addr){
+        if(t.data.getData() == buffer && t.data.getOffset() == addr)
+            return t;
+        final int sz = t.size();
+        for(int i = 0; i < sz; i++){
+            buffer[addr + i] = t.getQuick(i);
+        }
+        return DoubleTensor.view(buffer, addr, t.dims);
+    }
+
+    /**
+     * Whether updateLayerWGrad only writes part of weightsGrad (e.g., an
+     * embedding only writes the rows of the categories seen in the batch).
+     * @return True if the gradient of the weights is sparse.
+     */
+    public boolean hasSparseGrad(){
+        return false;
+    }
+
+    /**
+     * Add to ranges the parts of weightsGrad written in last call to
+     * updateLayerWGrad. By default all weights.
+     * @param ranges Where to add the ranges.
+     * @param weightsAddr Position of the first weight (not bias) of this layer
+     * when all parameters are packed as a whole.
+     */
+    public void addActiveGradRanges(ActiveRanges ranges, int weightsAddr){
+        ranges.add(weightsAddr, weightsAddr + weights.size());
+    }
+
+    /**
+     * Whether the layer can apply an activation function to its outputs
+     * itself, i.e., whether the following activation layer can be fused into
+     * this one.
+     * @return True if an activation can be fused.
+     */
+    public boolean supportsFusedActivation(){
+        return false;
+    }
+
+    /**
+     * A fused activation evaluates its derivative at the outputs.
+     * @return Whether an activation is fused.
+     */
+    @Override
+    public boolean needsOutputForBackward(){
+        return fusedActivation != null;
+    }
+
+    /**
+     * Operation running this layer followed by its fused activation.
+     * @return Inference operation.
+     */
+    @Override
+    public InferenceOp toInferenceOp(){
+        return toInferenceOp(fusedActivation);
+    }
+
+    /**
+     * Operation running this layer followed by given activation. Layers that
+     * support fused activations override this method with a dedicated
+     * operation, by default the layer itself is run (ignoring activation).
+     * @param activation Activation applied to outputs (any activation can be
+     * used since its derivative is not needed), null if none.
+     * @return Inference operation.
+     */
+    public InferenceOp toInferenceOp(ActivationFunction activation){
+        return new LayerOp(this);
+    }
+
+    /**
+     * Operation running this layer with int8 weights and inputs followed by
+     * given activation (see NeuralNetModel.compileQuantized).
+     * @param activation Activation applied to outputs, null if none.
+     * @param inScale Scale of the inputs, calibrated on sample data.
+     * @return Quantized operation, null if the layer has none.
+     */
+    public InferenceOp toQuantizedOp(ActivationFunction activation, double inScale){
+        return null;
+    }
+
+    /**
+     * Operation running this layer with its weights in a sparse format (for
+     * pruned weights, see core.MagnitudePruner) followed by given
+     * activation.
+     * @param activation Activation applied to outputs, null if none.
+     * @return Sparse operation, null if the layer has none.
+     */
+    public InferenceOp toSparseOp(ActivationFunction activation){
+        return null;
+    }
+
+    /**
+     * Whether the layer can compute its products (forward, backward and
+     * gradient of the weights) in single precision.
+     * @return True if mixed precision is supported.
+     */
+    public boolean supportsMixedPrecision(){
+        return false;
+    }
+
+    /**
+     * Compute products in single precision, weights and their gradient are
+     * still stored in double precision. Ignored if the layer does not support
+     * it.
+     * @param mixed Whether to use single precision.
+     */
+    public void setMixedPrecision(boolean mixed){
+        this.mixedPrecision = mixed && supportsMixedPrecision();
+    }
+
+    /**
+     * Whether products are computed in single precision.
+     * @return True if mixed precision is used.
+     */
+    public boolean isMixedPrecision(){
+        return mixedPrecision;
+    }
+
+    /**
+     * Whether an activation function can be fused into a weight layer. Only
+     * activations whose derivative can be calculated from the output are
+     * fused (the input of the activation is not kept) and which are
+     * deterministic.
+     * @param f Activation function.
+     * @return True if it can be fused.
+     */
+    public static boolean isFusable(ActivationFunction f){
+        return f instanceof ReLU || f instanceof LeakyReLU || f instanceof Sigmoid
+                || f instanceof Tanh || f instanceof Identity;
+    }
+
+    /**
+     * Apply given activation to the outputs of this layer, the activation
+     * layer that followed this one is no longer needed.
+     * @param f Activation function to fuse.
+     */
+    public void fuseActivation(ActivationFunction f){
+        this.fusedActivation = f;
+    }
+
+    /**
+     * Get activation fused into this layer.
+     * @return Fused activation, null if none.
+     */
+    public ActivationFunction getFusedActivation(){
+        return fusedActivation;
+    }
+
+    /**
+     * Add bias and apply the fused activation (if any) in a single pass over
+     * outputs with dimensions plane x channels x examples, where bias has
+     * one entry per channel.
+     * @param out Outputs of this layer.
+     * @param plane Number of outputs per channel and example.
+     * @param channels Number of channels (size of bias).
+     * @param isTest Whether test data is running.
+     */
+    protected void addBiasAndActivate(DoubleTensor out, int plane, int channels, boolean isTest){
+        final int examples = out.size() / (plane * channels);
+        double b;
+        int o = 0;
+        for(int e = 0; e < examples; e++){
+            for(int k = 0; k < channels; k++){
+                b = bias.getQuick(k);
+                if(fusedActivation == null){
+                    for(int p = 0; p < plane; p++, o++){
+                        out.data.addQuick(o, b);
+                    }
+                } else{
+                    for(int p = 0; p < plane; p++, o++){
+                        out.setQuick(o, fusedActivation.forward(out.getQuick(o) + b, isTest));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply an activation in place to a tensor.
+     * @param f Activation function, nothing is done if null.
+     * @param t Tensor.
+     * @param isTest Whether test data is running.
+     */
+    protected static void activate(ActivationFunction f, DoubleTensor t, boolean isTest){
+        if(f == null)
+            return;
+        final int sz = t.size();
+        for(int i = 0; i < sz; i++){
+            t.setQuick(i, f.forward(t.getQuick(i), isTest));
+        }
+    }
+
+    /**
+     * Derivative of loss w.r. to outputs before the fused activation. Must be
+     * called at the beginning of updateLayerWGrad, result is kept for bProp
+     * (see fusedChainGrad).
+     * @param chainGrad Derivative of loss w.r. to outputs of this layer.
+     * @return chainGrad if there is no fused activation, else chainGrad times
+     * derivative of the activation.
+     */
+    protected DoubleTensor backpropFusedActivation(DoubleTensor chainGrad){
+        if(fusedActivation == null)
+            return chainGrad;
+
+        final int sz = chainGrad.size();
+        if(fusedGrad == null){
+            fusedGrad = new DoubleTensor(chainGrad.copyDims());
+            fusedGrad.setPosToLast();
+        } else{
+            fusedGrad.resize(chainGrad.dims);
+            fusedGrad.setPos(sz);
+        }
+
+        double oi;
+        for(int i = 0; i < sz; i++){
+            oi = output.getQuick(i);
+            fusedGrad.setQuick(i, fusedActivation.derivative(oi, oi) * chainGrad.getQuick(i));
+        }
+        return fusedGrad;
+    }
+
+    /**
+     * Derivative of loss w.r. to outputs before the fused activation, as
+     * calculated by backpropFusedActivation in last updateLayerWGrad.
+     * @param chainGrad Derivative of loss w.r. to outputs of this layer.
+     * @return chainGrad if there is no fused activation, else the kept result.
+     */
+    protected DoubleTensor fusedChainGrad(DoubleTensor chainGrad){
+        return fusedActivation == null ? chainGrad : fusedGrad;
+    }
 }
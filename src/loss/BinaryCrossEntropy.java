@@ -0,0 +1,76 @@
+package loss;
+
+import layer.Layer;
+import layer.activation.ActivationLayer;
+import layer.activation.Sigmoid;
+import tensor.DoubleTensor;
+import tensor.TensorFunctions;
+
+/**
+ * Binary cross entropy of outputs in (0, 1), each output is an independent
+ * binary target (several outputs per example for multi label problems):
+ *
+ * BCE = -sum(sW .* (y .* log(nnOut + eps) + (1 - y) .* log(1 - nnOut + eps)))
+ *
+ * where y are the targets (0 or 1), with the same dims as the outputs, and sW
+ * the weights of the examples (1 if not given).
+ * @author diego_paez
+ */
+public class BinaryCrossEntropy implements FusedLoss{
+
+    @Override
+    public double eval(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights) {
+        return evalWithGrad(output, y, yWeights, false, null);
+    }
+
+    /**
+     * grad BCE = -sW .* (y ./ (nnOut + eps) - (1 - y) ./ (1 - nnOut + eps))
+     */
+    @Override
+    public DoubleTensor bProp(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights) {
+        DoubleTensor grad = new DoubleTensor(output.copyDims());
+        grad.setPosToLast();
+        evalWithGrad(output, y, yWeights, false, grad);
+        return grad;
+    }
+
+    @Override
+    public boolean isAveraged() {
+        return false;
+    }
+
+    /**
+     * Absorbs a Sigmoid activation layer.
+     */
+    @Override
+    public boolean absorbs(Layer outputLayer) {
+        return outputLayer instanceof ActivationLayer
+                && ((ActivationLayer) outputLayer).activationFun instanceof Sigmoid;
+    }
+
+    /**
+     * When absorbing the Sigmoid the gradient w.r. to its inputs is
+     * sW .* (nnOut - y), which does not vanish when the sigmoid saturates.
+     */
+    @Override
+    public double evalWithGrad(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights,
+            boolean absorbed, DoubleTensor grad) {
+        final int n = output.lastDim();
+        final int nO = output.size() / n;
+        final double eps = TensorFunctions.smallConst;
+        double fun = 0.0, w, p, t;
+        for(int e = 0, i = 0; e < n; e++){
+            w = yWeights == null ? 1.0 : yWeights.getQuick(e);
+            for(int k = 0; k < nO; k++, i++){
+                p = output.getQuick(i);
+                t = y.getQuick(i);
+                fun -= w * (t * Math.log(p + eps) + (1.0 - t) * Math.log(1.0 - p + eps));
+                if(grad != null)
+                    grad.setQuick(i, absorbed ? w * (p - t)
+                            : -w * (t / (p + eps) - (1.0 - t) / (1.0 - p + eps)));
+            }
+        }
+        return fun;
+    }
+
+}
@@ -1,5 +1,7 @@
 package loss;
 
+import layer.Layer;
+import layer.activation.SoftMaxLayer;
 import tensor.DoubleTensor;
 import tensor.TensorFunctions;
 
@@ -10,7 +12,7 @@ import tensor.TensorFunctions;
  * given example can take any value and are not penalized.
  * @author diego_paez
  */
-public class CrossEntropy implements LossFunction{
+public class CrossEntropy implements FusedLoss{
 
     /**
      * CE = -sum(I(y) .* log(nnOut + eps)) = -sum(vectorByIndex(log(nnOut + eps)))
@@ -27,17 +29,7 @@ public class CrossEntropy implements LossFunction{
      */
     @Override
     public double eval(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights) {
-
-        // Obtain values as indicated by y vector (select by rows = dim 0)
-        DoubleTensor temp = output.getLowerDim(0, y);
-
-        // Obtain the logarithm of the matrix plus smallConst
-        // special care must be taken with derivative!!, smallConst should not be forgotten
-        temp.addi(TensorFunctions.smallConst);
-        TensorFunctions.logi(temp);
-
-        double fun = -1.0 * temp.sum();
-        return fun;
+        return evalWithGrad(output, y, yWeights, false, null);
     }
 
     /**
@@ -52,12 +44,84 @@ public class CrossEntropy implements LossFunction{
      */
     @Override
     public DoubleTensor bProp(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights) {
-        DoubleTensor temp = output.add(TensorFunctions.smallConst);
-        temp.rdivi(1.0);
-        DoubleTensor temp2 = y.index(output.dims[0]);
-        temp.muli(temp2);
+        DoubleTensor grad = new DoubleTensor(output.copyDims());
+        grad.setPosToLast();
+        evalWithGrad(output, y, yWeights, false, grad);
+        return grad;
+    }
+
+    @Override
+    public boolean isAveraged() {
+        return false;
+    }
+
+    /**
+     * Absorbs a SoftMax.
+     */
+    @Override
+    public boolean absorbs(Layer outputLayer) {
+        return outputLayer instanceof SoftMaxLayer;
+    }
 
-        return temp.muli(-1.0);
+    /**
+     * When absorbing the SoftMax, calculates directly dJ(.) / dz_lm which
+     * equals (for the lth input, mth example)
+     *
+     * - [(Indicator(y_(m),l) - softmax(l,Z)) / (1 + smallConst /  softmax(y_(m),Z))]
+     *
+     * Where
+     * indicator(y_(m),l) = 1 if y_(m) = l else = 0
+     * softmax(l,Z) = exp(Z_lm) / sum(Z_jm,j=1...K) = U_lm
+     *
+     * Normally softmax(y_(m),Z) > smallConst and thus smallConst / softmax(y_(m),Z) = 0
+     *
+     * But it can occur that softmax(y_(m),Z) is really small and thus
+     * smallConst /softmax(y_(m),Z) gets bigger.
+     */
+    @Override
+    public double evalWithGrad(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights,
+            boolean absorbed, DoubleTensor grad) {
+        return crossEntropy(output, y, null, absorbed, grad);
+    }
+
+    /**
+     * Cross entropy and its gradient, weighting each example if weights are
+     * given (see WeightedCrossEntropy).
+     * @param output Outputs, classes x examples.
+     * @param y Label of each example.
+     * @param weights Weight of each example, null for 1.
+     * @param absorbed Whether the gradient is w.r. to the inputs of a SoftMax.
+     * @param grad Where the gradient is written, null for none.
+     * @return Loss.
+     */
+    static double crossEntropy(DoubleTensor output, DoubleTensor y, DoubleTensor weights,
+            boolean absorbed, DoubleTensor grad) {
+        final int n = output.lastDim();
+        final int nC = output.size() / n;
+        double fun = 0.0, p, w, d;
+        int label;
+        for(int e = 0, o = 0; e < n; e++, o += nC){
+            label = (int) y.getQuick(e);
+            p = output.getQuick(o + label);
+            w = weights == null ? 1.0 : weights.getQuick(e);
+            fun -= w * Math.log(p + TensorFunctions.smallConst);
+            if(grad == null)
+                continue;
+
+            if(absorbed){
+                d = 1.0 + TensorFunctions.smallConst / p;
+                for(int k = 0; k < nC; k++){
+                    grad.setQuick(o + k, output.getQuick(o + k) * w / d);
+                }
+                grad.setQuick(o + label, (p - 1.0) * w / d);
+            } else{
+                for(int k = 0; k < nC; k++){
+                    grad.setQuick(o + k, 0.0);
+                }
+                grad.setQuick(o + label, -w / (p + TensorFunctions.smallConst));
+            }
+        }
+        return fun;
     }
 
 }
@@ -0,0 +1,44 @@
+package loss;
+
+import layer.Layer;
+import tensor.DoubleTensor;
+
+/**
+ * Loss that calculates its value and its gradient together, in a single pass
+ * over the outputs of the net reading the targets (class labels) directly,
+ * and writes the gradient into a given tensor instead of allocating one. It
+ * may also absorb the output layer of the net (e.g., softmax followed by
+ * cross entropy): the gradient is then taken with respect to the inputs of
+ * that layer, which is simpler and numerically more stable, and the layer is
+ * not backpropagated (see NeuralNetModel.lossGrad).
+ *
+ * Any loss implementing this interface is fused, new pairs of output layer
+ * and loss are added by implementing absorbs.
+ * @author diego_paez
+ */
+public interface FusedLoss extends LossFunction {
+
+    /**
+     * Whether the gradient can be taken with respect to the inputs of the
+     * given output layer.
+     * @param outputLayer Last layer of the net.
+     * @return True if the output layer is absorbed by the loss.
+     */
+    public boolean absorbs(Layer outputLayer);
+
+    /**
+     * Evaluate the loss and write its gradient.
+     * @param output Outputs of the net.
+     * @param y Targets of the examples (class labels for classification).
+     * @param yWeights Weights of the examples, may be null for losses that do
+     * not require them.
+     * @param absorbed Whether the gradient is taken with respect to the
+     * inputs of the output layer (as returned by absorbs) or with respect to
+     * the outputs.
+     * @param grad Tensor where the gradient is written, with as many entries
+     * as output. Null to only evaluate the loss.
+     * @return Loss.
+     */
+    public double evalWithGrad(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights,
+            boolean absorbed, DoubleTensor grad);
+}
@@ -10,4 +10,11 @@ public interface LossFunction {
 
     public double eval(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights);
     public DoubleTensor bProp(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights);
+
+    /**
+     * Whether the loss is averaged over examples instead of summed, needed to
+     * combine the losses (and gradients) of parts of a batch.
+     * @return True if eval divides by the number of examples.
+     */
+    public boolean isAveraged();
 }
@@ -1,31 +1,25 @@
 package loss;
 
+import layer.Layer;
 import tensor.DoubleTensor;
-import tensor.TensorFunctions;
 
 /**
  *
  * @author diego_paez
  */
-public class MeanSquaredError implements LossFunction{
+public class MeanSquaredError implements FusedLoss{
 
     /**
      * MSE = 1/ m * sum((h(X)(i)- y(i)).^2,i=1...m)
-     * @param nnOut matrix with predicitons in each column for each example. The
+     * @param output matrix with predicitons in each column for each example. The
      * matrix has different rows for every class.
-     * @param output
      * @param y
      * @param yWeights
      * @return
      */
     @Override
     public double eval(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights) {
-        DoubleTensor temp;
-
-        temp = output.sub(y);
-        TensorFunctions.powi(temp, 2.0);
-
-        return temp.sum() / temp.size();
+        return evalWithGrad(output, y, yWeights, false, null);
     }
 
     /**
@@ -38,11 +32,38 @@ public class MeanSquaredError implements LossFunction{
      */
     @Override
     public DoubleTensor bProp(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights) {
-        DoubleTensor temp;
+        DoubleTensor grad = new DoubleTensor(output.copyDims());
+        grad.setPosToLast();
+        evalWithGrad(output, y, yWeights, false, grad);
+        return grad;
+    }
+
+    @Override
+    public boolean isAveraged() {
+        return true;
+    }
 
-        temp = output.sub(y);
+    /**
+     * Applied to the outputs as they are (identity output), no layer is
+     * absorbed.
+     */
+    @Override
+    public boolean absorbs(Layer outputLayer) {
+        return false;
+    }
 
-        return temp.muli(2.0 / temp.size());
+    @Override
+    public double evalWithGrad(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights,
+            boolean absorbed, DoubleTensor grad) {
+        final int sz = output.size();
+        double fun = 0.0, d;
+        for(int i = 0; i < sz; i++){
+            d = output.getQuick(i) - y.getQuick(i);
+            fun += d * d;
+            if(grad != null)
+                grad.setQuick(i, d * (2.0 / sz));
+        }
+        return fun / sz;
     }
 
 }
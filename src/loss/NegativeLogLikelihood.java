@@ -0,0 +1,73 @@
+package loss;
+
+import layer.Layer;
+import layer.activation.LogSoftMaxLayer;
+import tensor.DoubleTensor;
+
+/**
+ * Negative log likelihood of the outputs of a LogSoftMaxLayer (log
+ * probabilities): NLL = -sum(sW .* vectorByIndex(nnOut)), where sW are the
+ * weights of the examples (1 if not given). Together with the LogSoftMaxLayer
+ * it equals cross entropy over a softmax, but the log probabilities are
+ * computed without the exponential underflowing, thus no small constant is
+ * needed.
+ * @author diego_paez
+ */
+public class NegativeLogLikelihood implements FusedLoss{
+
+    @Override
+    public double eval(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights) {
+        return evalWithGrad(output, y, yWeights, false, null);
+    }
+
+    /**
+     * grad NLL = -I(y) .* sW
+     */
+    @Override
+    public DoubleTensor bProp(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights) {
+        DoubleTensor grad = new DoubleTensor(output.copyDims());
+        grad.setPosToLast();
+        evalWithGrad(output, y, yWeights, false, grad);
+        return grad;
+    }
+
+    @Override
+    public boolean isAveraged() {
+        return false;
+    }
+
+    /**
+     * Absorbs a LogSoftMax.
+     */
+    @Override
+    public boolean absorbs(Layer outputLayer) {
+        return outputLayer instanceof LogSoftMaxLayer;
+    }
+
+    /**
+     * When absorbing the LogSoftMax the gradient w.r. to its inputs is
+     * (exp(nnOut) - I(y)) .* sW, i.e., softmax minus indicator.
+     */
+    @Override
+    public double evalWithGrad(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights,
+            boolean absorbed, DoubleTensor grad) {
+        final int n = output.lastDim();
+        final int nC = output.size() / n;
+        double fun = 0.0, w;
+        int label;
+        for(int e = 0, o = 0; e < n; e++, o += nC){
+            label = (int) y.getQuick(e);
+            w = yWeights == null ? 1.0 : yWeights.getQuick(e);
+            fun -= w * output.getQuick(o + label);
+            if(grad == null)
+                continue;
+
+            for(int k = 0; k < nC; k++){
+                grad.setQuick(o + k, absorbed ? w * Math.exp(output.getQuick(o + k)) : 0.0);
+            }
+            grad.data.addQuick(o + label, -w);
+        }
+        return fun;
+    }
+
+}
@@ -1,13 +1,14 @@
 package loss;
 
+import layer.Layer;
+import layer.activation.SoftMaxLayer;
 import tensor.DoubleTensor;
-import tensor.TensorFunctions;
 
 /**
  *
  * @author diego_paez
  */
-public class WeightedCrossEntropy implements LossFunction{
+public class WeightedCrossEntropy implements FusedLoss{
 
     /**
      * WCE = -sum(I(y) .* log(nnOut) .* sW) = -sum(vectorByIndex(log(nnOut + eps)) .* sW)
@@ -24,19 +25,7 @@ public class WeightedCrossEntropy implements LossFunction{
      */
     @Override
     public double eval(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights) {
-        // Obtain values as indicated by y vector (select by rows = dim 0)
-        DoubleTensor temp = output.getLowerDim(0, y);
-
-        // Obtain the logarithm of the matrix plus smallConst
-        // special care must be taken with derivative!!, smallConst should not be forgotten
-        temp.addi(TensorFunctions.smallConst);
-        TensorFunctions.logi(temp);
-
-        // !!multiply entries of temp matrix by weight vector beta
-        temp.muli(yWeights);
-
-        double fun = -1.0 * temp.sum();
-        return fun;
+        return CrossEntropy.crossEntropy(output, y, yWeights, false, null);
     }
 
     /**
@@ -51,12 +40,29 @@ public class WeightedCrossEntropy implements LossFunction{
      */
     @Override
     public DoubleTensor bProp(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights) {
-        DoubleTensor temp = output.add(TensorFunctions.smallConst).rdivi(1.0);
-        DoubleTensor temp2 = y.index(output.dims[0]);
-        temp.muli(temp2);
-        temp.muliLowerDimTensor(0, yWeights);
+        DoubleTensor grad = new DoubleTensor(output.copyDims());
+        grad.setPosToLast();
+        CrossEntropy.crossEntropy(output, y, yWeights, false, grad);
+        return grad;
+    }
+
+    @Override
+    public boolean isAveraged() {
+        return false;
+    }
 
-        return temp.muli(-1.0);
+    /**
+     * Absorbs a SoftMax, see CrossEntropy.
+     */
+    @Override
+    public boolean absorbs(Layer outputLayer) {
+        return outputLayer instanceof SoftMaxLayer;
+    }
+
+    @Override
+    public double evalWithGrad(DoubleTensor output, DoubleTensor y, DoubleTensor yWeights,
+            boolean absorbed, DoubleTensor grad) {
+        return CrossEntropy.crossEntropy(output, y, yWeights, absorbed, grad);
     }
 
 }
@@ -0,0 +1,155 @@
+package optim;
+
+import java.util.Arrays;
+
+/**
+ * List of ranges [from, to) of a parameter vector. Used to tell the optimizer
+ * which parts of the gradient were written in the last evaluation, so that
+ * only those parameters are updated (for example the rows of an embedding
+ * table that appeared in a batch). Adjacent ranges are merged when added.
+ * @author diego_paez
+ */
+public class ActiveRanges {
+
+    /**
+     * Start of each range (inclusive).
+     */
+    private int[] from;
+
+    /**
+     * End of each range (exclusive).
+     */
+    private int[] to;
+
+    /**
+     * Number of ranges.
+     */
+    private int count;
+
+    public ActiveRanges() {
+        from = new int[16];
+        to = new int[16];
+        count = 0;
+    }
+
+    /**
+     * Remove all ranges.
+     */
+    public void clear(){
+        count = 0;
+    }
+
+    /**
+     * Add range [start, end), if it starts where last range ends both are
+     * merged into a single range.
+     * @param start Start of range (inclusive).
+     * @param end End of range (exclusive).
+     */
+    public void add(int start, int end){
+        if(end <= start)
+            return;
+
+        if(count > 0 && to[count - 1] == start){
+            to[count - 1] = end;
+            return;
+        }
+
+        if(count == from.length){
+            int[] nFrom = new int[count << 1];
+            int[] nTo = new int[count << 1];
+            System.arraycopy(from, 0, nFrom, 0, count);
+            System.arraycopy(to, 0, nTo, 0, count);
+            from = nFrom;
+            to = nTo;
+        }
+        from[count] = start;
+        to[count] = end;
+        count++;
+    }
+
+    public int size(){
+        return count;
+    }
+
+    public int from(int i){
+        return from[i];
+    }
+
+    public int to(int i){
+        return to[i];
+    }
+
+    /**
+     * Total number of parameters covered by all ranges.
+     * @return Number of parameters.
+     */
+    public int length(){
+        int total = 0;
+        for(int i = 0; i < count; i++){
+            total += to[i] - from[i];
+        }
+        return total;
+    }
+
+    /**
+     * Replace these ranges by the union of the ranges of the given lists,
+     * which may overlap and come in any order (e.g., the rows written by
+     * several replicas of a model). The result is sorted, with overlapping
+     * and adjacent ranges merged. This list can be one of the lists.
+     * @param lists Lists of ranges, null entries are skipped.
+     */
+    public void setUnion(ActiveRanges... lists){
+        int total = 0;
+        for(ActiveRanges l: lists){
+            if(l != null)
+                total += l.count;
+        }
+
+        // from in the high bits, sorting orders by start
+        long[] packed = new long[total];
+        int n = 0;
+        for(ActiveRanges l: lists){
+            if(l == null)
+                continue;
+            for(int i = 0; i < l.count; i++){
+                packed[n++] = ((long) l.from[i] << 32) | (l.to[i] & 0xFFFFFFFFL);
+            }
+        }
+        Arrays.sort(packed);
+
+        clear();
+        int start, end, curFrom = 0, curTo = -1;
+        for(int i = 0; i < n; i++){
+            start = (int) (packed[i] >>> 32);
+            end = (int) packed[i];
+            if(start <= curTo){
+                curTo = Math.max(curTo, end);
+                continue;
+            }
+            if(curTo >= 0)
+                add(curFrom, curTo);
+            curFrom = start;
+            curTo = end;
+        }
+        if(curTo >= 0)
+            add(curFrom, curTo);
+    }
+
+    /**
+     * Set to zero every entry of an array outside the ranges, so that a
+     * sparse gradient can be used as a dense one. Ranges must be sorted.
+     * @param g Array to clear.
+     */
+    public void clearOutside(double[] g){
+        int k = 0;
+        for(int i = 0; i < count; i++){
+            for(; k < from[i]; k++){
+                g[k] = 0.0;
+            }
+            k = to[i];
+        }
+        for(; k < g.length; k++){
+            g[k] = 0.0;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package optim;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.log4j.Logger;
+import tensor.DoubleTensor;
+
+/**
+ * Assembles the batches of a training set on background threads while the
+ * current batch trains. Batches are produced in order, epoch after epoch,
+ * each epoch following a new random order of examples (as BatchSample). They
+ * are written into a ring of reusable tensors: the batch being trained plus
+ * ringSize - 1 batches assembled ahead. Workers wait (backpressure) when the
+ * ring is full, a slot is reused once the trainer asks for the batch after
+ * it, thus a batch returned by next is valid until the following call to
+ * next.
+ *
+ * Examples are copied as contiguous blocks (every entry of an example is
+ * contiguous since examples are the last dim) instead of gathering entry by
+ * entry. Transforms (augmentation, decoding) are applied to each batch on the
+ * worker threads as well.
+ * @author diego_paez
+ */
+public class BatchLoader {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(BatchLoader.class);
+
+    /**
+     * A batch of the ring.
+     */
+    public static class Batch {
+        public final DoubleTensor X;
+        public final DoubleTensor y;
+
+        /**
+         * Weights of examples, null if there are no weights.
+         */
+        public final DoubleTensor yWeights;
+
+        /**
+         * Position of this batch in the sequence of batches, -1 while empty.
+         */
+        private long seq = -1;
+
+        /**
+         * Error assembling or transforming the batch, null if none.
+         */
+        private RuntimeException error;
+
+        Batch(DoubleTensor X, DoubleTensor y, DoubleTensor yWeights) {
+            this.X = X;
+            this.y = y;
+            this.yWeights = yWeights;
+        }
+
+        /**
+         * Epoch of the batch.
+         * @param numBatches Batches per epoch.
+         * @return Epoch (0 based).
+         */
+        public int getEpoch(int numBatches){
+            return (int) (seq / numBatches);
+        }
+    }
+
+    private final DoubleTensor X, y, yWeights;
+    private final int batchSize, numBatches;
+    private final long totalBatches;
+    private final Batch[] ring;
+    private final Thread[] workers;
+    private final List<BatchTransform> transforms = new ArrayList<>();
+
+    /**
+     * Random order of the examples of each epoch being assembled, guarded by
+     * this.
+     */
+    private final Map<Integer, int[]> orders = new HashMap<>();
+
+    /**
+     * Next batch to assemble, next batch to return and number of batches the
+     * trainer is done with, guarded by this.
+     */
+    private long nextToFill, nextToTake, released;
+
+    private volatile boolean running = true;
+
+    /**
+     * Time the trainer waited for batches, guarded by this.
+     */
+    private long waitNanos;
+
+    /**
+     * Create loader, call start to launch its workers.
+     * @param X Inputs, examples in the last dim.
+     * @param y Targets, examples in the last dim.
+     * @param yWeights Weights of examples, null if none.
+     * @param batchSize Examples per batch (the last batch of an epoch may be
+     * smaller).
+     * @param epochs Number of epochs to produce, 0 or less for no limit.
+     * @param ringSize Number of reusable batches (at least 2).
+     * @param numThreads Number of threads assembling batches.
+     */
+    public BatchLoader(DoubleTensor X, DoubleTensor y, DoubleTensor yWeights, int batchSize,
+            int epochs, int ringSize, int numThreads) {
+        this.X = X;
+        this.y = y;
+        this.yWeights = yWeights;
+        this.batchSize = Math.min(batchSize, X.lastDim());
+        this.numBatches = (X.lastDim() + this.batchSize - 1) / this.batchSize;
+        this.totalBatches = epochs > 0 ? (long) epochs * numBatches : Long.MAX_VALUE;
+
+        ring = new Batch[Math.max(2, ringSize)];
+        for(int i = 0; i < ring.length; i++){
+            ring[i] = new Batch(batchTensor(X), batchTensor(y),
+                    yWeights == null ? null : batchTensor(yWeights));
+        }
+
+        workers = new Thread[Math.max(1, numThreads)];
+        for(int w = 0; w < workers.length; w++){
+            final long seed = System.nanoTime() + w;
+            workers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop(new Random(seed));
+                }
+            }, "batch-loader-" + w);
+            workers[w].setDaemon(true);
+        }
+    }
+
+    /**
+     * Tensor for a full batch of t.
+     */
+    private DoubleTensor batchTensor(DoubleTensor t){
+        int[] dims = t.copyDims();
+        dims[dims.length - 1] = batchSize;
+        DoubleTensor b = new DoubleTensor(dims);
+        b.setPosToLast();
+        return b;
+    }
+
+    /**
+     * Add a transform applied to every batch after assembling it, in the
+     * order added. Must be called before start.
+     * @param transform Transform.
+     * @return This loader.
+     */
+    public BatchLoader addTransform(BatchTransform transform){
+        transforms.add(transform);
+        return this;
+    }
+
+    /**
+     * Start assembling batches.
+     * @return This loader.
+     */
+    public BatchLoader start(){
+        for(Thread w: workers){
+            w.start();
+        }
+        return this;
+    }
+
+    /**
+     * Next batch, the previous batch returned is released and its tensors
+     * reused. Blocks if the batch is not assembled yet.
+     * @return Next batch, null if all epochs were returned or the loader
+     * was closed.
+     * @throws IllegalStateException If the batch could not be assembled or
+     * a transform failed, the batch is then skipped.
+     */
+    public synchronized Batch next(){
+        // previous batch is no longer used
+        released = nextToTake;
+        notifyAll();
+        if(nextToTake >= totalBatches)
+            return null;
+
+        Batch b = ring[(int) (nextToTake % ring.length)];
+        long t = System.nanoTime();
+        while(running && b.seq != nextToTake){
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        waitNanos += System.nanoTime() - t;
+        if(!running)
+            return null;
+
+        // orders of past epochs are no longer needed
+        orders.remove((int) (nextToTake / numBatches) - 1);
+        nextToTake++;
+        if(b.error != null)
+            throw new IllegalStateException("Failed to assemble batch " + b.seq, b.error);
+        return b;
+    }
+
+    /**
+     * Loop of a worker: claim the next batch once its slot is free,
+     * assemble and transform it, and hand it to the trainer.
+     */
+    private void loop(Random random){
+        long seq;
+        int[] order;
+        while(running){
+            synchronized(this){
+                while(running && (nextToFill >= totalBatches
+                        || nextToFill >= released + ring.length)){
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if(!running)
+                    return;
+                seq = nextToFill++;
+                int epoch = (int) (seq / numBatches);
+                order = orders.get(epoch);
+                if(order == null){
+                    order = BatchSample.randperm(X.lastDim());
+                    orders.put(epoch, order);
+                }
+            }
+
+            Batch b = ring[(int) (seq % ring.length)];
+            RuntimeException error = null;
+            try {
+                int from = (int) (seq % numBatches) * batchSize;
+                int to = Math.min(from + batchSize, X.lastDim());
+                BatchSample.gather(X, order, from, to, b.X);
+                BatchSample.gather(y, order, from, to, b.y);
+                if(yWeights != null)
+                    BatchSample.gather(yWeights, order, from, to, b.yWeights);
+                for(BatchTransform tr: transforms){
+                    tr.apply(b.X, b.y, b.yWeights, random);
+                }
+            } catch(RuntimeException e){
+                // the slot holds a partial or stale batch, next throws it
+                error = e;
+            }
+
+            synchronized(this){
+                b.seq = seq;
+                b.error = error;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Number of batches per epoch.
+     * @return Batches per epoch.
+     */
+    public int getNumBatches(){
+        return numBatches;
+    }
+
+    /**
+     * Total time next waited for batches not assembled yet.
+     * @return Wait in seconds.
+     */
+    public synchronized double getWaitSeconds(){
+        return waitNanos / 1e9;
+    }
+
+    /**
+     * Stop the workers, next returns null from now on.
+     */
+    public void close(){
+        synchronized(this){
+            running = false;
+            notifyAll();
+        }
+        for(Thread w: workers){
+            w.interrupt();
+        }
+    }
+}
@@ -1,16 +1,37 @@
 package optim;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.apache.log4j.Logger;
 import tensor.DoubleTensor;
 import tensor.TensorIndex;
 
 /**
+ * Splits a training set in batches following a random order of the examples
+ * that changes every epoch (initRandBatch).
  *
+ * By default each batch is gathered from the whole set. With setContiguous
+ * the examples are instead physically permuted once per epoch into a
+ * contiguous copy, and batches are views of consecutive examples of that
+ * copy (no copy per batch, the last batch is just shorter). There are two
+ * copies: while an epoch trains over one, the permutation of the next epoch
+ * is written into the other on background threads.
  * @author diego_paez
  */
 public class BatchSample {
 
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(BatchSample.class);
+
     private DoubleTensor X;
     private DoubleTensor y;
     private DoubleTensor yWeights;
@@ -18,6 +39,22 @@ public class BatchSample {
     private int batchPointer;
     private int[] rand;
 
+    /**
+     * Permuted copies of X, y and yWeights (null if none) when contiguous:
+     * permuted[front] holds the current epoch, the other one the next epoch.
+     */
+    private DoubleTensor[][] permuted;
+    private int front;
+
+    /**
+     * Order of the next epoch and copies of it in progress.
+     */
+    private int[] nextRand;
+    private List<Future<?>> pending;
+
+    private ExecutorService pool;
+    private int threads;
+
 
     public BatchSample(DoubleTensor X, DoubleTensor y,
             DoubleTensor yWeights, int batchSize) {
@@ -27,11 +64,129 @@ public class BatchSample {
         this.batchSize = batchSize;
     }
 
+    /**
+     * Start a new epoch with a new random order.
+     * @throws IllegalStateException If the permuted copy of the epoch could
+     * not be written (contiguous batches) or the wait for it was
+     * interrupted, the batches of the previous epoch are kept.
+     */
     public void initRandBatch(){
-        rand = randperm(X.dims[X.dims.length - 1]);
+        if(permuted == null){
+            rand = randperm(X.dims[X.dims.length - 1]);
+        } else{
+            // first epoch, nothing was prepared in the background
+            if(pending == null)
+                permuteNext();
+            Throwable error = awaitPermutation();
+            if(error != null){
+                // a failed copy is partly written, the next call permutes
+                // again (an interrupted wait waits again)
+                if(!(error instanceof InterruptedException))
+                    pending = null;
+                throw new IllegalStateException("Failed to permute examples", error);
+            }
+            front = 1 - front;
+            rand = nextRand;
+            permuteNext();
+        }
         this.batchPointer = 0;
     }
 
+    /**
+     * Physically permute the examples once per epoch into a contiguous copy,
+     * so that each batch is a view of consecutive examples instead of being
+     * gathered. Uses two extra copies of the training set (the current epoch
+     * and the next one, which is permuted in the background while the
+     * current one trains). Batches returned are views valid until the next
+     * call to initRandBatch. Takes effect on next call to initRandBatch.
+     * @param numThreads Number of threads permuting the examples, each one
+     * copies a block of examples. 0 or less to go back to gathering batches
+     * (copies are released).
+     */
+    public void setContiguous(int numThreads){
+        // the copies are released, a failed one does not matter
+        if(pending != null)
+            awaitPermutation();
+        pending = null;
+        if(pool != null)
+            pool.shutdown();
+        pool = null;
+        permuted = null;
+        threads = numThreads;
+        if(numThreads <= 0)
+            return;
+
+        DoubleTensor[] sets = {X, y, yWeights};
+        permuted = new DoubleTensor[2][sets.length];
+        long bytes = 0;
+        for(int b = 0; b < 2; b++){
+            for(int t = 0; t < sets.length; t++){
+                if(sets[t] != null){
+                    permuted[b][t] = new DoubleTensor(sets[t].copyDims());
+                    permuted[b][t].setPosToLast();
+                    bytes += 8L * sets[t].length();
+                }
+            }
+        }
+        LOG.info(String.format("Contiguous shuffle: %.1f MB of permuted copies, %d threads",
+                bytes / 1e6, numThreads));
+
+        pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "batch-permute");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Start writing the examples in a new random order into the copy that is
+     * not in use, each thread copies a block of examples.
+     */
+    private void permuteNext(){
+        final int n = X.lastDim();
+        final int[] order = randperm(n);
+        final DoubleTensor[] dst = permuted[1 - front];
+        final DoubleTensor[] src = {X, y, yWeights};
+        pending = new ArrayList<>();
+        for(int b = 0; b < threads; b++){
+            final int from = (int) ((long) n * b / threads);
+            final int to = (int) ((long) n * (b + 1) / threads);
+            pending.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for(int t = 0; t < src.length; t++){
+                        if(src[t] != null)
+                            gather(src[t], order, from, to, dst[t].sliceLastDim(from, to));
+                    }
+                }
+            }));
+        }
+        nextRand = order;
+    }
+
+    /**
+     * Wait until the copy of the next epoch is written.
+     * @return Error of a failed copy (or the interruption of the wait), null
+     * if the copy is complete.
+     */
+    private Throwable awaitPermutation(){
+        Throwable error = null;
+        for(Future<?> f: pending){
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return e;
+            } catch (ExecutionException e) {
+                error = e.getCause();
+            }
+        }
+        return error;
+    }
+
     public int getNumBatches(){
         double dblCols = (double) X.lastDim();
         double dblSize = (double) batchSize;
@@ -48,30 +203,94 @@ public class BatchSample {
     }
 
     public DoubleTensor getBatchX(){
-        int[] currB = Arrays.copyOfRange(rand, batchPointer, Math.min((batchPointer + batchSize),
-                X.lastDim()));
-        TensorIndex ind = new TensorIndex(currB);
-        DoubleTensor XBatch = X.getByDim(X.dims.length - 1,ind);
-        return XBatch;
+        return getBatchX(batchPointer / batchSize);
     }
 
     public DoubleTensor getBatchY(){
-        int[] currB = Arrays.copyOfRange(rand, batchPointer, Math.min((batchPointer + batchSize),
-                y.lastDim()));
-        TensorIndex ind = new TensorIndex(currB);
-        DoubleTensor yBatch = y.getByDim(y.dims.length - 1,ind);
-        return yBatch;
+        return getBatchY(batchPointer / batchSize);
     }
 
     public DoubleTensor getBatchT(){
+        return getBatchT(batchPointer / batchSize);
+    }
+
+    /**
+     * Get given batch of current random order, does not move the pointer of
+     * current batch thus several threads can read different batches at once.
+     * @param batch Index of batch.
+     * @return Inputs of batch.
+     */
+    public DoubleTensor getBatchX(int batch){
+        if(permuted != null)
+            return slice(0, batch);
+        return X.getByDim(X.dims.length - 1, batchIndex(batch, X.lastDim()));
+    }
+
+    /**
+     * Get targets of given batch of current random order.
+     * @param batch Index of batch.
+     * @return Targets of batch.
+     */
+    public DoubleTensor getBatchY(int batch){
+        if(permuted != null)
+            return slice(1, batch);
+        return y.getByDim(y.dims.length - 1, batchIndex(batch, y.lastDim()));
+    }
+
+    /**
+     * Get weights of examples of given batch of current random order.
+     * @param batch Index of batch.
+     * @return Weights of batch, null if there are no weights.
+     */
+    public DoubleTensor getBatchT(int batch){
         if(yWeights == null)
             return null;
+        if(permuted != null)
+            return slice(2, batch);
+        return yWeights.getByDim(yWeights.dims.length - 1, batchIndex(batch, yWeights.lastDim()));
+    }
+
+    /**
+     * View of the examples of a batch in the permuted copy of the current
+     * epoch.
+     * @param t 0 for X, 1 for y, 2 for yWeights.
+     * @param batch Index of batch.
+     * @return View.
+     */
+    private DoubleTensor slice(int t, int batch){
+        int from = batch * batchSize;
+        return permuted[front][t].sliceLastDim(from, Math.min(from + batchSize, X.lastDim()));
+    }
+
+    private TensorIndex batchIndex(int batch, int last){
+        int from = batch * batchSize;
+        return new TensorIndex(Arrays.copyOfRange(rand, from, Math.min(from + batchSize, last)));
+    }
 
-        int[] currB = Arrays.copyOfRange(rand, batchPointer, Math.min((batchPointer + batchSize),
-                yWeights.lastDim()));
-        TensorIndex ind = new TensorIndex(currB);
-        DoubleTensor tBatch = yWeights.getByDim(yWeights.dims.length - 1,ind);
-        return tBatch;
+    /**
+     * Copy examples from - to - 1 of given order into store, each example is
+     * copied as a contiguous block (examples are the last dim).
+     * @param src Tensor with all examples.
+     * @param order Order of examples.
+     * @param from First position of order to copy.
+     * @param to Position after the last one to copy.
+     * @param store Tensor resized to the dims of src with to - from examples.
+     * @return store.
+     */
+    public static DoubleTensor gather(DoubleTensor src, int[] order, int from, int to,
+            DoubleTensor store){
+        int[] dims = src.copyDims();
+        dims[dims.length - 1] = to - from;
+        final int len = src.length() / src.lastDim();
+        store.resize(dims);
+        store.setPos(len * (to - from));
+
+        final double[] s = src.data.getData(), d = store.data.getData();
+        final int so = src.data.getOffset();
+        for(int i = from, o = store.data.getOffset(); i < to; i++, o += len){
+            System.arraycopy(s, so + order[i] * len, d, o, len);
+        }
+        return store;
     }
 
     /**
@@ -0,0 +1,23 @@
+package optim;
+
+import java.util.Random;
+import tensor.DoubleTensor;
+
+/**
+ * Stage applied to every batch after it is assembled, e.g., data
+ * augmentation (random crops, flips, noise) or decoding of the inputs. When
+ * used by a BatchLoader it runs on the threads of the loader, concurrently
+ * over different batches, thus it must not keep state of a batch.
+ * @author diego_paez
+ */
+public interface BatchTransform {
+
+    /**
+     * Transform a batch in place, dims must not change.
+     * @param X Inputs of the batch (examples in the last dim).
+     * @param y Targets of the batch.
+     * @param yWeights Weights of the examples, null if none.
+     * @param random Random numbers of the calling thread.
+     */
+    public void apply(DoubleTensor X, DoubleTensor y, DoubleTensor yWeights, Random random);
+}
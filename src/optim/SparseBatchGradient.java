@@ -0,0 +1,17 @@
+package optim;
+
+/**
+ * Batch gradient which may only write part of the gradient vector on each
+ * evaluation. After calling value, getActiveRanges returns the ranges of the
+ * gradient that were written, entries outside of those ranges are stale and
+ * must not be used.
+ * @author diego_paez
+ */
+public interface SparseBatchGradient extends BatchGradient {
+
+    /**
+     * Ranges of the gradient written in the last call to value.
+     * @return Active ranges, or null if the whole gradient was written.
+     */
+    public ActiveRanges getActiveRanges();
+}
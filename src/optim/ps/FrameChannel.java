@@ -0,0 +1,268 @@
+package optim.ps;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.SocketChannel;
+import optim.ActiveRanges;
+
+/**
+ * Framing of messages of the parameter server over a blocking NIO socket
+ * channel. A frame is a fixed header followed by a block of doubles:
+ *
+ * type (int) | worker (int) | version (long) | value (double) | length (int) | doubles
+ *
+ * Header and payload live in direct buffers allocated once per connection, so
+ * the kernel reads and writes them without further copies. The doubles are
+ * moved between the double[] and the direct buffer with a single bulk copy
+ * (a DoubleBuffer view in little endian, the native order of x86, so the copy
+ * is a plain memory copy) and the frame is sent with one gathering write.
+ *
+ * A sparse gradient (PUSH_SPARSE) only carries its active ranges: the
+ * payload is the number of ranges n, the n pairs from, to and then the
+ * entries of the gradient within the ranges, one range after the other.
+ * With no ranges the step is skipped (e.g., overflow of a loss scaler).
+ * @author diego_paez
+ */
+public class FrameChannel {
+
+    /**
+     * Worker asks for the parameters.
+     */
+    public static final int PULL = 1;
+
+    /**
+     * Server sends the parameters.
+     */
+    public static final int PARAMS = 2;
+
+    /**
+     * Worker sends a gradient.
+     */
+    public static final int PUSH = 3;
+
+    /**
+     * Worker finished training.
+     */
+    public static final int DONE = 4;
+
+    /**
+     * Worker sends the active ranges of a gradient and their entries.
+     */
+    public static final int PUSH_SPARSE = 5;
+
+    /**
+     * Size of header in bytes.
+     */
+    private static final int HEADER = 28;
+
+    /**
+     * Underlying channel (blocking).
+     */
+    private final SocketChannel channel;
+
+    /**
+     * Header buffer.
+     */
+    private final ByteBuffer header;
+
+    /**
+     * Payload buffer and its view as doubles.
+     */
+    private ByteBuffer payload;
+    private DoubleBuffer payloadD;
+
+    /**
+     * Fields of last frame received.
+     */
+    private int type, worker, length;
+    private long version;
+    private double value;
+
+    /**
+     * Wrap a connected channel.
+     * @param channel Socket channel.
+     * @param capacity Initial capacity of payload in doubles.
+     * @throws IOException If the channel can not be configured.
+     */
+    public FrameChannel(SocketChannel channel, int capacity) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(true);
+        channel.socket().setTcpNoDelay(true);
+        header = ByteBuffer.allocateDirect(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        ensureCapacity(capacity);
+    }
+
+    /**
+     * Send a frame, the payload is data[0] ... data[length - 1].
+     * @param type Type of message.
+     * @param worker Id of worker.
+     * @param version Version of parameters or clock of worker.
+     * @param value Extra value (e.g., loss).
+     * @param data Payload, can be null if length is 0.
+     * @param length Number of doubles of payload.
+     * @throws IOException If the frame can not be written.
+     */
+    public void send(int type, int worker, long version, double value,
+            double[] data, int length) throws IOException {
+        stage(data, length);
+        sendStaged(type, worker, version, value);
+    }
+
+    /**
+     * Copy a payload into the buffer without sending it, so that the copy can
+     * be done holding a lock and the write after releasing it.
+     * @param data Payload.
+     * @param length Number of doubles.
+     */
+    public void stage(double[] data, int length){
+        ensureCapacity(length);
+        payloadD.clear();
+        if(length > 0)
+            payloadD.put(data, 0, length);
+        payload.clear();
+        payload.limit(length << 3);
+    }
+
+    /**
+     * Copy the active ranges of a gradient and their entries into the buffer
+     * (see PUSH_SPARSE).
+     * @param g Gradient.
+     * @param active Active ranges of the gradient, sorted.
+     */
+    public void stageSparse(double[] g, ActiveRanges active){
+        int n = active.size();
+        int length = 1 + 2 * n + active.length();
+        ensureCapacity(length);
+        payloadD.clear();
+        payloadD.put(n);
+        for(int r = 0; r < n; r++){
+            payloadD.put(active.from(r));
+            payloadD.put(active.to(r));
+        }
+        for(int r = 0; r < n; r++){
+            payloadD.put(g, active.from(r), active.to(r) - active.from(r));
+        }
+        payload.clear();
+        payload.limit(length << 3);
+    }
+
+    /**
+     * Send a frame whose payload was staged.
+     * @param type Type of message.
+     * @param worker Id of worker.
+     * @param version Version of parameters or clock of worker.
+     * @param value Extra value.
+     * @throws IOException If the frame can not be written.
+     */
+    public void sendStaged(int type, int worker, long version, double value)
+            throws IOException {
+        header.clear();
+        header.putInt(type).putInt(worker).putLong(version).putDouble(value)
+                .putInt(payload.limit() >>> 3);
+        header.flip();
+
+        ByteBuffer[] frame = {header, payload};
+        while(header.hasRemaining() || payload.hasRemaining()){
+            channel.write(frame);
+        }
+    }
+
+    /**
+     * Receive next frame, its payload stays in the buffer until read with
+     * readPayload.
+     * @return Type of message.
+     * @throws IOException If the channel is closed or can not be read.
+     */
+    public int receive() throws IOException {
+        header.clear();
+        readFully(header);
+        header.flip();
+        type = header.getInt();
+        worker = header.getInt();
+        version = header.getLong();
+        value = header.getDouble();
+        length = header.getInt();
+
+        ensureCapacity(length);
+        payload.clear();
+        payload.limit(length << 3);
+        readFully(payload);
+        return type;
+    }
+
+    /**
+     * Copy payload of last frame received.
+     * @param dst Destination, must have room for the payload.
+     */
+    public void readPayload(double[] dst){
+        payloadD.clear();
+        payloadD.get(dst, 0, length);
+    }
+
+    /**
+     * Read payload of last frame received as a sparse gradient (see
+     * PUSH_SPARSE), entries outside the ranges are left as they are.
+     * @param dst Gradient where the entries of the ranges are copied.
+     * @param active Where the ranges are stored (cleared first).
+     */
+    public void readSparsePayload(double[] dst, ActiveRanges active){
+        payloadD.clear();
+        active.clear();
+        int n = (int) payloadD.get();
+        for(int r = 0; r < n; r++){
+            active.add((int) payloadD.get(), (int) payloadD.get());
+        }
+        for(int r = 0; r < active.size(); r++){
+            payloadD.get(dst, active.from(r), active.to(r) - active.from(r));
+        }
+    }
+
+    private void readFully(ByteBuffer b) throws IOException {
+        while(b.hasRemaining()){
+            if(channel.read(b) < 0)
+                throw new EOFException("Connection closed");
+        }
+    }
+
+    private void ensureCapacity(int doubles){
+        if(payload == null || payload.capacity() < doubles << 3){
+            payload = ByteBuffer.allocateDirect(Math.max(doubles, 1) << 3)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            payloadD = payload.asDoubleBuffer();
+        }
+    }
+
+    public int getType(){
+        return type;
+    }
+
+    public int getWorker(){
+        return worker;
+    }
+
+    public long getVersion(){
+        return version;
+    }
+
+    public double getValue(){
+        return value;
+    }
+
+    public int getLength(){
+        return length;
+    }
+
+    /**
+     * Close the channel.
+     */
+    public void close(){
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+}
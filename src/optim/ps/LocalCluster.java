@@ -0,0 +1,135 @@
+package optim.ps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import optim.sgd.update.SGDUpdate;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs a parameter server and its workers on localhost: the server runs in
+ * this JVM and the workers either as threads of this JVM or as separate
+ * processes (same java and classpath, see PSWorker.main).
+ * @author diego_paez
+ */
+public class LocalCluster {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(LocalCluster.class);
+
+    /**
+     * Train with a parameter server and numWorkers workers on localhost. If
+     * a worker fails (its process exits with error or its thread throws) or
+     * does not connect in time, training is aborted.
+     * @param jobClass Class of the TrainingJob (public, no arguments
+     * constructor).
+     * @param numWorkers Number of workers.
+     * @param x Initial parameters, updated in place.
+     * @param updater Update rule applied by the server.
+     * @param staleness Maximum clocks a worker can be ahead of the slowest.
+     * @param processes Whether workers run as processes or as threads.
+     * @return Trained parameters.
+     * @throws IllegalStateException If training was aborted.
+     */
+    public static double[] train(String jobClass, int numWorkers, double[] x,
+            SGDUpdate updater, int staleness, boolean processes){
+        final ParameterServer ps = new ParameterServer(x, updater, numWorkers, staleness);
+        int port;
+        try {
+            port = ps.bind(0);
+        } catch (IOException e) {
+            LOG.error("Can't start parameter server: " + e.getMessage());
+            return x;
+        }
+        Thread server = new Thread(ps, "parameter-server");
+        server.setDaemon(true);
+        server.start();
+
+        List<Process> procs = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        try {
+            for(int w = 0; w < numWorkers; w++){
+                if(processes){
+                    ProcessBuilder pb = new ProcessBuilder(
+                            System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                            "-cp", System.getProperty("java.class.path"),
+                            PSWorker.class.getName(), "localhost", String.valueOf(port),
+                            String.valueOf(w), String.valueOf(numWorkers), jobClass);
+                    pb.inheritIO();
+                    procs.add(pb.start());
+                } else{
+                    TrainingJob job = (TrainingJob) Class.forName(jobClass).getDeclaredConstructor().newInstance();
+                    final PSWorker worker = new PSWorker(job, w, numWorkers, "localhost", port);
+                    final int wk = w;
+                    Thread t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                worker.run();
+                            } catch (RuntimeException e) {
+                                if(!ps.isAborted())
+                                    LOG.error("Worker " + wk + " failed", e);
+                                ps.workerFailed(wk);
+                            }
+                        }
+                    }, "ps-worker-" + w);
+                    t.start();
+                    threads.add(t);
+                }
+            }
+            waitFor(procs, ps);
+            for(Thread t: threads){
+                t.join();
+            }
+            server.join();
+        } catch (IOException | ReflectiveOperationException e) {
+            LOG.error("Can't start worker: " + e);
+            ps.abort();
+            for(Process p: procs){
+                p.destroy();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ps.abort();
+            for(Process p: procs){
+                p.destroy();
+            }
+        }
+        if(ps.isAborted())
+            throw new IllegalStateException("Parameter server training aborted");
+        return ps.getParams();
+    }
+
+    /**
+     * Wait for the worker processes in any order. A process exiting with
+     * error aborts training, then the rest are destroyed.
+     */
+    private static void waitFor(List<Process> procs, ParameterServer ps)
+            throws InterruptedException {
+        boolean[] exited = new boolean[procs.size()];
+        int left = procs.size();
+        while(left > 0){
+            for(int w = 0; w < procs.size(); w++){
+                Process p = procs.get(w);
+                if(exited[w] || !p.waitFor(100, TimeUnit.MILLISECONDS))
+                    continue;
+                exited[w] = true;
+                left--;
+                if(p.exitValue() != 0){
+                    if(!ps.isAborted())
+                        LOG.error("Worker process " + w + " exited with code " + p.exitValue());
+                    ps.workerFailed(w);
+                }
+            }
+            if(ps.isAborted()){
+                for(Process p: procs){
+                    p.destroy();
+                }
+            }
+        }
+    }
+}
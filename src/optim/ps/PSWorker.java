@@ -0,0 +1,126 @@
+package optim.ps;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import optim.ActiveRanges;
+import optim.BatchSample;
+import optim.SparseBatchGradient;
+import optim.sgd.SGDInputs;
+import org.apache.log4j.Logger;
+import tensor.DoubleTensor;
+
+/**
+ * Worker of a parameter server: for every batch of its shard pulls the
+ * parameters, computes loss and gradient and pushes the gradient (only its
+ * active ranges if the gradient is sparse, see FrameChannel.PUSH_SPARSE).
+ * Runs as a thread or as a process (see main).
+ * @author diego_paez
+ */
+public class PSWorker implements Runnable {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(PSWorker.class);
+
+    private final TrainingJob job;
+    private final int worker;
+    private final int numWorkers;
+    private final String host;
+    private final int port;
+
+    /**
+     * Create worker.
+     * @param job Training job.
+     * @param worker Id of worker.
+     * @param numWorkers Number of workers.
+     * @param host Host of parameter server.
+     * @param port Port of parameter server.
+     */
+    public PSWorker(TrainingJob job, int worker, int numWorkers, String host, int port) {
+        this.job = job;
+        this.worker = worker;
+        this.numWorkers = numWorkers;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Train on the shard of the worker.
+     * @throws IllegalStateException If the connection with the server is
+     * lost (also when the server aborted training).
+     */
+    @Override
+    public void run() {
+        SGDInputs in = job.createInputs(worker, numWorkers);
+        BatchSample sample = new BatchSample(in.X, in.y, in.yWeights, in.batchSize);
+        int numBatches = sample.getNumBatches();
+        DoubleTensor sX, sy, st;
+        double f, propEx;
+        double[] g;
+        ActiveRanges active;
+        long clock = 0, version;
+
+        FrameChannel ch = null;
+        try {
+            ch = new FrameChannel(SocketChannel.open(new InetSocketAddress(host, port)), in.x.length);
+            for(int i = 0; i < in.epochs; i++){
+                sample.initRandBatch();
+                for(int j = 0; j < numBatches; j++){
+                    ch.send(FrameChannel.PULL, worker, clock, 0.0, null, 0);
+                    ch.receive();
+                    ch.readPayload(in.x);
+                    version = ch.getVersion();
+
+                    sX = sample.getBatchX(j);
+                    sy = sample.getBatchY(j);
+                    st = sample.getBatchT(j);
+                    // regularization is adjusted to the whole data of all workers
+                    propEx = sX.lastDim() / (double) (in.X.lastDim() * numWorkers);
+                    f = in.fun.value(in.x, sX, sy, st, propEx);
+                    g = in.grad.value(in.x, sX, sy, st, propEx);
+                    active = in.grad instanceof SparseBatchGradient
+                            ? ((SparseBatchGradient) in.grad).getActiveRanges() : null;
+
+                    if(active == null){
+                        ch.send(FrameChannel.PUSH, worker, version, f, g, g.length);
+                    } else{
+                        // only the written ranges, none if the step is skipped
+                        ch.stageSparse(g, active);
+                        ch.sendStaged(FrameChannel.PUSH_SPARSE, worker, version, f);
+                    }
+                    clock++;
+                }
+            }
+            ch.send(FrameChannel.DONE, worker, clock, 0.0, null, 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Worker " + worker + " failed", e);
+        } finally {
+            if(ch != null)
+                ch.close();
+        }
+    }
+
+    /**
+     * Run a worker process, exits with error if the worker fails so that
+     * the launcher can abort training (see LocalCluster).
+     * @param args host port worker numWorkers jobClass
+     */
+    public static void main(String[] args){
+        if(args.length < 5){
+            System.out.println("Usage: PSWorker host port worker numWorkers jobClass");
+            return;
+        }
+        TrainingJob job;
+        try {
+            job = (TrainingJob) Class.forName(args[4]).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            LOG.error("Can't create job " + args[4] + ": " + e);
+            System.exit(1);
+            return;
+        }
+        new PSWorker(job, Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                args[0], Integer.parseInt(args[1])).run();
+    }
+}
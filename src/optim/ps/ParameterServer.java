@@ -0,0 +1,375 @@
+package optim.ps;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import optim.ActiveRanges;
+import optim.sgd.update.SGDUpdate;
+import org.apache.log4j.Logger;
+
+/**
+ * Parameter server: holds the parameters and the state of the updater, while
+ * workers (see PSWorker) train on shards of the data. A worker pulls the
+ * parameters, computes the gradient of a batch and pushes it, the server
+ * applies the step right away (steps are applied one at a time). Sparse
+ * gradients only update their active ranges, as when training in a single
+ * process.
+ *
+ * Staleness is bounded as in stale synchronous parallel ("More Effective
+ * Distributed ML via a Stale Synchronous Parallel Parameter Server" by Ho et
+ * al.): the clock of a worker is its number of pushes and a pull is not
+ * answered while the worker is more than staleness clocks ahead of the
+ * slowest worker still training. With staleness 0 workers run in lockstep,
+ * with a large value they run fully asynchronous.
+ *
+ * Each connection is served by its own thread with blocking NIO channels.
+ * Training is aborted (every connection closed) if not all the workers
+ * connect in time (see setAcceptTimeout) or a worker fails (see
+ * workerFailed), otherwise the workers still training would wait forever for
+ * the clock of the missing one.
+ * @author diego_paez
+ */
+public class ParameterServer implements Runnable {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(ParameterServer.class);
+
+    /**
+     * Parameters.
+     */
+    private final double[] x;
+
+    /**
+     * Update applied with each gradient.
+     */
+    private final SGDUpdate updater;
+
+    /**
+     * Number of workers expected.
+     */
+    private final int numWorkers;
+
+    /**
+     * Maximum number of clocks a worker can be ahead of the slowest one.
+     */
+    private final int staleness;
+
+    /**
+     * Clock of each worker, Long.MAX_VALUE once it finished.
+     */
+    private final long[] clock;
+
+    /**
+     * Version of the parameters = number of steps applied.
+     */
+    private long version;
+
+    /**
+     * Sum and max of the versions a gradient is behind when applied.
+     */
+    private long sumDelay, maxDelay;
+
+    /**
+     * Number of pushes without active ranges (steps skipped).
+     */
+    private long skipped;
+
+    /**
+     * Sum of losses reported by workers since last report.
+     */
+    private double lossSum;
+    private int lossCount;
+
+    /**
+     * Listening channel.
+     */
+    private ServerSocketChannel server;
+
+    /**
+     * Milliseconds given to all the workers to connect.
+     */
+    private int acceptTimeout = 60000;
+
+    /**
+     * Connections of the workers, closed when training is aborted.
+     */
+    private final FrameChannel[] conns;
+
+    /**
+     * Whether training was aborted.
+     */
+    private boolean aborted;
+
+    /**
+     * Create server.
+     * @param x Initial parameters, updated in place.
+     * @param updater Update rule.
+     * @param numWorkers Number of workers that will connect.
+     * @param staleness Maximum clocks a worker can be ahead of the slowest.
+     */
+    public ParameterServer(double[] x, SGDUpdate updater, int numWorkers, int staleness) {
+        this.x = x;
+        this.updater = updater;
+        this.numWorkers = numWorkers;
+        this.staleness = staleness;
+        this.clock = new long[numWorkers];
+        this.conns = new FrameChannel[numWorkers];
+    }
+
+    /**
+     * Set the time given to all the workers to connect, counted from the
+     * call to run. Training is aborted if some of them did not connect.
+     * @param millis Milliseconds, 60 seconds by default.
+     */
+    public void setAcceptTimeout(int millis){
+        acceptTimeout = millis;
+    }
+
+    /**
+     * Start listening.
+     * @param port Port, 0 for any free port.
+     * @return Port listened.
+     * @throws IOException If the port can not be bound.
+     */
+    public int bind(int port) throws IOException {
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Accept the workers and serve them until all of them are done or
+     * training is aborted.
+     */
+    @Override
+    public void run() {
+        Thread[] threads = new Thread[numWorkers];
+        int connected = 0;
+        try {
+            long deadline = System.currentTimeMillis() + acceptTimeout;
+            for(int i = 0; i < numWorkers; i++){
+                // the timeout of the socket applies to accept, not the one of the channel
+                server.socket().setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+                final FrameChannel ch = new FrameChannel(server.socket().accept().getChannel(),
+                        x.length);
+                synchronized(this){
+                    conns[i] = ch;
+                }
+                if(isAborted()){
+                    ch.close();
+                    break;
+                }
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(ch);
+                    }
+                }, "ps-conn-" + i);
+                threads[i].start();
+                connected++;
+            }
+        } catch (SocketTimeoutException e) {
+            LOG.error(String.format("Only %d of %d workers connected in %d ms, aborting training",
+                    connected, numWorkers, acceptTimeout));
+            abort();
+        } catch (IOException e) {
+            if(!isAborted()){
+                LOG.error("Parameter server failed, aborting training: " + e.getMessage());
+                abort();
+            }
+        } finally {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+        try {
+            for(Thread t: threads){
+                if(t != null)
+                    t.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+        }
+        LOG.info(String.format("Parameter server done: %d steps, %d skipped, mean delay %.2f, "
+                + "max delay %d", version, skipped, version == 0 ? 0.0 : sumDelay / (double) version,
+                maxDelay));
+    }
+
+    /**
+     * Stop training: stop accepting workers and close the connections, the
+     * workers fail on their next message.
+     */
+    public void abort(){
+        FrameChannel[] open;
+        synchronized(this){
+            if(aborted)
+                return;
+            aborted = true;
+            notifyAll();
+            open = conns.clone();
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+        for(FrameChannel ch: open){
+            if(ch != null)
+                ch.close();
+        }
+    }
+
+    /**
+     * A worker failed (its process exited with error or its thread threw),
+     * the others would wait for it: it is marked as finished and training is
+     * aborted.
+     * @param w Id of worker.
+     */
+    public void workerFailed(int w){
+        if(!isAborted())
+            LOG.error("Worker " + w + " failed, aborting training");
+        finish(w);
+        abort();
+    }
+
+    /**
+     * Whether training was aborted, the parameters are then not trained.
+     * @return True if aborted.
+     */
+    public synchronized boolean isAborted(){
+        return aborted;
+    }
+
+    /**
+     * Serve one worker.
+     */
+    private void serve(FrameChannel ch){
+        double[] g = new double[x.length];
+        ActiveRanges active = new ActiveRanges();
+        int w = -1;
+        try {
+            while(true){
+                int type = ch.receive();
+                w = ch.getWorker();
+                if(type == FrameChannel.PULL){
+                    long v;
+                    synchronized(this){
+                        while(!aborted && clock[w] - minClock() > staleness){
+                            wait();
+                        }
+                        if(aborted)
+                            break;
+                        ch.stage(x, x.length);
+                        v = version;
+                    }
+                    ch.sendStaged(FrameChannel.PARAMS, w, v, 0.0);
+                } else if(type == FrameChannel.PUSH){
+                    ch.readPayload(g);
+                    push(w, g, null, ch.getVersion(), ch.getValue());
+                } else if(type == FrameChannel.PUSH_SPARSE){
+                    ch.readSparsePayload(g, active);
+                    push(w, g, active, ch.getVersion(), ch.getValue());
+                } else if(type == FrameChannel.DONE){
+                    break;
+                } else{
+                    LOG.error("Unknown message " + type + " from worker " + w);
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if(!isAborted())
+                LOG.error("Connection with worker " + w + " lost: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if(w >= 0)
+                finish(w);
+            ch.close();
+        }
+    }
+
+    /**
+     * Apply gradient of a worker and advance its clock. With no active range
+     * the step is skipped: neither the parameters nor the state of the
+     * updater change.
+     */
+    private synchronized void push(int w, double[] g, ActiveRanges active, long gradVersion,
+            double loss){
+        boolean skip = active != null && active.size() == 0;
+        if(skip){
+            skipped++;
+        } else{
+            updater.apply(x, g, active, null);
+            long delay = version - gradVersion;
+            sumDelay += delay;
+            maxDelay = Math.max(maxDelay, delay);
+            version++;
+        }
+        lossSum += loss;
+        lossCount++;
+        if(!skip && version % 100 == 0){
+            LOG.info(String.format("Step %d: mean loss %.6f, mean delay %.2f", version,
+                    lossSum / lossCount, sumDelay / (double) version));
+            lossSum = 0.0;
+            lossCount = 0;
+        }
+        clock[w]++;
+        notifyAll();
+    }
+
+    /**
+     * Worker left, it no longer holds back the others.
+     */
+    private synchronized void finish(int w){
+        clock[w] = Long.MAX_VALUE;
+        notifyAll();
+    }
+
+    private long minClock(){
+        long min = Long.MAX_VALUE;
+        for(int i = 0; i < numWorkers; i++){
+            min = Math.min(min, clock[i]);
+        }
+        return min;
+    }
+
+    /**
+     * Parameters (updated in place).
+     * @return Parameters.
+     */
+    public double[] getParams(){
+        return x;
+    }
+
+    /**
+     * Number of steps applied.
+     * @return Version of parameters.
+     */
+    public synchronized long getVersion(){
+        return version;
+    }
+
+    /**
+     * Number of pushes whose step was skipped.
+     * @return Steps skipped.
+     */
+    public synchronized long getSkipped(){
+        return skipped;
+    }
+
+    /**
+     * Mean number of steps a gradient was behind when applied.
+     * @return Mean delay.
+     */
+    public synchronized double getMeanDelay(){
+        return version == 0 ? 0.0 : sumDelay / (double) version;
+    }
+}
@@ -0,0 +1,23 @@
+package optim.ps;
+
+import optim.sgd.SGDInputs;
+
+/**
+ * Describes what a worker of a parameter server trains. Implementations must
+ * have a public constructor without arguments, since worker processes create
+ * them by name (see PSWorker).
+ * @author diego_paez
+ */
+public interface TrainingJob {
+
+    /**
+     * Create the inputs of given worker: parameters (overwritten by the
+     * parameters pulled from the server), function, gradient, shard of the
+     * data, batch size and number of epochs. The updater is ignored, steps are
+     * applied by the server.
+     * @param worker Id of worker, from 0 to numWorkers - 1.
+     * @param numWorkers Number of workers.
+     * @return Inputs of worker.
+     */
+    public SGDInputs createInputs(int worker, int numWorkers);
+}
@@ -0,0 +1,46 @@
+package optim.sgd;
+
+import optim.BatchFunction;
+import optim.BatchGradient;
+import tensor.DoubleTensor;
+
+/**
+ * Inputs of asynchronous SGD (see HogwildOptim). Besides the inputs of SGD,
+ * each worker thread needs its own function and gradient (e.g., a replica of
+ * the model whose weights are the shared parameters x, see
+ * NeuralNetModel.shareWeights), fun and grad are those of the first worker.
+ * @author diego_paez
+ */
+public class HogwildInputs extends SGDInputs {
+
+    /**
+     * Function of each worker.
+     */
+    public BatchFunction[] funs;
+
+    /**
+     * Gradient of each worker.
+     */
+    public BatchGradient[] grads;
+
+    /**
+     * Number of blocks of parameters with a lock each, 0 to update without
+     * locks.
+     */
+    public int stripes;
+
+    /**
+     * Number of examples of the fixed batch evaluated after each epoch, 0 to
+     * skip evaluation.
+     */
+    public int evalSize;
+
+    public HogwildInputs(double[] x, BatchFunction[] funs, BatchGradient[] grads,
+            DoubleTensor X, DoubleTensor y) {
+        super(x, funs[0], grads[0], X, y);
+        this.funs = funs;
+        this.grads = grads;
+        this.stripes = 0;
+        this.evalSize = Math.min(1000, Math.max(250, (int)(X.lastDim() * 0.05)));
+    }
+}
@@ -0,0 +1,227 @@
+package optim.sgd;
+
+import io.AsyncCheckpointWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import optim.BatchSample;
+import org.apache.log4j.Logger;
+import tensor.DoubleTensor;
+
+/**
+ * Asynchronous SGD, see "Hogwild!: A Lock-Free Approach to Parallelizing
+ * Stochastic Gradient Descent" by Niu, Recht, Re and Wright.
+ *
+ * Worker threads take the batches of an epoch from a shared counter, compute
+ * the gradient with their own function and gradient against the shared
+ * parameters and apply the step of the updater right away, without waiting
+ * for each other. By default no locks are taken: with sparse gradients
+ * (wide tabular models, embeddings) updates rarely touch the same parameters
+ * and the occasional lost update does not hurt convergence. Optionally the
+ * parameters are split in stripes, each block updated holding its lock.
+ * The state of the updater (caches of momentum, Adam...) is shared as well
+ * and updated with the same races.
+ *
+ * After each epoch (all workers wait for each other) throughput and loss are
+ * printed and stored: mean loss of the batches of the epoch and loss of a
+ * fixed batch, so that runs can be compared against SGDOptim. Annealing and
+ * plots are not supported.
+ * @author diego_paez
+ */
+public class HogwildOptim {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(HogwildOptim.class);
+
+    /**
+     * Mean loss of the batches of each epoch.
+     */
+    private double[] trainLoss;
+
+    /**
+     * Loss of the fixed batch after each epoch.
+     */
+    private double[] evalLoss;
+
+    /**
+     * Examples processed per second in each epoch.
+     */
+    private double[] throughput;
+
+    /**
+     * Seconds taken by each epoch.
+     */
+    private double[] seconds;
+
+    /**
+     * Train with the workers of inputs.
+     * @param inputs Inputs of training.
+     * @return Trained weights (inputs.x).
+     * @throws IllegalStateException If a worker failed or training was
+     * interrupted, the metrics of the epochs not finished are NaN.
+     */
+    public double[] optim(final HogwildInputs inputs) {
+        final int workers = inputs.funs.length;
+        final BatchSample sample = new BatchSample(inputs.X, inputs.y, inputs.yWeights,
+                inputs.batchSize);
+        if(inputs.shuffleThreads > 0)
+            sample.setContiguous(inputs.shuffleThreads);
+        final int numBatches = sample.getNumBatches();
+        final double[] losses = new double[workers];
+        final long[] examples = new long[workers];
+        final Object[] locks = inputs.stripes > 0 ? new Object[inputs.stripes] : null;
+        for(int i = 0; locks != null && i < locks.length; i++){
+            locks[i] = new Object();
+        }
+
+        DoubleTensor evalX = null, evalY = null, evalT = null;
+        if(inputs.evalSize > 0){
+            BatchSample evalSample = new BatchSample(inputs.X, inputs.y, inputs.yWeights,
+                    Math.min(inputs.evalSize, inputs.X.lastDim()));
+            evalSample.initRandBatch();
+            evalX = evalSample.getBatchX();
+            evalY = evalSample.getBatchY();
+            evalT = evalSample.getBatchT();
+        }
+
+        // epochs not finished keep NaN
+        trainLoss = new double[inputs.epochs];
+        evalLoss = new double[inputs.epochs];
+        throughput = new double[inputs.epochs];
+        seconds = new double[inputs.epochs];
+        Arrays.fill(trainLoss, Double.NaN);
+        Arrays.fill(evalLoss, Double.NaN);
+        Arrays.fill(throughput, Double.NaN);
+        Arrays.fill(seconds, Double.NaN);
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "hogwild-" + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        AsyncCheckpointWriter writer = null;
+        if(inputs.saveWeights && inputs.asyncSave)
+            writer = new AsyncCheckpointWriter(inputs.file, inputs.keepCheckpoints);
+
+        System.out.println("Step size: " + inputs.updater.stepSize + ", workers: " + workers
+                + (locks == null ? ", lock free" : ", stripes: " + locks.length));
+        try{
+            for(int i = 0; i < inputs.epochs; i++){
+                sample.initRandBatch();
+                final AtomicInteger next = new AtomicInteger();
+                List<Callable<Void>> tasks = new ArrayList<>();
+                for(int w = 0; w < workers; w++){
+                    final int wk = w;
+                    losses[wk] = 0.0;
+                    examples[wk] = 0;
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            DoubleTensor sX;
+                            int b;
+                            while((b = next.getAndIncrement()) < numBatches){
+                                sX = sample.getBatchX(b);
+                                losses[wk] += inputs.updater.update(inputs.x, inputs.funs[wk],
+                                        inputs.grads[wk], sX, sample.getBatchY(b),
+                                        sample.getBatchT(b), sX.lastDim() / (double) inputs.X.lastDim(),
+                                        locks);
+                                examples[wk] += sX.lastDim();
+                            }
+                            return null;
+                        }
+                    });
+                }
+
+                long start = System.nanoTime();
+                for(Future<Void> f: pool.invokeAll(tasks)){
+                    f.get();
+                }
+                seconds[i] = (System.nanoTime() - start) / 1e9;
+
+                long total = 0;
+                double loss = 0.0;
+                for(int w = 0; w < workers; w++){
+                    loss += losses[w];
+                    total += examples[w];
+                }
+                trainLoss[i] = loss / numBatches;
+                throughput[i] = total / seconds[i];
+                evalLoss[i] = evalX == null ? 0.0 : inputs.fun.value(inputs.x, evalX, evalY,
+                        evalT, evalX.lastDim() / (double) inputs.X.lastDim());
+
+                System.out.println(String.format("Epoch %d: %.3f s, %.0f examples/s, %.1f updates/s, "
+                        + "train loss %.6f, eval loss %.6f", i, seconds[i], throughput[i],
+                        numBatches / seconds[i], trainLoss[i], evalLoss[i]));
+
+                if(writer != null){
+                    writer.submit(inputs.x, inputs.saveOptimizerState ? inputs.updater : null);
+                } else if(inputs.saveWeights == true){
+                    if(inputs.saveOptimizerState)
+                        SGDOptim.storeCheckpoint(inputs.file, inputs.x, inputs.updater);
+                    else
+                        SGDOptim.storeWeights(inputs.file, inputs.x);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while training", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Worker failed", e.getCause());
+        } finally {
+            pool.shutdown();
+            sample.setContiguous(0);
+            if(writer != null)
+                writer.close();
+        }
+
+        return inputs.x;
+    }
+
+    /**
+     * Mean loss of the batches of each epoch of last run.
+     * @return Loss per epoch.
+     */
+    public double[] getTrainLoss(){
+        return trainLoss;
+    }
+
+    /**
+     * Loss of the fixed batch after each epoch of last run.
+     * @return Loss per epoch, zeros if evaluation was skipped, NaN for
+     * epochs not finished.
+     */
+    public double[] getEvalLoss(){
+        return evalLoss;
+    }
+
+    /**
+     * Examples processed per second in each epoch of last run.
+     * @return Throughput per epoch.
+     */
+    public double[] getThroughput(){
+        return throughput;
+    }
+
+    /**
+     * Seconds taken by each epoch of last run.
+     * @return Seconds per epoch.
+     */
+    public double[] getSeconds(){
+        return seconds;
+    }
+}
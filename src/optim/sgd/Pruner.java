@@ -0,0 +1,23 @@
+package optim.sgd;
+
+/**
+ * Prunes parameters while optimizing (see SGDInputs.pruner): the mask of
+ * pruned parameters is applied after every update, so that they stay zero,
+ * and the pruner may prune more parameters at the end of each epoch.
+ * @author diego_paez
+ */
+public interface Pruner {
+
+    /**
+     * Set pruned parameters to zero, called after every update.
+     * @param x Parameters.
+     */
+    public void applyMask(double[] x);
+
+    /**
+     * Called at the end of every epoch, may prune more parameters.
+     * @param epoch Epoch that ended (0 based).
+     * @param x Parameters.
+     */
+    public void epochEnd(int epoch, double[] x);
+}
@@ -2,6 +2,7 @@ package optim.sgd;
 
 import optim.BatchFunction;
 import optim.BatchGradient;
+import optim.BatchTransform;
 import optim.sgd.plot.PlotLFOptions;
 import optim.sgd.plot.PlotLFType;
 import optim.sgd.update.SGDUpdate;
@@ -30,7 +31,27 @@ public class SGDInputs {
     public PlotLFOptions plotLFOptions;
 
     public boolean saveWeights;
+    // Store a checkpoint with the state of the updater instead of plain weights
+    public boolean saveOptimizerState;
     public String file;
+    // Write checkpoints on a background thread (see io.AsyncCheckpointWriter)
+    public boolean asyncSave;
+    // Number of checkpoints kept: file, file.1, ... file.(keepCheckpoints-1)
+    public int keepCheckpoints;
+    // Prunes parameters during training, null for none
+    public Pruner pruner;
+    // Batches assembled on background threads (see optim.BatchLoader): size
+    // of the ring of batches, 0 (default) to assemble each batch when needed.
+    // The loader already copies whole examples off the training thread, so
+    // shuffleThreads is not used when prefetching
+    public int prefetch;
+    public int loaderThreads;
+    // Applied to every batch by the loader (e.g., augmentation), null for none
+    public BatchTransform transform;
+    // Threads permuting the training set into a contiguous copy every epoch
+    // when batches are not prefetched (see BatchSample.setContiguous), 0 to
+    // gather each batch
+    public int shuffleThreads;
     
     public SGDInputs(double[] x, BatchFunction fun, BatchGradient grad,
             DoubleTensor X, DoubleTensor y) {
@@ -47,6 +68,11 @@ public class SGDInputs {
         this.sameBatchPlotAndAnneal = true;
         this.plotLFOptions = new PlotLFOptions(PlotLFType.NONE,0,0,0);
         this.saveWeights = false;
+        this.saveOptimizerState = false;
         this.file = "weights.dat";
+        this.asyncSave = true;
+        this.keepCheckpoints = 1;
+        this.prefetch = 0;
+        this.loaderThreads = 1;
     }
 }
\ No newline at end of file
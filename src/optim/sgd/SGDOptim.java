@@ -1,11 +1,16 @@
 package optim.sgd;
 
+import io.AsyncCheckpointWriter;
+import io.ModelCheckpoint;
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import optim.BatchLoader;
 import optim.BatchSample;
 import optim.sgd.plot.PlotLFType;
 import optim.sgd.plot.PlotLossFunctionError;
+import optim.sgd.update.SGDUpdate;
 import tensor.DoubleTensor;
 
 /**
@@ -60,20 +65,58 @@ public class SGDOptim{
             
         }
 
+        AsyncCheckpointWriter writer = null;
+        if(inputs.saveWeights && inputs.asyncSave)
+            writer = new AsyncCheckpointWriter(inputs.file, inputs.keepCheckpoints);
+
+        BatchLoader loader = null;
+        if(inputs.prefetch > 0){
+            loader = new BatchLoader(inputs.X, inputs.y, inputs.yWeights, inputs.batchSize,
+                    inputs.epochs, inputs.prefetch, inputs.loaderThreads);
+            if(inputs.transform != null)
+                loader.addTransform(inputs.transform);
+            loader.start();
+        } else if(inputs.shuffleThreads > 0){
+            sample.setContiguous(inputs.shuffleThreads);
+        }
+
         System.out.println("Step size: " + inputs.updater.stepSize);
         double propEx;
+        BatchLoader.Batch batch;
+        boolean stopped = false;
         for(int i = 0; i < inputs.epochs; i++){
             
-            sample.initRandBatch();
+            if(loader == null)
+                sample.initRandBatch();
             
             for(int j = 0; j < numBatches; j++){
                 // update
-                sX = sample.getBatchX();
-                sy = sample.getBatchY();
-                st = sample.getBatchT();
+                if(loader != null){
+                    try {
+                        batch = loader.next();
+                    } catch (IllegalStateException e) {
+                        loader.close();
+                        throw e;
+                    }
+                    // loader closed or thread interrupted
+                    if(batch == null){
+                        System.out.println("Batch loader stopped at epoch " + i + ", batch " + j);
+                        stopped = true;
+                        break;
+                    }
+                    sX = batch.X;
+                    sy = batch.y;
+                    st = batch.yWeights;
+                } else{
+                    sX = sample.getBatchX();
+                    sy = sample.getBatchY();
+                    st = sample.getBatchT();
+                }
                 propEx = sX.lastDim() / (double) inputs.X.lastDim();
                 err = inputs.updater.update(inputs.x, inputs.fun, inputs.grad,
                         sX, sy, st, propEx);
+                if(inputs.pruner != null)
+                    inputs.pruner.applyMask(inputs.x);
 
                 if(inputs.plotLFOptions.type == PlotLFType.ALLBATCHES){
                     if(inputs.plotLFOptions.startIter <= j + i * numBatches){
@@ -97,6 +140,10 @@ public class SGDOptim{
                 sample.nextBatch();
             }
 
+            // partial epoch, nothing to anneal, plot or save
+            if(stopped)
+                break;
+
             // Calculations after each epoch
 
             // anneal
@@ -140,22 +187,37 @@ public class SGDOptim{
                     lossF.setVisible(true);
             }
 
+            // Prune
+            if(inputs.pruner != null)
+                inputs.pruner.epochEnd(i, inputs.x);
+
             // Save
-            if(inputs.saveWeights == true){
-               storeWeights(inputs.file,inputs.x);
+            if(writer != null){
+                writer.submit(inputs.x, inputs.saveOptimizerState ? inputs.updater : null);
+            } else if(inputs.saveWeights == true){
+                if(inputs.saveOptimizerState)
+                    storeCheckpoint(inputs.file, inputs.x, inputs.updater);
+                else
+                    storeWeights(inputs.file,inputs.x);
             }
 
             // Reset
             annealErrCalc = false;
         }
 
+        if(loader != null)
+            loader.close();
+        sample.setContiguous(0);
+        if(writer != null)
+            writer.close();
+
         return inputs.x;
     }
 
     public static void storeWeights(String file, double[] weights){
         DataOutputStream os = null;
         try {
-            os = new DataOutputStream(new FileOutputStream(file));
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
             for(int i = 0; i < weights.length; i++)
                 os.writeDouble(weights[i]);
         }  catch(IOException e){
@@ -169,4 +231,19 @@ public class SGDOptim{
         }
     }
 
+    /**
+     * Store weights and state of the updater in a checkpoint (see
+     * io.ModelCheckpoint) so that training can be resumed.
+     * @param file File to write.
+     * @param weights Weights.
+     * @param updater Updater whose state is stored.
+     */
+    public static void storeCheckpoint(String file, double[] weights, SGDUpdate updater){
+        try {
+            ModelCheckpoint.save(file, null, weights, updater);
+        } catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
 }
@@ -1,10 +1,7 @@
 package optim.sgd.update;
 
 import java.util.Arrays;
-import optim.BatchFunction;
-import optim.BatchGradient;
 import org.jblas.DoubleMatrix;
-import tensor.DoubleTensor;
 
 /**
  * Recommended settings: alfa = 0.002, beta1 = 0.9, beta2 = 0.999.
@@ -20,6 +17,9 @@ public class AdaMaxUpdate extends SGDUpdate{
     public double beta2;
     public int iter;
 
+    // step size over the bias correction
+    private double alpha;
+
     public AdaMaxUpdate(double stepSize, double beta1, double beta2, int length) {
         this.stepSize = stepSize;
         this.beta1 = beta1;
@@ -32,18 +32,37 @@ public class AdaMaxUpdate extends SGDUpdate{
     }
 
     @Override
-    public double update(double[] x, BatchFunction fun, BatchGradient grad,
-            DoubleTensor sX, DoubleTensor sy, DoubleTensor st, double lambdaAdjus) {
-        double f = fun.value(x,sX,sy,st,lambdaAdjus);
-        double[] g = grad.value(x,sX,sy,st,lambdaAdjus);
+    protected void beginStep() {
         iter++;
+        alpha = stepSize / (1 - Math.pow(beta1,iter));
+    }
 
-        for(int i = 0; i < x.length; i++){
-            cache1[i] = beta1 * cache1[i] + (1 - beta1) * g[i];
-            cache2[i] = Math.max(beta2 * cache2[i], Math.abs(g[i]));
-            x[i] += - stepSize / (1 - Math.pow(beta1,iter)) * cache1[i] /cache2[i];
+    @Override
+    protected void step(double[] x, double[] g, double gs, int from, int to) {
+        final double b1 = beta1, b2 = beta2, c1 = 1 - beta1;
+        final double a = alpha, wd = weightDecay;
+        final double[] m = cache1, u = cache2;
+        double gi;
+        for(int i = from; i < to; i++){
+            gi = gs * g[i] + wd * x[i];
+            m[i] = b1 * m[i] + c1 * gi;
+            u[i] = Math.max(b2 * u[i], Math.abs(gi));
+            x[i] -= a * m[i] / u[i];
         }
-        return f;
     }
 
+    @Override
+    public double[][] getState() {
+        return new double[][]{cache1, cache2};
+    }
+
+    @Override
+    public long getIteration() {
+        return iter;
+    }
+
+    @Override
+    public void setIteration(long iteration) {
+        iter = (int) iteration;
+    }
 }
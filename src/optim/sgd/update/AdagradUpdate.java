@@ -1,9 +1,6 @@
 package optim.sgd.update;
 
 import java.util.Arrays;
-import optim.BatchFunction;
-import optim.BatchGradient;
-import tensor.DoubleTensor;
 
 /**
  * A downside of Adagrad is that in case of Deep Learning, the monotonic learning
@@ -22,14 +19,19 @@ public class AdagradUpdate extends SGDUpdate{
     }
 
     @Override
-    public double update(double[] x, BatchFunction fun, BatchGradient grad,
-            DoubleTensor sX, DoubleTensor sy, DoubleTensor st, double lambdaAdjus) {
-        double f = fun.value(x,sX,sy,st,lambdaAdjus);
-        double[] g = grad.value(x,sX,sy,st,lambdaAdjus);
-        for(int i = 0; i < x.length; i++){
-            cache[i] += g[i] * g[i];
-            x[i] += - stepSize * g[i] / (Math.sqrt(cache[i]) + eps);
+    protected void step(double[] x, double[] g, double gs, int from, int to) {
+        final double a = stepSize, wd = weightDecay;
+        final double[] c = cache;
+        double gi;
+        for(int i = from; i < to; i++){
+            gi = gs * g[i] + wd * x[i];
+            c[i] += gi * gi;
+            x[i] += - a * gi / (Math.sqrt(c[i]) + eps);
         }
-        return f;
+    }
+
+    @Override
+    public double[][] getState() {
+        return new double[][]{cache};
     }
 }
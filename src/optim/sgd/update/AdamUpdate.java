@@ -1,9 +1,6 @@
 package optim.sgd.update;
 
 import java.util.Arrays;
-import optim.BatchFunction;
-import optim.BatchGradient;
-import tensor.DoubleTensor;
 
 /**
  * Notice that the update looks exactly as RMSProp update, except the “smooth”
@@ -26,6 +23,9 @@ public class AdamUpdate extends SGDUpdate{
     public int iter;
     private final static double eps = 1E-8;
 
+    // step size over the first bias correction and 1 / second bias correction
+    private double alpha, invCorrection2;
+
     public AdamUpdate(double stepSize, double beta1, double beta2, int length) {
         this.stepSize = stepSize;
         this.beta1 = beta1;
@@ -38,20 +38,39 @@ public class AdamUpdate extends SGDUpdate{
     }
 
     @Override
-    public double update(double[] x, BatchFunction fun, BatchGradient grad,
-            DoubleTensor sX, DoubleTensor sy, DoubleTensor st, double lambdaAdjus) {
-        double f = fun.value(x,sX,sy,st,lambdaAdjus);
-        double[] g = grad.value(x,sX,sy,st,lambdaAdjus);
-        double biasCorrection1, biasCorrection2;
+    protected void beginStep() {
         iter++;
+        // bias corrections are the same for every parameter
+        alpha = stepSize / (1 - Math.pow(beta1,iter));
+        invCorrection2 = 1.0 / (1 - Math.pow(beta2,iter));
+    }
 
-        for(int i = 0; i < x.length; i++){
-            cache1[i] = beta1 * cache1[i] + (1 - beta1) * g[i];
-            cache2[i] = beta2 * cache2[i] + (1 - beta2) * g[i] * g[i];
-            biasCorrection1 = cache1[i] / (1 - Math.pow(beta1,iter));
-            biasCorrection2 = cache2[i] / (1 - Math.pow(beta2,iter));
-            x[i] += - stepSize * biasCorrection1 / (Math.sqrt(biasCorrection2) + eps);
+    @Override
+    protected void step(double[] x, double[] g, double gs, int from, int to) {
+        final double b1 = beta1, b2 = beta2, c1 = 1 - beta1, c2 = 1 - beta2;
+        final double a = alpha, ic2 = invCorrection2, wd = weightDecay;
+        final double[] m = cache1, v = cache2;
+        double gi;
+        for(int i = from; i < to; i++){
+            gi = gs * g[i] + wd * x[i];
+            m[i] = b1 * m[i] + c1 * gi;
+            v[i] = b2 * v[i] + c2 * gi * gi;
+            x[i] -= a * m[i] / (Math.sqrt(v[i] * ic2) + eps);
         }
-        return f;
+    }
+
+    @Override
+    public double[][] getState() {
+        return new double[][]{cache1, cache2};
+    }
+
+    @Override
+    public long getIteration() {
+        return iter;
+    }
+
+    @Override
+    public void setIteration(long iteration) {
+        iter = (int) iteration;
     }
 }
\ No newline at end of file
@@ -1,9 +1,6 @@
 package optim.sgd.update;
 
 import java.util.Arrays;
-import optim.BatchFunction;
-import optim.BatchGradient;
-import tensor.DoubleTensor;
 
 /**
  * With Momentum update, the parameter vector will build up velocity in any
@@ -23,15 +20,17 @@ public class MomentumSGDUpdate extends SGDUpdate{
     }
 
     @Override
-    public double update(double[] x, BatchFunction fun, BatchGradient grad,
-            DoubleTensor sX, DoubleTensor sy, DoubleTensor st, double lambdaAdjus) {
-        double f = fun.value(x,sX,sy,st,lambdaAdjus);
-        double[] g = grad.value(x,sX,sy,st,lambdaAdjus);
-        for(int i = 0; i < x.length; i++){
-            v[i] = momentum * v[i] - stepSize * g[i];
-            x[i] += v[i];
+    protected void step(double[] x, double[] g, double gs, int from, int to) {
+        final double mu = momentum, a = stepSize, wd = weightDecay;
+        final double[] vel = v;
+        for(int i = from; i < to; i++){
+            vel[i] = mu * vel[i] - a * (gs * g[i] + wd * x[i]);
+            x[i] += vel[i];
         }
-        return f;
     }
 
+    @Override
+    public double[][] getState() {
+        return new double[][]{v};
+    }
 }
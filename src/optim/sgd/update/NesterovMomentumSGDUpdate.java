@@ -1,9 +1,6 @@
 package optim.sgd.update;
 
 import java.util.Arrays;
-import optim.BatchFunction;
-import optim.BatchGradient;
-import tensor.DoubleTensor;
 
 /**
  * With Momentum update, the parameter vector will build up velocity in any
@@ -23,18 +20,20 @@ public class NesterovMomentumSGDUpdate extends SGDUpdate{
     }
 
     @Override
-    public double update(double[] x, BatchFunction fun, BatchGradient grad,
-            DoubleTensor sX, DoubleTensor sy, DoubleTensor st, double lambdaAdjus) {
-        double f = fun.value(x,sX,sy,st,lambdaAdjus);
+    protected void step(double[] x, double[] g, double gs, int from, int to) {
+        final double mu = momentum, mu1 = 1 + momentum, a = stepSize;
+        final double wd = weightDecay;
+        final double[] vel = v;
         double v_prev;
-
-        double[] g = grad.value(x,sX,sy,st,lambdaAdjus);
-        for(int i = 0; i < x.length; i++){
-            v_prev = v[i];
-            v[i] = momentum * v[i] - stepSize * g[i];
-            x[i] += -momentum * v_prev + (1 + momentum) * v[i];
+        for(int i = from; i < to; i++){
+            v_prev = vel[i];
+            vel[i] = mu * vel[i] - a * (gs * g[i] + wd * x[i]);
+            x[i] += -mu * v_prev + mu1 * vel[i];
         }
-        return f;
     }
 
+    @Override
+    public double[][] getState() {
+        return new double[][]{v};
+    }
 }
@@ -1,10 +1,5 @@
 package optim.sgd.update;
 
-import optim.BatchFunction;
-import optim.BatchGradient;
-import tensor.DoubleTensor;
-
-
 /**
  *
  * @author diego_paez
@@ -16,14 +11,11 @@ public class PlainVanillaSGDUpdate extends SGDUpdate{
     }
 
     @Override
-    public double update(double[] x, BatchFunction fun, BatchGradient grad,
-            DoubleTensor sX, DoubleTensor sy, DoubleTensor st, double lambdaAdjus) {
-        double f = fun.value(x,sX,sy,st,lambdaAdjus);
-        double[] g = grad.value(x,sX,sy,st,lambdaAdjus);
-        for(int i = 0; i < x.length; i++){
-            x[i] -= stepSize * g[i];
+    protected void step(double[] x, double[] g, double gs, int from, int to) {
+        final double a = stepSize, wd = weightDecay;
+        for(int i = from; i < to; i++){
+            x[i] -= a * (gs * g[i] + wd * x[i]);
         }
-        return f;
     }
 
 }
@@ -1,10 +1,7 @@
 package optim.sgd.update;
 
 import java.util.Arrays;
-import optim.BatchFunction;
-import optim.BatchGradient;
 import org.jblas.DoubleMatrix;
-import tensor.DoubleTensor;
 
 /**
  * RMSprop is a very effective, but currently unpublished adaptive learning rate
@@ -32,14 +29,20 @@ public class RMSprop extends SGDUpdate{
     }
 
     @Override
-    public double update(double[] x, BatchFunction fun, BatchGradient grad,
-            DoubleTensor sX, DoubleTensor sy, DoubleTensor st, double lambdaAdjus) {
-        double f = fun.value(x,sX,sy,st,lambdaAdjus);
-        double[] g = grad.value(x,sX,sy,st,lambdaAdjus);
-        for(int i = 0; i < x.length; i++){
-            cache[i] = decay_rate * cache[i] + (1 - decay_rate) * g[i] * g[i];
-            x[i] += - stepSize * g[i] / (Math.sqrt(cache[i]) + eps);
+    protected void step(double[] x, double[] g, double gs, int from, int to) {
+        final double d = decay_rate, c1 = 1 - decay_rate, a = stepSize;
+        final double wd = weightDecay;
+        final double[] c = cache;
+        double gi;
+        for(int i = from; i < to; i++){
+            gi = gs * g[i] + wd * x[i];
+            c[i] = d * c[i] + c1 * gi * gi;
+            x[i] += - a * gi / (Math.sqrt(c[i]) + eps);
         }
-        return f;
+    }
+
+    @Override
+    public double[][] getState() {
+        return new double[][]{cache};
     }
 }
\ No newline at end of file
@@ -5,18 +5,330 @@
 
 package optim.sgd.update;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import optim.ActiveRanges;
 import optim.BatchFunction;
 import optim.BatchGradient;
+import optim.SparseBatchGradient;
+import org.apache.log4j.Logger;
 import tensor.DoubleTensor;
 
 /**
+ * Base of all stochastic gradient descent updates. Evaluates function and
+ * gradient for the given batch and then applies the update rule (method step)
+ * over the parameters.
  *
+ * If the gradient is a SparseBatchGradient and reports active ranges, only
+ * those ranges are updated (e.g., rows of an embedding used in the batch),
+ * for updates with cached values (momentum, Adam...) this means the cache of
+ * the remaining parameters is not decayed on that step ("lazy" update).
+ *
+ * Every step is a single pass over the parameters: constants of the step
+ * (e.g., bias corrections) are calculated once in beginStep, and weight decay
+ * and gradient clipping are applied to each gradient entry as it is read
+ * (gs * g + weightDecay * x), so that the loops of step only do
+ * elementwise arithmetic the JIT can vectorize. With setThreads the
+ * parameters are split in contiguous blocks of at least BLOCK_SIZE
+ * parameters stepped concurrently.
  * @author diego_paez
  */
 public abstract class SGDUpdate {
 
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(SGDUpdate.class);
+
+    /**
+     * Minimum number of parameters stepped by a thread, a block of
+     * parameters with their gradient and caches fits in L2 cache.
+     */
+    public static final int BLOCK_SIZE = 1 << 13;
+
     public double stepSize;
 
-    public abstract double update(double[] x, BatchFunction fun, BatchGradient grad,
-            DoubleTensor sX, DoubleTensor sy, DoubleTensor st, double lambdaAdjus);
+    /**
+     * Weight decay (L2 penalty) added to the gradient in the step, the
+     * gradient used is g + weightDecay * x. 0 by default.
+     */
+    public double weightDecay;
+
+    /**
+     * Maximum L2 norm of the gradient, larger gradients are scaled down to
+     * this norm. 0 (default) for no clipping.
+     */
+    public double clipNorm;
+
+    /**
+     * L2 norm of the gradient of the last step, only calculated when
+     * clipping. Only reported, the scale of a step is local to it since
+     * several threads may apply steps at once (asynchronous SGD).
+     */
+    private volatile double lastGradNorm;
+
+    private int threads = 1;
+    private ExecutorService pool;
+
+    public double update(double[] x, BatchFunction fun, BatchGradient grad,
+            DoubleTensor sX, DoubleTensor sy, DoubleTensor st, double lambdaAdjus){
+        return update(x, fun, grad, sX, sy, st, lambdaAdjus, null);
+    }
+
+    /**
+     * Same as update, but when locks are given the parameters are split in
+     * as many blocks (stripes) of equal size and the step over each block is
+     * applied holding the lock of the block. Used by asynchronous SGD where
+     * several threads update the same parameters.
+     * @param x Parameters.
+     * @param fun Function.
+     * @param grad Gradient.
+     * @param sX Batch of inputs.
+     * @param sy Batch of targets.
+     * @param st Batch of weights of examples.
+     * @param lambdaAdjus Lambda adjustment of regularization.
+     * @param locks Lock of each block, null to update without locks.
+     * @return Value of function for the batch.
+     */
+    public double update(double[] x, BatchFunction fun, BatchGradient grad,
+            DoubleTensor sX, DoubleTensor sy, DoubleTensor st, double lambdaAdjus,
+            Object[] locks){
+        double f = fun.value(x,sX,sy,st,lambdaAdjus);
+        double[] g = grad.value(x,sX,sy,st,lambdaAdjus);
+
+        ActiveRanges active = null;
+        if(grad instanceof SparseBatchGradient)
+            active = ((SparseBatchGradient) grad).getActiveRanges();
+
+        apply(x, g, active, locks);
+        return f;
+    }
+
+    /**
+     * Apply one update with a gradient already calculated, e.g., received
+     * from a worker of a parameter server.
+     * @param x Parameters.
+     * @param g Gradient.
+     * @param active Ranges of the gradient to apply, null for all. If empty
+     * the step is skipped.
+     * @param locks Lock of each block of parameters, null for no locks (see
+     * update).
+     * @throws IllegalStateException If a block stepped by the threads (see
+     * setThreads) failed, the update is then partly applied.
+     */
+    public void apply(double[] x, double[] g, ActiveRanges active, Object[] locks){
+        // nothing written (e.g., step skipped by a loss scaler)
+        if(active != null && active.size() == 0)
+            return;
+        beginStep();
+
+        double gs = 1.0;
+        if(clipNorm > 0.0){
+            double norm = Math.sqrt(run(x, g, 0.0, active, locks == null, true));
+            if(norm > clipNorm)
+                gs = clipNorm / norm;
+            lastGradNorm = norm;
+        }
+
+        if(locks == null){
+            run(x, g, gs, active, true, false);
+        } else if(active == null){
+            step(x, g, gs, 0, x.length, locks);
+        } else{
+            for(int r = 0; r < active.size(); r++){
+                step(x, g, gs, active.from(r), active.to(r), locks);
+            }
+        }
+    }
+
+    /**
+     * Apply step to a range, block by block holding the lock of each block
+     * if there are locks.
+     */
+    private void step(double[] x, double[] g, double gs, int from, int to, Object[] locks){
+        if(locks == null){
+            step(x, g, gs, from, to);
+            return;
+        }
+        int blockSize = (x.length + locks.length - 1) / locks.length;
+        int end;
+        for(int b = from / blockSize; from < to; b++){
+            end = Math.min(to, (b + 1) * blockSize);
+            synchronized(locks[b]){
+                step(x, g, gs, from, end);
+            }
+            from = end;
+        }
+    }
+
+    /**
+     * Step the active parameters, or sum the squares of their gradient,
+     * splitting them in contiguous blocks run concurrently.
+     * @param x Parameters.
+     * @param g Gradient.
+     * @param gs Factor of the gradient (clipping).
+     * @param active Active ranges, null for all.
+     * @param parallel Whether blocks may run on the threads.
+     * @param sumSquares Whether to sum the squares of the gradient instead of
+     * stepping.
+     * @return Sum of squares of the gradient, 0 if stepping.
+     * @throws IllegalStateException If a block failed.
+     */
+    private double run(final double[] x, final double[] g, final double gs,
+            ActiveRanges active, boolean parallel, final boolean sumSquares){
+        final int[] bounds;
+        if(active == null){
+            bounds = new int[]{0, x.length};
+        } else{
+            bounds = new int[2 * active.size()];
+            for(int r = 0; r < active.size(); r++){
+                bounds[2 * r] = active.from(r);
+                bounds[2 * r + 1] = active.to(r);
+            }
+        }
+        int total = 0;
+        for(int r = 0; r < bounds.length; r += 2){
+            total += bounds[r + 1] - bounds[r];
+        }
+
+        int blocks = parallel && pool != null ? Math.min(threads, total / BLOCK_SIZE) : 1;
+        if(blocks <= 1)
+            return runBlock(x, g, gs, bounds, 0, total, sumSquares);
+
+        List<Callable<Double>> tasks = new ArrayList<>(blocks);
+        for(int b = 0; b < blocks; b++){
+            final int start = (int) ((long) total * b / blocks);
+            final int end = (int) ((long) total * (b + 1) / blocks);
+            tasks.add(new Callable<Double>() {
+                @Override
+                public Double call() {
+                    return runBlock(x, g, gs, bounds, start, end, sumSquares);
+                }
+            });
+        }
+        double sum = 0.0;
+        try {
+            for(Future<Double> f: pool.invokeAll(tasks)){
+                sum += f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while applying step", e);
+        } catch (ExecutionException e) {
+            // some blocks were stepped, or the norm misses some of them
+            throw new IllegalStateException("Step failed", e.getCause());
+        }
+        return sum;
+    }
+
+    /**
+     * Step (or sum squares of the gradient of) the parameters from position
+     * start to end of the concatenation of the ranges in bounds.
+     * @param bounds Start and end of each range.
+     * @return Sum of squares, 0 if stepping.
+     */
+    private double runBlock(double[] x, double[] g, double gs, int[] bounds, int start,
+            int end, boolean sumSquares){
+        double sum = 0.0;
+        int from, to;
+        for(int r = 0, pos = 0; r < bounds.length && pos < end; r += 2){
+            from = bounds[r] + Math.max(0, start - pos);
+            to = bounds[r] + Math.min(bounds[r + 1] - bounds[r], end - pos);
+            pos += bounds[r + 1] - bounds[r];
+            if(from >= to)
+                continue;
+            if(sumSquares){
+                for(int i = from; i < to; i++){
+                    sum += g[i] * g[i];
+                }
+            } else{
+                step(x, g, gs, from, to);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Apply the step with given number of threads, each stepping a
+     * contiguous block of parameters (of at least BLOCK_SIZE parameters).
+     * Not used when stepping with locks (see update).
+     * @param threads Number of threads, 1 to step in the calling thread.
+     */
+    public void setThreads(int threads){
+        if(pool != null)
+            pool.shutdown();
+        this.threads = Math.max(1, threads);
+        pool = null;
+        if(this.threads > 1){
+            pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "sgd-step");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * L2 norm of the gradient of the last step (before clipping), only
+     * calculated when clipNorm is set.
+     * @return Norm of the gradient.
+     */
+    public double getLastGradNorm(){
+        return lastGradNorm;
+    }
+
+    /**
+     * Arrays with the state of the update (e.g., caches of past gradients),
+     * stored in checkpoints so that training can be resumed. The arrays
+     * themselves are returned, restoring a checkpoint overwrites them.
+     * @return State arrays, none by default.
+     */
+    public double[][] getState(){
+        return new double[0][];
+    }
+
+    /**
+     * Number of updates applied, for updates whose step depends on it.
+     * @return Number of updates, 0 by default.
+     */
+    public long getIteration(){
+        return 0;
+    }
+
+    /**
+     * Set number of updates applied, when restoring a checkpoint.
+     * @param iteration Number of updates.
+     */
+    public void setIteration(long iteration){
+    }
+
+    /**
+     * Called once per update before applying step, used by updates that
+     * keep a count of iterations and to calculate the constants of the step.
+     */
+    protected void beginStep(){
+    }
+
+    /**
+     * Apply update rule to parameters x[from] ... x[to - 1], using as
+     * gradient gs * g + weightDecay * x. May be called concurrently over
+     * disjoint ranges, and by several updates at once with locks or without
+     * them (asynchronous SGD), thus the scale is given and not kept in the
+     * update.
+     * @param x Parameters.
+     * @param g Gradient.
+     * @param gs Factor of the gradient, less than 1 when it is clipped.
+     * @param from First parameter to update (inclusive).
+     * @param to Last parameter to update (exclusive).
+     */
+    protected abstract void step(double[] x, double[] g, double gs, int from, int to);
 }
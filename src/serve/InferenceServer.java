@@ -0,0 +1,321 @@
+package serve;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import core.NeuralNetModel;
+import core.inference.BatchingPredictor;
+import core.inference.Predictor;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * HTTP inference server on the JDK HTTP server. Every example of a request is
+ * fed to a BatchingPredictor, thus examples of concurrent requests are run in
+ * the same forward pass. Endpoints:
+ *
+ * POST /predict with Content-Type application/json: body is an array with the
+ * inputs of one example, an array of examples, or an object with either of
+ * them as "inputs". Answers {"outputs": ...} with the same nesting.
+ * POST /predict with Content-Type application/octet-stream: body is a raw
+ * array of little endian float32, inputs of one or more examples one after
+ * the other. Answers the outputs the same way.
+ * GET /health: {"status": "ok"}.
+ * GET /stats: requests, errors, examples, throughput, latency percentiles and
+ * the current batch size and wait of the batcher.
+ *
+ * Errors are answered with status 400 (bad input), 405 (bad method) or 500
+ * and {"error": message}. Requests are handled by a fixed pool of threads,
+ * each one blocks while its examples are batched and run.
+ * @author diego_paez
+ */
+public class InferenceServer {
+
+    /**
+     * Logger of log4j.
+     */
+    private static final Logger LOG = Logger.getLogger(InferenceServer.class);
+
+    private final BatchingPredictor batcher;
+    private final int handlerThreads;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong examples = new AtomicLong();
+
+    /**
+     * Create server for a compiled predictor.
+     * @param predictor Predictor.
+     * @param maxBatch Maximum examples per forward pass.
+     * @param maxWaitMicros Maximum time an example waits for others.
+     * @param targetLatencyMicros Latency target of the batcher.
+     * @param batchWorkers Threads running forward passes.
+     * @param handlerThreads Threads handling HTTP requests.
+     */
+    public InferenceServer(Predictor predictor, int maxBatch, long maxWaitMicros,
+            long targetLatencyMicros, int batchWorkers, int handlerThreads) {
+        this.batcher = new BatchingPredictor(predictor, maxBatch, maxWaitMicros,
+                targetLatencyMicros, batchWorkers);
+        this.handlerThreads = handlerThreads;
+    }
+
+    /**
+     * Create server for a model whose weights are loaded from a file (see
+     * NeuralNetModel.loadWeights).
+     * @param model Model with its layers.
+     * @param inputDims Dims of the inputs of one example.
+     * @param file Checkpoint or weights file.
+     * @param maxBatch Maximum examples per forward pass.
+     * @param maxWaitMicros Maximum time an example waits for others.
+     * @param targetLatencyMicros Latency target of the batcher.
+     * @return Server, not started.
+     */
+    public static InferenceServer fromCheckpoint(NeuralNetModel model, int[] inputDims,
+            String file, int maxBatch, long maxWaitMicros, long targetLatencyMicros){
+        model.setDimsOfInputsWOE(inputDims);
+        model.loadWeights(file);
+        int cores = Runtime.getRuntime().availableProcessors();
+        return new InferenceServer(model.compileForInference(maxBatch), maxBatch,
+                maxWaitMicros, targetLatencyMicros, cores, 4 * maxBatch);
+    }
+
+    /**
+     * Start listening.
+     * @param port Port, 0 for any free port.
+     * @return Port listened.
+     * @throws IOException If the port can not be bound.
+     */
+    public int start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = Executors.newFixedThreadPool(handlerThreads, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "http-" + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/predict", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                predict(ex);
+            }
+        });
+        server.createContext("/health", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                send(ex, 200, "{\"status\":\"ok\"}");
+            }
+        });
+        server.createContext("/stats", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                send(ex, 200, stats());
+            }
+        });
+        server.start();
+        int bound = server.getAddress().getPort();
+        LOG.info("Inference server listening on port " + bound);
+        return bound;
+    }
+
+    /**
+     * Stop the server and the batcher.
+     */
+    public void stop(){
+        if(server != null)
+            server.stop(0);
+        if(executor != null)
+            executor.shutdown();
+        batcher.shutdown();
+    }
+
+    private void predict(HttpExchange ex) throws IOException {
+        requests.incrementAndGet();
+        if(!"POST".equals(ex.getRequestMethod())){
+            errors.incrementAndGet();
+            send(ex, 405, error("Use POST"));
+            return;
+        }
+        String type = ex.getRequestHeaders().getFirst("Content-Type");
+        boolean binary = type != null && type.startsWith("application/octet-stream");
+        byte[] body = readAll(ex.getRequestBody());
+
+        try {
+            if(binary){
+                float[][] out = predictBinary(body);
+                ByteBuffer b = ByteBuffer.allocate(4 * out.length * batcher.getOutputSize())
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                for(float[] o: out){
+                    b.asFloatBuffer().put(o);
+                    b.position(b.position() + 4 * o.length);
+                }
+                send(ex, 200, "application/octet-stream", b.array());
+            } else{
+                send(ex, 200, predictJson(new String(body, StandardCharsets.UTF_8)));
+            }
+        } catch (IllegalArgumentException e) {
+            errors.incrementAndGet();
+            send(ex, 400, error(e.getMessage()));
+        } catch (ExecutionException e) {
+            errors.incrementAndGet();
+            LOG.error("Prediction failed", e.getCause());
+            send(ex, 500, error(String.valueOf(e.getCause())));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            errors.incrementAndGet();
+            send(ex, 500, error("Interrupted"));
+        }
+    }
+
+    private String predictJson(String body) throws ExecutionException, InterruptedException {
+        Object v = Json.parse(body);
+        if(v instanceof Map)
+            v = ((Map<?, ?>) v).get("inputs");
+        boolean nested = v instanceof List && !((List<?>) v).isEmpty()
+                && ((List<?>) v).get(0) instanceof List;
+        List<double[]> xs = Json.toExamples(v, batcher.getInputSize());
+        List<double[]> ys = run(xs);
+
+        StringBuilder sb = new StringBuilder("{\"outputs\":");
+        if(nested){
+            sb.append('[');
+            for(int i = 0; i < ys.size(); i++){
+                if(i > 0)
+                    sb.append(',');
+                Json.write(sb, ys.get(i));
+            }
+            sb.append(']');
+        } else{
+            Json.write(sb, ys.get(0));
+        }
+        return sb.append('}').toString();
+    }
+
+    private float[][] predictBinary(byte[] body) throws ExecutionException, InterruptedException {
+        int in = batcher.getInputSize();
+        if(body.length == 0 || body.length % (4 * in) != 0)
+            throw new IllegalArgumentException("Body must hold float32 inputs, "
+                    + in + " per example, got " + body.length + " bytes");
+        int n = body.length / (4 * in);
+        ByteBuffer b = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+        List<double[]> xs = new ArrayList<>(n);
+        for(int e = 0; e < n; e++){
+            double[] x = new double[in];
+            for(int i = 0; i < in; i++){
+                x[i] = b.getFloat();
+            }
+            xs.add(x);
+        }
+        List<double[]> ys = run(xs);
+        float[][] out = new float[n][];
+        for(int e = 0; e < n; e++){
+            double[] y = ys.get(e);
+            out[e] = new float[y.length];
+            for(int i = 0; i < y.length; i++){
+                out[e][i] = (float) y[i];
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Submit every example to the batcher and wait for all of them.
+     */
+    private List<double[]> run(List<double[]> xs) throws ExecutionException, InterruptedException {
+        List<Future<double[]>> fs = new ArrayList<>(xs.size());
+        for(double[] x: xs){
+            fs.add(batcher.submit(x));
+        }
+        List<double[]> ys = new ArrayList<>(xs.size());
+        for(Future<double[]> f: fs){
+            ys.add(f.get());
+        }
+        examples.addAndGet(xs.size());
+        return ys;
+    }
+
+    /**
+     * Statistics as JSON.
+     * @return Statistics.
+     */
+    public String stats(){
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"requests\":").append(requests.get());
+        sb.append(",\"errors\":").append(errors.get());
+        sb.append(",\"examples\":").append(examples.get());
+        sb.append(",\"throughput\":");
+        Json.write(sb, batcher.getThroughput());
+        sb.append(",\"latency_us\":{\"p50\":");
+        Json.write(sb, batcher.getLatencyPercentile(50));
+        sb.append(",\"p90\":");
+        Json.write(sb, batcher.getLatencyPercentile(90));
+        sb.append(",\"p99\":");
+        Json.write(sb, batcher.getLatencyPercentile(99));
+        sb.append("},\"mean_batch\":");
+        Json.write(sb, batcher.getMeanBatchSize());
+        sb.append(",\"batch_target\":").append(batcher.getBatchTarget());
+        sb.append(",\"wait_us\":");
+        Json.write(sb, batcher.getWaitMicros());
+        sb.append(",\"queue\":").append(batcher.getQueueLength());
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Get the batcher.
+     * @return Batching predictor.
+     */
+    public BatchingPredictor getBatcher(){
+        return batcher;
+    }
+
+    private static String error(String msg){
+        return Json.write(new StringBuilder("{\"error\":"), String.valueOf(msg))
+                .append('}').toString();
+    }
+
+    private static void send(HttpExchange ex, int status, String json) throws IOException {
+        send(ex, status, "application/json", json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange ex, int status, String type, byte[] body)
+            throws IOException {
+        ex.getResponseHeaders().set("Content-Type", type);
+        ex.sendResponseHeaders(status, body.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1 << 13];
+        int n;
+        while((n = in.read(buf)) > 0){
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,265 @@
+package serve;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader and writer for the inference server: values are read
+ * as Map (objects), List (arrays), Double, String, Boolean or null.
+ * @author diego_paez
+ */
+public class Json {
+
+    private final String s;
+    private int pos;
+
+    private Json(String s) {
+        this.s = s;
+    }
+
+    /**
+     * Parse a JSON document.
+     * @param s Document.
+     * @return Value.
+     * @throws IllegalArgumentException If the document is not valid JSON.
+     */
+    public static Object parse(String s){
+        Json p = new Json(s);
+        Object v = p.value();
+        p.skipSpaces();
+        if(p.pos != s.length())
+            throw p.error("Unexpected content");
+        return v;
+    }
+
+    /**
+     * Read an array of numbers, or an array of arrays of numbers of equal
+     * length, as examples.
+     * @param v Parsed value.
+     * @param size Expected number of entries per example.
+     * @return Examples.
+     * @throws IllegalArgumentException If v is not an array of numbers or an
+     * array of them, or the sizes do not match.
+     */
+    public static List<double[]> toExamples(Object v, int size){
+        if(!(v instanceof List) || ((List<?>) v).isEmpty())
+            throw new IllegalArgumentException("Inputs must be a non empty array");
+        List<?> l = (List<?>) v;
+        List<double[]> res = new ArrayList<>();
+        if(l.get(0) instanceof List){
+            for(Object e: l){
+                res.add(toArray(e, size));
+            }
+        } else{
+            res.add(toArray(l, size));
+        }
+        return res;
+    }
+
+    private static double[] toArray(Object v, int size){
+        if(!(v instanceof List))
+            throw new IllegalArgumentException("Example must be an array of numbers");
+        List<?> l = (List<?>) v;
+        if(l.size() != size)
+            throw new IllegalArgumentException("Expected " + size + " inputs, got " + l.size());
+        double[] a = new double[size];
+        for(int i = 0; i < size; i++){
+            if(!(l.get(i) instanceof Double))
+                throw new IllegalArgumentException("Inputs must be numbers");
+            a[i] = (Double) l.get(i);
+        }
+        return a;
+    }
+
+    /**
+     * Append an array of numbers.
+     * @param sb Output.
+     * @param a Numbers.
+     * @return sb.
+     */
+    public static StringBuilder write(StringBuilder sb, double[] a){
+        sb.append('[');
+        for(int i = 0; i < a.length; i++){
+            if(i > 0)
+                sb.append(',');
+            write(sb, a[i]);
+        }
+        return sb.append(']');
+    }
+
+    /**
+     * Append a number, NaN and infinities are written as null.
+     * @param sb Output.
+     * @param d Number.
+     * @return sb.
+     */
+    public static StringBuilder write(StringBuilder sb, double d){
+        if(Double.isNaN(d) || Double.isInfinite(d))
+            return sb.append("null");
+        return sb.append(d);
+    }
+
+    /**
+     * Append a string.
+     * @param sb Output.
+     * @param str String.
+     * @return sb.
+     */
+    public static StringBuilder write(StringBuilder sb, String str){
+        sb.append('"');
+        for(int i = 0; i < str.length(); i++){
+            char c = str.charAt(i);
+            if(c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if(c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"');
+    }
+
+    private Object value(){
+        skipSpaces();
+        if(pos >= s.length())
+            throw error("Unexpected end");
+        char c = s.charAt(pos);
+        switch(c){
+            case '{':
+                return object();
+            case '[':
+                return array();
+            case '"':
+                return string();
+            case 't':
+                return literal("true", Boolean.TRUE);
+            case 'f':
+                return literal("false", Boolean.FALSE);
+            case 'n':
+                return literal("null", null);
+            default:
+                return number();
+        }
+    }
+
+    private Map<String, Object> object(){
+        Map<String, Object> m = new LinkedHashMap<>();
+        pos++;
+        skipSpaces();
+        if(peek() == '}'){
+            pos++;
+            return m;
+        }
+        while(true){
+            skipSpaces();
+            if(peek() != '"')
+                throw error("Expected key");
+            String k = string();
+            skipSpaces();
+            expect(':');
+            m.put(k, value());
+            skipSpaces();
+            if(peek() == ','){
+                pos++;
+            } else{
+                expect('}');
+                return m;
+            }
+        }
+    }
+
+    private List<Object> array(){
+        List<Object> l = new ArrayList<>();
+        pos++;
+        skipSpaces();
+        if(peek() == ']'){
+            pos++;
+            return l;
+        }
+        while(true){
+            l.add(value());
+            skipSpaces();
+            if(peek() == ','){
+                pos++;
+            } else{
+                expect(']');
+                return l;
+            }
+        }
+    }
+
+    private String string(){
+        StringBuilder sb = new StringBuilder();
+        pos++;
+        while(pos < s.length()){
+            char c = s.charAt(pos++);
+            if(c == '"')
+                return sb.toString();
+            if(c != '\\'){
+                sb.append(c);
+                continue;
+            }
+            if(pos >= s.length())
+                break;
+            c = s.charAt(pos++);
+            switch(c){
+                case 'n': sb.append('\n'); break;
+                case 't': sb.append('\t'); break;
+                case 'r': sb.append('\r'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    if(pos + 4 > s.length())
+                        throw error("Bad escape");
+                    sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default: sb.append(c);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Double number(){
+        int start = pos;
+        while(pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0){
+            pos++;
+        }
+        try {
+            return Double.valueOf(s.substring(start, pos));
+        } catch (NumberFormatException e) {
+            throw error("Bad number");
+        }
+    }
+
+    private Object literal(String word, Object v){
+        if(!s.startsWith(word, pos))
+            throw error("Unexpected token");
+        pos += word.length();
+        return v;
+    }
+
+    private void skipSpaces(){
+        while(pos < s.length() && Character.isWhitespace(s.charAt(pos))){
+            pos++;
+        }
+    }
+
+    private char peek(){
+        if(pos >= s.length())
+            throw error("Unexpected end");
+        return s.charAt(pos);
+    }
+
+    private void expect(char c){
+        if(peek() != c)
+            throw error("Expected '" + c + "'");
+        pos++;
+    }
+
+    private IllegalArgumentException error(String msg){
+        return new IllegalArgumentException(msg + " at position " + pos);
+    }
+}
@@ -3,28 +3,69 @@ package tensor;
 import gnu.trove.list.array.TDoubleArrayList;
 
 /**
- *
+ * List of doubles with direct access to the underlying array. A list can also
+ * be a view of part of an array owned by somebody else (see the constructor
+ * with offset), in which case every index is relative to the offset and
+ * getData returns the whole array (use getOffset to locate the first entry).
  * @author diego_paez
  */
 public class DoubleArrayList extends TDoubleArrayList{
 
+    // position in _data of entry 0 (non zero only for views)
+    protected int offset;
+
+    // number of entries of a view, -1 if not a view
+    protected int viewLength = -1;
+
     public DoubleArrayList(double[] data){
         _data = data;
         _pos = data.length;
     }
 
+    /**
+     * Create a view of length entries of data starting at offset. Changes to
+     * the view are changes to data and vice versa.
+     * @param data Array to view.
+     * @param offset Position of first entry.
+     * @param length Number of entries.
+     */
+    public DoubleArrayList(double[] data, int offset, int length){
+        _data = data;
+        _pos = length;
+        this.offset = offset;
+        this.viewLength = length;
+    }
+
     public DoubleArrayList(int length){
         super(length);
     }
 
     public DoubleArrayList(DoubleArrayList initData){
-        super(initData);
+        super(initData.size());
+        System.arraycopy(initData._data, initData.offset, _data, 0, initData.size());
+        _pos = initData.size();
     }
 
     public double[] getData(){
         return _data;
     }
 
+    public int getOffset(){
+        return offset;
+    }
+
+    /**
+     * Number of entries that can be stored without growing.
+     * @return Length of underlying array (or of the view).
+     */
+    public int capacity(){
+        return viewLength < 0 ? _data.length : viewLength;
+    }
+
+    public boolean isView(){
+        return viewLength >= 0;
+    }
+
     public int getPos(){
         return _pos;
     }
@@ -37,19 +78,45 @@ public class DoubleArrayList extends TDoubleArrayList{
         _pos = pos;
     }
 
+    @Override
+    public double get(int index){
+        if(index >= _pos)
+            throw new ArrayIndexOutOfBoundsException(index);
+        return _data[index + offset];
+    }
+
+    @Override
+    public double set(int index, double val){
+        if(index >= _pos)
+            throw new ArrayIndexOutOfBoundsException(index);
+        double prev = _data[index + offset];
+        _data[index + offset] = val;
+        return prev;
+    }
+
+    @Override
+    public double getQuick(int index){
+        return _data[index + offset];
+    }
+
+    @Override
+    public void setQuick(int index, double val){
+        _data[index + offset] = val;
+    }
+
     public void addQuick( int offset, double val ) {
-        _data[ offset ] += val;
+        _data[ offset + this.offset ] += val;
     }
 
     public void subQuick( int offset, double val ) {
-        _data[ offset ] -= val;
+        _data[ offset + this.offset ] -= val;
     }
 
     public void mulQuick( int offset, double val ) {
-        _data[ offset ] *= val;
+        _data[ offset + this.offset ] *= val;
     }
 
     public void divQuick( int offset, double val ) {
-        _data[ offset ] /= val;
+        _data[ offset + this.offset ] /= val;
     }
 }
@@ -98,7 +98,7 @@ public class DoubleTensor {
     }
 
     public void setPosToLast(){
-        data.setPos(data.getData().length);
+        data.setPos(data.capacity());
     }
 
     public void setPos(int pos){
@@ -129,7 +129,12 @@ public class DoubleTensor {
             this.dims[i] = dims[i];
             length *= dims[i];
         }
-        data.ensureCapacity(length);
+        if(data.isView()){
+            if(length > data.capacity())
+                LOG.error("A view can not grow beyond its length: " + data.capacity());
+        } else{
+            data.ensureCapacity(length);
+        }
 
     }
     
@@ -171,6 +176,37 @@ public class DoubleTensor {
         return copy;
     }
 
+    /**
+     * Create a tensor which is a view of part of an array, i.e., the tensor
+     * does not own its data and changes to it are seen in the array.
+     * @param data Array to view.
+     * @param offset Position in data of first entry of the tensor.
+     * @param dims Dimensions of the tensor.
+     * @return Tensor viewing data from offset to offset + product of dims.
+     */
+    public static DoubleTensor view(double[] data, int offset, int... dims){
+        int[] vDims = new int[dims.length];
+        System.arraycopy(dims, 0, vDims, 0, dims.length);
+        DoubleTensor t = new DoubleTensor(data, vDims);
+        t.data = new DoubleArrayList(data, offset, product(vDims));
+        return t;
+    }
+
+    /**
+     * Create a view of entries from (inclusive) to to (exclusive) of the
+     * last dimension (examples), no data is copied since the last dimension
+     * is the slowest one.
+     * @param from First entry of last dimension.
+     * @param to Entry after last one.
+     * @return View with same dims except last one = to - from.
+     */
+    public DoubleTensor sliceLastDim(int from, int to){
+        int[] sDims = copyDims();
+        int stride = product(sDims) / sDims[sDims.length - 1];
+        sDims[sDims.length - 1] = to - from;
+        return view(data.getData(), data.getOffset() + from * stride, sDims);
+    }
+
     /**
      * Makes a copy of this tensor
      * @return
@@ -289,7 +325,7 @@ public class DoubleTensor {
 
         if(store == null){
             store = new DoubleTensor(this.copyDims());
-            store.data.setPos(store.data.getData().length);
+            store.data.setPos(store.data.capacity());
         }
 
         for(int i = 0; i < this.size(); i++){
@@ -326,7 +362,7 @@ public class DoubleTensor {
 
         if(store == null){
             store = new DoubleTensor(this.copyDims());
-            store.data.setPos(store.data.getData().length);
+            store.data.setPos(store.data.capacity());
         }
 
         for(int i = 0; i < this.size(); i++){
@@ -725,7 +761,7 @@ public class DoubleTensor {
 
         if(store == null){
             store = new DoubleTensor(this.copyDims());
-            store.data.setPos(store.data.getData().length);
+            store.data.setPos(store.data.capacity());
         }
 
         int[] indices = new int[dims.length];
@@ -785,6 +821,7 @@ public class DoubleTensor {
         double[] aMat = this.data.getData();
         double[] bMat = other.data.getData();
         double[] cMat;
+        int aOff = this.data.getOffset(), bOff = other.data.getOffset();
 
         // As specified in LAPACK documentation for dgemm, m = rows of C, n = cols of C, k = mult dim
         int  m, n, k;
@@ -819,19 +856,19 @@ public class DoubleTensor {
         if(store == null){
             cMat = new double[m * n];
 
-            NativeBlas.dgemm(aT, bT, m, n, k, 1.0, aMat, 0, this.dims[0], bMat, 0,
+            NativeBlas.dgemm(aT, bT, m, n, k, 1.0, aMat, aOff, this.dims[0], bMat, bOff,
                 other.dims[0], 0.0, cMat, 0, m);
 
             return new DoubleTensor(cMat, new int[]{m,n});
         } else{
             cMat = store.data.getData();
-            if(cMat.length < m * n){ // check if cMat has at least the required space
+            if(store.data.capacity() < m * n){ // check if cMat has at least the required space
                 LOG.error("Output matrix does not have correct size: "+ m + " " + n + "");
                 return null;
             }
 
-            NativeBlas.dgemm(aT, bT, m, n, k, 1.0, aMat, 0, this.dims[0], bMat, 0,
-                other.dims[0], 0.0, cMat, 0, m);
+            NativeBlas.dgemm(aT, bT, m, n, k, 1.0, aMat, aOff, this.dims[0], bMat, bOff,
+                other.dims[0], 0.0, cMat, store.data.getOffset(), m);
 
             return store;
         }
@@ -40,4 +40,54 @@ public class TensorFunctions {
 
         return x;
     }
+
+    /**
+     * Proportion of entries that are zero.
+     * @param x Tensor.
+     * @return Sparsity of x, 0 if x is empty.
+     */
+    public static double sparsity(DoubleTensor x){
+        int zeros = 0;
+        for(int i = 0; i < x.data.size(); i++){
+            if(x.data.getQuick(i) == 0.0)
+                zeros++;
+        }
+
+        return x.data.size() == 0 ? 0.0 : zeros / (double) x.data.size();
+    }
+
+    /**
+     * Copy a tensor rounding its entries to single precision.
+     * @param x Tensor.
+     * @param store Array where entries are stored, a new one is created if
+     * null or too small.
+     * @return Array with the entries of x from 0.
+     */
+    public static float[] toFloat(DoubleTensor x, float[] store){
+        final int sz = x.size();
+        if(store == null || store.length < sz)
+            store = new float[sz];
+        final double[] d = x.data.getData();
+        for(int i = 0, o = x.data.getOffset(); i < sz; i++, o++){
+            store[i] = (float) d[o];
+        }
+
+        return store;
+    }
+
+    /**
+     * Copy the first entries of a single precision array into a tensor.
+     * @param x Array.
+     * @param length Number of entries to copy.
+     * @param store Tensor where entries are stored.
+     * @return store.
+     */
+    public static DoubleTensor fromFloat(float[] x, int length, DoubleTensor store){
+        final double[] d = store.data.getData();
+        for(int i = 0, o = store.data.getOffset(); i < length; i++, o++){
+            d[o] = x[i];
+        }
+
+        return store;
+    }
 }
@@ -0,0 +1,142 @@
+package tests;
+
+import core.NeuralNetFunction;
+import core.NeuralNetGradient;
+import core.NeuralNetModel;
+import java.util.Arrays;
+import java.util.Random;
+import optim.ActiveRanges;
+import tensor.DoubleTensor;
+
+/**
+ * Helpers shared by the checks in this package: gradient of a model against
+ * central finite differences of its cost, and printing of results.
+ * @author diego_paez
+ */
+public class GradientCheck {
+
+    /**
+     * Step of finite differences.
+     */
+    public static final double H = 1e-6;
+
+    /**
+     * Max. absolute difference between the gradient of the model (including
+     * regularization) and central finite differences of its cost, over every
+     * parameter. The weights of the model are left as they were.
+     * @param m Model with inputs set and weights initialized.
+     * @param X Inputs.
+     * @param y Targets.
+     * @param yWeights Weights of examples, can be null.
+     * @return Max. absolute error.
+     */
+    public static double maxError(NeuralNetModel m, DoubleTensor X, DoubleTensor y,
+            DoubleTensor yWeights){
+        NeuralNetFunction f = new NeuralNetFunction(m);
+        NeuralNetGradient g = new NeuralNetGradient(m);
+        f.value(m.theta, X, y, yWeights, 1.0);
+        double[] grad = g.value(m.theta, X, y, yWeights, 1.0).clone();
+
+        double maxErr = 0.0, t, fp, fm;
+        for(int i = 0; i < m.theta.length; i++){
+            t = m.theta[i];
+            m.theta[i] = t + H;
+            fp = f.value(m.theta, X, y, yWeights, 1.0);
+            m.theta[i] = t - H;
+            fm = f.value(m.theta, X, y, yWeights, 1.0);
+            m.theta[i] = t;
+            maxErr = Math.max(maxErr, Math.abs((fp - fm) / (2 * H) - grad[i]));
+        }
+        f.value(m.theta, X, y, yWeights, 1.0);
+        return maxErr;
+    }
+
+    /**
+     * Max. absolute difference between two arrays.
+     * @param a First array.
+     * @param b Second array, same length.
+     * @return Max. absolute difference.
+     */
+    public static double maxDiff(double[] a, double[] b){
+        double d = 0.0;
+        for(int i = 0; i < a.length; i++){
+            d = Math.max(d, Math.abs(a[i] - b[i]));
+        }
+        return d;
+    }
+
+    /**
+     * Max. absolute difference between the entries of two tensors.
+     * @param a First tensor.
+     * @param b Second tensor, same size.
+     * @return Max. absolute difference.
+     */
+    public static double maxDiff(DoubleTensor a, DoubleTensor b){
+        double d = 0.0;
+        for(int i = 0; i < a.size(); i++){
+            d = Math.max(d, Math.abs(a.getQuick(i) - b.getQuick(i)));
+        }
+        return d;
+    }
+
+    /**
+     * Entries of a gradient covered by active ranges.
+     * @param ranges Active ranges, null if the whole gradient is active.
+     * @param n Length of the gradient.
+     * @return Whether each entry is active.
+     */
+    public static boolean[] activeMask(ActiveRanges ranges, int n){
+        boolean[] mask = new boolean[n];
+        if(ranges == null){
+            Arrays.fill(mask, true);
+            return mask;
+        }
+        for(int k = 0; k < ranges.size(); k++){
+            for(int i = ranges.from(k); i < ranges.to(k); i++){
+                mask[i] = true;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Tensor with normal random entries.
+     * @param rand Random numbers.
+     * @param dims Dimensions.
+     * @return Random tensor.
+     */
+    public static DoubleTensor gaussian(Random rand, int... dims){
+        DoubleTensor t = new DoubleTensor(dims);
+        t.setPosToLast();
+        for(int i = 0; i < t.size(); i++){
+            t.setQuick(i, rand.nextGaussian());
+        }
+        return t;
+    }
+
+    /**
+     * Row of random class labels.
+     * @param rand Random numbers.
+     * @param numClasses Number of classes.
+     * @param E Number of examples.
+     * @return Labels.
+     */
+    public static DoubleTensor labels(Random rand, int numClasses, int E){
+        DoubleTensor t = new DoubleTensor(E);
+        t.setPosToLast();
+        for(int i = 0; i < E; i++){
+            t.setQuick(i, rand.nextInt(numClasses));
+        }
+        return t;
+    }
+
+    /**
+     * Print a result of a check.
+     * @param what What was measured.
+     * @param value Measured value.
+     * @param ok Whether the check passed.
+     */
+    public static void report(String what, Object value, boolean ok){
+        System.out.println(what + ": " + value + (ok ? " OK" : " FAILED"));
+    }
+}
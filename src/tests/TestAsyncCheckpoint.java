@@ -0,0 +1,129 @@
+package tests;
+
+import io.AsyncCheckpointWriter;
+import io.ModelCheckpoint;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import layer.Layer;
+import optim.sgd.update.AdamUpdate;
+
+/**
+ * AsyncCheckpointWriter against synchronous saving: each checkpoint written in
+ * the background is byte for byte the file written by ModelCheckpoint.save
+ * for the values at the time of submit (arrays are modified right after
+ * submitting), the last ones are kept as file, file.1 and file.2 and no temp
+ * file is left. Plain parameters are written as SGDOptim.storeWeights does.
+ * A save failing with a runtime exception is reported by flush and does not
+ * stop the writer (later submits do not block).
+ * @author diego_paez
+ */
+public class TestAsyncCheckpoint {
+
+    private static void fill(double[] x, AdamUpdate up, int e){
+        for(int i = 0; i < x.length; i++){
+            x[i] = e + i * 1e-3;
+            up.cache1[i] = -e - i * 1e-4;
+            up.cache2[i] = e * 1e-2 + i;
+        }
+        up.iter = 10 * e;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int n = 300000, submits = 5, keep = 3;
+        Path dir = Files.createTempDirectory("async_ck");
+        String file = dir.resolve("w.ckpt").toString();
+        double[] x = new double[n];
+        AdamUpdate up = new AdamUpdate(0.01, 0.9, 0.999, n);
+
+        AsyncCheckpointWriter w = new AsyncCheckpointWriter(file, keep);
+        for(int e = 0; e < submits; e++){
+            fill(x, up, e);
+            w.submit(x, up);
+            // the snapshot must not see these changes
+            Arrays.fill(x, Double.NaN);
+            Arrays.fill(up.cache1, Double.NaN);
+        }
+        w.flush();
+        w.close();
+        GradientCheck.report("Checkpoints written", w.getWritten(), w.getWritten() == submits);
+
+        // file holds the last submit, file.k the k-th before it
+        boolean same = true;
+        String ref = dir.resolve("ref.ckpt").toString();
+        for(int k = 0; k < keep; k++){
+            fill(x, up, submits - 1 - k);
+            ModelCheckpoint.save(ref, null, x, up);
+            String f = k == 0 ? file : file + "." + k;
+            same &= new File(f).exists()
+                    && Arrays.equals(Files.readAllBytes(Paths.get(ref)), Files.readAllBytes(Paths.get(f)));
+        }
+        GradientCheck.report("Kept checkpoints equal synchronous save", same, same);
+        boolean clean = !new File(file + "." + keep).exists() && !new File(file + ".tmp").exists();
+        GradientCheck.report("No older or temp files left", clean, clean);
+
+        AdamUpdate up2 = new AdamUpdate(0.1, 0.9, 0.999, n);
+        double[] x2 = new double[n];
+        ModelCheckpoint ck = ModelCheckpoint.open(file, true);
+        boolean restored = ck.restoreParams(null, x2) && ck.restoreOptimizer(up2);
+        fill(x, up, submits - 1);
+        restored &= Arrays.equals(x, x2) && Arrays.equals(up.cache1, up2.cache1)
+                && Arrays.equals(up.cache2, up2.cache2) && up2.iter == up.iter;
+        GradientCheck.report("Last checkpoint restored", restored, restored);
+
+        String plain = dir.resolve("p.dat").toString();
+        AsyncCheckpointWriter p = new AsyncCheckpointWriter(plain, 1);
+        p.submit(x, null);
+        p.close();
+        try (RandomAccessFile raf = new RandomAccessFile(plain, "r")) {
+            ModelCheckpoint.readDoubles(raf.getChannel(), 0, x2, ByteOrder.BIG_ENDIAN);
+            boolean plainOk = raf.length() == 8L * n && Arrays.equals(x, x2);
+            GradientCheck.report("Plain weights written", plainOk, plainOk);
+        }
+
+        checkFailingSave(dir.resolve("f.ckpt").toString());
+
+        for(File f: dir.toFile().listFiles()){
+            f.delete();
+        }
+        dir.toFile().delete();
+    }
+
+    /**
+     * A null layer makes ModelCheckpoint.save throw a NullPointerException.
+     * More submits than snapshot buffers run on another thread, so that a
+     * blocked submit is reported instead of hanging the test.
+     */
+    private static void checkFailingSave(String file) throws InterruptedException {
+        final AsyncCheckpointWriter w = new AsyncCheckpointWriter(file, 1,
+                Collections.<Layer>singletonList(null));
+        final double[] x = new double[100];
+        final AdamUpdate up = new AdamUpdate(0.01, 0.9, 0.999, x.length);
+        final Exception[] flushed = new Exception[1];
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for(int i = 0; i < 4; i++){
+                    w.submit(x, up);
+                }
+                try {
+                    w.flush();
+                } catch (IOException e) {
+                    flushed[0] = e;
+                }
+            }
+        });
+        t.start();
+        t.join(10000);
+        boolean ok = !t.isAlive() && w.getWritten() == 4 && flushed[0] != null
+                && flushed[0].getCause() instanceof NullPointerException;
+        GradientCheck.report("Failing save reported, writer still running", w.getWritten(), ok);
+        w.close();
+    }
+}
@@ -0,0 +1,120 @@
+package tests;
+
+import java.util.Random;
+import optim.BatchLoader;
+import optim.BatchTransform;
+import tensor.DoubleTensor;
+
+/**
+ * BatchLoader against gathering the examples serially: with several workers
+ * and a small ring, every batch holds exactly the inputs, targets and
+ * weights of its examples (a transform applied once), each epoch is a
+ * permutation of the training set split in full batches plus a smaller last
+ * one, and no more batches are returned after the last epoch or after close.
+ * A transform failing makes next throw for that batch, the other batches
+ * are returned.
+ * @author diego_paez
+ */
+public class TestBatchLoader {
+
+    public static void main(String[] args) throws Exception {
+        final int N = 203, F = 3 * 8 * 8, bs = 16, epochs = 3;
+        Random rand = new Random(1);
+        DoubleTensor X = GradientCheck.gaussian(rand, 8, 8, 3, N);
+        DoubleTensor y = new DoubleTensor(N);
+        DoubleTensor w = new DoubleTensor(N);
+        y.setPosToLast();
+        w.setPosToLast();
+        for(int e = 0; e < N; e++){
+            y.setQuick(e, e);
+            w.setQuick(e, 2 * e);
+        }
+
+        BatchLoader loader = new BatchLoader(X, y, w, bs, epochs, 3, 3)
+                .addTransform(new BatchTransform() {
+                    @Override
+                    public void apply(DoubleTensor X, DoubleTensor y, DoubleTensor t, Random r) {
+                        for(int i = 0; i < t.size(); i++){
+                            t.setQuick(i, t.getQuick(i) + 1);
+                        }
+                    }
+                }).start();
+
+        int nb = loader.getNumBatches();
+        int badExamples = 0, badEpochs = 0, badSizes = 0;
+        for(int ep = 0; ep < epochs; ep++){
+            boolean[] seen = new boolean[N];
+            int count = 0;
+            for(int j = 0; j < nb; j++){
+                BatchLoader.Batch b = loader.next();
+                int n = b.X.lastDim();
+                if(n != (j < nb - 1 ? bs : N - (nb - 1) * bs) || b.y.lastDim() != n
+                        || b.yWeights.lastDim() != n || b.getEpoch(nb) != ep)
+                    badSizes++;
+                for(int k = 0; k < n; k++){
+                    int e = (int) b.y.getQuick(k);
+                    if(seen[e])
+                        badEpochs++;
+                    seen[e] = true;
+                    count++;
+                    boolean same = b.yWeights.getQuick(k) == 2 * e + 1;
+                    for(int f = 0; f < F && same; f++){
+                        same = b.X.getQuick(k * F + f) == X.getQuick(e * F + f);
+                    }
+                    if(!same)
+                        badExamples++;
+                }
+                // slow trainer, workers wait for free slots
+                if(j % 4 == 0)
+                    Thread.sleep(1);
+            }
+            if(count != N)
+                badEpochs++;
+        }
+        GradientCheck.report("Examples differing from the training set", badExamples, badExamples == 0);
+        GradientCheck.report("Epochs not a permutation", badEpochs, badEpochs == 0);
+        GradientCheck.report("Batches of wrong size or epoch", badSizes, badSizes == 0);
+        boolean end = loader.next() == null;
+        GradientCheck.report("No batch after the last epoch", end, end);
+        loader.close();
+
+        BatchLoader unlimited = new BatchLoader(X, y, w, bs, 0, 3, 2).start();
+        unlimited.next();
+        unlimited.close();
+        boolean closed = unlimited.next() == null;
+        GradientCheck.report("No batch after close", closed, closed);
+
+        checkFailures(X, y, w);
+    }
+
+    /**
+     * The transform fails for the batch holding example 0.
+     */
+    private static void checkFailures(DoubleTensor X, DoubleTensor y, DoubleTensor w){
+        y.setQuick(0, -1);
+        BatchLoader loader = new BatchLoader(X, y, w, 16, 1, 3, 2)
+                .addTransform(new BatchTransform() {
+                    @Override
+                    public void apply(DoubleTensor X, DoubleTensor y, DoubleTensor t, Random r) {
+                        for(int i = 0; i < y.size(); i++){
+                            if(y.getQuick(i) < 0)
+                                throw new ArithmeticException("failing transform");
+                        }
+                    }
+                }).start();
+        int good = 0;
+        boolean thrown = false;
+        for(int j = 0; j < loader.getNumBatches(); j++){
+            try {
+                if(loader.next() != null)
+                    good++;
+            } catch (IllegalStateException e) {
+                thrown = e.getCause() instanceof ArithmeticException;
+            }
+        }
+        loader.close();
+        y.setQuick(0, 0);
+        GradientCheck.report("Failed batch throws from next", good,
+                thrown && good == loader.getNumBatches() - 1);
+    }
+}
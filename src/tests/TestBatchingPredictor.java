@@ -0,0 +1,93 @@
+package tests;
+
+import core.NeuralNetModel;
+import core.inference.BatchingPredictor;
+import core.inference.Predictor;
+import init.Xavier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import layer.activation.ActivationLayer;
+import layer.activation.ReLU;
+import layer.activation.SoftMaxLayer;
+import layer.weight.InnerProductLayer;
+import loss.CrossEntropy;
+import tensor.DoubleTensor;
+
+/**
+ * BatchingPredictor against a single forward pass of the predictor over all
+ * examples: every request gets the outputs of its own example, whether
+ * requests arrive in a burst (grouped in batches) or one at a time. Requests
+ * of the wrong size and requests after shutdown fail.
+ * @author diego_paez
+ */
+public class TestBatchingPredictor {
+
+    private static double check(BatchingPredictor bp, double[] X, DoubleTensor ref,
+            int D, int C, int N, long gapNanos) throws Exception {
+        List<Future<double[]>> fs = new ArrayList<>();
+        int E = X.length / D;
+        long t0 = System.nanoTime();
+        for(int k = 0; k < N; k++){
+            while(System.nanoTime() - t0 < k * gapNanos){
+                Thread.yield();
+            }
+            int e = (7 * k) % E;
+            fs.add(bp.submit(Arrays.copyOfRange(X, e * D, (e + 1) * D)));
+        }
+        double d = 0.0;
+        for(int k = 0; k < N; k++){
+            double[] o = fs.get(k).get();
+            int e = (7 * k) % E;
+            for(int i = 0; i < C; i++){
+                d = Math.max(d, Math.abs(o[i] - ref.getQuick(e * C + i)));
+            }
+        }
+        return d;
+    }
+
+    private static boolean fails(Future<double[]> f, Class<?> type) throws InterruptedException {
+        try {
+            f.get();
+            return false;
+        } catch (ExecutionException e) {
+            return type.isInstance(e.getCause());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int E = 64, D = 32, C = 5;
+        Random rand = new Random(3);
+        DoubleTensor X = GradientCheck.gaussian(rand, D, E);
+        NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new InnerProductLayer(new Xavier(1), 48))
+                .addLayer(new ActivationLayer(new ReLU()))
+                .addLayer(new InnerProductLayer(new Xavier(2), C))
+                .addLayer(new SoftMaxLayer());
+        m.setTrainInputs(X, GradientCheck.labels(rand, C, E), null);
+        m.initWeights();
+
+        Predictor p = m.compileForInference(E);
+        DoubleTensor ref = p.predict(X).copy();
+        double[] x = X.data.toArray();
+
+        BatchingPredictor bp = new BatchingPredictor(p, 16, 2000, 5000, 2);
+        double burst = check(bp, x, ref, D, C, 2000, 0);
+        GradientCheck.report("Max. diff of burst vs full batch", burst, burst < 1e-12);
+        GradientCheck.report("Mean batch size of burst", bp.getMeanBatchSize(),
+                bp.getMeanBatchSize() > 1.0);
+        double paced = check(bp, x, ref, D, C, 200, 200000);
+        GradientCheck.report("Max. diff of paced requests vs full batch", paced, paced < 1e-12);
+        GradientCheck.report("Completed requests", bp.getCompleted(),
+                bp.getCompleted() == 2200 && bp.getFailed() == 0);
+
+        boolean badSize = fails(bp.submit(new double[D + 1]), IllegalArgumentException.class);
+        GradientCheck.report("Wrong size rejected", badSize, badSize);
+        bp.shutdown();
+        boolean closed = fails(bp.submit(new double[D]), IllegalStateException.class);
+        GradientCheck.report("Rejected after shutdown", closed, closed);
+    }
+}
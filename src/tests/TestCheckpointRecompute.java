@@ -0,0 +1,78 @@
+package tests;
+
+import core.NeuralNetFunction;
+import core.NeuralNetGradient;
+import core.NeuralNetModel;
+import init.Xavier;
+import java.util.Random;
+import layer.activation.ActivationLayer;
+import layer.activation.ReLU;
+import layer.activation.SoftMaxLayer;
+import layer.activation.Tanh;
+import layer.recurrent.LSTMLayer;
+import layer.regularization.DropoutLayer;
+import layer.weight.InnerProductLayer;
+import loss.CrossEntropy;
+import tensor.DoubleTensor;
+
+/**
+ * Gradient checkpointing against keeping every output: recomputing the
+ * dropped outputs during backward propagation (dropout replaying its mask)
+ * must give the same gradient, for checkpoints given by hand and placed
+ * automatically for a memory budget, and after clearing them.
+ * @author diego_paez
+ */
+public class TestCheckpointRecompute {
+
+    public static void main(String[] args) {
+        final int E = 6, nIn = 3, T = 5;
+        Random rand = new Random(11);
+        DoubleTensor X = GradientCheck.gaussian(rand, nIn, T, E);
+        DoubleTensor y = GradientCheck.labels(rand, 3, E);
+
+        double[] ref = gradient(X, y, 0);
+        double d = GradientCheck.maxDiff(ref, gradient(X, y, 1));
+        GradientCheck.report("Gradient difference, checkpoints 2 and 5", d, d == 0.0);
+        d = GradientCheck.maxDiff(ref, gradient(X, y, 2));
+        GradientCheck.report("Gradient difference, memory budget", d, d == 0.0);
+        d = GradientCheck.maxDiff(ref, gradient(X, y, 3));
+        GradientCheck.report("Gradient difference, cleared checkpoints", d, d == 0.0);
+    }
+
+    /**
+     * Gradient after three passes (dropout masks change in each pass).
+     * @param mode 0 no checkpoints, 1 given layers, 2 budget, 3 cleared.
+     */
+    private static double[] gradient(DoubleTensor X, DoubleTensor y, int mode){
+        final int E = X.lastDim();
+        NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new LSTMLayer(new Xavier(1), 6, true))
+                .addLayer(new LSTMLayer(new Xavier(2), 5))
+                .addLayer(new InnerProductLayer(new Xavier(3), 8))
+                .addLayer(new ActivationLayer(new ReLU()))
+                .addLayer(new DropoutLayer(0.3, 17))
+                .addLayer(new InnerProductLayer(new Xavier(4), 8))
+                .addLayer(new ActivationLayer(new Tanh()))
+                .addLayer(new InnerProductLayer(new Xavier(5), 3))
+                .addLayer(new SoftMaxLayer());
+        m.setTrainInputs(X, y, null);
+        m.initWeights();
+        if(mode == 1)
+            m.useCheckpoints(E, 2, 5);
+        else if(mode == 2)
+            m.useCheckpointBudget(E, 3300);
+        else if(mode == 3){
+            m.useCheckpoints(E, 3);
+            m.clearCheckpoints();
+        }
+
+        NeuralNetFunction f = new NeuralNetFunction(m);
+        NeuralNetGradient g = new NeuralNetGradient(m);
+        double[] grad = null;
+        for(int it = 0; it < 3; it++){
+            f.value(m.theta, X, y, null, 1.0);
+            grad = g.value(m.theta, X, y, null, 1.0).clone();
+        }
+        return grad;
+    }
+}
@@ -0,0 +1,111 @@
+package tests;
+
+import java.util.Arrays;
+import java.util.Random;
+import optim.BatchSample;
+import tensor.DoubleTensor;
+
+/**
+ * Contiguous batches of BatchSample against gathered batches. Over several
+ * epochs the contiguous batches are views whose inputs, targets and weights
+ * equal gathering the training set in the order of the epoch (read from the
+ * targets, which hold the index of each example), each epoch is a new
+ * permutation with a shorter last batch, and the training set is not
+ * modified. Going back to gathering gives copies in the same layout. A
+ * permutation failing makes initRandBatch throw instead of training on a
+ * partly written copy.
+ * @author diego_paez
+ */
+public class TestContiguousBatch {
+
+    private static int[] order;
+
+    /**
+     * Compare all batches of an epoch with gathering the training set in the
+     * order read from the targets of the batches.
+     * @return Max. diff, Double.MAX_VALUE if an example is repeated or missing.
+     */
+    private static double compare(BatchSample s, DoubleTensor X, DoubleTensor y,
+            DoubleTensor w, int N, boolean views){
+        order = new int[N];
+        boolean[] seen = new boolean[N];
+        int pos = 0;
+        double d = 0.0;
+        for(int j = 0; j < s.getNumBatches(); j++){
+            DoubleTensor bx = s.getBatchX(j), by = s.getBatchY(j), bt = s.getBatchT(j);
+            int n = bx.lastDim();
+            if(bx.data.isView() != views || by.lastDim() != n || bt.lastDim() != n
+                    || by.dims.length != y.dims.length)
+                return Double.MAX_VALUE;
+            for(int k = 0; k < n; k++){
+                int e = (int) by.getQuick(k);
+                if(seen[e])
+                    return Double.MAX_VALUE;
+                seen[e] = true;
+                order[pos + k] = e;
+            }
+            DoubleTensor[] src = {X, y, w}, got = {bx, by, bt};
+            for(int t = 0; t < src.length; t++){
+                DoubleTensor ref = BatchSample.gather(src[t], order, pos, pos + n, new DoubleTensor(1));
+                d = Math.max(d, GradientCheck.maxDiff(got[t], ref));
+            }
+            pos += n;
+        }
+        return pos == N ? d : Double.MAX_VALUE;
+    }
+
+    public static void main(String[] args) {
+        final int N = 1003, bs = 64;
+        Random rand = new Random(1);
+        DoubleTensor X = GradientCheck.gaussian(rand, 16, 16, 3, N);
+        DoubleTensor y = new DoubleTensor(1, N);
+        DoubleTensor w = new DoubleTensor(N);
+        y.setPosToLast();
+        w.setPosToLast();
+        for(int e = 0; e < N; e++){
+            y.setQuick(e, e);
+            w.setQuick(e, rand.nextDouble());
+        }
+        DoubleTensor X0 = X.copy();
+
+        BatchSample s = new BatchSample(X, y, w, bs);
+        s.setContiguous(3);
+        double d = 0.0;
+        boolean shorter = true, changes = true;
+        int[] prev = null;
+        for(int ep = 0; ep < 4; ep++){
+            s.initRandBatch();
+            d = Math.max(d, compare(s, X, y, w, N, true));
+            shorter &= s.getBatchX(s.getNumBatches() - 1).lastDim() == N - (N / bs) * bs;
+            if(prev != null)
+                changes &= !Arrays.equals(prev, order);
+            prev = order;
+        }
+        GradientCheck.report("Max. diff of contiguous vs gathered batches", d, d == 0.0);
+        GradientCheck.report("Shorter last batch", shorter, shorter);
+        GradientCheck.report("New order every epoch", changes, changes);
+        double dx = GradientCheck.maxDiff(X, X0);
+        GradientCheck.report("Training set untouched", dx, dx == 0.0);
+
+        s.setContiguous(0);
+        s.initRandBatch();
+        d = compare(s, X, y, w, N, false);
+        GradientCheck.report("Max. diff after going back to gathering", d, d == 0.0);
+
+        // weights of one example less, copying the last example fails
+        DoubleTensor shortW = w.sliceLastDim(0, N - 1).copy();
+        BatchSample bad = new BatchSample(X, y, shortW, bs);
+        bad.setContiguous(3);
+        int thrown = 0;
+        for(int ep = 0; ep < 2; ep++){
+            try {
+                bad.initRandBatch();
+            } catch (IllegalStateException e) {
+                if(e.getCause() instanceof IndexOutOfBoundsException)
+                    thrown++;
+            }
+        }
+        bad.setContiguous(0);
+        GradientCheck.report("Failed permutation throws from initRandBatch", thrown, thrown == 2);
+    }
+}
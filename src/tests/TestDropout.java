@@ -0,0 +1,72 @@
+package tests;
+
+import java.util.Random;
+import layer.regularization.DropoutLayer;
+import tensor.DoubleTensor;
+
+/**
+ * DropoutLayer against its definition: every output is either zero or the
+ * input times 1 / (1 - p), the fraction of dropped inputs is close to p, the
+ * gradient applies the same mask and scale, refProp replays the same mask and
+ * test data is returned as is.
+ * @author diego_paez
+ */
+public class TestDropout {
+
+    public static void main(String[] args) {
+        final int nI = 1000, E = 50;
+        final double p = 0.3, scale = 1.0 / (1.0 - p);
+        Random rand = new Random(5);
+
+        DropoutLayer d = new DropoutLayer(p, 42);
+        d.setDimsOfInputsWOE(nI);
+        d.initSpaceInMemory(E);
+
+        DoubleTensor x = new DoubleTensor(nI, E);
+        DoubleTensor chain = new DoubleTensor(nI, E);
+        x.setPosToLast();
+        chain.setPosToLast();
+        for(int i = 0; i < x.size(); i++){
+            x.setQuick(i, 1.0 + rand.nextDouble());
+            chain.setQuick(i, rand.nextGaussian());
+        }
+
+        DoubleTensor o = d.fProp(x, false);
+        double[] out = new double[o.size()];
+        int dropped = 0, badOut = 0;
+        for(int i = 0; i < o.size(); i++){
+            out[i] = o.getQuick(i);
+            if(out[i] == 0.0)
+                dropped++;
+            else if(Math.abs(out[i] - x.getQuick(i) * scale) > 1e-12)
+                badOut++;
+        }
+
+        DoubleTensor g = d.bProp(chain);
+        int badGrad = 0;
+        for(int i = 0; i < g.size(); i++){
+            double expected = out[i] == 0.0 ? 0.0 : chain.getQuick(i) * scale;
+            if(Math.abs(g.getQuick(i) - expected) > 1e-12)
+                badGrad++;
+        }
+
+        DoubleTensor r = d.refProp(x);
+        int badReplay = 0;
+        for(int i = 0; i < r.size(); i++){
+            if(r.getQuick(i) != out[i])
+                badReplay++;
+        }
+
+        double frac = dropped / (double) out.length;
+        System.out.println("Dropped fraction: " + frac
+                + (Math.abs(frac - p) < 0.01 ? " OK" : " FAILED"));
+        System.out.println("Outputs not 0 or scaled input: " + badOut
+                + (badOut == 0 ? " OK" : " FAILED"));
+        System.out.println("Gradients not matching mask: " + badGrad
+                + (badGrad == 0 ? " OK" : " FAILED"));
+        System.out.println("Outputs differing on replay: " + badReplay
+                + (badReplay == 0 ? " OK" : " FAILED"));
+        System.out.println("Test data returned as is: "
+                + (d.fProp(x, true) == x ? "OK" : "FAILED"));
+    }
+}
@@ -0,0 +1,100 @@
+package tests;
+
+import core.NeuralNetFunction;
+import core.NeuralNetGradient;
+import core.NeuralNetModel;
+import init.Xavier;
+import java.util.Random;
+import layer.activation.SoftMaxLayer;
+import layer.weight.EmbeddingLayer;
+import layer.weight.InnerProductLayer;
+import loss.CrossEntropy;
+import optim.ActiveRanges;
+import tensor.DoubleTensor;
+import wregul.L2Regularization;
+
+/**
+ * Sparse gradient of EmbeddingLayer with L2 regularization. Batches alternate
+ * between two disjoint sets of categories, for several steps: the gradient of
+ * rows not in the batch must stay exactly zero, and the gradient of the
+ * active ranges must match finite differences of the cost (so that no
+ * regularization of previous steps is left in the rows).
+ * @author diego_paez
+ */
+public class TestEmbeddingGrad {
+
+    public static void main(String[] args) {
+        final int nCat = 100, E = 20, steps = 6;
+        final double lr = 0.1, h = 1e-6;
+        Random rand = new Random(3);
+
+        NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new EmbeddingLayer(new Xavier(1), nCat, 4))
+                .addLayer(new InnerProductLayer(new Xavier(2), 3))
+                .addLayer(new SoftMaxLayer());
+        m.wregul = new L2Regularization(0.1);
+
+        // batch b uses categories [10 * b, 10 * b + 10)
+        DoubleTensor[] Xs = new DoubleTensor[2];
+        DoubleTensor[] ys = new DoubleTensor[2];
+        for(int b = 0; b < 2; b++){
+            double[] X = new double[2 * E];
+            double[] y = new double[E];
+            for(int i = 0; i < X.length; i++){
+                X[i] = 10 * b + rand.nextInt(10);
+            }
+            for(int i = 0; i < E; i++){
+                y[i] = rand.nextInt(3);
+            }
+            Xs[b] = new DoubleTensor(X, 2, E);
+            ys[b] = new DoubleTensor(y, E);
+        }
+        m.setTrainInputs(Xs[0], ys[0], null);
+        m.initWeights();
+
+        NeuralNetFunction f = new NeuralNetFunction(m);
+        NeuralNetGradient g = new NeuralNetGradient(m);
+        double maxErr = 0.0, maxStale = 0.0, t, fp, fm;
+
+        for(int s = 0; s < steps; s++){
+            DoubleTensor X = Xs[s % 2], y = ys[s % 2];
+            f.value(m.theta, X, y, null, 1.0);
+            double[] grad = g.value(m.theta, X, y, null, 1.0).clone();
+            ActiveRanges ar = g.getActiveRanges();
+
+            boolean[] active = new boolean[grad.length];
+            for(int k = 0; k < ar.size(); k++){
+                for(int i = ar.from(k); i < ar.to(k); i++){
+                    active[i] = true;
+                }
+            }
+            for(int i = 0; i < grad.length; i++){
+                if(!active[i])
+                    maxStale = Math.max(maxStale, Math.abs(grad[i]));
+            }
+
+            for(int k = 0; k < ar.size(); k++){
+                for(int i = ar.from(k); i < ar.to(k); i++){
+                    t = m.theta[i];
+                    m.theta[i] = t + h;
+                    fp = f.value(m.theta, X, y, null, 1.0);
+                    m.theta[i] = t - h;
+                    fm = f.value(m.theta, X, y, null, 1.0);
+                    m.theta[i] = t;
+                    maxErr = Math.max(maxErr, Math.abs((fp - fm) / (2 * h) - grad[i]));
+                }
+            }
+
+            for(int k = 0; k < ar.size(); k++){
+                for(int i = ar.from(k); i < ar.to(k); i++){
+                    m.theta[i] -= lr * grad[i];
+                }
+            }
+        }
+
+        System.out.println("Max. gradient of rows not in batch: " + maxStale
+                + (maxStale == 0.0 ? " OK" : " FAILED"));
+        System.out.println("Max. error vs finite differences: " + maxErr
+                + (maxErr < 1e-6 ? " OK" : " FAILED"));
+    }
+}
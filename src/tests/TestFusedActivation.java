@@ -0,0 +1,78 @@
+package tests;
+
+import core.NeuralNetFunction;
+import core.NeuralNetGradient;
+import core.NeuralNetModel;
+import init.Xavier;
+import java.util.List;
+import java.util.Random;
+import layer.activation.ActivationLayer;
+import layer.activation.Identity;
+import layer.activation.LeakyReLU;
+import layer.activation.Sigmoid;
+import layer.activation.SoftMaxLayer;
+import layer.activation.Tanh;
+import layer.regularization.DropoutLayer;
+import layer.weight.Convolution2DLayer;
+import layer.weight.InnerProductLayer;
+import layer.weight.SeparableConvolution2DLayer;
+import loss.CrossEntropy;
+import tensor.DoubleTensor;
+
+/**
+ * NeuralNetModel.optimizeGraph against the net as built: the same cost and
+ * gradient with activations fused into convolutions and inner products (and
+ * identity and dropout layers removed), plus a gradient check of the fused
+ * net.
+ * @author diego_paez
+ */
+public class TestFusedActivation {
+
+    public static void main(String[] args) {
+        final int E = 4, iW = 6, iH = 6, nC = 2;
+        Random rand = new Random(3);
+        DoubleTensor X = GradientCheck.gaussian(rand, iW, iH, nC, E);
+        DoubleTensor y = GradientCheck.labels(rand, 3, E);
+
+        double[] cost = new double[2];
+        double[][] grad = new double[2][];
+        for(int k = 0; k < 2; k++){
+            NeuralNetModel m = build();
+            m.setTrainInputs(X, y, null);
+            m.initWeights();
+            if(k == 1){
+                List<String> changes = m.optimizeGraph(false, false);
+                GradientCheck.report("Changes", changes.size(), changes.size() == 5);
+            }
+            NeuralNetFunction f = new NeuralNetFunction(m);
+            NeuralNetGradient g = new NeuralNetGradient(m);
+            cost[k] = f.value(m.theta, X, y, null, 1.0);
+            grad[k] = g.value(m.theta, X, y, null, 1.0).clone();
+            if(k == 1){
+                double err = GradientCheck.maxError(m, X, y, null);
+                GradientCheck.report("Fused max. error vs finite differences", err, err < 1e-6);
+            }
+        }
+
+        double dc = Math.abs(cost[0] - cost[1]);
+        double dg = GradientCheck.maxDiff(grad[0], grad[1]);
+        GradientCheck.report("Cost difference fused vs unfused", dc, dc < 1e-12);
+        GradientCheck.report("Gradient difference fused vs unfused", dg, dg < 1e-12);
+    }
+
+    private static NeuralNetModel build(){
+        NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new Convolution2DLayer(new Xavier(1), 3, 2, 2, 1, 1,
+                        Convolution2DLayer.ConvolveMethod.CONV2D))
+                .addLayer(new ActivationLayer(new Tanh()))
+                .addLayer(new SeparableConvolution2DLayer(new Xavier(5), 3, 2, 2))
+                .addLayer(new ActivationLayer(new LeakyReLU()))
+                .addLayer(new ActivationLayer(new Identity()))
+                .addLayer(new DropoutLayer(0.0))
+                .addLayer(new InnerProductLayer(new Xavier(2), 5))
+                .addLayer(new ActivationLayer(new Sigmoid()))
+                .addLayer(new InnerProductLayer(new Xavier(4), 3))
+                .addLayer(new SoftMaxLayer());
+        return m;
+    }
+}
@@ -0,0 +1,99 @@
+package tests;
+
+import core.NeuralNetModel;
+import init.Xavier;
+import java.util.Random;
+import layer.Layer;
+import layer.activation.ActivationLayer;
+import layer.activation.LogSoftMaxLayer;
+import layer.activation.Sigmoid;
+import layer.activation.SoftMaxLayer;
+import layer.activation.Tanh;
+import layer.weight.InnerProductLayer;
+import loss.BinaryCrossEntropy;
+import loss.CrossEntropy;
+import loss.FusedLoss;
+import loss.LossFunction;
+import loss.MeanSquaredError;
+import loss.NegativeLogLikelihood;
+import loss.WeightedCrossEntropy;
+import tensor.DoubleTensor;
+import wregul.L2Regularization;
+
+/**
+ * Fused losses against the unfused path. For every pair of output layer and
+ * loss, the gradient taken with respect to the inputs of the absorbed layer
+ * equals the gradient with respect to the outputs backpropagated through the
+ * layer, and the value of evalWithGrad equals eval. A model ending in each
+ * pair also passes a gradient check.
+ * @author diego_paez
+ */
+public class TestFusedLoss {
+
+    private static final int E = 30, nI = 6;
+
+    private static void check(String name, FusedLoss loss, Layer out, int nOut,
+            DoubleTensor y, DoubleTensor w, Random rand){
+        if(out != null){
+            out.setDimsOfInputsWOE(nOut);
+            out.initSpaceInMemory(E);
+            DoubleTensor Z = GradientCheck.gaussian(rand, nOut, E);
+            DoubleTensor o = out.fProp(Z, false).copy();
+            GradientCheck.report(name + ", loss absorbs layer", loss.absorbs(out), loss.absorbs(out));
+
+            DoubleTensor gOut = new DoubleTensor(nOut, E);
+            gOut.setPosToLast();
+            double v1 = loss.evalWithGrad(o, y, w, false, gOut);
+            DoubleTensor unfused = out.bProp(gOut).copy();
+            DoubleTensor fused = new DoubleTensor(nOut, E);
+            fused.setPosToLast();
+            double v2 = loss.evalWithGrad(o, y, w, true, fused);
+            double v0 = loss.eval(o, y, w);
+
+            double d = GradientCheck.maxDiff(fused, unfused);
+            GradientCheck.report(name + ", fused vs unfused gradient", d, d < 1e-10);
+            double dv = Math.max(Math.abs(v1 - v0), Math.abs(v2 - v0));
+            GradientCheck.report(name + ", evalWithGrad vs eval", dv, dv < 1e-12);
+        }
+
+        NeuralNetModel m = new NeuralNetModel(loss);
+        m.addLayer(new InnerProductLayer(new Xavier(2), 8))
+                .addLayer(new ActivationLayer(new Tanh()))
+                .addLayer(new InnerProductLayer(new Xavier(3), nOut));
+        if(out != null)
+            m.addLayer(out);
+        m.wregul = new L2Regularization(0.01);
+        DoubleTensor X = GradientCheck.gaussian(rand, nI, E);
+        m.setTrainInputs(X, y, w);
+        m.initWeights();
+        double err = GradientCheck.maxError(m, X, y, w);
+        GradientCheck.report(name + ", model gradient check", err, err < 1e-7);
+    }
+
+    public static void main(String[] args) {
+        Random rand = new Random(5);
+        DoubleTensor labels = GradientCheck.labels(rand, 4, E);
+        DoubleTensor weights = new DoubleTensor(E);
+        weights.setPosToLast();
+        for(int i = 0; i < E; i++){
+            weights.setQuick(i, rand.nextDouble());
+        }
+        DoubleTensor binary = new DoubleTensor(3, E);
+        binary.setPosToLast();
+        for(int i = 0; i < binary.size(); i++){
+            binary.setQuick(i, rand.nextInt(2));
+        }
+        DoubleTensor targets = GradientCheck.gaussian(rand, 3, E);
+
+        check("CE + SoftMax", new CrossEntropy(), new SoftMaxLayer(), 4, labels, null, rand);
+        check("Weighted CE + SoftMax", new WeightedCrossEntropy(), new SoftMaxLayer(), 4,
+                labels, weights, rand);
+        check("NLL + LogSoftMax", new NegativeLogLikelihood(), new LogSoftMaxLayer(), 4,
+                labels, null, rand);
+        check("NLL + LogSoftMax weighted", new NegativeLogLikelihood(), new LogSoftMaxLayer(), 4,
+                labels, weights, rand);
+        check("BCE + Sigmoid", new BinaryCrossEntropy(), new ActivationLayer(new Sigmoid()), 3,
+                binary, weights, rand);
+        check("MSE", new MeanSquaredError(), null, 3, targets, null, rand);
+    }
+}
@@ -0,0 +1,131 @@
+package tests;
+
+import core.NeuralNetFunction;
+import core.NeuralNetGradient;
+import core.NeuralNetModel;
+import init.Xavier;
+import java.util.Random;
+import layer.activation.ActivationLayer;
+import layer.activation.ReLU;
+import layer.activation.SoftMaxLayer;
+import layer.weight.InnerProductLayer;
+import loss.CrossEntropy;
+import optim.BatchFunction;
+import optim.BatchGradient;
+import optim.sgd.HogwildInputs;
+import optim.sgd.HogwildOptim;
+import optim.sgd.update.AdamUpdate;
+import tensor.DoubleTensor;
+
+/**
+ * HogwildOptim against serial training (a single worker) on separable
+ * synthetic data: with 4 workers, lock free and with striped locks, and with
+ * the contiguous shuffle of examples, the loss of the fixed batch must
+ * converge as serial training does (from about 1.1 to less than 0.05 per
+ * example, but above 0). A failing worker makes optim throw instead of
+ * returning as if training had finished.
+ * @author diego_paez
+ */
+public class TestHogwild {
+
+    public static void main(String[] args) {
+        final int E = 6000, D = 20;
+        Random rand = new Random(3);
+        DoubleTensor X = new DoubleTensor(D, E);
+        DoubleTensor y = new DoubleTensor(E);
+        X.setPosToLast();
+        y.setPosToLast();
+        for(int e = 0; e < E; e++){
+            int c = rand.nextInt(3);
+            y.setQuick(e, c);
+            for(int d = 0; d < D; d++){
+                X.setQuick(d + D * e, rand.nextGaussian() + (d % 3 == c ? 1.5 : 0.0));
+            }
+        }
+
+        NeuralNetModel m0 = build();
+        m0.setTrainInputs(X, y, null);
+        m0.initWeights();
+        double initial = new NeuralNetFunction(m0).value(m0.theta, X, y, null, 1.0) / E;
+        GradientCheck.report("Loss per example before training", initial, initial > 0.5);
+
+        double serial = train(X, y, 1, 0, 0, null);
+        GradientCheck.report("Serial eval loss per example", serial, converged(serial, initial));
+        double lockFree = train(X, y, 4, 0, 0, null);
+        GradientCheck.report("4 workers lock free eval loss per example", lockFree,
+                converged(lockFree, initial));
+        double striped = train(X, y, 4, 8, 0, null);
+        GradientCheck.report("4 workers 8 stripes eval loss per example", striped,
+                converged(striped, initial));
+        double contiguous = train(X, y, 4, 0, 2, null);
+        GradientCheck.report("4 workers contiguous shuffle eval loss per example", contiguous,
+                converged(contiguous, initial));
+
+        boolean thrown = false;
+        try {
+            train(X, y, 4, 0, 0, new BatchFunction() {
+                @Override
+                public double value(double[] value, DoubleTensor XBatch, DoubleTensor yBatch,
+                        DoubleTensor yWeightsBatch, double lambdaAdjus) {
+                    throw new ArithmeticException("failing worker");
+                }
+            });
+        } catch (IllegalStateException e) {
+            thrown = e.getCause() instanceof ArithmeticException;
+        }
+        GradientCheck.report("Failed worker throws from optim", thrown, thrown);
+    }
+
+    /**
+     * Loss went down from the initial one to less than 0.05, a loss of 0 (or
+     * NaN) means nothing was trained.
+     */
+    private static boolean converged(double loss, double initial){
+        return loss > 0.0 && loss < 0.05 && loss < initial / 10;
+    }
+
+    /**
+     * Train 4 epochs, return loss per example of the fixed batch after the
+     * last one (initially about log(3)). The last worker uses failing as
+     * function if not null.
+     */
+    private static double train(DoubleTensor X, DoubleTensor y, int workers, int stripes,
+            int shuffleThreads, BatchFunction failing){
+        NeuralNetModel m = build();
+        m.setTrainInputs(X, y, null);
+        m.initWeights();
+        BatchFunction[] funs = new BatchFunction[workers];
+        BatchGradient[] grads = new BatchGradient[workers];
+        for(int w = 0; w < workers; w++){
+            NeuralNetModel rep = m;
+            if(w > 0){
+                rep = build();
+                rep.setTrainInputs(X, y, null);
+                rep.shareWeights(m);
+            }
+            funs[w] = new NeuralNetFunction(rep);
+            grads[w] = new NeuralNetGradient(rep);
+        }
+        if(failing != null)
+            funs[workers - 1] = failing;
+
+        HogwildInputs in = new HogwildInputs(m.theta, funs, grads, X, y);
+        in.batchSize = 32;
+        in.epochs = 4;
+        in.stripes = stripes;
+        in.shuffleThreads = shuffleThreads;
+        in.updater = new AdamUpdate(0.01, 0.9, 0.999, m.theta.length);
+        HogwildOptim h = new HogwildOptim();
+        h.optim(in);
+        return h.getEvalLoss()[in.epochs - 1] / in.evalSize;
+    }
+
+    private static NeuralNetModel build(){
+        NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new InnerProductLayer(new Xavier(2), 16))
+                .addLayer(new ActivationLayer(new ReLU()))
+                .addLayer(new InnerProductLayer(new Xavier(3), 3))
+                .addLayer(new SoftMaxLayer());
+        return m;
+    }
+}
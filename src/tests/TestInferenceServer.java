@@ -0,0 +1,141 @@
+package tests;
+
+import core.NeuralNetModel;
+import init.Xavier;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import layer.activation.ActivationLayer;
+import layer.activation.ReLU;
+import layer.activation.SoftMaxLayer;
+import layer.weight.InnerProductLayer;
+import loss.CrossEntropy;
+import serve.InferenceServer;
+import serve.Json;
+import tensor.DoubleTensor;
+
+/**
+ * InferenceServer loaded from a checkpoint against the forward pass of the
+ * model that saved it: JSON requests of one and several examples return the
+ * same outputs, binary requests the same outputs as floats, and invalid
+ * requests get errors with the right status.
+ * @author diego_paez
+ */
+public class TestInferenceServer {
+
+    private static NeuralNetModel build(){
+        NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new InnerProductLayer(new Xavier(1), 8))
+                .addLayer(new ActivationLayer(new ReLU()))
+                .addLayer(new InnerProductLayer(new Xavier(2), 3))
+                .addLayer(new SoftMaxLayer());
+        return m;
+    }
+
+    private static int status;
+    private static String contentType;
+
+    private static byte[] call(int port, String method, String path, String type, byte[] body)
+            throws Exception {
+        HttpURLConnection c = (HttpURLConnection) new URL("http://localhost:" + port + path)
+                .openConnection();
+        c.setRequestMethod(method);
+        if(body != null){
+            c.setDoOutput(true);
+            c.setRequestProperty("Content-Type", type);
+            try (OutputStream out = c.getOutputStream()) {
+                out.write(body);
+            }
+        }
+        status = c.getResponseCode();
+        contentType = c.getContentType();
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        try (InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream()) {
+            byte[] b = new byte[4096];
+            int n;
+            while((n = in.read(b)) > 0){
+                res.write(b, 0, n);
+            }
+        }
+        return res.toByteArray();
+    }
+
+    private static Object json(int port, String method, String path, String body) throws Exception {
+        byte[] res = call(port, method, path, "application/json",
+                body == null ? null : body.getBytes(StandardCharsets.UTF_8));
+        return Json.parse(new String(res, StandardCharsets.UTF_8));
+    }
+
+    private static double diff(List<?> outputs, DoubleTensor ref, int e){
+        double d = 0.0;
+        for(int i = 0; i < outputs.size(); i++){
+            d = Math.max(d, Math.abs((Double) outputs.get(i) - ref.getQuick(e * outputs.size() + i)));
+        }
+        return d;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int D = 4, E = 2;
+        Random rand = new Random(7);
+        DoubleTensor X = GradientCheck.gaussian(rand, D, E);
+        double[] x = X.data.toArray();
+        NeuralNetModel m = build();
+        m.setTrainInputs(X, GradientCheck.labels(rand, 3, E), null);
+        m.initWeights();
+        String file = new File(System.getProperty("java.io.tmpdir"), "test_server.ckpt").getPath();
+        m.saveCheckpoint(file, null);
+        m.testRunning = true;
+        DoubleTensor ref = m.fProp(X).copy();
+
+        InferenceServer s = InferenceServer.fromCheckpoint(build(), new int[]{D}, file, 16, 1000, 5000);
+        int port = s.start(0);
+
+        Object health = json(port, "GET", "/health", null);
+        GradientCheck.report("Health", health, status == 200);
+
+        StringBuilder one = Json.write(new StringBuilder(), new double[]{x[0], x[1], x[2], x[3]});
+        List<?> out = (List<?>) ((Map<?, ?>) json(port, "POST", "/predict", one.toString())).get("outputs");
+        double d = diff(out, ref, 0);
+        GradientCheck.report("Max. diff of one example (JSON)", d, status == 200 && d < 1e-12);
+
+        StringBuilder two = new StringBuilder("{\"inputs\":[");
+        Json.write(two, new double[]{x[0], x[1], x[2], x[3]}).append(',');
+        Json.write(two, new double[]{x[4], x[5], x[6], x[7]}).append("]}");
+        List<?> outs = (List<?>) ((Map<?, ?>) json(port, "POST", "/predict", two.toString())).get("outputs");
+        d = Math.max(diff((List<?>) outs.get(0), ref, 0), diff((List<?>) outs.get(1), ref, 1));
+        GradientCheck.report("Max. diff of two examples (JSON)", d,
+                status == 200 && outs.size() == 2 && d < 1e-12);
+
+        ByteBuffer bb = ByteBuffer.allocate(4 * x.length).order(ByteOrder.LITTLE_ENDIAN);
+        for(double v: x){
+            bb.putFloat((float) v);
+        }
+        ByteBuffer res = ByteBuffer.wrap(call(port, "POST", "/predict", "application/octet-stream",
+                bb.array())).order(ByteOrder.LITTLE_ENDIAN);
+        d = 0.0;
+        for(int i = 0; i < ref.size(); i++){
+            d = Math.max(d, Math.abs(res.getFloat(4 * i) - ref.getQuick(i)));
+        }
+        GradientCheck.report("Max. diff of binary request", d, status == 200
+                && "application/octet-stream".equals(contentType)
+                && res.limit() == 4 * ref.size() && d < 1e-6);
+
+        Object err = json(port, "POST", "/predict", "[1,2]");
+        GradientCheck.report("Wrong size", err, status == 400);
+        err = json(port, "POST", "/predict", "[1,2");
+        GradientCheck.report("Invalid JSON", err, status == 400);
+        err = json(port, "GET", "/predict", null);
+        GradientCheck.report("GET of predict", err, status == 405);
+        s.stop();
+        new File(file).delete();
+    }
+}
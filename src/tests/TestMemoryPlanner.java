@@ -0,0 +1,99 @@
+package tests;
+
+import core.NeuralNetFunction;
+import core.NeuralNetGradient;
+import core.NeuralNetModel;
+import init.Xavier;
+import java.util.Random;
+import layer.activation.ActivationLayer;
+import layer.activation.ReLU;
+import layer.activation.Sigmoid;
+import layer.activation.SoftMaxLayer;
+import layer.activation.Tanh;
+import layer.regularization.DropoutLayer;
+import layer.subsampling.MeanPooling2DLayer;
+import layer.weight.Convolution2DLayer;
+import layer.weight.InnerProductLayer;
+import loss.CrossEntropy;
+import loss.MeanSquaredError;
+import tensor.DoubleTensor;
+
+/**
+ * NeuralNetModel.planMemory against the net without a plan: in place layers
+ * and shared gradient buffers must give the same cost, gradient and test
+ * outputs over several training passes (dropout layers with fixed seeds draw
+ * the same masks in both nets), and the training inputs must not be
+ * overwritten by a layer running in place.
+ * @author diego_paez
+ */
+public class TestMemoryPlanner {
+
+    public static void main(String[] args) {
+        for(boolean mse: new boolean[]{false, true}){
+            run(mse);
+        }
+    }
+
+    private static void run(boolean mse){
+        final int E = 5, iW = 8, iH = 8, nC = 1;
+        Random rand = new Random(3);
+        DoubleTensor X = GradientCheck.gaussian(rand, iW, iH, nC, E);
+        DoubleTensor X0 = X.copy();
+        DoubleTensor y;
+        if(mse){
+            y = GradientCheck.gaussian(rand, 1, E);
+        } else{
+            y = GradientCheck.labels(rand, 3, E);
+        }
+
+        double[] cost = new double[2];
+        double[][] grad = new double[2][];
+        DoubleTensor[] outs = new DoubleTensor[2];
+        for(int k = 0; k < 2; k++){
+            NeuralNetModel m = build(mse);
+            m.setTrainInputs(X, y, null);
+            m.initWeights();
+            if(k == 1)
+                m.planMemory(E, false);
+            NeuralNetFunction f = new NeuralNetFunction(m);
+            NeuralNetGradient g = new NeuralNetGradient(m);
+            for(int it = 0; it < 3; it++){
+                cost[k] = f.value(m.theta, X, y, null, 1.0);
+                grad[k] = g.value(m.theta, X, y, null, 1.0).clone();
+            }
+            m.testRunning = true;
+            outs[k] = m.fProp(X).copy();
+            m.testRunning = false;
+        }
+
+        String name = mse ? "MSE" : "Cross entropy";
+        double dc = Math.abs(cost[0] - cost[1]);
+        double dg = GradientCheck.maxDiff(grad[0], grad[1]);
+        double dout = GradientCheck.maxDiff(outs[0], outs[1]);
+        double dx = GradientCheck.maxDiff(X, X0);
+        GradientCheck.report(name + " cost difference planned vs not", dc, dc == 0.0);
+        GradientCheck.report(name + " gradient difference planned vs not", dg, dg == 0.0);
+        GradientCheck.report(name + " test output difference planned vs not", dout, dout == 0.0);
+        GradientCheck.report(name + " change of training inputs", dx, dx == 0.0);
+    }
+
+    private static NeuralNetModel build(boolean mse){
+        NeuralNetModel m = new NeuralNetModel(mse ? new MeanSquaredError() : new CrossEntropy());
+        m.addLayer(new DropoutLayer(0.2, 7))
+                .addLayer(new ActivationLayer(new ReLU()))
+                .addLayer(new Convolution2DLayer(new Xavier(1), 3, 3, 3, 1, 1,
+                        Convolution2DLayer.ConvolveMethod.CONV2D))
+                .addLayer(new ActivationLayer(new ReLU()))
+                .addLayer(new MeanPooling2DLayer(2, 2))
+                .addLayer(new DropoutLayer(0.3, 11))
+                .addLayer(new InnerProductLayer(new Xavier(2), 6))
+                .addLayer(new ActivationLayer(new Tanh()))
+                .addLayer(new DropoutLayer(0.5, 5))
+                .addLayer(new InnerProductLayer(new Xavier(3), mse ? 1 : 3));
+        if(mse)
+            m.addLayer(new ActivationLayer(new Sigmoid()));
+        else
+            m.addLayer(new SoftMaxLayer());
+        return m;
+    }
+}
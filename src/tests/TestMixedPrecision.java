@@ -0,0 +1,139 @@
+package tests;
+
+import core.LossScaler;
+import core.ModelFactory;
+import core.NeuralNetFunction;
+import core.NeuralNetGradient;
+import core.NeuralNetModel;
+import core.ParallelNeuralNet;
+import core.ParallelNeuralNetFunction;
+import core.ParallelNeuralNetGradient;
+import core.PipelineNeuralNet;
+import core.PipelineNeuralNetFunction;
+import core.PipelineNeuralNetGradient;
+import init.Xavier;
+import java.util.Arrays;
+import java.util.Random;
+import layer.activation.ActivationLayer;
+import layer.activation.ReLU;
+import layer.activation.SoftMaxLayer;
+import layer.activation.Tanh;
+import layer.weight.InnerProductLayer;
+import loss.CrossEntropy;
+import optim.ActiveRanges;
+import optim.BatchFunction;
+import optim.BatchGradient;
+import optim.SparseBatchGradient;
+import optim.sgd.update.AdamUpdate;
+import tensor.DoubleTensor;
+import wregul.L2Regularization;
+
+/**
+ * Mixed precision against double precision and against itself. The gradient
+ * in mixed precision is close to the one in doubles and does not depend on
+ * the scale of the loss (powers of 2 scale exactly). ParallelNeuralNet and
+ * PipelineNeuralNet with a loss scaler on the master give the gradient of a
+ * single model in mixed precision, and when the scaled gradient overflows no
+ * range is active, the scale is reduced once and Adam skips the step.
+ * @author diego_paez
+ */
+public class TestMixedPrecision {
+
+    private static NeuralNetModel build(){
+        NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new InnerProductLayer(new Xavier(2), 32))
+                .addLayer(new ActivationLayer(new Tanh()))
+                .addLayer(new InnerProductLayer(new Xavier(3), 16))
+                .addLayer(new ActivationLayer(new ReLU()))
+                .addLayer(new InnerProductLayer(new Xavier(4), 3))
+                .addLayer(new SoftMaxLayer());
+        m.wregul = new L2Regularization(0.01);
+        return m;
+    }
+
+    private static final ModelFactory FACTORY = new ModelFactory() {
+        @Override
+        public NeuralNetModel create() {
+            return build();
+        }
+    };
+
+    private static NeuralNetModel mixed(DoubleTensor X, DoubleTensor y, double[] theta,
+            double scale){
+        NeuralNetModel m = build();
+        m.setTrainInputs(X, y, null);
+        m.setWeights(theta);
+        m.useMixedPrecision(new LossScaler(scale, 2, 1000));
+        return m;
+    }
+
+    private static double[] gradient(NeuralNetModel m, DoubleTensor X, DoubleTensor y){
+        new NeuralNetFunction(m).value(m.theta, X, y, null, 1.0);
+        return new NeuralNetGradient(m).value(m.theta, X, y, null, 1.0).clone();
+    }
+
+    private static double maxRelDiff(double[] a, double[] ref){
+        double d = 0.0, max = 0.0;
+        for(int i = 0; i < a.length; i++){
+            d = Math.max(d, Math.abs(a[i] - ref[i]));
+            max = Math.max(max, Math.abs(ref[i]));
+        }
+        return d / max;
+    }
+
+    /**
+     * Compare gradient of a wrapper with the reference, then make the scaled
+     * gradient overflow and check that the step is skipped.
+     */
+    private static void checkWrapper(String name, NeuralNetModel master, BatchFunction f,
+            BatchGradient g, DoubleTensor X, DoubleTensor y, double[] ref){
+        f.value(master.theta, X, y, null, 1.0);
+        double[] grad = g.value(master.theta, X, y, null, 1.0);
+        double d = maxRelDiff(grad, ref);
+        GradientCheck.report(name + ", relative diff vs single mixed model", d, d < 1e-5);
+
+        master.lossScaler = new LossScaler(1e40, 2, 1000);
+        AdamUpdate adam = new AdamUpdate(0.01, 0.9, 0.999, master.theta.length);
+        double[] before = master.theta.clone();
+        adam.update(master.theta, f, g, X, y, null, 1.0);
+        ActiveRanges active = ((SparseBatchGradient) g).getActiveRanges();
+        boolean skipped = active != null && active.size() == 0 && adam.iter == 0
+                && Arrays.equals(before, master.theta) && master.lossScaler.getSkipped() == 1
+                && master.lossScaler.getScale() == 5e39;
+        GradientCheck.report(name + ", overflow skips the step", skipped, skipped);
+    }
+
+    public static void main(String[] args) {
+        final int E = 200, nI = 20;
+        Random rand = new Random(3);
+        DoubleTensor X = GradientCheck.gaussian(rand, nI, E);
+        DoubleTensor y = GradientCheck.labels(rand, 3, E);
+
+        NeuralNetModel m = build();
+        m.setTrainInputs(X, y, null);
+        m.initWeights();
+        double[] g0 = gradient(m, X, y);
+
+        double[] g1 = gradient(mixed(X, y, m.theta, 1.0), X, y);
+        double[] g1024 = gradient(mixed(X, y, m.theta, 1024.0), X, y);
+        double d = maxRelDiff(g1, g0);
+        GradientCheck.report("Mixed vs double, relative diff", d, d > 0.0 && d < 1e-5);
+        d = GradientCheck.maxDiff(g1, g1024);
+        GradientCheck.report("Scale 1 vs 1024, max. diff", d, d == 0.0);
+
+        for(int K: new int[]{1, 3}){
+            NeuralNetModel master = mixed(X, y, m.theta, 1024.0);
+            ParallelNeuralNet p = new ParallelNeuralNet(master, FACTORY, K);
+            checkWrapper("Parallel, " + K + " replicas", master, new ParallelNeuralNetFunction(p),
+                    new ParallelNeuralNetGradient(p), X, y, g1024);
+            p.shutdown();
+        }
+        for(int S: new int[]{1, 3}){
+            NeuralNetModel master = mixed(X, y, m.theta, 1024.0);
+            PipelineNeuralNet p = new PipelineNeuralNet(master, FACTORY, S, 4);
+            checkWrapper("Pipeline, " + S + " stages", master, new PipelineNeuralNetFunction(p),
+                    new PipelineNeuralNetGradient(p), X, y, g1024);
+            p.shutdown();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package tests;
+
+import core.NeuralNetFunction;
+import core.NeuralNetGradient;
+import core.NeuralNetModel;
+import init.Xavier;
+import io.ModelCheckpoint;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import layer.activation.ActivationLayer;
+import layer.activation.ReLU;
+import layer.activation.SoftMaxLayer;
+import layer.weight.InnerProductLayer;
+import loss.CrossEntropy;
+import optim.sgd.SGDOptim;
+import optim.sgd.update.AdamUpdate;
+import optim.sgd.update.MomentumSGDUpdate;
+import tensor.DoubleTensor;
+
+/**
+ * Round trip of ModelCheckpoint: parameters and Adam state are restored
+ * exactly, a model with other layers is rejected, corrupt and truncated
+ * files are detected and weights stored by SGDOptim.storeWeights still load.
+ * Last, a checkpoint over 2 GB (mapped in several chunks) is written and
+ * restored, it needs 2 GB of heap (-Xmx2g) and is skipped with less.
+ * @author diego_paez
+ */
+public class TestModelCheckpoint {
+
+    private static NeuralNetModel build(int hidden){
+        NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new InnerProductLayer(new Xavier(2), hidden))
+                .addLayer(new ActivationLayer(new ReLU()))
+                .addLayer(new InnerProductLayer(new Xavier(3), 3))
+                .addLayer(new SoftMaxLayer());
+        return m;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int E = 50, D = 10;
+        String dir = System.getProperty("java.io.tmpdir");
+        String file = new File(dir, "test_ck.bin").getPath();
+        String legacy = new File(dir, "test_w.dat").getPath();
+        Random rand = new Random(3);
+        DoubleTensor X = GradientCheck.gaussian(rand, D, E);
+        DoubleTensor y = GradientCheck.labels(rand, 3, E);
+
+        NeuralNetModel m = build(16);
+        m.setTrainInputs(X, y, null);
+        m.initWeights();
+        AdamUpdate adam = new AdamUpdate(0.01, 0.9, 0.999, m.theta.length);
+        for(int i = 0; i < 5; i++){
+            adam.update(m.theta, new NeuralNetFunction(m), new NeuralNetGradient(m), X, y, null, 1.0);
+        }
+        m.saveCheckpoint(file, adam);
+
+        NeuralNetModel m2 = build(16);
+        m2.setTrainInputs(X, y, null);
+        m2.loadWeights(file);
+        AdamUpdate adam2 = new AdamUpdate(0.1, 0.9, 0.999, m.theta.length);
+        boolean restored = ModelCheckpoint.open(file, true).restoreOptimizer(adam2);
+        GradientCheck.report("Params restored", Arrays.equals(m.theta, m2.theta),
+                Arrays.equals(m.theta, m2.theta));
+        boolean stateOk = restored && Arrays.equals(adam.cache1, adam2.cache1)
+                && Arrays.equals(adam.cache2, adam2.cache2)
+                && adam.iter == adam2.iter && adam.stepSize == adam2.stepSize;
+        GradientCheck.report("Adam state restored", stateOk, stateOk);
+
+        NeuralNetModel m3 = build(17);
+        m3.setTrainInputs(X, y, null);
+        m3.initWeights();
+        double[] before = m3.theta.clone();
+        boolean rejected = !ModelCheckpoint.open(file, true).restoreParams(m3.layers, m3.theta)
+                && Arrays.equals(before, m3.theta);
+        GradientCheck.report("Other layers rejected", rejected, rejected);
+
+        SGDOptim.storeWeights(legacy, m.theta);
+        NeuralNetModel m4 = build(16);
+        m4.setTrainInputs(X, y, null);
+        m4.loadWeights(legacy);
+        GradientCheck.report("Legacy weights loaded", Arrays.equals(m.theta, m4.theta),
+                Arrays.equals(m.theta, m4.theta));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(300);
+            raf.write(raf.read() ^ 1);
+        }
+        boolean corrupt = ModelCheckpoint.open(file, true) == null;
+        GradientCheck.report("Corrupt file detected", corrupt, corrupt);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 16);
+        }
+        boolean truncated = ModelCheckpoint.open(file, false) == null;
+        GradientCheck.report("Truncated file detected", truncated, truncated);
+        new File(file).delete();
+        new File(legacy).delete();
+
+        // params and state (the same array) of 135M doubles each: 2.16 GB
+        final int n = 135000000;
+        if(Runtime.getRuntime().maxMemory() < 3L * 4 * n){
+            System.out.println("Checkpoint over 2 GB: skipped, needs -Xmx2g or more");
+            return;
+        }
+        String big = new File(dir, "test_big_ck.bin").getPath();
+        double[] theta = new double[n];
+        for(int i = 0; i < n; i++){
+            theta[i] = i * 0.5;
+        }
+        MomentumSGDUpdate mom = new MomentumSGDUpdate(0.01, 0.9, 1);
+        mom.v = theta;
+        ModelCheckpoint.save(big, null, theta, mom);
+        boolean bigOk = new File(big).length() > Integer.MAX_VALUE;
+
+        ModelCheckpoint ck = ModelCheckpoint.open(big, true);
+        bigOk &= ck != null;
+        Arrays.fill(theta, 0.0);
+        bigOk &= ck.restoreParams(null, theta);
+        for(int i = 0; i < n && bigOk; i++){
+            bigOk = theta[i] == i * 0.5;
+        }
+        // the state block crosses the end of the first mapped chunk
+        Arrays.fill(theta, 0.0);
+        bigOk &= ck.restoreOptimizer(mom);
+        for(int i = 0; i < n && bigOk; i++){
+            bigOk = theta[i] == i * 0.5;
+        }
+        new File(big).delete();
+        GradientCheck.report("Checkpoint over 2 GB restored", bigOk, bigOk);
+    }
+}
@@ -0,0 +1,75 @@
+package tests;
+
+import core.NeuralNetFunction;
+import core.NeuralNetGradient;
+import core.NeuralNetModel;
+import init.Xavier;
+import java.util.Random;
+import layer.Layer;
+import layer.activation.SoftMaxLayer;
+import layer.recurrent.LSTMLayer;
+import layer.weight.InnerProductLayer;
+import layer.weight.WeightLayer;
+import loss.CrossEntropy;
+import tensor.DoubleTensor;
+
+/**
+ * Parameters of every weight layer are views of theta and thetaGrad of the
+ * model (bias first, then weights, layer after layer): writes to theta are
+ * seen by the layers, gradients of the layers are the entries of thetaGrad,
+ * and passing a copy of the weights (setWeights copies them) gives the same
+ * cost as passing theta itself.
+ * @author diego_paez
+ */
+public class TestParamViews {
+
+    public static void main(String[] args) {
+        final int E = 5, nIn = 3, T = 4;
+        Random rand = new Random(7);
+        NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new LSTMLayer(new Xavier(1), 4))
+                .addLayer(new InnerProductLayer(new Xavier(2), 6))
+                .addLayer(new InnerProductLayer(new Xavier(3), 3))
+                .addLayer(new SoftMaxLayer());
+        DoubleTensor X = GradientCheck.gaussian(rand, nIn, T, E);
+        DoubleTensor y = GradientCheck.labels(rand, 3, E);
+        m.setTrainInputs(X, y, null);
+        m.initWeights();
+
+        NeuralNetFunction f = new NeuralNetFunction(m);
+        NeuralNetGradient g = new NeuralNetGradient(m);
+        double cost = f.value(m.theta, X, y, null, 1.0);
+        double[] grad = g.value(m.theta, X, y, null, 1.0);
+
+        int badParams = 0, badGrads = 0, badWrites = 0, k = 0;
+        double old;
+        WeightLayer wl;
+        for(Layer l: m.layers){
+            if(!(l instanceof WeightLayer))
+                continue;
+            wl = (WeightLayer) l;
+            for(DoubleTensor[] t: new DoubleTensor[][]{{wl.bias, wl.biasGrad},
+                    {wl.weights, wl.weightsGrad}}){
+                for(int i = 0; i < t[0].size(); i++, k++){
+                    if(t[0].getQuick(i) != m.theta[k])
+                        badParams++;
+                    if(t[1].getQuick(i) != grad[k])
+                        badGrads++;
+                    old = m.theta[k];
+                    m.theta[k] = old + 1.0;
+                    if(t[0].getQuick(i) != m.theta[k])
+                        badWrites++;
+                    m.theta[k] = old;
+                }
+            }
+        }
+
+        double copyCost = f.value(m.theta.clone(), X, y, null, 1.0);
+        GradientCheck.report("Parameters packed", k + " of " + m.theta.length,
+                k == m.theta.length);
+        GradientCheck.report("Parameters differing from theta", badParams, badParams == 0);
+        GradientCheck.report("Gradients differing from thetaGrad", badGrads, badGrads == 0);
+        GradientCheck.report("Writes to theta not seen by layers", badWrites, badWrites == 0);
+        GradientCheck.report("Cost with copy of weights", copyCost, copyCost == cost);
+    }
+}
@@ -0,0 +1,226 @@
+package tests;
+
+import core.NeuralNetFunction;
+import core.NeuralNetGradient;
+import core.NeuralNetModel;
+import init.Xavier;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import layer.activation.ActivationLayer;
+import layer.activation.ReLU;
+import layer.activation.SoftMaxLayer;
+import layer.weight.InnerProductLayer;
+import loss.CrossEntropy;
+import optim.ActiveRanges;
+import optim.ps.FrameChannel;
+import optim.ps.LocalCluster;
+import optim.ps.ParameterServer;
+import optim.ps.TrainingJob;
+import optim.sgd.SGDInputs;
+import optim.sgd.update.AdamUpdate;
+import tensor.DoubleTensor;
+
+/**
+ * Parameter server checks:
+ * - Protocol: a sparse push only changes the parameters within its active
+ * ranges (the state of Adam for the rest is not decayed) and a push without
+ * ranges skips the step without advancing the iteration of Adam.
+ * - Training: 3 workers on shards of separable synthetic data, as threads and
+ * as processes, must bring the loss from about 1.1 to less than 0.1 per
+ * example. This class is the TrainingJob of the workers.
+ * - Failures: if a worker does not connect in time the server aborts and
+ * closes the connections of the others, and a worker failing to create its
+ * inputs (as thread or as process) aborts training instead of leaving the
+ * others waiting for its clock.
+ * @author diego_paez
+ */
+public class TestParameterServer implements TrainingJob {
+
+    private static final int E = 6000, D = 20;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        checkProtocol();
+
+        DoubleTensor[] d = data(0, E);
+        NeuralNetModel m = build();
+        m.setTrainInputs(d[0], d[1], null);
+        m.initWeights();
+        NeuralNetFunction f = new NeuralNetFunction(m);
+        for(boolean processes: new boolean[]{false, true}){
+            double[] x = LocalCluster.train(TestParameterServer.class.getName(), 3,
+                    m.theta.clone(), new AdamUpdate(0.01, 0.9, 0.999, m.theta.length), 2,
+                    processes);
+            double loss = f.value(x, d[0], d[1], null, 1.0) / E;
+            GradientCheck.report((processes ? "Processes" : "Threads")
+                    + " final loss per example", loss, loss < 0.1);
+        }
+
+        checkAcceptTimeout();
+        for(boolean processes: new boolean[]{false, true}){
+            long start = System.nanoTime();
+            boolean thrown = false;
+            try {
+                LocalCluster.train(FailingJob.class.getName(), 3, m.theta.clone(),
+                        new AdamUpdate(0.01, 0.9, 0.999, m.theta.length), 0, processes);
+            } catch (IllegalStateException e) {
+                thrown = true;
+            }
+            double secs = (System.nanoTime() - start) / 1e9;
+            GradientCheck.report((processes ? "Processes" : "Threads")
+                    + ", failing worker aborts training (s)", secs, thrown);
+        }
+    }
+
+    /**
+     * Worker 1 fails to create its inputs.
+     */
+    public static class FailingJob extends TestParameterServer {
+
+        @Override
+        public SGDInputs createInputs(int worker, int numWorkers){
+            if(worker == 1)
+                throw new IllegalArgumentException("No shard for worker " + worker);
+            return super.createInputs(worker, numWorkers);
+        }
+    }
+
+    /**
+     * Only one of two workers connects: after the timeout its pull waiting
+     * for the other one fails instead of blocking forever.
+     */
+    private static void checkAcceptTimeout() throws IOException, InterruptedException {
+        final int n = 10;
+        ParameterServer ps = new ParameterServer(new double[n], new AdamUpdate(0.01, 0.9, 0.999, n),
+                2, 0);
+        ps.setAcceptTimeout(500);
+        int port = ps.bind(0);
+        Thread server = new Thread(ps, "parameter-server");
+        server.setDaemon(true);
+        server.start();
+
+        FrameChannel ch = new FrameChannel(SocketChannel.open(
+                new InetSocketAddress("localhost", port)), n);
+        pull(ch, n);
+        ch.send(FrameChannel.PUSH, 0, 0, 0.0, new double[n], n);
+        boolean failed = false;
+        try {
+            pull(ch, n);
+        } catch (IOException e) {
+            failed = true;
+        }
+        ch.close();
+        server.join();
+        GradientCheck.report("Missing worker aborts training", ps.isAborted(),
+                failed && ps.isAborted());
+    }
+
+    /**
+     * Push a dense gradient, a sparse one and an empty one and look at the
+     * parameters and the state of the updater after each push.
+     */
+    private static void checkProtocol() throws IOException, InterruptedException {
+        final int n = 100;
+        double[] x = new double[n];
+        AdamUpdate adam = new AdamUpdate(0.01, 0.9, 0.999, n);
+        ParameterServer ps = new ParameterServer(x, adam, 1, 0);
+        int port = ps.bind(0);
+        Thread server = new Thread(ps, "parameter-server");
+        server.setDaemon(true);
+        server.start();
+
+        FrameChannel ch = new FrameChannel(SocketChannel.open(
+                new InetSocketAddress("localhost", port)), n);
+        double[] g = new double[n];
+        Arrays.fill(g, 1.0);
+        ch.send(FrameChannel.PUSH, 0, 0, 0.0, g, n);
+        double[] afterDense = pull(ch, n);
+
+        ActiveRanges active = new ActiveRanges();
+        active.add(10, 20);
+        active.add(50, 55);
+        ch.stageSparse(g, active);
+        ch.sendStaged(FrameChannel.PUSH_SPARSE, 0, 1, 0.0);
+        double[] afterSparse = pull(ch, n);
+
+        boolean[] mask = GradientCheck.activeMask(active, n);
+        int changedOutside = 0, unchangedInside = 0;
+        for(int i = 0; i < n; i++){
+            if(!mask[i] && afterSparse[i] != afterDense[i])
+                changedOutside++;
+            if(mask[i] && afterSparse[i] == afterDense[i])
+                unchangedInside++;
+        }
+
+        active.clear();
+        ch.stageSparse(g, active);
+        ch.sendStaged(FrameChannel.PUSH_SPARSE, 0, 2, 0.0);
+        double[] afterEmpty = pull(ch, n);
+        ch.send(FrameChannel.DONE, 0, 3, 0.0, null, 0);
+        ch.close();
+        server.join();
+
+        GradientCheck.report("Parameters changed outside sparse ranges", changedOutside,
+                changedOutside == 0);
+        GradientCheck.report("Parameters not changed inside sparse ranges", unchangedInside,
+                unchangedInside == 0);
+        GradientCheck.report("Parameters changed by empty push",
+                GradientCheck.maxDiff(afterSparse, afterEmpty),
+                Arrays.equals(afterSparse, afterEmpty));
+        GradientCheck.report("Steps applied / skipped", ps.getVersion() + " / " + ps.getSkipped(),
+                ps.getVersion() == 2 && ps.getSkipped() == 1);
+        GradientCheck.report("Adam iteration", adam.iter, adam.iter == 2);
+    }
+
+    private static double[] pull(FrameChannel ch, int n) throws IOException {
+        ch.send(FrameChannel.PULL, 0, 0, 0.0, null, 0);
+        ch.receive();
+        double[] x = new double[n];
+        ch.readPayload(x);
+        return x;
+    }
+
+    @Override
+    public SGDInputs createInputs(int worker, int numWorkers){
+        DoubleTensor[] d = data(worker * E / numWorkers, (worker + 1) * E / numWorkers);
+        NeuralNetModel m = build();
+        m.setTrainInputs(d[0], d[1], null);
+        m.initWeights();
+        SGDInputs in = new SGDInputs(m.theta, new NeuralNetFunction(m),
+                new NeuralNetGradient(m), d[0], d[1]);
+        in.batchSize = 32;
+        in.epochs = 2;
+        return in;
+    }
+
+    /**
+     * Examples from to to of the synthetic data: 3 classes, the features of
+     * a class are shifted by 1.5.
+     */
+    private static DoubleTensor[] data(int from, int to){
+        Random rand = new Random(3);
+        DoubleTensor X = new DoubleTensor(D, E);
+        DoubleTensor y = new DoubleTensor(E);
+        X.setPosToLast();
+        y.setPosToLast();
+        for(int e = 0; e < E; e++){
+            int c = rand.nextInt(3);
+            y.setQuick(e, c);
+            for(int d = 0; d < D; d++){
+                X.setQuick(d + D * e, rand.nextGaussian() + (d % 3 == c ? 1.5 : 0.0));
+            }
+        }
+        return new DoubleTensor[]{X.sliceLastDim(from, to).copy(), y.sliceLastDim(from, to).copy()};
+    }
+
+    private static NeuralNetModel build(){
+        NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new InnerProductLayer(new Xavier(2), 16))
+                .addLayer(new ActivationLayer(new ReLU()))
+                .addLayer(new InnerProductLayer(new Xavier(3), 3))
+                .addLayer(new SoftMaxLayer());
+        return m;
+    }
+}
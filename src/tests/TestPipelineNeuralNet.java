@@ -0,0 +1,184 @@
+package tests;
+
+import core.ModelFactory;
+import core.NeuralNetFunction;
+import core.NeuralNetGradient;
+import core.NeuralNetModel;
+import core.PipelineNeuralNet;
+import core.PipelineNeuralNetFunction;
+import core.PipelineNeuralNetGradient;
+import init.Xavier;
+import java.util.Arrays;
+import java.util.Random;
+import layer.activation.ActivationFunction;
+import layer.activation.ActivationLayer;
+import layer.activation.ReLU;
+import layer.activation.SoftMaxLayer;
+import layer.activation.Tanh;
+import layer.subsampling.MeanPooling2DLayer;
+import layer.weight.Convolution2DLayer;
+import layer.weight.EmbeddingLayer;
+import layer.weight.InnerProductLayer;
+import loss.CrossEntropy;
+import loss.MeanSquaredError;
+import tensor.DoubleTensor;
+import wregul.L2Regularization;
+
+/**
+ * PipelineNeuralNet against a single model on the whole batch, for several
+ * numbers of stages and micro batches (also more of them than layers or
+ * examples): same cost and gradient, with L2 regularization, for averaged and
+ * not averaged losses. With an embedding layer the active ranges must also be
+ * the same (the union of the rows of the micro batches) over consecutive
+ * batches with different rows. A stage failing in backward makes cost throw
+ * instead of hanging or returning a partial gradient.
+ * @author diego_paez
+ */
+public class TestPipelineNeuralNet {
+
+    public static void main(String[] args) {
+        final int E = 13;
+        for(final boolean mse: new boolean[]{false, true}){
+            Random rand = new Random(3);
+            DoubleTensor X = GradientCheck.gaussian(rand, 8, 8, 1, E);
+            DoubleTensor y = mse ? GradientCheck.gaussian(rand, 1, E)
+                    : GradientCheck.labels(rand, 3, E);
+            compare(mse ? "Conv MSE" : "Conv CE", new ModelFactory() {
+                @Override
+                public NeuralNetModel create() {
+                    return buildConv(mse);
+                }
+            }, new DoubleTensor[]{X}, new DoubleTensor[]{y});
+        }
+
+        Random rand = new Random(5);
+        DoubleTensor[] Xs = new DoubleTensor[3];
+        DoubleTensor[] ys = new DoubleTensor[3];
+        for(int b = 0; b < Xs.length; b++){
+            Xs[b] = new DoubleTensor(2, E);
+            Xs[b].setPosToLast();
+            for(int i = 0; i < Xs[b].size(); i++){
+                Xs[b].setQuick(i, 20 * b + rand.nextInt(20));
+            }
+            ys[b] = GradientCheck.labels(rand, 3, E);
+        }
+        compare("Embedding", new ModelFactory() {
+            @Override
+            public NeuralNetModel create() {
+                NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+                m.addLayer(new EmbeddingLayer(new Xavier(1), 100, 4))
+                        .addLayer(new InnerProductLayer(new Xavier(2), 3))
+                        .addLayer(new SoftMaxLayer());
+                m.wregul = new L2Regularization(0.1);
+                return m;
+            }
+        }, Xs, ys);
+
+        checkFailure(rand);
+    }
+
+    /**
+     * Replicas of the stages get an activation failing in backward, the
+     * master does not.
+     */
+    private static void checkFailure(Random rand){
+        final ActivationFunction failing = new ActivationFunction() {
+            @Override
+            public double forward(double input, boolean isTest) {
+                return input;
+            }
+
+            @Override
+            public double derivative(double input, double output) {
+                throw new ArithmeticException("failing stage");
+            }
+        };
+        final boolean[] first = {true};
+        ModelFactory factory = new ModelFactory() {
+            @Override
+            public NeuralNetModel create() {
+                NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+                m.addLayer(new InnerProductLayer(new Xavier(1), 6))
+                        .addLayer(new ActivationLayer(first[0] ? new Tanh() : failing))
+                        .addLayer(new InnerProductLayer(new Xavier(2), 3))
+                        .addLayer(new SoftMaxLayer());
+                first[0] = false;
+                return m;
+            }
+        };
+        DoubleTensor X = GradientCheck.gaussian(rand, 5, 8);
+        DoubleTensor y = GradientCheck.labels(rand, 3, 8);
+        NeuralNetModel m = factory.create();
+        m.setTrainInputs(X, y, null);
+        m.initWeights();
+        PipelineNeuralNet p = new PipelineNeuralNet(m, factory, 3, 4);
+        boolean thrown = false;
+        try {
+            new PipelineNeuralNetFunction(p).value(m.theta, X, y, null, 1.0);
+        } catch (IllegalStateException e) {
+            thrown = e.getCause() instanceof ArithmeticException;
+        }
+        p.shutdown();
+        GradientCheck.report("Failed stage throws from cost", thrown, thrown);
+    }
+
+    private static void compare(String name, ModelFactory factory, DoubleTensor[] Xs,
+            DoubleTensor[] ys){
+        NeuralNetModel ref = factory.create();
+        ref.setTrainInputs(Xs[0], ys[0], null);
+        ref.initWeights();
+        NeuralNetFunction f0 = new NeuralNetFunction(ref);
+        NeuralNetGradient g0 = new NeuralNetGradient(ref);
+
+        for(int S: new int[]{1, 2, 3, 9}){
+            for(int M: new int[]{1, 3, 20}){
+                NeuralNetModel m = factory.create();
+                m.setTrainInputs(Xs[0], ys[0], null);
+                m.setWeights(ref.theta);
+                PipelineNeuralNet p = new PipelineNeuralNet(m, factory, S, M);
+                PipelineNeuralNetFunction f = new PipelineNeuralNetFunction(p);
+                PipelineNeuralNetGradient g = new PipelineNeuralNetGradient(p);
+
+                double dc = 0.0, dg = 0.0;
+                boolean sameRanges = true;
+                for(int b = 0; b < Xs.length; b++){
+                    double c0 = f0.value(ref.theta, Xs[b], ys[b], null, 0.5);
+                    double[] grad0 = g0.value(ref.theta, Xs[b], ys[b], null, 0.5);
+                    boolean[] mask0 = GradientCheck.activeMask(g0.getActiveRanges(), grad0.length);
+
+                    double c = f.value(m.theta, Xs[b], ys[b], null, 0.5);
+                    double[] grad = g.value(m.theta, Xs[b], ys[b], null, 0.5);
+                    boolean[] mask = GradientCheck.activeMask(g.getActiveRanges(), grad.length);
+
+                    sameRanges &= Arrays.equals(mask0, mask);
+                    dc = Math.max(dc, Math.abs(c - c0));
+                    for(int i = 0; i < grad.length; i++){
+                        if(mask0[i])
+                            dg = Math.max(dg, Math.abs(grad[i] - grad0[i]));
+                    }
+                }
+                p.shutdown();
+
+                String what = name + ", " + S + " stages, " + M + " micro batches";
+                GradientCheck.report(what + ", cost difference", dc, dc < 1e-12);
+                GradientCheck.report(what + ", gradient difference", dg, dg < 1e-12);
+                GradientCheck.report(what + ", same active ranges", sameRanges, sameRanges);
+            }
+        }
+    }
+
+    private static NeuralNetModel buildConv(boolean mse){
+        NeuralNetModel m = new NeuralNetModel(mse ? new MeanSquaredError() : new CrossEntropy());
+        m.addLayer(new Convolution2DLayer(new Xavier(1), 3, 3, 3, 1, 1,
+                        Convolution2DLayer.ConvolveMethod.CONV2D))
+                .addLayer(new ActivationLayer(new ReLU()))
+                .addLayer(new MeanPooling2DLayer(2, 2))
+                .addLayer(new InnerProductLayer(new Xavier(2), 6))
+                .addLayer(new ActivationLayer(new Tanh()))
+                .addLayer(new InnerProductLayer(new Xavier(3), mse ? 1 : 3));
+        if(!mse)
+            m.addLayer(new SoftMaxLayer());
+        m.wregul = new L2Regularization(0.1);
+        return m;
+    }
+}
@@ -0,0 +1,80 @@
+package tests;
+
+import core.NeuralNetModel;
+import core.inference.Predictor;
+import init.Xavier;
+import java.util.Random;
+import layer.activation.ActivationLayer;
+import layer.activation.ReLU;
+import layer.activation.Sigmoid;
+import layer.activation.SoftMaxLayer;
+import layer.activation.SoftPlus;
+import layer.activation.Tanh;
+import layer.recurrent.LSTMLayer;
+import layer.regularization.DropoutLayer;
+import layer.subsampling.MeanPooling2DLayer;
+import layer.weight.Convolution2DLayer;
+import layer.weight.InnerProductLayer;
+import layer.weight.SeparableConvolution2DLayer;
+import loss.CrossEntropy;
+import tensor.DoubleTensor;
+
+/**
+ * Compiled Predictor against forward propagation of the model on test data,
+ * for nets mixing convolutions, pooling, dropout, fusable and not fusable
+ * activations and recurrent layers. More examples than the max. batch of the
+ * predictor are given, so that they are run in chunks.
+ * @author diego_paez
+ */
+public class TestPredictor {
+
+    public static void main(String[] args) {
+        final int E = 7, iW = 6, iH = 5, nC = 2;
+        Random rand = new Random(3);
+        DoubleTensor X = GradientCheck.gaussian(rand, iW, iH, nC, E);
+        DoubleTensor X7 = GradientCheck.gaussian(rand, 7, 7, nC, E);
+        DoubleTensor S = GradientCheck.gaussian(rand, 3, 4, E);
+        DoubleTensor y = GradientCheck.labels(rand, 3, E);
+
+        NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new Convolution2DLayer(new Xavier(1), 3, 2, 2, 1, 1,
+                        Convolution2DLayer.ConvolveMethod.CONV2D))
+                .addLayer(new ActivationLayer(new SoftPlus()))
+                .addLayer(new MeanPooling2DLayer(2, 2, 2, 2))
+                .addLayer(new DropoutLayer(0.3))
+                .addLayer(new InnerProductLayer(new Xavier(2), 5))
+                .addLayer(new ActivationLayer(new Tanh()))
+                .addLayer(new InnerProductLayer(new Xavier(4), 3))
+                .addLayer(new SoftMaxLayer());
+        compare("Conv, SoftPlus, pooling", m, X7, y);
+
+        m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new SeparableConvolution2DLayer(new Xavier(1), 3, 3, 2))
+                .addLayer(new ActivationLayer(new ReLU()))
+                .addLayer(new MeanPooling2DLayer(2, 2, 2, 2))
+                .addLayer(new DropoutLayer(0.3))
+                .addLayer(new InnerProductLayer(new Xavier(2), 5))
+                .addLayer(new ActivationLayer(new Tanh()))
+                .addLayer(new InnerProductLayer(new Xavier(4), 3))
+                .addLayer(new SoftMaxLayer());
+        compare("Separable conv, ReLU, pooling", m, X, y);
+
+        m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new LSTMLayer(new Xavier(1), 4, false))
+                .addLayer(new InnerProductLayer(new Xavier(4), 3))
+                .addLayer(new ActivationLayer(new Sigmoid()));
+        compare("LSTM", m, S, y);
+    }
+
+    private static void compare(String name, NeuralNetModel m, DoubleTensor X, DoubleTensor y){
+        m.setTrainInputs(X, y, null);
+        m.initWeights();
+        Predictor p = m.compileForInference(3);
+        m.testRunning = true;
+        DoubleTensor ref = m.fProp(X).copy();
+        DoubleTensor out = p.predict(X);
+        double d = GradientCheck.maxDiff(ref, out);
+        GradientCheck.report(name + " max. difference vs fProp", d,
+                d < 1e-12 && out.size() == ref.size());
+    }
+}
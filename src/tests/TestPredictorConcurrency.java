@@ -0,0 +1,98 @@
+package tests;
+
+import core.NeuralNetModel;
+import core.inference.Predictor;
+import init.Xavier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import layer.activation.ActivationLayer;
+import layer.activation.ReLU;
+import layer.activation.Sigmoid;
+import layer.activation.SoftMaxLayer;
+import layer.activation.Tanh;
+import layer.recurrent.GRULayer;
+import layer.recurrent.LSTMLayer;
+import layer.subsampling.MeanPooling2DLayer;
+import layer.weight.EmbeddingLayer;
+import layer.weight.InnerProductLayer;
+import layer.weight.SeparableConvolution2DLayer;
+import loss.CrossEntropy;
+import tensor.DoubleTensor;
+
+/**
+ * A single Predictor shared by many threads: every call to predict, from 8
+ * threads at once, must return the outputs of a serial forward propagation.
+ * @author diego_paez
+ */
+public class TestPredictorConcurrency {
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        final int E = 9, iW = 6, iH = 5, nC = 2;
+        Random rand = new Random(3);
+        DoubleTensor y = GradientCheck.labels(rand, 3, E);
+
+        NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new SeparableConvolution2DLayer(new Xavier(1), 3, 3, 2))
+                .addLayer(new ActivationLayer(new ReLU()))
+                .addLayer(new MeanPooling2DLayer(2, 2, 2, 2))
+                .addLayer(new InnerProductLayer(new Xavier(2), 5))
+                .addLayer(new ActivationLayer(new Tanh()))
+                .addLayer(new InnerProductLayer(new Xavier(4), 3))
+                .addLayer(new SoftMaxLayer());
+        run("Conv", m, GradientCheck.gaussian(rand, iW, iH, nC, E), y);
+
+        m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new GRULayer(new Xavier(1), 4, true))
+                .addLayer(new LSTMLayer(new Xavier(1), 4, false))
+                .addLayer(new InnerProductLayer(new Xavier(4), 3))
+                .addLayer(new ActivationLayer(new Sigmoid()));
+        run("Recurrent", m, GradientCheck.gaussian(rand, 3, 4, E), y);
+
+        DoubleTensor ids = new DoubleTensor(2, E);
+        ids.setPosToLast();
+        for(int i = 0; i < ids.size(); i++){
+            ids.setQuick(i, rand.nextInt(10));
+        }
+        m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new EmbeddingLayer(new Xavier(1), 10, 3))
+                .addLayer(new InnerProductLayer(new Xavier(4), 3))
+                .addLayer(new SoftMaxLayer());
+        run("Embedding", m, ids, y);
+    }
+
+    private static void run(String name, NeuralNetModel m, final DoubleTensor X,
+            DoubleTensor y) throws InterruptedException, ExecutionException {
+        m.setTrainInputs(X, y, null);
+        m.initWeights();
+        final Predictor p = m.compileForInference(4);
+        m.testRunning = true;
+        final DoubleTensor ref = m.fProp(X).copy();
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<Double>> results = new ArrayList<>();
+        for(int k = 0; k < 64; k++){
+            results.add(pool.submit(new Callable<Double>() {
+                @Override
+                public Double call() {
+                    double d = 0.0;
+                    for(int r = 0; r < 20; r++){
+                        d = Math.max(d, GradientCheck.maxDiff(ref, p.predict(X)));
+                    }
+                    return d;
+                }
+            }));
+        }
+        double d = 0.0;
+        for(Future<Double> f: results){
+            d = Math.max(d, f.get());
+        }
+        pool.shutdown();
+        GradientCheck.report(name + " max. difference vs serial fProp", d, d == 0.0);
+    }
+}
@@ -0,0 +1,104 @@
+package tests;
+
+import core.MagnitudePruner;
+import core.NeuralNetModel;
+import core.inference.SparseDenseOp;
+import init.Xavier;
+import java.util.Random;
+import layer.activation.ActivationLayer;
+import layer.activation.ReLU;
+import layer.activation.SoftMaxLayer;
+import layer.weight.InnerProductLayer;
+import loss.CrossEntropy;
+import tensor.DoubleTensor;
+
+/**
+ * MagnitudePruner and sparse inference. The schedule follows its formula and
+ * reaches the final sparsity, each layer gets exactly the sparsity asked with
+ * no kept weight smaller than a pruned one, biases are untouched and the mask
+ * keeps pruned weights at zero. A pruned net compiled with sparse weights
+ * gives the outputs of the one compiled with dense weights.
+ * @author diego_paez
+ */
+public class TestPruning {
+
+    public static void main(String[] args) {
+        final int E = 64, D = 40;
+        final double sf = 0.8;
+        Random rand = new Random(1);
+        DoubleTensor X = GradientCheck.gaussian(rand, D, E);
+        InnerProductLayer l1 = new InnerProductLayer(new Xavier(1), 30);
+        InnerProductLayer l2 = new InnerProductLayer(new Xavier(2), 4);
+        NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(l1).addLayer(new ActivationLayer(new ReLU())).addLayer(l2)
+                .addLayer(new SoftMaxLayer());
+        m.setTrainInputs(X, GradientCheck.labels(rand, 4, E), null);
+        m.initWeights();
+        for(int i = 0; i < m.theta.length; i++){
+            m.theta[i] += 0.01 * rand.nextGaussian();
+        }
+
+        MagnitudePruner p = new MagnitudePruner(m, sf, 2, 5);
+        double maxErr = 0.0, prev = 0.0;
+        boolean monotone = true;
+        for(int ep = 0; ep < 8; ep++){
+            double s = p.sparsityAt(ep), expected = 0.0;
+            if(ep >= 5)
+                expected = sf;
+            else if(ep >= 2)
+                expected = sf * (1 - Math.pow(1 - (ep - 1) / 4.0, 3));
+            maxErr = Math.max(maxErr, Math.abs(s - expected));
+            monotone &= s >= prev;
+            prev = s;
+        }
+        GradientCheck.report("Schedule vs formula", maxErr, maxErr < 1e-12 && monotone);
+
+        double[] before = m.theta.clone();
+        p.prune(m.theta, sf);
+        boolean exact = true, order = true;
+        for(InnerProductLayer l: new InnerProductLayer[]{l1, l2}){
+            DoubleTensor w = l.weights;
+            int zeros = 0, off = w.data.getOffset();
+            double maxPruned = 0.0, minKept = Double.MAX_VALUE;
+            for(int i = off; i < off + w.data.size(); i++){
+                if(m.theta[i] == 0.0){
+                    zeros++;
+                    maxPruned = Math.max(maxPruned, Math.abs(before[i]));
+                } else{
+                    minKept = Math.min(minKept, Math.abs(before[i]));
+                }
+            }
+            exact &= zeros == Math.round(sf * w.data.size());
+            order &= maxPruned <= minKept;
+        }
+        GradientCheck.report("Layers pruned to the sparsity asked", p.getSparsity(), exact);
+        GradientCheck.report("No kept weight smaller than a pruned one", order, order);
+        boolean bias = true;
+        for(InnerProductLayer l: new InnerProductLayer[]{l1, l2}){
+            int off = l.bias.data.getOffset();
+            for(int i = off; i < off + l.bias.data.size(); i++){
+                bias &= m.theta[i] == before[i];
+            }
+        }
+        GradientCheck.report("Biases untouched", bias, bias);
+
+        double[] pruned = m.theta.clone();
+        for(int i = 0; i < m.theta.length; i++){
+            m.theta[i] += 0.1;
+        }
+        p.applyMask(m.theta);
+        boolean mask = true;
+        for(int i = 0; i < m.theta.length; i++){
+            mask &= pruned[i] == 0.0 ? m.theta[i] == 0.0 : m.theta[i] == pruned[i] + 0.1;
+        }
+        GradientCheck.report("Mask keeps pruned weights at zero", mask, mask);
+        System.arraycopy(pruned, 0, m.theta, 0, pruned.length);
+
+        boolean sparseOp = l1.toSparseOp(null) instanceof SparseDenseOp;
+        GradientCheck.report("Inner product has sparse operation", sparseOp, sparseOp);
+        DoubleTensor dense = m.compileForInference(E).predict(X).copy();
+        DoubleTensor sparse = m.compileForInference(E, 0.5).predict(X);
+        double d = GradientCheck.maxDiff(dense, sparse);
+        GradientCheck.report("Max. diff of sparse vs dense inference", d, d < 1e-12);
+    }
+}
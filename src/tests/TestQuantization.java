@@ -0,0 +1,126 @@
+package tests;
+
+import core.NeuralNetModel;
+import core.inference.Predictor;
+import core.inference.QuantizedDenseOp;
+import eval.EvalUtil;
+import init.Xavier;
+import java.util.Random;
+import layer.activation.ActivationLayer;
+import layer.activation.ReLU;
+import layer.activation.SoftMaxLayer;
+import layer.subsampling.MeanPooling2DLayer;
+import layer.weight.Convolution2DLayer;
+import layer.weight.InnerProductLayer;
+import loss.CrossEntropy;
+import tensor.DoubleTensor;
+
+/**
+ * Int8 inference against doubles. QuantizedDenseOp must equal the inner
+ * product of the quantized values (computed here from the definition) and
+ * stay within the rounding bound of the exact product. Nets compiled with
+ * compileQuantized must predict the same classes as compileForInference,
+ * except where its two best classes are within the error of the
+ * probabilities, which must be small on average.
+ * @author diego_paez
+ */
+public class TestQuantization {
+
+    private static byte q(double v, double scale){
+        long r = Math.round(v / scale);
+        return (byte) Math.max(-127, Math.min(127, r));
+    }
+
+    private static void checkDense(Random rand){
+        final int nIn = 50, nOut = 7, E = 20;
+        DoubleTensor W = GradientCheck.gaussian(rand, nIn, nOut);
+        DoubleTensor b = GradientCheck.gaussian(rand, nOut);
+        DoubleTensor X = GradientCheck.gaussian(rand, nIn, E);
+        double maxX = 0.0;
+        for(int i = 0; i < X.size(); i++){
+            maxX = Math.max(maxX, Math.abs(X.getQuick(i)));
+        }
+        double sx = maxX / 127.0;
+        QuantizedDenseOp op = new QuantizedDenseOp(W, b, nIn, nOut, null, sx);
+        DoubleTensor out = new DoubleTensor(nOut, E);
+        out.setPosToLast();
+        op.forward(X, out, op.createWorkspace(E));
+
+        double maxDef = 0.0;
+        int outOfBound = 0;
+        for(int j = 0; j < nOut; j++){
+            double maxW = 0.0;
+            for(int i = 0; i < nIn; i++){
+                maxW = Math.max(maxW, Math.abs(W.getQuick(i + j * nIn)));
+            }
+            double sw = maxW / 127.0;
+            for(int e = 0; e < E; e++){
+                long acc = 0;
+                double exact = b.getQuick(j), bound = 0.0;
+                for(int i = 0; i < nIn; i++){
+                    double w = W.getQuick(i + j * nIn), x = X.getQuick(i + e * nIn);
+                    acc += q(w, sw) * q(x, sx);
+                    exact += w * x;
+                    bound += Math.abs(w) * sx / 2 + Math.abs(x) * sw / 2 + sx * sw / 4;
+                }
+                double o = out.getQuick(j + e * nOut);
+                maxDef = Math.max(maxDef, Math.abs(o - (acc * sw * sx + b.getQuick(j))));
+                if(Math.abs(o - exact) > bound + 1e-12)
+                    outOfBound++;
+            }
+        }
+        GradientCheck.report("Dense op vs int8 definition", maxDef, maxDef < 1e-12);
+        GradientCheck.report("Dense outputs beyond rounding bound", outOfBound, outOfBound == 0);
+    }
+
+    private static void checkNet(String name, NeuralNetModel m, DoubleTensor X){
+        int E = X.lastDim();
+        m.setTrainInputs(X, new DoubleTensor(new double[E], E), null);
+        m.initWeights();
+        Predictor f = m.compileForInference(64);
+        DoubleTensor of = f.predict(X).copy();
+        Predictor q = m.compileQuantized(64, X.sliceLastDim(0, Math.min(E, 200)));
+        DoubleTensor oq = q.predict(X).copy();
+        double mean = 0.0, maxDiff = GradientCheck.maxDiff(of, oq);
+        for(int i = 0; i < of.size(); i++){
+            mean += Math.abs(of.getQuick(i) - oq.getQuick(i)) / of.size();
+        }
+        GradientCheck.report(name + ", mean diff of probabilities", mean, mean < 0.005);
+
+        // classes may only change where the two best classes of the double
+        // net are closer than the error of the probabilities
+        int C = of.size() / E, badChange = 0;
+        double[] cf = EvalUtil.classify(of), cq = EvalUtil.classify(oq);
+        for(int e = 0; e < E; e++){
+            if(cf[e] == cq[e])
+                continue;
+            double margin = of.getQuick(e * C + (int) cf[e]) - of.getQuick(e * C + (int) cq[e]);
+            if(margin > 2 * maxDiff)
+                badChange++;
+        }
+        double delta = EvalUtil.accuracyDelta(f, q, X, new DoubleTensor(cf, E), 64);
+        GradientCheck.report(name + ", agreement of classes", 1.0 + delta, delta > -0.1);
+        GradientCheck.report(name + ", changed classes beyond error", badChange, badChange == 0);
+    }
+
+    public static void main(String[] args) {
+        Random rand = new Random(5);
+        checkDense(rand);
+
+        NeuralNetModel mlp = new NeuralNetModel(new CrossEntropy());
+        mlp.addLayer(new InnerProductLayer(new Xavier(1), 64))
+                .addLayer(new ActivationLayer(new ReLU()))
+                .addLayer(new InnerProductLayer(new Xavier(2), 10))
+                .addLayer(new SoftMaxLayer());
+        checkNet("Inner product net", mlp, GradientCheck.gaussian(rand, 128, 500));
+
+        NeuralNetModel conv = new NeuralNetModel(new CrossEntropy());
+        conv.addLayer(new Convolution2DLayer(new Xavier(1), 4, 3, 3, 1, 1,
+                        Convolution2DLayer.ConvolveMethod.CONV2D))
+                .addLayer(new ActivationLayer(new ReLU()))
+                .addLayer(new MeanPooling2DLayer(2, 2, 2, 2))
+                .addLayer(new InnerProductLayer(new Xavier(2), 10))
+                .addLayer(new SoftMaxLayer());
+        checkNet("Convolutional net", conv, GradientCheck.gaussian(rand, 12, 12, 2, 300));
+    }
+}
@@ -0,0 +1,43 @@
+package tests;
+
+import core.NeuralNetModel;
+import init.Xavier;
+import java.util.Random;
+import layer.Layer;
+import layer.activation.SoftMaxLayer;
+import layer.recurrent.GRULayer;
+import layer.recurrent.LSTMLayer;
+import layer.weight.InnerProductLayer;
+import loss.CrossEntropy;
+import tensor.DoubleTensor;
+
+/**
+ * Gradient check of LSTMLayer and GRULayer (backpropagation through time):
+ * a layer returning sequences stacked under one returning the last state.
+ * @author diego_paez
+ */
+public class TestRecurrentGrad {
+
+    public static void main(String[] args) {
+        run(new LSTMLayer(new Xavier(1), 4, true), new LSTMLayer(new Xavier(5), 3));
+        run(new GRULayer(new Xavier(1), 4, true), new GRULayer(new Xavier(5), 3));
+    }
+
+    private static void run(Layer first, Layer second){
+        final int E = 5, nIn = 3, T = 4;
+        Random rand = new Random(3);
+        NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(first).addLayer(second)
+                .addLayer(new InnerProductLayer(new Xavier(2), 3))
+                .addLayer(new SoftMaxLayer());
+
+        DoubleTensor X = GradientCheck.gaussian(rand, nIn, T, E);
+        DoubleTensor y = GradientCheck.labels(rand, 3, E);
+        m.setTrainInputs(X, y, null);
+        m.initWeights();
+
+        double err = GradientCheck.maxError(m, X, y, null);
+        GradientCheck.report(first.getClass().getSimpleName()
+                + " max. error vs finite differences", err, err < 1e-6);
+    }
+}
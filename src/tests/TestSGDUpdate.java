@@ -0,0 +1,172 @@
+package tests;
+
+import java.util.Random;
+import optim.ActiveRanges;
+import optim.sgd.update.AdaMaxUpdate;
+import optim.sgd.update.AdagradUpdate;
+import optim.sgd.update.AdamUpdate;
+import optim.sgd.update.MomentumSGDUpdate;
+import optim.sgd.update.NesterovMomentumSGDUpdate;
+import optim.sgd.update.PlainVanillaSGDUpdate;
+import optim.sgd.update.RMSprop;
+import optim.sgd.update.SGDUpdate;
+
+/**
+ * Step of the updates against the serial path. For every update, with and
+ * without active ranges, clipping and weight decay: the step folding clipping
+ * and decay into the gradient equals the step on a gradient clipped and
+ * decayed beforehand, stepping with locks equals stepping in one block and
+ * so does stepping with 4 threads (up to the order of the sum of the norm
+ * when clipping), and parameters outside the active ranges are not touched.
+ * Threads stepping concurrently with clipping (asynchronous SGD) each scale
+ * their own gradient. Last, a block failing on the threads of the step
+ * makes apply throw.
+ * @author diego_paez
+ */
+public class TestSGDUpdate {
+
+    private static SGDUpdate[] make(int n){
+        return new SGDUpdate[]{new AdamUpdate(0.01, 0.9, 0.999, n),
+            new AdaMaxUpdate(0.01, 0.9, 0.999, n), new RMSprop(0.01, 0.9, n),
+            new AdagradUpdate(0.01, n), new MomentumSGDUpdate(0.01, 0.9, n),
+            new NesterovMomentumSGDUpdate(0.01, 0.9, n), new PlainVanillaSGDUpdate(0.01)};
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int n = 100003, steps = 4;
+        Random rand = new Random(1);
+        double[] x0 = new double[n], g = new double[n];
+        for(int i = 0; i < n; i++){
+            x0[i] = rand.nextGaussian();
+            g[i] = 3 * rand.nextGaussian();
+        }
+        ActiveRanges ar = new ActiveRanges();
+        ar.add(5, 20000);
+        ar.add(20010, 20011);
+        ar.add(30000, 99000);
+        Object[] locks = new Object[7];
+        for(int i = 0; i < locks.length; i++){
+            locks[i] = new Object();
+        }
+
+        for(int k = 0; k < make(1).length; k++){
+            double dRef = 0.0, dThreads = 0.0, dLocks = 0.0;
+            boolean untouched = true;
+            for(ActiveRanges active: new ActiveRanges[]{null, ar}){
+                for(double clip: new double[]{0.0, 10.0}){
+                    for(double wd: new double[]{0.0, 0.1}){
+                        SGDUpdate u1 = make(n)[k], u4 = make(n)[k], ul = make(n)[k], ur = make(n)[k];
+                        for(SGDUpdate u: new SGDUpdate[]{u1, u4, ul}){
+                            u.clipNorm = clip;
+                            u.weightDecay = wd;
+                        }
+                        u4.setThreads(4);
+                        double[] x1 = x0.clone(), x4 = x0.clone(), xl = x0.clone(), xr = x0.clone();
+                        boolean[] mask = GradientCheck.activeMask(active, n);
+                        for(int s = 0; s < steps; s++){
+                            u1.apply(x1, g, active, null);
+                            u4.apply(x4, g, active, null);
+                            ul.apply(xl, g, active, locks);
+
+                            double ss = 0.0;
+                            for(int i = 0; i < n; i++){
+                                if(mask[i])
+                                    ss += g[i] * g[i];
+                            }
+                            double sc = clip > 0 && Math.sqrt(ss) > clip ? clip / Math.sqrt(ss) : 1.0;
+                            double[] ge = new double[n];
+                            for(int i = 0; i < n; i++){
+                                ge[i] = sc * g[i] + wd * xr[i];
+                            }
+                            ur.apply(xr, ge, active, null);
+                        }
+                        u4.setThreads(1);
+                        dRef = Math.max(dRef, GradientCheck.maxDiff(x1, xr));
+                        dThreads = Math.max(dThreads, GradientCheck.maxDiff(x1, x4));
+                        dLocks = Math.max(dLocks, GradientCheck.maxDiff(x1, xl));
+                        for(int i = 0; i < n; i++){
+                            if(!mask[i] && x1[i] != x0[i])
+                                untouched = false;
+                        }
+                    }
+                }
+            }
+            String name = make(1)[k].getClass().getSimpleName();
+            GradientCheck.report(name + ", folded vs clipped and decayed gradient", dRef, dRef < 1e-12);
+            GradientCheck.report(name + ", 4 threads vs 1", dThreads, dThreads < 1e-12);
+            GradientCheck.report(name + ", locks vs no locks", dLocks, dLocks == 0.0);
+            GradientCheck.report(name + ", outside active ranges untouched", untouched, untouched);
+        }
+
+        checkConcurrentClipping(rand);
+        checkFailedBlock(n);
+    }
+
+    /**
+     * A gradient shorter than the parameters makes the last blocks fail, when
+     * summing the norm and when stepping.
+     */
+    private static void checkFailedBlock(int n){
+        for(double clip: new double[]{0.0, 10.0}){
+            PlainVanillaSGDUpdate u = new PlainVanillaSGDUpdate(0.01);
+            u.clipNorm = clip;
+            u.setThreads(4);
+            boolean thrown = false;
+            try {
+                u.apply(new double[n], new double[n / 2], null, null);
+            } catch (IllegalStateException e) {
+                thrown = e.getCause() instanceof ArrayIndexOutOfBoundsException;
+            }
+            u.setThreads(1);
+            GradientCheck.report("Failed block throws, clipping " + clip, thrown, thrown);
+        }
+    }
+
+    /**
+     * Threads apply plain SGD steps with clipping to shared parameters (with
+     * locks), each with a gradient of a different norm. Steps are linear, so
+     * the result must be the sum of the clipped gradients whatever the order.
+     */
+    private static void checkConcurrentClipping(Random rand) throws InterruptedException {
+        final int n = 200000, T = 4, steps = 40;
+        final double clip = 1.0, lr = 0.01;
+        final double[] x = new double[n];
+        final double[][] gs = new double[T][n];
+        double[] expected = new double[n];
+        for(int t = 0; t < T; t++){
+            double ss = 0.0;
+            for(int i = 0; i < n; i++){
+                gs[t][i] = (t + 1) * rand.nextGaussian();
+                ss += gs[t][i] * gs[t][i];
+            }
+            double sc = clip / Math.sqrt(ss);
+            for(int i = 0; i < n; i++){
+                expected[i] -= steps * lr * sc * gs[t][i];
+            }
+        }
+        final PlainVanillaSGDUpdate u = new PlainVanillaSGDUpdate(lr);
+        u.clipNorm = clip;
+        final Object[] locks = new Object[8];
+        for(int i = 0; i < locks.length; i++){
+            locks[i] = new Object();
+        }
+        Thread[] threads = new Thread[T];
+        for(int t = 0; t < T; t++){
+            final double[] g = gs[t];
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int s = 0; s < steps; s++){
+                        u.apply(x, g, null, locks);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread t: threads){
+            t.join();
+        }
+        double d = GradientCheck.maxDiff(x, expected);
+        GradientCheck.report("Concurrent clipped steps vs sum of clipped gradients", d, d < 1e-12);
+    }
+}
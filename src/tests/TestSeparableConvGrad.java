@@ -0,0 +1,44 @@
+package tests;
+
+import core.NeuralNetModel;
+import init.Xavier;
+import java.util.Random;
+import layer.activation.SoftMaxLayer;
+import layer.weight.InnerProductLayer;
+import layer.weight.SeparableConvolution2DLayer;
+import loss.CrossEntropy;
+import tensor.DoubleTensor;
+
+/**
+ * Gradient check of SeparableConvolution2DLayer for several strides and
+ * image sizes, two separable
+ * layers stacked so that the gradient w.r. to inputs is also checked.
+ * @author diego_paez
+ */
+public class TestSeparableConvGrad {
+
+    public static void main(String[] args) {
+        run(1, 6, 5);
+        run(3, 9, 9);
+        run(2, 7, 8);
+    }
+
+    private static void run(int stride, int iW, int iH){
+        final int E = 4, nC = 2;
+        Random rand = new Random(3);
+        NeuralNetModel m = new NeuralNetModel(new CrossEntropy());
+        m.addLayer(new SeparableConvolution2DLayer(new Xavier(1), 3, 3, 2, stride, stride))
+                .addLayer(new SeparableConvolution2DLayer(new Xavier(4), 2, 2, 2))
+                .addLayer(new InnerProductLayer(new Xavier(2), 3))
+                .addLayer(new SoftMaxLayer());
+
+        DoubleTensor X = GradientCheck.gaussian(rand, iW, iH, nC, E);
+        DoubleTensor y = GradientCheck.labels(rand, 3, E);
+        m.setTrainInputs(X, y, null);
+        m.initWeights();
+
+        double err = GradientCheck.maxError(m, X, y, null);
+        GradientCheck.report("Stride " + stride + ", " + iW + "x" + iH
+                + " max. error vs finite differences", err, err < 1e-6);
+    }
+}
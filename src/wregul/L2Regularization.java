@@ -3,6 +3,7 @@ package wregul;
 import layer.Layer;
 import layer.weight.WeightLayer;
 import core.NeuralNetModel;
+import optim.ActiveRanges;
 
 /**
  * Lasso Reg. - p = 1
@@ -18,12 +19,13 @@ public class L2Regularization extends WeightRegularization {
     @Override
     public double eval(NeuralNetModel model, double lambdaAdjus) {
         WeightLayer layer;
-        double penalty = 0.0;
+        double penalty = 0.0, w;
 
         for(Layer l: model.layers){
             if(l instanceof WeightLayer){
                 layer = (WeightLayer) l;
-                for(double w: layer.weights.data.getData()){
+                for(int i = 0; i < layer.weights.size(); i++){
+                    w = layer.weights.getQuick(i);
                     penalty += w * w;
                 }
             }
@@ -34,15 +36,21 @@ public class L2Regularization extends WeightRegularization {
 
     @Override
     public void updateWeights(NeuralNetModel model, double lambdaAdjus) {
+        ActiveRanges[] ranges = regularizedRanges(model);
         WeightLayer layer;
+        ActiveRanges r;
         double w;
+        int c = 0;
         for(Layer l: model.layers){
             if(l instanceof WeightLayer){
                 layer = (WeightLayer) l;
-                for(int i = 0; i < layer.weightsGrad.size(); i++){
-                    w = layer.weights.getQuick(i);
-                    layer.weightsGrad.setQuick(i, layer.weightsGrad.getQuick(i)
-                            + lambda * lambdaAdjus * w);
+                r = ranges[c++];
+                for(int j = 0; j < r.size(); j++){
+                    for(int i = r.from(j); i < r.to(j); i++){
+                        w = layer.weights.getQuick(i);
+                        layer.weightsGrad.setQuick(i, layer.weightsGrad.getQuick(i)
+                                + lambda * lambdaAdjus * w);
+                    }
                 }
             }
         }
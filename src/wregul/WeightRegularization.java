@@ -1,6 +1,9 @@
 package wregul;
 
 import core.NeuralNetModel;
+import layer.Layer;
+import layer.weight.WeightLayer;
+import optim.ActiveRanges;
 
 /**
  *
@@ -16,4 +19,48 @@ public abstract class WeightRegularization {
 
     public abstract double eval(NeuralNetModel model, double lambdaAdjus);
     public abstract void updateWeights(NeuralNetModel model, double lambdaAdjus);
+
+    /**
+     * Ranges of the weights of each weight layer whose gradient is
+     * regularized, relative to the first weight of the layer. All weights,
+     * except for layers with a sparse gradient (see WeightLayer.hasSparseGrad)
+     * which only get the parts within the active ranges of the model: the
+     * rest of their gradient must stay zero since it is not cleared by the
+     * layer in the next update.
+     * @param model Model being backpropagated, its active ranges must be up
+     * to date.
+     * @return Ranges of each weight layer, in the order of model.layers.
+     */
+    protected static ActiveRanges[] regularizedRanges(NeuralNetModel model){
+        ActiveRanges active = model.activeRanges;
+        WeightLayer layer;
+        int count = 0, k = 0, start, end;
+        for(Layer l: model.layers){
+            if(l instanceof WeightLayer)
+                count++;
+        }
+
+        ActiveRanges[] ranges = new ActiveRanges[count];
+        count = 0;
+        for(Layer l: model.layers){
+            if(!(l instanceof WeightLayer))
+                continue;
+            layer = (WeightLayer) l;
+            start = k + layer.bias.size();
+            end = start + layer.weights.size();
+            k = end;
+
+            ActiveRanges r = new ActiveRanges();
+            if(active != null && layer.hasSparseGrad()){
+                for(int i = 0; i < active.size(); i++){
+                    r.add(Math.max(active.from(i), start) - start,
+                            Math.min(active.to(i), end) - start);
+                }
+            } else{
+                r.add(0, end - start);
+            }
+            ranges[count++] = r;
+        }
+        return ranges;
+    }
 }